@@ -10,6 +10,7 @@ import com.github.javaparser.ast.expr.*;
 import com.google.googlejavaformat.java.FormatterException;
 import com.intellij.openapi.project.Project;
 import com.rj.diff.CodeDiffNotifications;
+import com.rj.diff.current.utils.DiffReport;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -90,6 +91,52 @@ public class AstDiffUpdater {
         return format;
     }
 
+    /**
+     * 基于高亮时生成的对比结果合并，复用已解析的语法树和方法匹配结果，不再重新解析和对比
+     * 调用前需通过 DiffReport#consume 确认结果未被消费过（合并会修改左侧语法树）
+     *
+     * @param project 当前项目
+     * @param report  对比结果（左侧为目标，右侧为源）
+     * @return 合并并格式化后的代码
+     */
+    public static String updateControllerWithDifferences(Project project, DiffReport report) {
+        CompilationUnit targetCu = report.getLeftCu();
+        CompilationUnit sourceCu = report.getRightCu();
+        ClassOrInterfaceDeclaration targetClass = report.getLeftClass();
+        ClassOrInterfaceDeclaration sourceClass = report.getRightClass();
+        if (targetClass == null || sourceClass == null) {
+            CodeDiffNotifications.showError(project,"错误","代码错误，AST无法解析！！！");
+            return report.getLeftText();
+        }
+
+        // 首先处理import语句（只添加不覆盖）
+        processImports(targetCu, sourceCu);
+
+        //  处理类注解（仅添加B有而A没有的）
+        addMissingClassAnnotations(targetClass, sourceClass);
+
+        // 处理方法差异：直接使用对比结果中的方法匹配
+        for (MethodDeclaration bMethod : sourceClass.getMethods()) {
+            MethodDeclaration aMethod = report.getMatchedMethod(bMethod);
+            if (aMethod != null) {
+                // 已有方法：仅添加新参数和注解，不修改方法体
+                addMissingParameters(aMethod, bMethod);
+                addMissingMethodAnnotations(aMethod, bMethod);
+            } else {
+                // 新方法：直接添加
+                targetClass.addMember(bMethod.clone());
+            }
+        }
+
+        // 处理字段差异（仅添加B有而A没有的）
+        addMissingFields(targetClass, sourceClass);
+
+        String format = JavaFormatterUtils.format(targetCu.toString());
+
+        log.info("复用对比结果合并完成....{}", format.length());
+        return format;
+    }
+
     // 处理import语句（核心新增方法）
     private static void processImports(CompilationUnit aCu, CompilationUnit bCu) {
         // 获取A文件已有的import
@@ -7,6 +7,7 @@ import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.file.Path;
@@ -30,9 +31,10 @@ public class MyCodeCompareAction extends AnAction {
         Path filePath = Path.of(virtualFile.getPath());
 
         VirtualFile file = e.getData(CommonDataKeys.VIRTUAL_FILE);
+        PsiFile psiFile = e.getData(CommonDataKeys.PSI_FILE);
 
         // 在 IDE 窗口中央显示对话框
-        MyCodeCompareDialog dialog = new MyCodeCompareDialog(project, content, filePath, file);
+        MyCodeCompareDialog dialog = new MyCodeCompareDialog(project, content, filePath, file, psiFile);
         dialog.show();
 
         // 如果点击了确定，刷新文件
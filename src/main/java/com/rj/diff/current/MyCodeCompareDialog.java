@@ -11,9 +11,14 @@ import com.intellij.openapi.ui.ComboBox;
 import com.intellij.openapi.ui.DialogWrapper;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
 import com.intellij.ui.components.JBScrollPane;
 import com.rj.diff.CodeDiffNotifications;
 import com.rj.diff.current.utils.CodeElementDiffer;
+import com.rj.diff.current.utils.DiffOverviewStripe;
+import com.rj.diff.current.utils.DiffReport;
+import com.rj.diff.current.utils.LocalClassModel;
+import com.rj.diff.current.utils.PsiClassModels;
 import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
 import org.fife.ui.rsyntaxtextarea.SyntaxConstants;
 import org.fife.ui.rsyntaxtextarea.Theme;
@@ -23,6 +28,7 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultHighlighter;
 import javax.swing.text.Highlighter;
 import java.awt.*;
@@ -30,6 +36,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.AdjustmentEvent;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.geom.Rectangle2D;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -48,6 +57,9 @@ public class MyCodeCompareDialog extends DialogWrapper {
     //private final JButton compareButton;         // 对比代码按钮
     private final JButton applyButton;           // 应用所有更改按钮
     private final JButton saveButton;            // 保存按钮
+    private final JButton previousChangeButton;  // 上一处差异按钮
+    private final JButton nextChangeButton;      // 下一处差异按钮
+    private final DiffOverviewStripe overviewStripe; // 右侧差异概览条
     private final JTextField urlTextField;       // URL输入框
     private final JComboBox<String> languageComboBox; // 语言选择框
 
@@ -59,11 +71,14 @@ public class MyCodeCompareDialog extends DialogWrapper {
     private boolean isAdjusting = false;         // 滚动同步状态标志
     private Point lastScrollPosition;            // 最后滚动位置
     private JDialog loadingDialog;               // 加载对话框
+    private volatile DiffReport lastReport;      // 最近一次对比结果（高亮与应用共用）
+    private int compareGeneration;               // 对比序号，只在 EDT 上读写，用于丢弃过期的对比结果
 
     // 项目相关
     private final Project project;               // 当前项目
     private final VirtualFile currentFile;       // 当前文件
     private final Path sourceFilePath;           // 源文件路径
+    private final PsiFile psiFile;               // 当前文件的 PSI（可能为 null）
 
     /**
      * 构造函数
@@ -72,12 +87,15 @@ public class MyCodeCompareDialog extends DialogWrapper {
      * @param sourceCode     源代码内容
      * @param sourceFilePath 源文件路径
      * @param currentFile    当前文件
+     * @param psiFile        当前文件的 PSI，本地代码未修改时直接用于对比，无需再解析
      */
-    public MyCodeCompareDialog(@Nullable Project project, String sourceCode, Path sourceFilePath, VirtualFile currentFile) {
+    public MyCodeCompareDialog(@Nullable Project project, String sourceCode, Path sourceFilePath, VirtualFile currentFile,
+                               @Nullable PsiFile psiFile) {
         super(project, true);
         this.project = project;
         this.sourceFilePath = sourceFilePath;
         this.currentFile = currentFile;
+        this.psiFile = psiFile;
 
         // 初始化UI设置
         setSize(1500, 800);
@@ -94,6 +112,10 @@ public class MyCodeCompareDialog extends DialogWrapper {
         //compareButton = new JButton("对比代码");
         applyButton = new JButton("应用");
         saveButton = new JButton("保存更改到原文件");
+        previousChangeButton = new JButton("上一处差异");
+        nextChangeButton = new JButton("下一处差异");
+        previousChangeButton.setToolTipText("上一处差异 (Shift+F7)");
+        nextChangeButton.setToolTipText("下一处差异 (F7)");
         urlTextField = new JTextField(80);
         languageComboBox = new ComboBox<>(new String[]{"Java"});
         languageComboBox.setVisible(Boolean.FALSE);
@@ -101,6 +123,7 @@ public class MyCodeCompareDialog extends DialogWrapper {
         // 初始化高亮颜色
         addedPainter = new DefaultHighlighter.DefaultHighlightPainter(new Color(100, 255, 100, 30));
         removedPainter = new DefaultHighlighter.DefaultHighlightPainter(new Color(243, 243, 24, 100));
+        overviewStripe = new DiffOverviewStripe(new Color(100, 200, 100), this::goToChange);
 
         // 初始化对话框
         init();
@@ -202,6 +225,8 @@ public class MyCodeCompareDialog extends DialogWrapper {
         mainPanel.add(controlPanel, BorderLayout.NORTH);
         mainPanel.add(codePanel, BorderLayout.CENTER);
 
+        setupNavigationKeys(mainPanel);
+
         return mainPanel;
     }
 
@@ -216,6 +241,8 @@ public class MyCodeCompareDialog extends DialogWrapper {
         controlPanel.add(urlTextField);
         controlPanel.add(fetchButton);
         controlPanel.add(languageComboBox);
+        controlPanel.add(previousChangeButton);
+        controlPanel.add(nextChangeButton);
         //controlPanel.add(compareButton);
         return controlPanel;
     }
@@ -231,8 +258,13 @@ public class MyCodeCompareDialog extends DialogWrapper {
         RTextScrollPane currentCode = new RTextScrollPane(createTextAreaPanel("当前代码", leftTextArea));
         RTextScrollPane rightCode = new RTextScrollPane(createTextAreaPanel("快速开发平台代码", rightTextArea));
 
+        // 右侧代码旁显示差异概览条
+        JPanel rightPanel = new JPanel(new BorderLayout());
+        rightPanel.add(rightCode, BorderLayout.CENTER);
+        rightPanel.add(overviewStripe, BorderLayout.EAST);
+
         codePanel.add(currentCode);
-        codePanel.add(rightCode);
+        codePanel.add(rightPanel);
 
         setupScrollSync(currentCode, rightCode);
 
@@ -319,6 +351,8 @@ public class MyCodeCompareDialog extends DialogWrapper {
         //compareButton.addActionListener(this::compareCode);
         applyButton.addActionListener(this::applyAllChanges);
         saveButton.addActionListener(this::saveToSourceFile);
+        previousChangeButton.addActionListener(e -> goToPreviousChange());
+        nextChangeButton.addActionListener(e -> goToNextChange());
 
         languageComboBox.addActionListener(e -> {
             String selectedLanguage = (String) languageComboBox.getSelectedItem();
@@ -473,17 +507,128 @@ public class MyCodeCompareDialog extends DialogWrapper {
     private void compareCode(ActionEvent e) {
         String leftText = leftTextArea.getText();
         String rightText = rightTextArea.getText();
+        // 每次编辑都会发起对比，较慢的旧对比可能晚于新对比完成，只发布最新一次的结果
+        int generation = ++compareGeneration;
 
         if (leftText.isEmpty() || rightText.isEmpty()) {
+            publishReport(null, null);
             return;
         }
 
         CompletableFuture.runAsync(() -> {
+            // 左侧文本与 PSI 一致时复用 IDE 的解析结果，否则由 JavaParser 解析
+            LocalClassModel leftModel = psiFile == null ? null : PsiClassModels.forText(psiFile, leftText);
             CodeElementDiffer differ = new CodeElementDiffer(rightTextArea, addedPainter);
-            differ.highlightDifferences(leftText, rightText);
+            DiffReport report = differ.compare(leftModel, leftText, rightText);
+            SwingUtilities.invokeLater(() -> {
+                if (generation == compareGeneration) {
+                    publishReport(differ, report);
+                }
+            });
         });
     }
 
+    /**
+     * 在 EDT 上发布对比结果：重绘高亮，更新导航和概览条
+     * 无法对比时丢弃上次结果，避免导航、概览条和应用更改使用旧文本的偏移量
+     *
+     * @param differ 生成结果的对比器，report 为 null 时可为 null
+     * @param report 对比结果，可为 null
+     */
+    private void publishReport(CodeElementDiffer differ, DiffReport report) {
+        rightTextArea.getHighlighter().removeAllHighlights();
+        if (report != null) {
+            differ.highlight(report);
+        }
+        lastReport = report;
+        overviewStripe.setReport(report);
+    }
+
+    /**
+     * 与两侧当前文本一致的对比结果；编辑后新结果尚未发布时返回 null
+     */
+    private DiffReport currentReport() {
+        DiffReport report = lastReport;
+        if (report == null || !report.matches(leftTextArea.getText(), rightTextArea.getText())) {
+            return null;
+        }
+        return report;
+    }
+
+    /**
+     * 注册差异导航快捷键：F7 下一处，Shift+F7 上一处
+     *
+     * @param panel 对话框主面板
+     */
+    private void setupNavigationKeys(JPanel panel) {
+        InputMap inputMap = panel.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        ActionMap actionMap = panel.getActionMap();
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_F7, 0), "nextChange");
+        inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_F7, InputEvent.SHIFT_DOWN_MASK), "previousChange");
+        actionMap.put("nextChange", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                goToNextChange();
+            }
+        });
+        actionMap.put("previousChange", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                goToPreviousChange();
+            }
+        });
+    }
+
+    /**
+     * 跳转到光标之后的下一处差异，到达末尾后回到第一处
+     */
+    private void goToNextChange() {
+        DiffReport report = currentReport();
+        if (report == null || !report.hasDifferences()) {
+            return;
+        }
+        int index = report.nextRange(rightTextArea.getCaretPosition());
+        goToChange(index < 0 ? 0 : index);
+    }
+
+    /**
+     * 跳转到光标之前的上一处差异，到达开头后回到最后一处
+     */
+    private void goToPreviousChange() {
+        DiffReport report = currentReport();
+        if (report == null || !report.hasDifferences()) {
+            return;
+        }
+        int index = report.previousRange(rightTextArea.getCaretPosition());
+        goToChange(index < 0 ? report.getRangeCount() - 1 : index);
+    }
+
+    /**
+     * 将右侧光标移动到指定差异并滚动到可见位置，左侧通过滚动同步跟随
+     *
+     * @param index 差异区间下标
+     */
+    private void goToChange(int index) {
+        DiffReport report = currentReport();
+        if (report == null || index < 0 || index >= report.getRangeCount()) {
+            return;
+        }
+        int length = rightTextArea.getDocument().getLength();
+        int start = Math.min(report.getRangeStart(index), length);
+        int end = Math.min(report.getRangeEnd(index), length);
+        rightTextArea.setCaretPosition(start);
+        try {
+            Rectangle2D startView = rightTextArea.modelToView2D(start);
+            Rectangle2D endView = rightTextArea.modelToView2D(end);
+            if (startView != null && endView != null) {
+                rightTextArea.scrollRectToVisible(startView.createUnion(endView).getBounds());
+            }
+        } catch (BadLocationException ex) {
+            // 文本已变化，忽略本次滚动
+        }
+        rightTextArea.requestFocusInWindow();
+    }
+
     /**
      * 应用所有更改
      *
@@ -495,7 +640,16 @@ public class MyCodeCompareDialog extends DialogWrapper {
             return;
         }
 
-        String resultJava = AstDiffUpdater.updateControllerWithDifferences(project, rightTextArea.getText(), leftTextArea.getText());
+        String leftText = leftTextArea.getText();
+        String rightText = rightTextArea.getText();
+        DiffReport report = lastReport;
+        String resultJava;
+        if (report != null && report.matches(leftText, rightText) && report.consume()) {
+            // 复用高亮时的对比结果，无需重新解析
+            resultJava = AstDiffUpdater.updateControllerWithDifferences(project, report);
+        } else {
+            resultJava = AstDiffUpdater.updateControllerWithDifferences(project, rightText, leftText);
+        }
         leftTextArea.setText(resultJava);
         compareCode(null);
     }
@@ -7,6 +7,8 @@ import com.github.javaparser.ast.ImportDeclaration;
 import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.body.*;
 import com.github.javaparser.ast.expr.*;
+import com.rj.diff.current.utils.LocalClassModel.MethodShape;
+import com.rj.diff.current.utils.LocalClassModel.ParameterShape;
 import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
 
 import javax.swing.text.BadLocationException;
@@ -18,115 +20,162 @@ import java.util.stream.Stream;
 public class CodeElementDiffer {
     private final RSyntaxTextArea rightTextArea;
     private final Highlighter.HighlightPainter addedPainter;
+    // 右侧文本的行首偏移量表，每次对比时按文本快照重建
+    private LineOffsetTable rightLineOffsets;
+    // 当前正在构建的对比结果
+    private DiffReport report;
 
     public CodeElementDiffer(RSyntaxTextArea rightTextArea, Highlighter.HighlightPainter addedPainter) {
         this.rightTextArea = rightTextArea;
         this.addedPainter = addedPainter;
     }
 
-    public void highlightDifferences(String leftCode, String rightCode) {
+    /**
+     * 对比两段代码并高亮右侧差异
+     *
+     * @return 对比结果，解析失败时返回 null
+     */
+    public DiffReport highlightDifferences(String leftCode, String rightCode) {
+        return highlightDifferences(null, leftCode, rightCode);
+    }
+
+    /**
+     * 对比两段代码并高亮右侧差异，左侧使用已有的结构摘要
+     *
+     * @param leftModel 左侧结构摘要（如由 PSI 构建），为 null 时解析 leftCode
+     * @return 对比结果，解析失败时返回 null
+     */
+    public DiffReport highlightDifferences(LocalClassModel leftModel, String leftCode, String rightCode) {
+        rightTextArea.getHighlighter().removeAllHighlights();
+        DiffReport result = compare(leftModel, leftCode, rightCode);
+        if (result != null) {
+            highlight(result);
+        }
+        return result;
+    }
+
+    /**
+     * 对比两段代码，生成可供高亮、导航和合并共用的对比结果
+     *
+     * @return 对比结果，解析失败时返回 null
+     */
+    public DiffReport compare(String leftCode, String rightCode) {
+        return compare(null, leftCode, rightCode);
+    }
+
+    /**
+     * 对比两段代码，左侧可直接使用已有的结构摘要，此时只需解析右侧
+     *
+     * @param leftModel 左侧结构摘要，为 null 时解析 leftCode
+     * @return 对比结果，解析失败时返回 null
+     */
+    public DiffReport compare(LocalClassModel leftModel, String leftCode, String rightCode) {
         try {
-            rightTextArea.getHighlighter().removeAllHighlights();
+            rightLineOffsets = LineOffsetTable.of(rightCode);
 
             JavaParser javaParser = new JavaParser();
-            CompilationUnit leftCu = javaParser.parse(leftCode).getResult().orElse(null);
+            if (leftModel == null) {
+                CompilationUnit leftCu = javaParser.parse(leftCode).getResult().orElse(null);
+                if (leftCu == null) return null;
+                leftModel = LocalClassModel.fromAst(leftCu);
+            }
             CompilationUnit rightCu = javaParser.parse(rightCode).getResult().orElse(null);
 
-            if (leftCu == null || rightCu == null) return;
+            if (rightCu == null) return null;
 
-            compareImports(leftCu, rightCu);
+            ClassOrInterfaceDeclaration rightClass = rightCu.findFirst(ClassOrInterfaceDeclaration.class).orElse(null);
+            report = new DiffReport(leftCode, rightCode, leftModel.cu, rightCu, leftModel.classDeclaration,
+                    rightClass, rightLineOffsets);
 
-            Optional<ClassOrInterfaceDeclaration> leftClassOpt = leftCu.findFirst(ClassOrInterfaceDeclaration.class);
-            Optional<ClassOrInterfaceDeclaration> rightClassOpt = rightCu.findFirst(ClassOrInterfaceDeclaration.class);
+            compareImports(leftModel, rightCu);
 
-            if (leftClassOpt.isPresent() && rightClassOpt.isPresent()) {
-                ClassOrInterfaceDeclaration leftClass = leftClassOpt.get();
-                ClassOrInterfaceDeclaration rightClass = rightClassOpt.get();
-
-                compareClassAnnotations(leftClass, rightClass);
-                compareFields(leftClass, rightClass);
-                compareMethods(leftClass, rightClass);
+            if (leftModel.hasClass && rightClass != null) {
+                compareClassAnnotations(leftModel, rightClass);
+                compareFields(leftModel, rightClass);
+                compareMethods(leftModel, rightClass);
             }
+            report.seal();
+            return report;
         } catch (Exception e) {
             e.printStackTrace();
+            return null;
+        } finally {
+            report = null;
         }
     }
 
-    private void compareImports(CompilationUnit leftCu, CompilationUnit rightCu) throws BadLocationException {
-        Set<String> leftImports = leftCu.getImports().stream()
-                .map(ImportDeclaration::getNameAsString)
-                .collect(Collectors.toSet());
+    /**
+     * 按对比结果中预先计算好的区间添加高亮
+     */
+    public void highlight(DiffReport diffReport) {
+        Highlighter highlighter = rightTextArea.getHighlighter();
+        try {
+            for (int i = 0; i < diffReport.getRangeCount(); i++) {
+                highlighter.addHighlight(diffReport.getRangeStart(i), diffReport.getRangeEnd(i), addedPainter);
+            }
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
 
+    private void compareImports(LocalClassModel left, CompilationUnit rightCu) {
         for (ImportDeclaration rightImport : rightCu.getImports()) {
-            if (!leftImports.contains(rightImport.getNameAsString())) {
+            if (!left.imports.contains(rightImport.getNameAsString())) {
+                report.addNewImport(rightImport);
                 highlightNode(rightImport);
             }
         }
     }
 
-    private void compareClassAnnotations(ClassOrInterfaceDeclaration leftClass,
-                                         ClassOrInterfaceDeclaration rightClass) throws BadLocationException {
-        Set<String> leftAnnotations = leftClass.getAnnotations().stream()
-                .map(this::getAnnotationKey)
-                .collect(Collectors.toSet());
-
+    private void compareClassAnnotations(LocalClassModel left,
+                                         ClassOrInterfaceDeclaration rightClass) {
         for (AnnotationExpr rightAnnotation : rightClass.getAnnotations()) {
-            if (!leftAnnotations.contains(getAnnotationKey(rightAnnotation))) {
+            if (!left.classAnnotations.contains(SourceKeys.annotationKey(rightAnnotation), rightAnnotation,
+                    SourceKeys::sameAnnotation)) {
+                report.addChangedAnnotation(rightAnnotation);
                 highlightNode(rightAnnotation);
             }
         }
     }
 
-    private void compareFields(ClassOrInterfaceDeclaration leftClass,
-                               ClassOrInterfaceDeclaration rightClass) throws BadLocationException {
-        Set<String> leftFields = leftClass.getFields().stream()
-                .flatMap(f -> f.getVariables().stream())
-                .map(v -> v.getNameAsString() + ":" + v.getTypeAsString())
-                .collect(Collectors.toSet());
-
+    private void compareFields(LocalClassModel left,
+                               ClassOrInterfaceDeclaration rightClass) {
         for (FieldDeclaration rightField : rightClass.getFields()) {
             boolean hasNewField = false;
             for (VariableDeclarator rightVar : rightField.getVariables()) {
-                String fieldKey = rightVar.getNameAsString() + ":" + rightVar.getTypeAsString();
-                if (!leftFields.contains(fieldKey)) {
+                String fieldKey = LocalClassModel.fieldKey(rightVar.getNameAsString(), rightVar.getTypeAsString());
+                if (!left.fieldKeys.contains(fieldKey)) {
                     hasNewField = true;
                     break;
                 }
             }
             if (hasNewField) {
+                report.addNewField(rightField);
                 highlightNode(rightField);
             }
         }
     }
 
-    private void compareMethods(ClassOrInterfaceDeclaration leftClass,
-                                ClassOrInterfaceDeclaration rightClass) throws BadLocationException {
-        Map<String, MethodDeclaration> leftMethods = leftClass.getMethods().stream()
-                .collect(Collectors.toMap(MethodDeclaration::getNameAsString, m -> m));
-        // 收集左边所有方法名
-        Set<String> leftMethodNames = leftClass.getMethods().stream()
-                .map(MethodDeclaration::getNameAsString)
-                .collect(Collectors.toSet());
+    private void compareMethods(LocalClassModel left,
+                                ClassOrInterfaceDeclaration rightClass) {
+        // 同名方法取第一个，与合并时的匹配规则一致
         for (MethodDeclaration rightMethod : rightClass.getMethods()) {
-            MethodDeclaration leftMethod = leftMethods.get(rightMethod.getNameAsString());
+            MethodShape leftMethod = left.methods.get(rightMethod.getNameAsString());
 
-            String rightMethodName = rightMethod.getNameAsString();
             if (leftMethod == null) {
                 // 全新方法
+                report.addNewMethod(rightMethod);
                 highlightNode(rightMethod.getName());
             } else {
                 // 对比方法细节
+                report.addMatchedMethod(rightMethod, leftMethod.declaration);
                 compareMethodDetails(leftMethod, rightMethod);
             }
-            // 如果左边没有同名方法，高亮右边的方法名
-            if (!leftMethodNames.contains(rightMethodName)) {
-                highlightNode(rightMethod.getName());
-            }
         }
     }
 
-    private void compareMethodDetails(MethodDeclaration leftMethod,
-                                      MethodDeclaration rightMethod) throws BadLocationException {
+    private void compareMethodDetails(MethodShape leftMethod,
+                                      MethodDeclaration rightMethod) {
         // 1. 对比方法注解（排除Parameters）
         compareMethodAnnotations(leftMethod, rightMethod);
 
@@ -137,40 +186,33 @@ public class CodeElementDiffer {
         compareParametersAnnotations(leftMethod, rightMethod);
 
         // 4. 对比返回类型
-        if (!leftMethod.getType().equals(rightMethod.getType())) {
+        if (!SourceKeys.sameTokens(leftMethod.returnType, rightMethod.getType())) {
+            report.addChangedReturnType(rightMethod.getType());
             highlightNode(rightMethod.getType());
         }
     }
 
-    private void compareMethodAnnotations(MethodDeclaration leftMethod,
-                                          MethodDeclaration rightMethod) throws BadLocationException {
-        Set<String> leftAnnotations = leftMethod.getAnnotations().stream()
-                .filter(a -> !a.getNameAsString().equals("Parameters"))
-                .map(this::getAnnotationKey)
-                .collect(Collectors.toSet());
-
+    private void compareMethodAnnotations(MethodShape leftMethod,
+                                          MethodDeclaration rightMethod) {
         for (AnnotationExpr rightAnnotation : rightMethod.getAnnotations()) {
-            if (!rightAnnotation.getNameAsString().equals("Parameters") &&
-                    !leftAnnotations.contains(getAnnotationKey(rightAnnotation))) {
+            if (!isParametersAnnotation(rightAnnotation) &&
+                    !leftMethod.annotations.contains(SourceKeys.annotationKey(rightAnnotation), rightAnnotation,
+                            SourceKeys::sameAnnotation)) {
+                report.addChangedAnnotation(rightAnnotation);
                 highlightNode(rightAnnotation);
             }
         }
     }
 
-    private void compareMethodParameters(MethodDeclaration leftMethod,
-                                         MethodDeclaration rightMethod) throws BadLocationException {
-        Map<String, Parameter> leftParams = leftMethod.getParameters().stream()
-                .collect(Collectors.toMap(
-                        p -> p.getNameAsString() + ":" + p.getTypeAsString(),
-                        p -> p
-                ));
-
+    private void compareMethodParameters(MethodShape leftMethod,
+                                         MethodDeclaration rightMethod) {
         for (Parameter rightParam : rightMethod.getParameters()) {
-            String paramKey = rightParam.getNameAsString() + ":" + rightParam.getTypeAsString();
-            Parameter leftParam = leftParams.get(paramKey);
+            ParameterShape leftParam = leftMethod.parameters.find(SourceKeys.parameterKey(rightParam), rightParam,
+                    SourceKeys::sameParameter);
 
             if (leftParam == null) {
                 // 新参数
+                report.addChangedParameter(rightParam);
                 highlightNode(rightParam);
             } else {
                 // 对比参数注解
@@ -179,83 +221,36 @@ public class CodeElementDiffer {
         }
     }
 
-    private void compareParameterAnnotations(Parameter leftParam,
-                                             Parameter rightParam) throws BadLocationException {
-        Set<String> leftAnnotations = leftParam.getAnnotations().stream()
-                .map(this::getAnnotationKey)
-                .collect(Collectors.toSet());
-
+    private void compareParameterAnnotations(ParameterShape leftParam,
+                                             Parameter rightParam) {
         for (AnnotationExpr rightAnnotation : rightParam.getAnnotations()) {
-            if (!leftAnnotations.contains(getAnnotationKey(rightAnnotation))) {
+            if (!leftParam.annotations.contains(SourceKeys.annotationKey(rightAnnotation), rightAnnotation,
+                    SourceKeys::sameAnnotation)) {
+                report.addChangedAnnotation(rightAnnotation);
                 highlightNode(rightAnnotation);
             }
         }
     }
 
-    private void compareParametersAnnotations(MethodDeclaration leftMethod,
-                                              MethodDeclaration rightMethod) throws BadLocationException {
-        Optional<AnnotationExpr> leftParamsOpt = leftMethod.getAnnotationByName("Parameters");
+    private void compareParametersAnnotations(MethodShape leftMethod,
+                                              MethodDeclaration rightMethod) {
         Optional<AnnotationExpr> rightParamsOpt = rightMethod.getAnnotationByName("Parameters");
 
         if (!rightParamsOpt.isPresent()) return;
 
-        // 提取左侧参数注解
-        Set<String> leftParamKeys = new HashSet<>();
-        if (leftParamsOpt.isPresent()) {
-            leftParamKeys = extractParameterAnnotations(leftParamsOpt.get()).stream()
-                    .map(this::getParameterAnnotationKey)
-                    .collect(Collectors.toSet());
-        }
-
-        // 检查右侧参数注解
+        // 检查右侧参数注解（左侧 @Parameters 中的参数注解已在摘要中）
         for (AnnotationExpr rightParam : extractParameterAnnotations(rightParamsOpt.get())) {
-            String paramKey = getParameterAnnotationKey(rightParam);
-            if (!leftParamKeys.contains(paramKey)) {
+            if (!leftMethod.parametersEntries.contains(SourceKeys.parameterAnnotationKey(rightParam), rightParam,
+                    SourceKeys::sameParameterAnnotation)) {
+                report.addChangedAnnotation(rightParam);
                 highlightNode(rightParam);
             }
         }
     }
 
-    private String getAnnotationKey(AnnotationExpr annotation) {
-        if (annotation instanceof NormalAnnotationExpr) {
-            NormalAnnotationExpr normal = (NormalAnnotationExpr) annotation;
-            return normal.getNameAsString() + ":" +
-                    normal.getPairs().stream()
-                            .sorted(Comparator.comparing(MemberValuePair::getNameAsString))
-                            .map(p -> p.getNameAsString() + "=" + p.getValue())
-                            .collect(Collectors.joining(","));
-        }
-        return annotation.toString();
-    }
-
-    private String getParameterAnnotationKey(AnnotationExpr annotation) {
-        StringBuilder key = new StringBuilder(annotation.getNameAsString());
-
-        if (annotation instanceof NormalAnnotationExpr) {
-            NormalAnnotationExpr normal = (NormalAnnotationExpr) annotation;
-
-            // 按属性名排序以保证一致性
-            normal.getPairs().stream()
-                    .sorted(Comparator.comparing(MemberValuePair::getNameAsString))
-                    .forEach(p -> {
-                        key.append(":").append(p.getNameAsString()).append("=");
-
-                        if (p.getNameAsString().equals("schema") && p.getValue().isAnnotationExpr()) {
-                            // 特殊处理schema注解
-                            AnnotationExpr schema = p.getValue().asAnnotationExpr();
-                            schema.getChildNodes().stream()
-                                    .filter(n -> n instanceof MemberValuePair)
-                                    .map(n -> (MemberValuePair) n)
-                                    .filter(mvp -> mvp.getNameAsString().equals("type"))
-                                    .findFirst()
-                                    .ifPresent(mvp -> key.append(mvp.getValue()));
-                        } else {
-                            key.append(p.getValue());
-                        }
-                    });
-        }
-
-        return key.toString();
+    private boolean isParametersAnnotation(AnnotationExpr annotation) {
+        return !annotation.getName().getQualifier().isPresent()
+                && annotation.getName().getIdentifier().equals("Parameters");
     }
 
     private List<AnnotationExpr> extractParameterAnnotations(AnnotationExpr parameters) {
@@ -303,7 +298,10 @@ public class CodeElementDiffer {
     //    }
     //}
 
-    private void highlightNode(Node node) throws BadLocationException {
+    /**
+     * 计算节点在右侧文本中的高亮区间（按整行扩展）并记录到对比结果
+     */
+    private void highlightNode(Node node) {
         if (!node.getRange().isPresent()) {
             return;
         }
@@ -399,13 +397,13 @@ public class CodeElementDiffer {
 
         // 确保行号有效
         startLine = Math.max(0, startLine);
-        endLine = Math.min(rightTextArea.getLineCount() - 1, endLine);
+        endLine = Math.min(rightLineOffsets.getLineCount() - 1, endLine);
 
         // 计算高亮范围
-        int highlightStart = rightTextArea.getLineStartOffset(startLine);
-        int highlightEnd = rightTextArea.getLineEndOffset(endLine);
+        int highlightStart = rightLineOffsets.getLineStartOffset(startLine);
+        int highlightEnd = rightLineOffsets.getLineEndOffset(endLine);
 
-        // 添加高亮
-        rightTextArea.getHighlighter().addHighlight(highlightStart, highlightEnd, addedPainter);
+        // 记录高亮区间
+        report.addRange(highlightStart, highlightEnd);
     }
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+package com.rj.diff.current.utils;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.function.IntConsumer;
+
+/**
+ * 差异概览条，显示在文本区域旁，整条高度对应整个文档
+ * 每个标记块通过 DiffReport 的有序区间二分判断是否有差异，绘制耗时与差异数量无关，也不读取高亮器
+ * 点击时跳转到点击位置之后最近的一处差异
+ */
+public class DiffOverviewStripe extends JComponent {
+    private static final int STRIPE_WIDTH = 12;
+    private static final int MARK_HEIGHT = 3;
+
+    private final Color markColor;
+    private final IntConsumer rangeSelector; // 参数为差异区间下标
+    private volatile DiffReport report;
+
+    /**
+     * @param markColor     差异标记颜色
+     * @param rangeSelector 点击标记时的回调，参数为 DiffReport 中的差异区间下标
+     */
+    public DiffOverviewStripe(Color markColor, IntConsumer rangeSelector) {
+        this.markColor = markColor;
+        this.rangeSelector = rangeSelector;
+        setPreferredSize(new Dimension(STRIPE_WIDTH, 0));
+        setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                selectRangeAt(e.getY());
+            }
+        });
+    }
+
+    /**
+     * 更新对比结果并重绘，可在任意线程调用
+     */
+    public void setReport(DiffReport report) {
+        this.report = report;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        DiffReport current = report;
+        int height = getHeight();
+        if (current == null || !current.hasDifferences() || height <= 0) {
+            return;
+        }
+        LineOffsetTable offsets = current.getRightLineOffsets();
+        int lineCount = offsets.getLineCount();
+        Rectangle clip = g.getClipBounds();
+        int from = clip == null ? 0 : Math.max(0, clip.y - clip.y % MARK_HEIGHT);
+        int to = clip == null ? height : Math.min(height, clip.y + clip.height);
+
+        g.setColor(markColor);
+        for (int y = from; y < to; y += MARK_HEIGHT) {
+            int startLine = lineAt(y, height, lineCount);
+            int endLine = Math.max(startLine + 1, lineAt(y + MARK_HEIGHT, height, lineCount));
+            int startOffset = offsets.getLineStartOffset(startLine);
+            int endOffset = endLine >= lineCount ? offsets.getTextLength() + 1 : offsets.getLineStartOffset(endLine);
+            if (current.hasRangeIn(startOffset, endOffset)) {
+                g.fillRect(1, y, getWidth() - 2, MARK_HEIGHT);
+            }
+        }
+    }
+
+    private void selectRangeAt(int y) {
+        DiffReport current = report;
+        int height = getHeight();
+        if (current == null || !current.hasDifferences() || height <= 0) {
+            return;
+        }
+        LineOffsetTable offsets = current.getRightLineOffsets();
+        int offset = offsets.getLineStartOffset(lineAt(y, height, offsets.getLineCount()));
+        int index = current.nextRange(offset - 1);
+        if (index < 0) {
+            index = current.previousRange(offset);
+        }
+        rangeSelector.accept(index);
+    }
+
+    private static int lineAt(int y, int height, int lineCount) {
+        return (int) ((long) y * lineCount / height);
+    }
+}
@@ -0,0 +1,295 @@
+package com.rj.diff.current.utils;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.FieldDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.expr.AnnotationExpr;
+import com.github.javaparser.ast.type.Type;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一对文本（左侧版本、右侧版本）的结构化对比结果，每对文本只计算一次
+ * 高亮、导航和合并（应用）都基于同一份结果，应用时不再重新解析和对比
+ * 注意：合并会直接修改 leftCu，因此一份结果只能被合并消费一次
+ * 左侧由 PSI 摘要对比时没有左侧语法树，首次取用时再解析左侧文本并按方法名补全方法匹配
+ */
+public final class DiffReport {
+    private final String leftText;
+    private final String rightText;
+    private final CompilationUnit rightCu;
+    private CompilationUnit leftCu;                       // 可能延迟解析
+    private ClassOrInterfaceDeclaration leftClass;        // 可能为 null
+    private boolean leftLoaded;
+    private final ClassOrInterfaceDeclaration rightClass; // 可能为 null
+    private final LineOffsetTable rightLineOffsets;
+
+    // 右侧方法 -> 左侧同名方法（左侧延迟解析前值为 null）
+    private final Map<MethodDeclaration, MethodDeclaration> matchedMethods = new IdentityHashMap<>();
+    private final List<ImportDeclaration> newImports = new ArrayList<>();
+    private final List<FieldDeclaration> newFields = new ArrayList<>();
+    private final List<MethodDeclaration> newMethods = new ArrayList<>();
+    private final List<AnnotationExpr> changedAnnotations = new ArrayList<>();
+    private final List<Parameter> changedParameters = new ArrayList<>();
+    private final List<Type> changedReturnTypes = new ArrayList<>();
+
+    // 右侧文本中需要高亮的区间 [rangeStarts[i], rangeEnds[i])，seal 之后按起点升序排列
+    private int[] rangeStarts = new int[16];
+    private int[] rangeEnds = new int[16];
+    private int rangeCount;
+    // rangeMaxEnds[i] = max(rangeEnds[0..i])，用于区间重叠的二分判断
+    private int[] rangeMaxEnds = new int[0];
+
+    private final AtomicBoolean consumed = new AtomicBoolean();
+
+    DiffReport(String leftText, String rightText, CompilationUnit leftCu, CompilationUnit rightCu,
+               ClassOrInterfaceDeclaration leftClass, ClassOrInterfaceDeclaration rightClass,
+               LineOffsetTable rightLineOffsets) {
+        this.leftText = leftText;
+        this.rightText = rightText;
+        this.leftCu = leftCu;
+        this.rightCu = rightCu;
+        this.leftClass = leftClass;
+        this.leftLoaded = leftCu != null;
+        this.rightClass = rightClass;
+        this.rightLineOffsets = rightLineOffsets;
+    }
+
+    /**
+     * 判断结果是否对应给定的两段文本
+     */
+    public boolean matches(String leftText, String rightText) {
+        return this.leftText.equals(leftText) && this.rightText.equals(rightText);
+    }
+
+    /**
+     * 标记结果已被合并消费，只有第一次调用返回 true
+     * 合并会修改 leftCu，之后这份结果不能再用于合并
+     */
+    public boolean consume() {
+        return consumed.compareAndSet(false, true);
+    }
+
+    public String getLeftText() {
+        return leftText;
+    }
+
+    public String getRightText() {
+        return rightText;
+    }
+
+    public synchronized CompilationUnit getLeftCu() {
+        loadLeft();
+        return leftCu;
+    }
+
+    public CompilationUnit getRightCu() {
+        return rightCu;
+    }
+
+    public synchronized ClassOrInterfaceDeclaration getLeftClass() {
+        loadLeft();
+        return leftClass;
+    }
+
+    public ClassOrInterfaceDeclaration getRightClass() {
+        return rightClass;
+    }
+
+    public LineOffsetTable getRightLineOffsets() {
+        return rightLineOffsets;
+    }
+
+    /**
+     * 获取右侧方法在左侧对应的同名方法
+     *
+     * @param rightMethod 右侧方法
+     * @return 左侧方法，不存在时返回 null
+     */
+    public synchronized MethodDeclaration getMatchedMethod(MethodDeclaration rightMethod) {
+        loadLeft();
+        return matchedMethods.get(rightMethod);
+    }
+
+    public synchronized Map<MethodDeclaration, MethodDeclaration> getMatchedMethods() {
+        loadLeft();
+        return Collections.unmodifiableMap(matchedMethods);
+    }
+
+    /**
+     * 左侧没有语法树时解析左侧文本，并按“同名方法取第一个”的规则补全方法匹配
+     */
+    private void loadLeft() {
+        if (leftLoaded) {
+            return;
+        }
+        leftLoaded = true;
+        leftCu = new JavaParser().parse(leftText).getResult().orElse(null);
+        leftClass = leftCu == null ? null : leftCu.findFirst(ClassOrInterfaceDeclaration.class).orElse(null);
+        if (leftClass == null) {
+            matchedMethods.clear();
+            return;
+        }
+        Map<String, MethodDeclaration> leftMethods = new HashMap<>();
+        for (MethodDeclaration leftMethod : leftClass.getMethods()) {
+            leftMethods.putIfAbsent(leftMethod.getNameAsString(), leftMethod);
+        }
+        for (Map.Entry<MethodDeclaration, MethodDeclaration> entry : matchedMethods.entrySet()) {
+            entry.setValue(leftMethods.get(entry.getKey().getNameAsString()));
+        }
+    }
+
+    public List<ImportDeclaration> getNewImports() {
+        return Collections.unmodifiableList(newImports);
+    }
+
+    public List<FieldDeclaration> getNewFields() {
+        return Collections.unmodifiableList(newFields);
+    }
+
+    public List<MethodDeclaration> getNewMethods() {
+        return Collections.unmodifiableList(newMethods);
+    }
+
+    public List<AnnotationExpr> getChangedAnnotations() {
+        return Collections.unmodifiableList(changedAnnotations);
+    }
+
+    public List<Parameter> getChangedParameters() {
+        return Collections.unmodifiableList(changedParameters);
+    }
+
+    public List<Type> getChangedReturnTypes() {
+        return Collections.unmodifiableList(changedReturnTypes);
+    }
+
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    public int getRangeStart(int index) {
+        return rangeStarts[index];
+    }
+
+    public int getRangeEnd(int index) {
+        return rangeEnds[index];
+    }
+
+    public boolean hasDifferences() {
+        return rangeCount > 0;
+    }
+
+    /**
+     * 查找起点在 offset 之后的第一处差异
+     *
+     * @return 差异区间下标，不存在时返回 -1
+     */
+    public int nextRange(int offset) {
+        int index = firstRangeStartingAtOrAfter(offset + 1);
+        return index < rangeCount ? index : -1;
+    }
+
+    /**
+     * 查找起点在 offset 之前的最后一处差异
+     *
+     * @return 差异区间下标，不存在时返回 -1
+     */
+    public int previousRange(int offset) {
+        return firstRangeStartingAtOrAfter(offset) - 1;
+    }
+
+    /**
+     * 判断 [start, end) 内是否有差异，二分查找，不遍历区间
+     */
+    public boolean hasRangeIn(int start, int end) {
+        int index = firstRangeStartingAtOrAfter(end) - 1;
+        return index >= 0 && rangeMaxEnds[index] > start;
+    }
+
+    // 第一个起点 >= offset 的区间下标，不存在时返回 rangeCount
+    private int firstRangeStartingAtOrAfter(int offset) {
+        int low = 0;
+        int high = rangeCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (rangeStarts[mid] < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // ========== 以下方法仅供 CodeElementDiffer 构建结果时使用 ==========
+
+    void addMatchedMethod(MethodDeclaration rightMethod, MethodDeclaration leftMethod) {
+        matchedMethods.put(rightMethod, leftMethod);
+    }
+
+    void addNewImport(ImportDeclaration importDeclaration) {
+        newImports.add(importDeclaration);
+    }
+
+    void addNewField(FieldDeclaration field) {
+        newFields.add(field);
+    }
+
+    void addNewMethod(MethodDeclaration method) {
+        newMethods.add(method);
+    }
+
+    void addChangedAnnotation(AnnotationExpr annotation) {
+        changedAnnotations.add(annotation);
+    }
+
+    void addChangedParameter(Parameter parameter) {
+        changedParameters.add(parameter);
+    }
+
+    void addChangedReturnType(Type type) {
+        changedReturnTypes.add(type);
+    }
+
+    /**
+     * 结果构建完成：区间按起点排序去重，并生成前缀最大终点
+     */
+    void seal() {
+        long[] packed = new long[rangeCount];
+        for (int i = 0; i < rangeCount; i++) {
+            packed[i] = ((long) rangeStarts[i] << 32) | (rangeEnds[i] & 0xffffffffL);
+        }
+        Arrays.sort(packed);
+        int count = 0;
+        for (int i = 0; i < packed.length; i++) {
+            if (i > 0 && packed[i] == packed[i - 1]) {
+                continue;
+            }
+            rangeStarts[count] = (int) (packed[i] >>> 32);
+            rangeEnds[count] = (int) packed[i];
+            count++;
+        }
+        rangeCount = count;
+        rangeMaxEnds = new int[count];
+        int maxEnd = 0;
+        for (int i = 0; i < count; i++) {
+            maxEnd = Math.max(maxEnd, rangeEnds[i]);
+            rangeMaxEnds[i] = maxEnd;
+        }
+    }
+
+    void addRange(int start, int end) {
+        if (rangeCount == rangeStarts.length) {
+            rangeStarts = Arrays.copyOf(rangeStarts, rangeCount * 2);
+            rangeEnds = Arrays.copyOf(rangeEnds, rangeCount * 2);
+        }
+        rangeStarts[rangeCount] = start;
+        rangeEnds[rangeCount] = end;
+        rangeCount++;
+    }
+}
@@ -0,0 +1,95 @@
+package com.rj.diff.current.utils;
+
+import java.util.Arrays;
+
+/**
+ * 文本行首偏移量表，针对某一份文本快照只构建一次
+ * 行号/列号与字符偏移量之间的换算为数组读取或二分查找，不再遍历 Swing 文档元素树
+ * 行号、列号均从 0 开始；换行规则与 JTextArea 一致（只按 '\n' 分行）
+ */
+public final class LineOffsetTable {
+    private final int[] lineStarts; // lineStarts[i] 为第 i 行的起始偏移量
+    private final int lineCount;
+    private final int textLength;
+
+    private LineOffsetTable(int[] lineStarts, int lineCount, int textLength) {
+        this.lineStarts = lineStarts;
+        this.lineCount = lineCount;
+        this.textLength = textLength;
+    }
+
+    /**
+     * 为指定文本构建行首偏移量表
+     *
+     * @param text 文本快照
+     * @return 行首偏移量表
+     */
+    public static LineOffsetTable of(CharSequence text) {
+        int length = text.length();
+        int[] starts = new int[16];
+        int count = 1;
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count + (count >> 1));
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        return new LineOffsetTable(starts, count, length);
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public int getTextLength() {
+        return textLength;
+    }
+
+    /**
+     * 获取行首偏移量，行号越界时截断到有效范围
+     */
+    public int getLineStartOffset(int line) {
+        return lineStarts[clampLine(line)];
+    }
+
+    /**
+     * 获取行尾偏移量（包含换行符），语义与 JTextArea#getLineEndOffset 相同
+     */
+    public int getLineEndOffset(int line) {
+        line = clampLine(line);
+        return line == lineCount - 1 ? textLength : lineStarts[line + 1];
+    }
+
+    /**
+     * 二分查找偏移量所在的行
+     */
+    public int getLineOfOffset(int offset) {
+        if (offset <= 0) {
+            return 0;
+        }
+        if (offset >= textLength) {
+            return lineCount - 1;
+        }
+        int index = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * 行号、列号转换为偏移量，结果不会超出所在行
+     *
+     * @param line   行号（从 0 开始）
+     * @param column 列号（从 0 开始）
+     * @return 字符偏移量
+     */
+    public int getOffset(int line, int column) {
+        line = clampLine(line);
+        int start = lineStarts[line];
+        return Math.min(start + Math.max(0, column), getLineEndOffset(line));
+    }
+
+    private int clampLine(int line) {
+        return Math.max(0, Math.min(line, lineCount - 1));
+    }
+}
@@ -0,0 +1,265 @@
+package com.rj.diff.current.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.*;
+import com.github.javaparser.ast.expr.*;
+
+import java.util.*;
+
+/**
+ * 左侧（本地）代码的结构摘要，对比时只需要这份摘要，不需要左侧的语法树
+ * 可以由 JavaParser 语法树构建（{@link #fromAst}），也可以由 IDE 已有的 PSI 构建（{@link PsiClassModels}）
+ * 摘要中的文本统一为“去掉空白和注释后的词法内容”，两种来源算出的键完全一致
+ */
+public final class LocalClassModel {
+    final Set<String> imports = new HashSet<>();
+    final boolean hasClass;
+    final LongKeySet<AnnotationShape> classAnnotations = new LongKeySet<>(4);
+    final Set<String> fieldKeys = new HashSet<>();
+    // 方法名 -> 第一个同名方法，与合并时的匹配规则一致
+    final Map<String, MethodShape> methods = new HashMap<>();
+
+    // 仅由 JavaParser 构建时存在，PSI 构建时为 null（合并时再按需解析）
+    final CompilationUnit cu;
+    final ClassOrInterfaceDeclaration classDeclaration;
+
+    LocalClassModel(boolean hasClass, CompilationUnit cu, ClassOrInterfaceDeclaration classDeclaration) {
+        this.hasClass = hasClass;
+        this.cu = cu;
+        this.classDeclaration = classDeclaration;
+    }
+
+    /**
+     * 由 JavaParser 语法树构建结构摘要
+     *
+     * @param cu 左侧语法树
+     * @return 结构摘要
+     */
+    public static LocalClassModel fromAst(CompilationUnit cu) {
+        ClassOrInterfaceDeclaration clazz = cu.findFirst(ClassOrInterfaceDeclaration.class).orElse(null);
+        LocalClassModel model = new LocalClassModel(clazz != null, cu, clazz);
+        for (ImportDeclaration importDeclaration : cu.getImports()) {
+            model.imports.add(importDeclaration.getNameAsString());
+        }
+        if (clazz == null) {
+            return model;
+        }
+
+        for (AnnotationExpr annotation : clazz.getAnnotations()) {
+            model.addClassAnnotation(annotationShape(annotation));
+        }
+        for (FieldDeclaration field : clazz.getFields()) {
+            for (VariableDeclarator variable : field.getVariables()) {
+                model.addField(variable.getNameAsString(), variable.getTypeAsString());
+            }
+        }
+        for (MethodDeclaration method : clazz.getMethods()) {
+            String name = method.getNameAsString();
+            if (model.methods.containsKey(name)) {
+                continue;
+            }
+            MethodShape shape = new MethodShape(SourceKeys.tokenText(method.getType()), method);
+            for (AnnotationExpr annotation : method.getAnnotations()) {
+                AnnotationShape annotationShape = annotationShape(annotation);
+                if (annotationShape.isParameters()) {
+                    if (!shape.hasParametersAnnotation) {
+                        shape.hasParametersAnnotation = true;
+                        for (Expression entry : parametersEntries(annotation)) {
+                            shape.addParametersEntry(annotationShape((AnnotationExpr) entry));
+                        }
+                    }
+                } else {
+                    shape.addAnnotation(annotationShape);
+                }
+            }
+            for (Parameter parameter : method.getParameters()) {
+                ParameterShape parameterShape = new ParameterShape(parameter.getNameAsString(),
+                        SourceKeys.tokenText(parameter.getType()));
+                for (AnnotationExpr annotation : parameter.getAnnotations()) {
+                    parameterShape.addAnnotation(annotationShape(annotation));
+                }
+                shape.addParameter(parameterShape);
+            }
+            model.methods.put(name, shape);
+        }
+        return model;
+    }
+
+    void addClassAnnotation(AnnotationShape annotation) {
+        classAnnotations.add(SourceKeys.annotationKey(annotation), annotation);
+    }
+
+    void addField(String name, String type) {
+        fieldKeys.add(fieldKey(name, type));
+    }
+
+    /**
+     * 字段键：字段名 + 去掉空白的类型
+     */
+    static String fieldKey(String name, String type) {
+        return name + ":" + StrUtil.cleanBlank(type);
+    }
+
+    private static AnnotationShape annotationShape(AnnotationExpr annotation) {
+        String name = annotation.getNameAsString();
+        if (!(annotation instanceof NormalAnnotationExpr)) {
+            return new AnnotationShape(name, SourceKeys.tokenText(annotation));
+        }
+        NodeList<MemberValuePair> pairs = ((NormalAnnotationExpr) annotation).getPairs();
+        AnnotationShape shape = new AnnotationShape(name, pairs.size());
+        for (MemberValuePair pair : pairs) {
+            Expression value = pair.getValue();
+            String schemaType = null;
+            boolean schema = pair.getNameAsString().equals("schema") && value.isAnnotationExpr();
+            if (schema && value instanceof NormalAnnotationExpr) {
+                for (MemberValuePair schemaPair : ((NormalAnnotationExpr) value).getPairs()) {
+                    if (schemaPair.getNameAsString().equals("type")) {
+                        schemaType = SourceKeys.tokenText(schemaPair.getValue());
+                        break;
+                    }
+                }
+            }
+            shape.addPair(pair.getNameAsString(), SourceKeys.tokenText(value), schema, schemaType);
+        }
+        return shape;
+    }
+
+    // @Parameters 中的 @Parameter 列表，规则与右侧提取一致
+    private static List<Expression> parametersEntries(AnnotationExpr parameters) {
+        List<Expression> values = new ArrayList<>();
+        if (parameters instanceof NormalAnnotationExpr) {
+            for (MemberValuePair pair : ((NormalAnnotationExpr) parameters).getPairs()) {
+                if (pair.getNameAsString().equals("value")) {
+                    collectAnnotations(pair.getValue(), values);
+                }
+            }
+        } else if (parameters instanceof SingleMemberAnnotationExpr) {
+            collectAnnotations(((SingleMemberAnnotationExpr) parameters).getMemberValue(), values);
+        }
+        return values;
+    }
+
+    private static void collectAnnotations(Expression value, List<Expression> values) {
+        if (value.isArrayInitializerExpr()) {
+            for (Expression element : value.asArrayInitializerExpr().getValues()) {
+                if (element instanceof AnnotationExpr) {
+                    values.add(element);
+                }
+            }
+        } else if (value instanceof AnnotationExpr) {
+            values.add(value);
+        }
+    }
+
+    /**
+     * 注解摘要：名称 + 属性（普通注解），或完整词法内容（其余注解）
+     */
+    static final class AnnotationShape {
+        final String name;
+        final boolean normal;
+        final String tokens;      // 非普通注解的完整词法内容
+        String[] pairNames;
+        String[] pairValues;
+        boolean[] pairSchemas;    // 属性值是否为 @Schema 注解
+        String[] pairSchemaTypes; // @Schema 的 type 值，不存在时为 null
+        int pairCount;
+
+        AnnotationShape(String name, String tokens) {
+            this.name = name;
+            this.normal = false;
+            this.tokens = tokens;
+            this.pairNames = new String[0];
+            this.pairValues = new String[0];
+            this.pairSchemas = new boolean[0];
+            this.pairSchemaTypes = new String[0];
+        }
+
+        AnnotationShape(String name, int expectedPairs) {
+            this.name = name;
+            this.normal = true;
+            this.tokens = null;
+            this.pairNames = new String[expectedPairs];
+            this.pairValues = new String[expectedPairs];
+            this.pairSchemas = new boolean[expectedPairs];
+            this.pairSchemaTypes = new String[expectedPairs];
+        }
+
+        void addPair(String name, String value, boolean schema, String schemaType) {
+            if (pairCount == pairNames.length) {
+                int capacity = Math.max(4, pairCount * 2);
+                pairNames = Arrays.copyOf(pairNames, capacity);
+                pairValues = Arrays.copyOf(pairValues, capacity);
+                pairSchemas = Arrays.copyOf(pairSchemas, capacity);
+                pairSchemaTypes = Arrays.copyOf(pairSchemaTypes, capacity);
+            }
+            pairNames[pairCount] = name;
+            pairValues[pairCount] = value;
+            pairSchemas[pairCount] = schema;
+            pairSchemaTypes[pairCount] = schemaType;
+            pairCount++;
+        }
+
+        int findPair(String pairName) {
+            for (int i = 0; i < pairCount; i++) {
+                if (pairNames[i].equals(pairName)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        boolean isParameters() {
+            return name.equals("Parameters");
+        }
+    }
+
+    /**
+     * 参数摘要：参数名 + 类型 + 参数上的注解
+     */
+    static final class ParameterShape {
+        final String name;
+        final String type;
+        final LongKeySet<AnnotationShape> annotations = new LongKeySet<>(2);
+
+        ParameterShape(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        void addAnnotation(AnnotationShape annotation) {
+            annotations.add(SourceKeys.annotationKey(annotation), annotation);
+        }
+    }
+
+    /**
+     * 方法摘要：返回类型、注解（不含 @Parameters）、参数、@Parameters 中的 @Parameter
+     */
+    static final class MethodShape {
+        final String returnType;
+        final MethodDeclaration declaration; // PSI 构建时为 null
+        final LongKeySet<AnnotationShape> annotations = new LongKeySet<>(4);
+        final LongKeySet<ParameterShape> parameters = new LongKeySet<>(4);
+        final LongKeySet<AnnotationShape> parametersEntries = new LongKeySet<>(4);
+        boolean hasParametersAnnotation;
+
+        MethodShape(String returnType, MethodDeclaration declaration) {
+            this.returnType = returnType;
+            this.declaration = declaration;
+        }
+
+        void addAnnotation(AnnotationShape annotation) {
+            annotations.add(SourceKeys.annotationKey(annotation), annotation);
+        }
+
+        void addParameter(ParameterShape parameter) {
+            parameters.add(SourceKeys.parameterKey(parameter), parameter);
+        }
+
+        void addParametersEntry(AnnotationShape entry) {
+            parametersEntries.add(SourceKeys.parameterAnnotationKey(entry), entry);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.rj.diff.current.utils;
+
+/**
+ * 以 64 位哈希为键的开放寻址集合，每个键附带原始元素用于冲突校验
+ * 哈希相同只说明“可能相同”，命中后再由 Verifier 做精确比较，因此哈希冲突不会导致误判
+ *
+ * @param <T> 集合中保存的元素类型
+ */
+final class LongKeySet<T> {
+
+    /**
+     * 哈希命中后的精确比较
+     */
+    interface Verifier<T, U> {
+        boolean same(T stored, U probe);
+    }
+
+    private long[] keys;
+    private Object[] items; // null 表示空槽
+    private int size;
+
+    LongKeySet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        items = new Object[capacity];
+    }
+
+    void add(long key, T item) {
+        if ((size + 1) * 2 > items.length) {
+            resize();
+        }
+        insert(keys, items, key, item);
+        size++;
+    }
+
+    <U> boolean contains(long key, U probe, Verifier<T, U> verifier) {
+        return find(key, probe, verifier) != null;
+    }
+
+    /**
+     * 查找与 probe 精确相同的元素
+     *
+     * @return 找到的元素，不存在时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    <U> T find(long key, U probe, Verifier<T, U> verifier) {
+        int mask = items.length - 1;
+        int index = slot(key, mask);
+        Object item;
+        while ((item = items[index]) != null) {
+            if (keys[index] == key && verifier.same((T) item, probe)) {
+                return (T) item;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize() {
+        long[] newKeys = new long[keys.length * 2];
+        Object[] newItems = new Object[items.length * 2];
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != null) {
+                insert(newKeys, newItems, keys[i], items[i]);
+            }
+        }
+        keys = newKeys;
+        items = newItems;
+    }
+
+    private static void insert(long[] keys, Object[] items, long key, Object item) {
+        int mask = items.length - 1;
+        int index = slot(key, mask);
+        while (items[index] != null) {
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        items[index] = item;
+    }
+
+    private static int slot(long key, int mask) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,246 @@
+package com.rj.diff.current.utils;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.psi.*;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.rj.diff.current.utils.LocalClassModel.AnnotationShape;
+import com.rj.diff.current.utils.LocalClassModel.MethodShape;
+import com.rj.diff.current.utils.LocalClassModel.ParameterShape;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于 IDE 已解析的 PSI 构建左侧结构摘要，避免再用 JavaParser 解析本地代码
+ * 摘要缓存在 PSI 文件上，文件修改后由 IDE 自动失效，未修改时多次对比直接复用
+ * 规则与 {@link LocalClassModel#fromAst} 保持一致；PSI 与 JavaParser 结果可能不一致的情况（语法错误、
+ * 首个类型不是普通类/接口）返回 null，由调用方退回 JavaParser 解析
+ */
+public final class PsiClassModels {
+
+    private PsiClassModels() {
+    }
+
+    /**
+     * 获取 PSI 文件的结构摘要，仅当 PSI 文本与给定文本完全一致时可用
+     * 在非阻塞读操作中执行，不阻塞写操作，需在后台线程调用
+     *
+     * @param file 本地文件的 PSI
+     * @param text 对比时使用的左侧文本
+     * @return 结构摘要，不可用时返回 null
+     */
+    public static LocalClassModel forText(PsiFile file, String text) {
+        if (!(file instanceof PsiJavaFile)) {
+            return null;
+        }
+        PsiJavaFile javaFile = (PsiJavaFile) file;
+        try {
+            return ReadAction.nonBlocking(() -> {
+                if (!javaFile.isValid() || javaFile.getTextLength() != text.length() || !javaFile.textMatches(text)) {
+                    return null;
+                }
+                return CachedValuesManager.getCachedValue(javaFile,
+                        () -> CachedValueProvider.Result.create(build(javaFile), javaFile));
+            }).executeSynchronously();
+        } catch (RuntimeException e) {
+            // 读取失败或被取消时退回 JavaParser 解析
+            return null;
+        }
+    }
+
+    private static LocalClassModel build(PsiJavaFile file) {
+        if (PsiTreeUtil.hasErrorElements(file)) {
+            return null;
+        }
+        PsiClass[] classes = file.getClasses();
+        if (classes.length == 0) {
+            return null;
+        }
+        PsiClass clazz = classes[0];
+        if (clazz.isEnum() || clazz.isRecord() || clazz.isAnnotationType()) {
+            return null;
+        }
+
+        LocalClassModel model = new LocalClassModel(true, null, null);
+        PsiImportList importList = file.getImportList();
+        if (importList != null) {
+            for (PsiImportStatementBase statement : importList.getAllImportStatements()) {
+                PsiJavaCodeReferenceElement reference = statement.getImportReference();
+                if (reference != null) {
+                    model.imports.add(tokenText(reference));
+                }
+            }
+        }
+
+        for (PsiAnnotation annotation : annotations(clazz)) {
+            model.addClassAnnotation(annotationShape(annotation));
+        }
+        for (PsiField field : clazz.getFields()) {
+            PsiTypeElement typeElement = field.getTypeElement();
+            if (typeElement == null) {
+                continue;
+            }
+            // int a[] 这类写法的数组维度在变量名之后，补齐为 int[]
+            StringBuilder type = new StringBuilder(tokenText(typeElement));
+            int extraDimensions = field.getType().getArrayDimensions() - typeElement.getType().getArrayDimensions();
+            for (int i = 0; i < extraDimensions; i++) {
+                type.append("[]");
+            }
+            model.addField(field.getName(), type.toString());
+        }
+        for (PsiMethod method : clazz.getMethods()) {
+            if (method.isConstructor() || model.methods.containsKey(method.getName())) {
+                continue;
+            }
+            PsiTypeElement returnType = method.getReturnTypeElement();
+            MethodShape shape = new MethodShape(returnType == null ? "" : keyText(returnType), null);
+            for (PsiAnnotation annotation : annotations(method)) {
+                AnnotationShape annotationShape = annotationShape(annotation);
+                if (annotationShape.isParameters()) {
+                    if (!shape.hasParametersAnnotation) {
+                        shape.hasParametersAnnotation = true;
+                        for (PsiAnnotation entry : parametersEntries(annotation)) {
+                            shape.addParametersEntry(annotationShape(entry));
+                        }
+                    }
+                } else {
+                    shape.addAnnotation(annotationShape);
+                }
+            }
+            for (PsiParameter parameter : method.getParameterList().getParameters()) {
+                PsiTypeElement typeElement = parameter.getTypeElement();
+                ParameterShape parameterShape = new ParameterShape(parameter.getName(),
+                        typeElement == null ? "" : parameterTypeText(typeElement));
+                for (PsiAnnotation annotation : annotations(parameter)) {
+                    parameterShape.addAnnotation(annotationShape(annotation));
+                }
+                shape.addParameter(parameterShape);
+            }
+            model.methods.put(method.getName(), shape);
+        }
+        return model;
+    }
+
+    private static PsiAnnotation[] annotations(PsiModifierListOwner owner) {
+        PsiModifierList modifierList = owner.getModifierList();
+        return modifierList == null ? PsiAnnotation.EMPTY_ARRAY : modifierList.getAnnotations();
+    }
+
+    private static AnnotationShape annotationShape(PsiAnnotation annotation) {
+        PsiJavaCodeReferenceElement nameReference = annotation.getNameReferenceElement();
+        String name = nameReference == null ? "" : tokenText(nameReference);
+        PsiNameValuePair[] attributes = annotation.getParameterList().getAttributes();
+        // 与 JavaParser 一致：无括号为标记注解，单个匿名属性为单成员注解，其余为普通注解
+        boolean hasParentheses = annotation.getParameterList().getTextLength() > 0;
+        if (!hasParentheses || attributes.length == 1 && attributes[0].getName() == null) {
+            return new AnnotationShape(name, keyText(annotation));
+        }
+        AnnotationShape shape = new AnnotationShape(name, attributes.length);
+        for (PsiNameValuePair attribute : attributes) {
+            PsiAnnotationMemberValue value = attribute.getValue();
+            String attributeName = attribute.getName() == null ? "value" : attribute.getName();
+            boolean schema = attributeName.equals("schema") && value instanceof PsiAnnotation;
+            String schemaType = null;
+            if (schema) {
+                for (PsiNameValuePair schemaAttribute : ((PsiAnnotation) value).getParameterList().getAttributes()) {
+                    if ("type".equals(schemaAttribute.getName()) && schemaAttribute.getValue() != null) {
+                        schemaType = keyText(schemaAttribute.getValue());
+                        break;
+                    }
+                }
+            }
+            shape.addPair(attributeName, value == null ? "" : keyText(value), schema, schemaType);
+        }
+        return shape;
+    }
+
+    // @Parameters 中的 @Parameter 列表，规则与 LocalClassModel 一致
+    private static List<PsiAnnotation> parametersEntries(PsiAnnotation parameters) {
+        List<PsiAnnotation> entries = new ArrayList<>();
+        PsiNameValuePair[] attributes = parameters.getParameterList().getAttributes();
+        boolean singleMember = attributes.length == 1 && attributes[0].getName() == null;
+        for (PsiNameValuePair attribute : attributes) {
+            if (singleMember || "value".equals(attribute.getName())) {
+                PsiAnnotationMemberValue value = attribute.getValue();
+                if (value instanceof PsiArrayInitializerMemberValue) {
+                    for (PsiAnnotationMemberValue element : ((PsiArrayInitializerMemberValue) value).getInitializers()) {
+                        if (element instanceof PsiAnnotation) {
+                            entries.add((PsiAnnotation) element);
+                        }
+                    }
+                } else if (value instanceof PsiAnnotation) {
+                    entries.add((PsiAnnotation) value);
+                }
+            }
+        }
+        return entries;
+    }
+
+    // 参数类型：JavaParser 的可变参数类型不含 "..."，这里同样跳过
+    private static String parameterTypeText(PsiTypeElement typeElement) {
+        StringBuilder text = new StringBuilder();
+        appendTokens(typeElement, text, true, true);
+        return text.toString();
+    }
+
+    /**
+     * 元素去掉空白和注释后的源码，词法单元直接相连，用于名称、导入和字段类型
+     */
+    private static String tokenText(PsiElement element) {
+        StringBuilder text = new StringBuilder();
+        appendTokens(element, text, false, false);
+        return text.toString();
+    }
+
+    /**
+     * 元素去掉空白和注释后的源码，词法单元之间插入分隔符，与 SourceKeys#tokenText 的取值规则一致
+     * 移位运算符按 JavaParser 的切分方式拆成单个 >
+     */
+    private static String keyText(PsiElement element) {
+        StringBuilder text = new StringBuilder();
+        appendTokens(element, text, false, true);
+        return text.toString();
+    }
+
+    private static void appendTokens(PsiElement element, StringBuilder text, boolean skipEllipsis,
+                                     boolean separate) {
+        if (element instanceof PsiWhiteSpace || element instanceof PsiComment) {
+            return;
+        }
+        PsiElement child = element.getFirstChild();
+        if (child == null) {
+            if (skipEllipsis && element instanceof PsiJavaToken
+                    && ((PsiJavaToken) element).getTokenType() == JavaTokenType.ELLIPSIS) {
+                return;
+            }
+            String token = element.getText();
+            if (separate && isShiftToken(token)) {
+                // PSI 把表达式中的 >> 和 >>> 合成一个词法单元，JavaParser 则拆成单个 >，这里同样拆开
+                for (int i = 0; i < token.length(); i++) {
+                    appendToken(">", text);
+                }
+            } else if (separate) {
+                appendToken(token, text);
+            } else {
+                text.append(token);
+            }
+            return;
+        }
+        for (; child != null; child = child.getNextSibling()) {
+            appendTokens(child, text, skipEllipsis, separate);
+        }
+    }
+
+    private static void appendToken(String token, StringBuilder text) {
+        if (!token.isEmpty() && text.length() > 0) {
+            text.append(SourceKeys.TOKEN_SEPARATOR);
+        }
+        text.append(token);
+    }
+
+    private static boolean isShiftToken(String token) {
+        return token.equals(">>") || token.equals(">>>");
+    }
+}
@@ -0,0 +1,327 @@
+package com.rj.diff.current.utils;
+
+import com.github.javaparser.JavaToken;
+import com.github.javaparser.TokenRange;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.expr.*;
+import com.rj.diff.current.utils.LocalClassModel.AnnotationShape;
+import com.rj.diff.current.utils.LocalClassModel.ParameterShape;
+
+import java.util.Iterator;
+import java.util.Optional;
+
+/**
+ * 注解、参数对比用的 64 位键
+ * 键直接由语法树节点的词法单元（跳过空白和注释）计算，不拼接字符串、不排序；
+ * 注解属性按“无序集合”累加哈希，属性顺序不同视为同一个注解
+ * 左侧摘要（{@link LocalClassModel}）中保存的是同样规则下的词法文本，按字符计算出的键与右侧节点一致
+ * 相邻词法单元之间计入一个分隔符，避免 new Foo() 与 newFoo() 这类拼接后相同的写法得到同一个键
+ * 哈希只用于快速筛选，命中后由 same* 方法按同样的规则精确比较
+ */
+final class SourceKeys {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // 不同种类键的初始值，避免不同规则算出的键相互碰撞
+    private static final long NORMAL_ANNOTATION_SEED = FNV_OFFSET ^ 0x1L;
+    private static final long OTHER_ANNOTATION_SEED = FNV_OFFSET ^ 0x2L;
+    private static final long PARAMETER_ANNOTATION_SEED = FNV_OFFSET ^ 0x3L;
+    private static final long PARAMETER_SEED = FNV_OFFSET ^ 0x4L;
+
+    // 相邻词法单元之间的分隔符，空文本的单元不计入
+    static final char TOKEN_SEPARATOR = ' ';
+
+    private SourceKeys() {
+    }
+
+    // ========== 右侧节点的键 ==========
+
+    /**
+     * 普通注解的键：名称 + 属性集合；其余注解按完整词法内容
+     */
+    static long annotationKey(AnnotationExpr annotation) {
+        if (annotation instanceof NormalAnnotationExpr) {
+            long pairs = 0;
+            for (MemberValuePair pair : ((NormalAnnotationExpr) annotation).getPairs()) {
+                long h = hashChar(hash(FNV_OFFSET, pair.getName().getIdentifier()), '=');
+                pairs += mix(hashTokens(h, pair.getValue()));
+            }
+            return mix(hashName(NORMAL_ANNOTATION_SEED, annotation.getName()) ^ Long.rotateLeft(pairs, 29));
+        }
+        return mix(hashTokens(OTHER_ANNOTATION_SEED, annotation));
+    }
+
+    /**
+     * {@code @Parameters} 中单个 {@code @Parameter} 的键：名称 + 属性集合，schema 属性只取其 type
+     */
+    static long parameterAnnotationKey(AnnotationExpr annotation) {
+        long pairs = 0;
+        if (annotation instanceof NormalAnnotationExpr) {
+            for (MemberValuePair pair : ((NormalAnnotationExpr) annotation).getPairs()) {
+                long h = hashChar(hash(FNV_OFFSET, pair.getName().getIdentifier()), '=');
+                if (isSchemaAnnotation(pair)) {
+                    Expression type = schemaType(pair.getValue());
+                    if (type != null) {
+                        h = hashTokens(h, type);
+                    }
+                } else {
+                    h = hashTokens(h, pair.getValue());
+                }
+                pairs += mix(h);
+            }
+        }
+        return mix(hashName(PARAMETER_ANNOTATION_SEED, annotation.getName()) ^ Long.rotateLeft(pairs, 29));
+    }
+
+    /**
+     * 方法参数的键：参数名 + 类型
+     */
+    static long parameterKey(Parameter parameter) {
+        long h = hashChar(hash(PARAMETER_SEED, parameter.getName().getIdentifier()), ':');
+        return mix(hashTokens(h, parameter.getType()));
+    }
+
+    // ========== 左侧摘要的键（与右侧节点的键逐字符一致） ==========
+
+    static long annotationKey(AnnotationShape annotation) {
+        if (annotation.normal) {
+            long pairs = 0;
+            for (int i = 0; i < annotation.pairCount; i++) {
+                long h = hashChar(hash(FNV_OFFSET, annotation.pairNames[i]), '=');
+                pairs += mix(hash(h, annotation.pairValues[i]));
+            }
+            return mix(hash(NORMAL_ANNOTATION_SEED, annotation.name) ^ Long.rotateLeft(pairs, 29));
+        }
+        return mix(hash(OTHER_ANNOTATION_SEED, annotation.tokens));
+    }
+
+    static long parameterAnnotationKey(AnnotationShape annotation) {
+        long pairs = 0;
+        for (int i = 0; i < annotation.pairCount; i++) {
+            long h = hashChar(hash(FNV_OFFSET, annotation.pairNames[i]), '=');
+            if (annotation.pairSchemas[i]) {
+                if (annotation.pairSchemaTypes[i] != null) {
+                    h = hash(h, annotation.pairSchemaTypes[i]);
+                }
+            } else {
+                h = hash(h, annotation.pairValues[i]);
+            }
+            pairs += mix(h);
+        }
+        return mix(hash(PARAMETER_ANNOTATION_SEED, annotation.name) ^ Long.rotateLeft(pairs, 29));
+    }
+
+    static long parameterKey(ParameterShape parameter) {
+        long h = hashChar(hash(PARAMETER_SEED, parameter.name), ':');
+        return mix(hash(h, parameter.type));
+    }
+
+    // ========== 精确比较（哈希命中后的校验） ==========
+
+    static boolean sameAnnotation(AnnotationShape a, AnnotationExpr b) {
+        if (a.normal != b instanceof NormalAnnotationExpr) {
+            return false;
+        }
+        if (!a.normal) {
+            return sameTokens(a.tokens, b);
+        }
+        if (!a.name.equals(b.getNameAsString())) {
+            return false;
+        }
+        NodeList<MemberValuePair> bPairs = ((NormalAnnotationExpr) b).getPairs();
+        if (a.pairCount != bPairs.size()) {
+            return false;
+        }
+        for (MemberValuePair bPair : bPairs) {
+            int index = a.findPair(bPair.getName().getIdentifier());
+            if (index < 0 || !sameTokens(a.pairValues[index], bPair.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean sameParameterAnnotation(AnnotationShape a, AnnotationExpr b) {
+        if (!a.name.equals(b.getNameAsString())) {
+            return false;
+        }
+        NodeList<MemberValuePair> bPairs = b instanceof NormalAnnotationExpr
+                ? ((NormalAnnotationExpr) b).getPairs() : new NodeList<>();
+        if (a.pairCount != bPairs.size()) {
+            return false;
+        }
+        for (MemberValuePair bPair : bPairs) {
+            int index = a.findPair(bPair.getName().getIdentifier());
+            if (index < 0 || a.pairSchemas[index] != isSchemaAnnotation(bPair)) {
+                return false;
+            }
+            if (a.pairSchemas[index]) {
+                String aType = a.pairSchemaTypes[index];
+                Expression bType = schemaType(bPair.getValue());
+                if (aType == null || bType == null ? aType != null || bType != null : !sameTokens(aType, bType)) {
+                    return false;
+                }
+            } else if (!sameTokens(a.pairValues[index], bPair.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean sameParameter(ParameterShape a, Parameter b) {
+        return a.name.equals(b.getName().getIdentifier()) && sameTokens(a.type, b.getType());
+    }
+
+    /**
+     * 比较文本与节点去掉空白和注释后的源码是否一致
+     */
+    static boolean sameTokens(String text, Node node) {
+        TokenChars chars = new TokenChars(node);
+        for (int i = 0; i < text.length(); i++) {
+            if (chars.next() != text.charAt(i)) {
+                return false;
+            }
+        }
+        return chars.next() == -1;
+    }
+
+    /**
+     * 节点去掉空白和注释后的源码，用于构建左侧摘要
+     */
+    static String tokenText(Node node) {
+        Optional<TokenRange> range = node.getTokenRange();
+        if (!range.isPresent()) {
+            return node.toString();
+        }
+        StringBuilder text = new StringBuilder();
+        for (JavaToken token : range.get()) {
+            if (!token.getCategory().isWhitespaceOrComment() && !token.getText().isEmpty()) {
+                if (text.length() > 0) {
+                    text.append(TOKEN_SEPARATOR);
+                }
+                text.append(token.getText());
+            }
+        }
+        return text.toString();
+    }
+
+    // ========== 内部工具 ==========
+
+    private static boolean isSchemaAnnotation(MemberValuePair pair) {
+        return pair.getName().getIdentifier().equals("schema") && pair.getValue().isAnnotationExpr();
+    }
+
+    // @Schema(type = ...) 中 type 的值，不存在时返回 null
+    private static Expression schemaType(Expression schema) {
+        if (schema instanceof NormalAnnotationExpr) {
+            MemberValuePair type = findPair(((NormalAnnotationExpr) schema).getPairs(), "type");
+            return type == null ? null : type.getValue();
+        }
+        return null;
+    }
+
+    private static MemberValuePair findPair(NodeList<MemberValuePair> pairs, String name) {
+        for (MemberValuePair pair : pairs) {
+            if (pair.getName().getIdentifier().equals(name)) {
+                return pair;
+            }
+        }
+        return null;
+    }
+
+    private static long hashName(long h, Name name) {
+        Optional<Name> qualifier = name.getQualifier();
+        if (qualifier.isPresent()) {
+            h = hashChar(hashName(h, qualifier.get()), '.');
+        }
+        return hash(h, name.getIdentifier());
+    }
+
+    private static long hashTokens(long h, Node node) {
+        Optional<TokenRange> range = node.getTokenRange();
+        if (!range.isPresent()) {
+            return hash(h, node.toString());
+        }
+        boolean first = true;
+        for (JavaToken token : range.get()) {
+            if (!token.getCategory().isWhitespaceOrComment() && !token.getText().isEmpty()) {
+                if (!first) {
+                    h = hashChar(h, TOKEN_SEPARATOR);
+                }
+                h = hash(h, token.getText());
+                first = false;
+            }
+        }
+        return h;
+    }
+
+    private static long hash(long h, CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            h = (h ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long hashChar(long h, char c) {
+        return (h ^ c) * FNV_PRIME;
+    }
+
+    // 64 位终混合，保证低位分布均匀
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * 逐字符遍历节点的词法单元（跳过空白和注释，单元之间插入分隔符），与 hashTokens 的取值规则一致
+     */
+    private static final class TokenChars {
+        private final Iterator<JavaToken> tokens;
+        private String text;
+        private int pos;
+        private String pending; // 已返回分隔符、尚未开始遍历的词法单元
+        private boolean started;
+
+        TokenChars(Node node) {
+            Optional<TokenRange> range = node.getTokenRange();
+            if (range.isPresent()) {
+                tokens = range.get().iterator();
+                text = "";
+            } else {
+                tokens = null;
+                text = node.toString();
+            }
+        }
+
+        int next() {
+            while (pos >= text.length()) {
+                if (pending != null) {
+                    text = pending;
+                    pending = null;
+                    pos = 0;
+                    continue;
+                }
+                if (tokens == null || !tokens.hasNext()) {
+                    return -1;
+                }
+                JavaToken token = tokens.next();
+                if (!token.getCategory().isWhitespaceOrComment() && !token.getText().isEmpty()) {
+                    if (started) {
+                        pending = token.getText();
+                        return TOKEN_SEPARATOR;
+                    }
+                    started = true;
+                    text = token.getText();
+                    pos = 0;
+                }
+            }
+            return text.charAt(pos++);
+        }
+    }
+}
@@ -18,12 +18,24 @@
 
 package com.rj.diff;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /*
  * Functions for diff, match and patch.
@@ -71,12 +83,70 @@ public class diff_match_patch {
    * Chunk size for context length.
    */
   public short Patch_Margin = 4;
+  /**
+   * Algorithm for the line-level pass of a diff with checklines set.
+   */
+  public LineAlgorithm Diff_LineAlgorithm = LineAlgorithm.MYERS;
+  /**
+   * Split large diffs on unique common lines and diff the pieces in
+   * parallel on the common ForkJoinPool.  Line-mode diffs with many
+   * replacement blocks also rediff the blocks in parallel.
+   */
+  public boolean Diff_Parallel = false;
+  /**
+   * Find half-matches as the longest common substring of the two texts,
+   * using a suffix automaton of the shorter one.  This takes linear time
+   * instead of rescanning the shorter text for each seed, and also applies
+   * when Diff_Timeout is 0: large diffs split faster, at the cost of
+   * sometimes not being minimal.
+   */
+  public boolean Diff_LinearHalfMatch = false;
+  /**
+   * Longest pattern which patch_apply locates in one piece (0 for no
+   * limit).  Longer patterns, which patch_splitMax only leaves for large
+   * deletions, are located by their first and last this many characters.
+   * The default is Match_MaxBits.  A pattern longer than Match_MaxBits
+   * tolerates more errors, so the end of its match is aligned against the
+   * text instead of assumed to lie the pattern's length after its start.
+   * Up to 64 characters the Bitap masks fit in one long; longer patterns
+   * use several words per mask and cost proportionally more.
+   */
+  public int Match_MaxPatternLength = 32;
 
   /**
    * The number of bits in an int.
    */
   private short Match_MaxBits = 32;
 
+  // Block sizes for the mismatch based prefix and suffix scans: small first
+  // so that short matches stay cheap, then growing for long ones.
+  private static final int MISMATCH_BLOCK_MIN = 16;
+  private static final int MISMATCH_BLOCK_MAX = 1024;
+  // Per-thread buffers which diff_commonPrefix and diff_commonSuffix copy
+  // String blocks into.
+  private static final ThreadLocal<char[][]> mismatchBuffers =
+      ThreadLocal.withInitial(
+          () -> new char[][]{new char[MISMATCH_BLOCK_MAX], new char[MISMATCH_BLOCK_MAX]});
+  // Lines which occur more often than this in text1 never start a run in
+  // the histogram diff.
+  private static final int HISTOGRAM_MAX_CHAIN = 64;
+  // Minimum size, in characters of both texts, of a segment of a parallel
+  // diff.  Smaller diffs are not split at all.
+  private static final int PARALLEL_SEGMENT_LENGTH = 1 << 15;
+  // Minimum number of replacement blocks which diff_lineMode rediffs
+  // concurrently.
+  private static final int PARALLEL_MIN_BLOCKS = 8;
+  // A DiffMonitor is polled once per this many steps of the diff (a power
+  // of two).
+  private static final int MONITOR_POLL_INTERVAL = 1 << 6;
+  // Binary patch and delta encodings: a kind byte, the format version,
+  // flags, the body length as a varint, then the body (preceded by its
+  // deflated length if BINARY_DEFLATED is set).
+  private static final byte BINARY_PATCHES = 'P';
+  private static final byte BINARY_DELTA = 'D';
+  private static final int BINARY_VERSION = 1;
+  private static final int BINARY_DEFLATED = 1;
+
   /**
    * Internal class for returning results from diff_linesToChars().
    * Other less paranoid languages just use a three-element array.
@@ -108,6 +178,94 @@ public class diff_match_patch {
     DELETE, INSERT, EQUAL
   }
 
+  /**
+   * Algorithms for the line-level pass of diff_lineMode.
+   * MYERS: bisect over the line hashes.
+   * PATIENCE: anchor on lines which occur exactly once in both texts.
+   * HISTOGRAM: anchor on the least frequent common lines, as in JGit.
+   * Repeated lines such as "}" or blank lines make Myers align noise; the
+   * other two only align on them next to rarer lines.  Gaps without usable
+   * anchors fall back to Myers.
+   */
+  public enum LineAlgorithm {
+    MYERS, PATIENCE, HISTOGRAM
+  }
+
+  /**
+   * Cooperative cancellation and progress reporting for the diff_main
+   * overloads which take one.  The diff polls it every few dozen steps of
+   * its inner loops; in parallel mode it may be polled from several threads
+   * at once.
+   */
+  public interface DiffMonitor {
+    /**
+     * Throw an unchecked exception, such as CancellationException, to
+     * abandon the diff.  The exception propagates out of diff_main.
+     */
+    void checkCanceled();
+
+    /**
+     * Report how much of the diff is done, measured as the share of both
+     * texts covered by the finished part of the diff.  Parallel diffs only
+     * report completion.
+     * @param fraction Value between 0 and 1.
+     */
+    default void progress(double fraction) {
+    }
+  }
+
+  /**
+   * Receives the stages of a progressive diff (diff_mainProgressive).
+   */
+  public interface ProgressiveDiffListener {
+    /**
+     * Line-level diff of both texts, published before any refinement.  Each
+     * replacement block of it is a DELETE of whole lines followed by an
+     * INSERT of whole lines.
+     * @param diffs Coarse diff of text1 into text2.
+     * @param hunks Number of replacement blocks which will be refined.
+     */
+    void coarse(CompactDiff diffs, int hunks);
+
+    /**
+     * Character-level diff of one replacement block.  Called on a worker
+     * thread as soon as the block is done; blocks finish in any order.
+     * @param hunk Index of the block among the replacement blocks of the
+     *     coarse diff, in text order.
+     * @param diffs Diff of the block, with offsets in the whole texts.
+     */
+    void refined(int hunk, CompactDiff diffs);
+  }
+
+  /**
+   * DiffMonitor which abandons the diff with a CancellationException once
+   * cancel() has been called, from any thread.
+   */
+  public static class CancellationToken implements DiffMonitor {
+    private volatile boolean canceled;
+
+    /**
+     * Ask the diff to stop at its next poll.
+     */
+    public void cancel() {
+      canceled = true;
+    }
+
+    /**
+     * @return true once cancel() has been called.
+     */
+    public boolean isCanceled() {
+      return canceled;
+    }
+
+    @Override
+    public void checkCanceled() {
+      if (canceled) {
+        throw new CancellationException("Diff canceled.");
+      }
+    }
+  }
+
   /**
    * Find the differences between two texts.
    * Run a faster, slightly less optimal diff.
@@ -142,6 +300,125 @@ public class diff_match_patch {
     return diff_main(text1, text2, checklines, deadline);
   }
 
+  /**
+   * Find the differences between two texts, returning the compact array
+   * representation instead of a list of Diff objects.
+   * @param text1 Old string to be diffed.
+   * @param text2 New string to be diffed.
+   * @return CompactDiff of text1 into text2.
+   */
+  public CompactDiff diff_mainCompact(String text1, String text2) {
+    return diff_mainCompact(text1, text2, true);
+  }
+
+  /**
+   * Find the differences between two texts, returning the compact array
+   * representation instead of a list of Diff objects.
+   * @param text1 Old string to be diffed.
+   * @param text2 New string to be diffed.
+   * @param checklines Speedup flag.  If false, then don't run a
+   *     line-level diff first to identify the changed areas.
+   *     If true, then run a faster slightly less optimal diff.
+   * @return CompactDiff of text1 into text2.
+   */
+  public CompactDiff diff_mainCompact(String text1, String text2,
+                                      boolean checklines) {
+    // Set a deadline by which time the diff must be complete.
+    long deadline;
+    if (Diff_Timeout <= 0) {
+      deadline = Long.MAX_VALUE;
+    } else {
+      deadline = System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+    }
+    return diff_mainCompact(text1, text2, checklines, deadline, null);
+  }
+
+  /**
+   * Find the differences between two texts, polling a monitor which can
+   * cancel the diff and receives its progress.  Diff_Timeout still applies;
+   * set it to 0 to rely on the monitor alone.
+   * @param text1 Old string to be diffed.
+   * @param text2 New string to be diffed.
+   * @param checklines Speedup flag.  If false, then don't run a
+   *     line-level diff first to identify the changed areas.
+   *     If true, then run a faster slightly less optimal diff.
+   * @param monitor Monitor polled while the diff runs.
+   * @return Linked List of Diff objects.
+   */
+  public LinkedList<Diff> diff_main(String text1, String text2,
+                                    boolean checklines, DiffMonitor monitor) {
+    return diff_mainCompact(text1, text2, checklines, monitor).toDiffs();
+  }
+
+  /**
+   * Find the differences between two texts into the compact
+   * representation, polling a monitor which can cancel the diff and
+   * receives its progress.  Diff_Timeout still applies; set it to 0 to rely
+   * on the monitor alone.
+   * @param text1 Old string to be diffed.
+   * @param text2 New string to be diffed.
+   * @param checklines Speedup flag.  If false, then don't run a
+   *     line-level diff first to identify the changed areas.
+   *     If true, then run a faster slightly less optimal diff.
+   * @param monitor Monitor polled while the diff runs.
+   * @return CompactDiff of text1 into text2.
+   */
+  public CompactDiff diff_mainCompact(String text1, String text2,
+                                      boolean checklines, DiffMonitor monitor) {
+    // Set a deadline by which time the diff must be complete.
+    long deadline;
+    if (Diff_Timeout <= 0) {
+      deadline = Long.MAX_VALUE;
+    } else {
+      deadline = System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+    }
+    return diff_mainCompact(text1, text2, checklines, deadline, monitor);
+  }
+
+  /**
+   * Find the differences between two int sequences, such as token ids,
+   * line ids or node hashes.  Runs the same Myers/bisect core as diff_main
+   * directly on the arrays, without the line-level speedup and without
+   * converting anything to Strings.
+   * The returned diff refers to both arrays; do not modify them while it
+   * is in use.
+   * @param tokens1 Old sequence to be diffed.
+   * @param tokens2 New sequence to be diffed.
+   * @return TokenDiff of tokens1 into tokens2, as index ranges.
+   */
+  public TokenDiff diff_main(int[] tokens1, int[] tokens2) {
+    return diff_main(tokens1, tokens2, null);
+  }
+
+  /**
+   * Find the differences between two int sequences, polling a monitor
+   * which can cancel the diff and receives its progress.
+   * @param tokens1 Old sequence to be diffed.
+   * @param tokens2 New sequence to be diffed.
+   * @param monitor Monitor polled while the diff runs, or null.
+   * @return TokenDiff of tokens1 into tokens2, as index ranges.
+   */
+  public TokenDiff diff_main(int[] tokens1, int[] tokens2,
+                             DiffMonitor monitor) {
+    // Check for null inputs.
+    if (tokens1 == null || tokens2 == null) {
+      throw new IllegalArgumentException("Null inputs. (diff_main)");
+    }
+    // Set a deadline by which time the diff must be complete.
+    long deadline;
+    if (Diff_Timeout <= 0) {
+      deadline = Long.MAX_VALUE;
+    } else {
+      deadline = System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+    }
+    TokenDiff diffs = new TokenDiff(tokens1, tokens2);
+    diffs.monitor(monitor, tokens1.length + tokens2.length);
+    diff_main(tokens1, 0, tokens1.length, tokens2, 0, tokens2.length,
+              deadline, diffs);
+    diffs.finish();
+    return diffs;
+  }
+
   /**
    * Find the differences between two texts.  Simplifies the problem by
    * stripping any common prefix or suffix off the texts before diffing.
@@ -156,217 +433,891 @@ public class diff_match_patch {
    */
   private LinkedList<Diff> diff_main(String text1, String text2,
                                      boolean checklines, long deadline) {
+    return diff_mainCompact(text1, text2, checklines, deadline, null).toDiffs();
+  }
+
+  /**
+   * Find the differences between two texts into the compact representation.
+   * The texts are copied into char arrays once; every recursion level below
+   * works on ranges of those arrays instead of slicing new Strings.
+   * @param text1 Old string to be diffed.
+   * @param text2 New string to be diffed.
+   * @param checklines Speedup flag.  If false, then don't run a
+   *     line-level diff first to identify the changed areas.
+   *     If true, then run a faster slightly less optimal diff.
+   * @param deadline Time when the diff should be complete by.
+   * @param monitor Monitor polled while the diff runs, or null.
+   * @return CompactDiff of text1 into text2.
+   */
+  private CompactDiff diff_mainCompact(String text1, String text2,
+                                       boolean checklines, long deadline,
+                                       DiffMonitor monitor) {
+    // Check for null inputs.
+    if (text1 == null || text2 == null) {
+      throw new IllegalArgumentException("Null inputs. (diff_main)");
+    }
+    char[] chars1 = text1.toCharArray();
+    char[] chars2 = text2.toCharArray();
+    CompactDiff diffs = new CompactDiff(text1, text2, chars1, chars2);
+    diffs.monitor(monitor, chars1.length + chars2.length);
+    if (Diff_Parallel
+        && chars1.length + chars2.length >= 2 * PARALLEL_SEGMENT_LENGTH) {
+      diff_parallel(chars1, chars2, checklines, deadline, diffs);
+    } else {
+      diff_main(chars1, 0, chars1.length, chars2, 0, chars2.length,
+                checklines, deadline, diffs);
+    }
+    diffs.finish();
+    return diffs;
+  }
+
+  /**
+   * Find the differences between two texts on several threads.  Both texts
+   * are cut at unique common lines (the anchors of a patience diff) into
+   * segments of at least PARALLEL_SEGMENT_LENGTH characters, the segments
+   * are diffed concurrently on the common ForkJoinPool and the results are
+   * stitched together and merged.
+   * The result can differ from the sequential diff_main where the latter
+   * would not have aligned an anchor line with itself.
+   * @param text1 Old text.
+   * @param text2 New text.
+   * @param checklines Speedup flag.
+   * @param deadline Time when the diff should be complete by.
+   * @param diffs CompactDiff to append to.
+   */
+  private void diff_parallel(char[] text1, char[] text2, boolean checklines,
+                             long deadline, CompactDiff diffs) {
+    int start1 = 0;
+    int start2 = 0;
+    int end1 = text1.length;
+    int end2 = text2.length;
+    // Trim off common prefix and suffix (speedup).
+    int prefix = commonPrefix(text1, start1, end1, text2, start2, end2);
+    if (prefix != 0) {
+      diffs.add(CompactDiff.EQUAL, start1, start2, prefix);
+      start1 += prefix;
+      start2 += prefix;
+    }
+    int suffix = commonSuffix(text1, start1, end1, text2, start2, end2);
+    end1 -= suffix;
+    end2 -= suffix;
+
+    LineTokens lines = diff_linesToTokens(text1, start1, end1,
+                                          text2, start2, end2);
+    int[][] anchors = diff_uniqueAnchors(
+        lines.tokens1, 0, lines.tokens1.length,
+        lines.tokens2, 0, lines.tokens2.length,
+        new TokenIndex(lines.tokenCount, lines.tokens1.length));
+    // Segment boundaries: start of an anchor line in both texts.
+    List<int[]> segments = new ArrayList<int[]>();
+    int cut1 = start1;
+    int cut2 = start2;
+    for (int i = 0; i < anchors[0].length; i++) {
+      int line1 = lines.lineStarts1[anchors[0][i]];
+      int line2 = lines.lineStarts2[anchors[1][i]];
+      if (line1 - cut1 + line2 - cut2 >= PARALLEL_SEGMENT_LENGTH) {
+        segments.add(new int[]{cut1, line1, cut2, line2});
+        cut1 = line1;
+        cut2 = line2;
+      }
+    }
+    segments.add(new int[]{cut1, end1, cut2, end2});
+
+    CompactDiff[] parts = new CompactDiff[segments.size()];
+    List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+    for (int i = 0; i < parts.length; i++) {
+      int[] segment = segments.get(i);
+      CompactDiff part = new CompactDiff(diffs.text1, diffs.text2,
+                                         text1, text2);
+      // Segments poll for cancellation but do not report progress.
+      part.monitor(diffs.monitor, 0);
+      parts[i] = part;
+      tasks.add(ForkJoinTask.adapt(() -> diff_main(
+          text1, segment[0], segment[1], text2, segment[2], segment[3],
+          checklines, deadline, part)));
+    }
+    ForkJoinTask.invokeAll(tasks);
+    for (CompactDiff part : parts) {
+      diffs.addAll(part);
+    }
+
+    if (suffix != 0) {
+      diffs.add(CompactDiff.EQUAL, end1, end2, suffix);
+    }
+    diffs.cleanupMerge(0);
+  }
+
+  /**
+   * Find the differences between two texts progressively.  The line-level
+   * diff is published to the listener at once; every replacement block of
+   * it is then rediffed character by character on the common ForkJoinPool
+   * and published as soon as it is done.  The returned future completes with
+   * the stitched and merged result, which is the line-mode diff of
+   * diff_main with checklines set, without its half-match speedup.
+   * @param text1 Old string to be diffed.
+   * @param text2 New string to be diffed.
+   * @param listener Listener receiving the coarse diff and each refinement.
+   * @param monitor Monitor polled while the diff runs, or null.
+   * @return Future of the CompactDiff of text1 into text2.
+   */
+  public CompletableFuture<CompactDiff> diff_mainProgressive(
+      String text1, String text2, ProgressiveDiffListener listener,
+      DiffMonitor monitor) {
     // Check for null inputs.
     if (text1 == null || text2 == null) {
       throw new IllegalArgumentException("Null inputs. (diff_main)");
     }
+    // Set a deadline by which time the diff must be complete.
+    long deadline;
+    if (Diff_Timeout <= 0) {
+      deadline = Long.MAX_VALUE;
+    } else {
+      deadline = System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+    }
+    char[] chars1 = text1.toCharArray();
+    char[] chars2 = text2.toCharArray();
+    CompactDiff coarse = new CompactDiff(text1, text2, chars1, chars2);
+    int start1 = 0;
+    int start2 = 0;
+    int end1 = chars1.length;
+    int end2 = chars2.length;
+    // Trim off common prefix and suffix (speedup).
+    int prefix = commonPrefix(chars1, start1, end1, chars2, start2, end2);
+    if (prefix != 0) {
+      coarse.add(CompactDiff.EQUAL, start1, start2, prefix);
+      start1 += prefix;
+      start2 += prefix;
+    }
+    int suffix = commonSuffix(chars1, start1, end1, chars2, start2, end2);
+    end1 -= suffix;
+    end2 -= suffix;
+
+    // Line-level diff of the middle.
+    CompactDiff lineDiffs = new CompactDiff(text1, text2, chars1, chars2);
+    lineDiffs.monitor(monitor, 0);
+    if (end1 - start1 > 100 && end2 - start2 > 100) {
+      diff_lineLevel(chars1, start1, end1, chars2, start2, end2, deadline,
+                     lineDiffs);
+    } else {
+      // Too short for a line pass: the middle is a single block.
+      lineDiffs.add(CompactDiff.DELETE, start1, start2, end1 - start1);
+      lineDiffs.add(CompactDiff.INSERT, end1, start2, end2 - start2);
+    }
+    // Drop the empty entries the semantic cleanup may leave, so that every
+    // hunk has text on both sides.
+    List<int[]> hunks = diff_lineBlocks(lineDiffs, start1, start2, true,
+                                        coarse);
+    if (suffix != 0) {
+      coarse.add(CompactDiff.EQUAL, end1, end2, suffix);
+    }
+    listener.coarse(coarse, hunks.size());
+
+    // Refine the replacement blocks in the background.
+    CompactDiff[] parts = new CompactDiff[hunks.size()];
+    CompletableFuture<?>[] tasks = new CompletableFuture<?>[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      int hunk = i;
+      int[] range = hunks.get(i);
+      tasks[i] = CompletableFuture.runAsync(() -> {
+        CompactDiff part = new CompactDiff(text1, text2, chars1, chars2);
+        part.monitor(monitor, 0);
+        diff_main(chars1, range[1], range[2], chars2, range[3], range[4],
+                  false, deadline, part);
+        parts[hunk] = part;
+        listener.refined(hunk, part);
+      }, ForkJoinPool.commonPool());
+    }
+    return CompletableFuture.allOf(tasks).thenApply(ignored -> {
+      // Swap each block's DELETE and INSERT for its refinement.
+      CompactDiff diffs = new CompactDiff(text1, text2, chars1, chars2);
+      diffs.monitor(monitor, chars1.length + chars2.length);
+      int hunk = 0;
+      for (int i = 0; i < coarse.size; i++) {
+        if (hunk < parts.length && hunks.get(hunk)[0] == i) {
+          diffs.addAll(parts[hunk++]);
+          i++;
+        } else {
+          diffs.add(coarse.ops[i], coarse.starts1[i], coarse.starts2[i],
+                    coarse.lengths[i]);
+        }
+      }
+      diffs.cleanupMerge(0);
+      diffs.finish();
+      return diffs;
+    });
+  }
 
+  /**
+   * Find the differences between text1[start1, end1) and
+   * text2[start2, end2), appending them to diffs.  Simplifies the problem by
+   * stripping any common prefix or suffix off the ranges before diffing.
+   * The appended entries are merged as if they were a list of their own.
+   * @param text1 Old text.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 New text.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param checklines Speedup flag.
+   * @param deadline Time when the diff should be complete by.
+   * @param diffs CompactDiff to append to.
+   */
+  private void diff_main(char[] text1, int start1, int end1,
+                         char[] text2, int start2, int end2,
+                         boolean checklines, long deadline, CompactDiff diffs) {
     // Check for equality (speedup).
-    LinkedList<Diff> diffs;
-    if (text1.equals(text2)) {
-      diffs = new LinkedList<Diff>();
-      if (text1.length() != 0) {
-        diffs.add(new Diff(Operation.EQUAL, text1));
+    if (Arrays.equals(text1, start1, end1, text2, start2, end2)) {
+      if (end1 != start1) {
+        diffs.add(CompactDiff.EQUAL, start1, start2, end1 - start1);
       }
-      return diffs;
+      return;
     }
+    int from = diffs.size();
 
     // Trim off common prefix (speedup).
-    int commonlength = diff_commonPrefix(text1, text2);
-    String commonprefix = text1.substring(0, commonlength);
-    text1 = text1.substring(commonlength);
-    text2 = text2.substring(commonlength);
+    int commonlength = commonPrefix(text1, start1, end1, text2, start2, end2);
+    if (commonlength != 0) {
+      diffs.add(CompactDiff.EQUAL, start1, start2, commonlength);
+    }
+    start1 += commonlength;
+    start2 += commonlength;
 
     // Trim off common suffix (speedup).
-    commonlength = diff_commonSuffix(text1, text2);
-    String commonsuffix = text1.substring(text1.length() - commonlength);
-    text1 = text1.substring(0, text1.length() - commonlength);
-    text2 = text2.substring(0, text2.length() - commonlength);
+    commonlength = commonSuffix(text1, start1, end1, text2, start2, end2);
+    end1 -= commonlength;
+    end2 -= commonlength;
 
     // Compute the diff on the middle block.
-    diffs = diff_compute(text1, text2, checklines, deadline);
+    diff_compute(text1, start1, end1, text2, start2, end2,
+                 checklines, deadline, diffs);
 
-    // Restore the prefix and suffix.
-    if (commonprefix.length() != 0) {
-      diffs.addFirst(new Diff(Operation.EQUAL, commonprefix));
-    }
-    if (commonsuffix.length() != 0) {
-      diffs.addLast(new Diff(Operation.EQUAL, commonsuffix));
+    // Restore the suffix.
+    if (commonlength != 0) {
+      diffs.add(CompactDiff.EQUAL, end1, end2, commonlength);
     }
 
-    diff_cleanupMerge(diffs);
-    return diffs;
+    diffs.cleanupMerge(from);
   }
 
   /**
-   * Find the differences between two texts.  Assumes that the texts do not
+   * Find the differences between two ranges.  Assumes that the ranges do not
    * have any common prefix or suffix.
-   * @param text1 Old string to be diffed.
-   * @param text2 New string to be diffed.
-   * @param checklines Speedup flag.  If false, then don't run a
-   *     line-level diff first to identify the changed areas.
-   *     If true, then run a faster slightly less optimal diff.
+   * @param text1 Old text.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 New text.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param checklines Speedup flag.
    * @param deadline Time when the diff should be complete by.
-   * @return Linked List of Diff objects.
+   * @param diffs CompactDiff to append to.
    */
-  private LinkedList<Diff> diff_compute(String text1, String text2,
-                                        boolean checklines, long deadline) {
-    LinkedList<Diff> diffs = new LinkedList<Diff>();
-
-    if (text1.length() == 0) {
+  private void diff_compute(char[] text1, int start1, int end1,
+                            char[] text2, int start2, int end2,
+                            boolean checklines, long deadline,
+                            CompactDiff diffs) {
+    diffs.poll();
+    int text1_length = end1 - start1;
+    int text2_length = end2 - start2;
+
+    if (text1_length == 0) {
       // Just add some text (speedup).
-      diffs.add(new Diff(Operation.INSERT, text2));
-      return diffs;
+      diffs.add(CompactDiff.INSERT, start1, start2, text2_length);
+      return;
     }
 
-    if (text2.length() == 0) {
+    if (text2_length == 0) {
       // Just delete some text (speedup).
-      diffs.add(new Diff(Operation.DELETE, text1));
-      return diffs;
+      diffs.add(CompactDiff.DELETE, start1, start2, text1_length);
+      return;
     }
 
-    String longtext = text1.length() > text2.length() ? text1 : text2;
-    String shorttext = text1.length() > text2.length() ? text2 : text1;
-    int i = longtext.indexOf(shorttext);
-    if (i != -1) {
-      // Shorter text is inside the longer text (speedup).
-      Operation op = (text1.length() > text2.length()) ?
-                     Operation.DELETE : Operation.INSERT;
-      diffs.add(new Diff(op, longtext.substring(0, i)));
-      diffs.add(new Diff(Operation.EQUAL, shorttext));
-      diffs.add(new Diff(op, longtext.substring(i + shorttext.length())));
-      return diffs;
+    if (text1_length > text2_length) {
+      int i = indexOf(text1, start1, end1, text2, start2, end2, 0);
+      if (i != -1) {
+        // Shorter text is inside the longer text (speedup).
+        diffs.add(CompactDiff.DELETE, start1, start2, i);
+        diffs.add(CompactDiff.EQUAL, start1 + i, start2, text2_length);
+        diffs.add(CompactDiff.DELETE, start1 + i + text2_length, end2,
+                  text1_length - i - text2_length);
+        return;
+      }
+    } else {
+      int i = indexOf(text2, start2, end2, text1, start1, end1, 0);
+      if (i != -1) {
+        // Shorter text is inside the longer text (speedup).
+        diffs.add(CompactDiff.INSERT, start1, start2, i);
+        diffs.add(CompactDiff.EQUAL, start1, start2 + i, text1_length);
+        diffs.add(CompactDiff.INSERT, end1, start2 + i + text1_length,
+                  text2_length - i - text1_length);
+        return;
+      }
     }
 
-    if (shorttext.length() == 1) {
+    if (Math.min(text1_length, text2_length) == 1) {
       // Single character string.
       // After the previous speedup, the character can't be an equality.
-      diffs.add(new Diff(Operation.DELETE, text1));
-      diffs.add(new Diff(Operation.INSERT, text2));
-      return diffs;
+      diffs.add(CompactDiff.DELETE, start1, start2, text1_length);
+      diffs.add(CompactDiff.INSERT, end1, start2, text2_length);
+      return;
     }
 
     // Check to see if the problem can be split in two.
-    String[] hm = diff_halfMatch(text1, text2);
+    int[] hm = diff_halfMatch(text1, start1, end1, text2, start2, end2);
     if (hm != null) {
-      // A half-match was found, sort out the return data.
-      String text1_a = hm[0];
-      String text1_b = hm[1];
-      String text2_a = hm[2];
-      String text2_b = hm[3];
-      String mid_common = hm[4];
+      // A half-match was found: hm holds the start of the common middle in
+      // text1 and in text2, and its length.
+      int mid1 = hm[0];
+      int mid2 = hm[1];
+      int mid_length = hm[2];
       // Send both pairs off for separate processing.
-      LinkedList<Diff> diffs_a = diff_main(text1_a, text2_a,
-                                           checklines, deadline);
-      LinkedList<Diff> diffs_b = diff_main(text1_b, text2_b,
-                                           checklines, deadline);
-      // Merge the results.
-      diffs = diffs_a;
-      diffs.add(new Diff(Operation.EQUAL, mid_common));
-      diffs.addAll(diffs_b);
-      return diffs;
+      diff_main(text1, start1, mid1, text2, start2, mid2,
+                checklines, deadline, diffs);
+      diffs.add(CompactDiff.EQUAL, mid1, mid2, mid_length);
+      diff_main(text1, mid1 + mid_length, end1, text2, mid2 + mid_length, end2,
+                checklines, deadline, diffs);
+      return;
     }
 
-    if (checklines && text1.length() > 100 && text2.length() > 100) {
-      return diff_lineMode(text1, text2, deadline);
+    if (checklines && text1_length > 100 && text2_length > 100) {
+      diff_lineMode(text1, start1, end1, text2, start2, end2, deadline, diffs);
+      return;
     }
 
-    return diff_bisect(text1, text2, deadline);
+    diff_bisect(text1, start1, end1, text2, start2, end2, deadline, diffs);
   }
 
   /**
-   * Do a quick line-level diff on both strings, then rediff the parts for
+   * Do a quick line-level diff on both ranges, then rediff the parts for
    * greater accuracy.
    * This speedup can produce non-minimal diffs.
-   * @param text1 Old string to be diffed.
-   * @param text2 New string to be diffed.
+   * @param text1 Old text.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 New text.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
    * @param deadline Time when the diff should be complete by.
-   * @return Linked List of Diff objects.
+   * @param diffs CompactDiff to append to.
    */
-  private LinkedList<Diff> diff_lineMode(String text1, String text2,
-                                         long deadline) {
-    // Scan the text on a line-by-line basis first.
-    LinesToCharsResult a = diff_linesToChars(text1, text2);
-    text1 = a.chars1;
-    text2 = a.chars2;
-    List<String> linearray = a.lineArray;
-
-    LinkedList<Diff> diffs = diff_main(text1, text2, false, deadline);
-
-    // Convert the diff back to original text.
-    diff_charsToLines(diffs, linearray);
-    // Eliminate freak matches (e.g. blank lines)
-    diff_cleanupSemantic(diffs);
+  private void diff_lineMode(char[] text1, int start1, int end1,
+                             char[] text2, int start2, int end2,
+                             long deadline, CompactDiff diffs) {
+    CompactDiff lineDiffs = new CompactDiff(diffs.text1, diffs.text2,
+                                            text1, text2);
+    lineDiffs.monitor(diffs.monitor, 0);
+    diff_lineLevel(text1, start1, end1, text2, start2, end2, deadline,
+                   lineDiffs);
+    CompactDiff coarse = new CompactDiff(diffs.text1, diffs.text2,
+                                         text1, text2);
+    List<int[]> blocks = diff_lineBlocks(lineDiffs, start1, start2, false,
+                                         coarse);
 
     // Rediff any replacement blocks, this time character-by-character.
-    // Add a dummy entry at the end.
-    diffs.add(new Diff(Operation.EQUAL, ""));
+    CompactDiff[] parts = null;
+    if (Diff_Parallel && blocks.size() >= PARALLEL_MIN_BLOCKS) {
+      // The blocks are independent: diff them concurrently.
+      parts = new CompactDiff[blocks.size()];
+      List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+      for (int i = 0; i < parts.length; i++) {
+        int[] block = blocks.get(i);
+        CompactDiff part = new CompactDiff(diffs.text1, diffs.text2,
+                                           text1, text2);
+        part.monitor(diffs.monitor, 0);
+        parts[i] = part;
+        tasks.add(ForkJoinTask.adapt(() -> diff_main(
+            text1, block[1], block[2], text2, block[3], block[4],
+            false, deadline, part)));
+      }
+      ForkJoinTask.invokeAll(tasks);
+    }
+    // Splice the blocks in place of their DELETE and INSERT in one pass.
+    int block = 0;
+    for (int i = 0; i < coarse.size; i++) {
+      if (block < blocks.size() && blocks.get(block)[0] == i) {
+        int[] range = blocks.get(block);
+        if (parts != null) {
+          diffs.addAll(parts[block]);
+        } else {
+          diff_main(text1, range[1], range[2], text2, range[3], range[4],
+                    false, deadline, diffs);
+        }
+        block++;
+        i++;
+      } else {
+        diffs.add(coarse.ops[i], coarse.starts1[i], coarse.starts2[i],
+                  coarse.lengths[i]);
+      }
+    }
+  }
+
+  /**
+   * Lay out a line-level diff of the ranges starting at start1 and start2.
+   * Each run of edits which holds both deletions and insertions becomes a
+   * replacement block of one DELETE and one INSERT; other entries are
+   * copied as they are.
+   * @param lineDiffs Line-level diff from diff_lineLevel.
+   * @param start1 Start of the range of text1.
+   * @param start2 Start of the range of text2.
+   * @param dropEmpty Whether to leave out empty entries of lineDiffs.
+   * @param diffs CompactDiff to append to.
+   * @return The replacement blocks, each as {index of its DELETE in diffs,
+   *     start1, end1, start2, end2}.  The INSERT follows its DELETE directly.
+   */
+  private static List<int[]> diff_lineBlocks(CompactDiff lineDiffs,
+                                             int start1, int start2,
+                                             boolean dropEmpty,
+                                             CompactDiff diffs) {
+    List<int[]> blocks = new ArrayList<int[]>();
     int count_delete = 0;
     int count_insert = 0;
-    String text_delete = "";
-    String text_insert = "";
-    ListIterator<Diff> pointer = diffs.listIterator();
-    Diff thisDiff = pointer.next();
-    while (thisDiff != null) {
-      switch (thisDiff.operation) {
-      case INSERT:
+    // Start of the pending run of edits in both texts and in diffs.
+    int run1 = start1;
+    int run2 = start2;
+    int runEntry = diffs.size();
+    int pos1 = start1;
+    int pos2 = start2;
+    for (int i = 0; ; i++) {
+      // i == lineDiffs.size is the dummy equality at the end.
+      byte op = i < lineDiffs.size ? lineDiffs.ops[i] : CompactDiff.EQUAL;
+      int length = i < lineDiffs.size ? lineDiffs.lengths[i] : 0;
+      if (length == 0 && dropEmpty && i < lineDiffs.size) {
+        continue;
+      }
+      switch (op) {
+      case CompactDiff.INSERT:
         count_insert++;
-        text_insert += thisDiff.text;
+        diffs.add(CompactDiff.INSERT, pos1, pos2, length);
+        pos2 += length;
         break;
-      case DELETE:
+      case CompactDiff.DELETE:
         count_delete++;
-        text_delete += thisDiff.text;
+        diffs.add(CompactDiff.DELETE, pos1, pos2, length);
+        pos1 += length;
         break;
-      case EQUAL:
+      default:
         // Upon reaching an equality, check for prior redundancies.
         if (count_delete >= 1 && count_insert >= 1) {
-          // Delete the offending records and add the merged ones.
-          pointer.previous();
-          for (int j = 0; j < count_delete + count_insert; j++) {
-            pointer.previous();
-            pointer.remove();
-          }
-          for (Diff subDiff : diff_main(text_delete, text_insert, false,
-              deadline)) {
-            pointer.add(subDiff);
-          }
+          // Replace the run's records by a single block.
+          diffs.truncate(runEntry);
+          blocks.add(new int[]{runEntry, run1, pos1, run2, pos2});
+          diffs.add(CompactDiff.DELETE, run1, run2, pos1 - run1);
+          diffs.add(CompactDiff.INSERT, pos1, run2, pos2 - run2);
         }
+        if (i == lineDiffs.size) {
+          return blocks;
+        }
+        diffs.add(CompactDiff.EQUAL, pos1, pos2, length);
+        pos1 += length;
+        pos2 += length;
         count_insert = 0;
         count_delete = 0;
-        text_delete = "";
-        text_insert = "";
+        run1 = pos1;
+        run2 = pos2;
+        runEntry = diffs.size();
         break;
       }
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
     }
-    diffs.removeLast();  // Remove the dummy entry at the end.
-
-    return diffs;
   }
 
   /**
-   * Find the 'middle snake' of a diff, split the problem in two
-   * and return the recursively constructed diff.
-   * See Myers 1986 paper: An O(ND) Difference Algorithm and Its Variations.
-   * @param text1 Old string to be diffed.
-   * @param text2 New string to be diffed.
-   * @param deadline Time at which to bail if not yet complete.
-   * @return LinkedList of Diff objects.
-   */
+   * Line-level diff of two ranges, as the first step of diff_lineMode:
+   * diff the lines, lay the result out over the text and clean it up.
+   * @param text1 Old text.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 New text.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param deadline Time when the diff should be complete by.
+   * @param diffs Empty CompactDiff to store the diff of whole lines in; its
+   *     monitor is polled.
+   */
+  private void diff_lineLevel(char[] text1, int start1, int end1,
+                              char[] text2, int start2, int end2,
+                              long deadline, CompactDiff diffs) {
+    // Scan the text on a line-by-line basis first.
+    LineTokens lines = diff_linesToTokens(text1, start1, end1,
+                                          text2, start2, end2);
+    TokenDiff tokenDiffs = diff_lineDiff(lines, deadline, diffs.monitor);
+
+    // Convert the diff back to ranges of the original text.
+    for (int i = 0; i < tokenDiffs.size; i++) {
+      int first1 = lines.lineStarts1[tokenDiffs.starts1[i]];
+      int first2 = lines.lineStarts2[tokenDiffs.starts2[i]];
+      int length;
+      if (tokenDiffs.ops[i] == EditScript.INSERT) {
+        length = lines.lineStarts2[tokenDiffs.starts2[i] + tokenDiffs.lengths[i]] - first2;
+      } else {
+        length = lines.lineStarts1[tokenDiffs.starts1[i] + tokenDiffs.lengths[i]] - first1;
+      }
+      diffs.add(tokenDiffs.ops[i], first1, first2, length);
+    }
+    // Eliminate freak matches (e.g. blank lines)
+    diffs.cleanupSemantic();
+  }
+
+  /**
+   * Line-level pass of diff_lineMode over the line tokens, using the
+   * algorithm selected by Diff_LineAlgorithm.
+   * @param lines Line tokens of both texts.
+   * @param deadline Time when the diff should be complete by.
+   * @param monitor Monitor to poll for cancellation, or null.
+   * @return TokenDiff over the line tokens.
+   */
+  private TokenDiff diff_lineDiff(LineTokens lines, long deadline,
+                                  DiffMonitor monitor) {
+    int[] tokens1 = lines.tokens1;
+    int[] tokens2 = lines.tokens2;
+    TokenDiff diffs = new TokenDiff(tokens1, tokens2);
+    diffs.monitor(monitor, 0);
+    switch (Diff_LineAlgorithm) {
+    case PATIENCE:
+      diff_patience(tokens1, 0, tokens1.length, tokens2, 0, tokens2.length,
+                    new TokenIndex(lines.tokenCount, tokens1.length),
+                    deadline, diffs);
+      diffs.cleanupMerge(0);
+      break;
+    case HISTOGRAM:
+      diff_histogram(tokens1, 0, tokens1.length, tokens2, 0, tokens2.length,
+                     new TokenIndex(lines.tokenCount, tokens1.length),
+                     deadline, diffs);
+      diffs.cleanupMerge(0);
+      break;
+    default:
+      diff_main(tokens1, 0, tokens1.length, tokens2, 0, tokens2.length,
+                deadline, diffs);
+      break;
+    }
+    return diffs;
+  }
+
+  /**
+   * Per-token scratch arrays for the patience and histogram diffs, indexed
+   * by token (and next by position in text1).  Counts are zero between
+   * uses: each pass clears the entries of its own range before recursing.
+   */
+  private static final class TokenIndex {
+    final int[] counts1;
+    final int[] counts2;
+    // Patience: position of the token in text2.  Histogram: first
+    // occurrence of the token in text1.
+    final int[] positions;
+    // Histogram: next occurrence in text1 of the token at each position.
+    final int[] next;
+
+    TokenIndex(int tokenCount, int length1) {
+      counts1 = new int[tokenCount];
+      counts2 = new int[tokenCount];
+      positions = new int[tokenCount];
+      next = new int[length1];
+    }
+  }
+
+  /**
+   * Patience diff: anchor on the lines which occur exactly once in both
+   * ranges, keeping the longest run of anchors in the same order in both,
+   * and recurse into the gaps between them.  Ranges without such lines are
+   * diffed with Myers.
+   * @param text1 Old line tokens.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 New line tokens.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param index Scratch arrays.
+   * @param deadline Time when the diff should be complete by.
+   * @param diffs TokenDiff to append to.
+   */
+  private void diff_patience(int[] text1, int start1, int end1,
+                             int[] text2, int start2, int end2,
+                             TokenIndex index, long deadline,
+                             TokenDiff diffs) {
+    // Trim off common prefix and suffix, they are anchors already.
+    int prefix = commonPrefix(text1, start1, end1, text2, start2, end2);
+    if (prefix != 0) {
+      diffs.add(TokenDiff.EQUAL, start1, start2, prefix);
+      start1 += prefix;
+      start2 += prefix;
+    }
+    int suffix = commonSuffix(text1, start1, end1, text2, start2, end2);
+    end1 -= suffix;
+    end2 -= suffix;
+
+    if (start1 == end1 || start2 == end2) {
+      // At most one side is left.
+      if (start1 != end1) {
+        diffs.add(TokenDiff.DELETE, start1, start2, end1 - start1);
+      }
+      if (start2 != end2) {
+        diffs.add(TokenDiff.INSERT, end1, start2, end2 - start2);
+      }
+    } else {
+      int[][] anchors = diff_uniqueAnchors(text1, start1, end1,
+                                           text2, start2, end2, index);
+      if (anchors[0].length == 0) {
+        diff_main(text1, start1, end1, text2, start2, end2, deadline, diffs);
+      } else {
+        // Recurse into the gaps between the anchors.
+        int pos1 = start1;
+        int pos2 = start2;
+        for (int i = 0; i < anchors[0].length; i++) {
+          diff_patience(text1, pos1, anchors[0][i], text2, pos2,
+                        anchors[1][i], index, deadline, diffs);
+          diffs.add(TokenDiff.EQUAL, anchors[0][i], anchors[1][i], 1);
+          pos1 = anchors[0][i] + 1;
+          pos2 = anchors[1][i] + 1;
+        }
+        diff_patience(text1, pos1, end1, text2, pos2, end2, index, deadline,
+                      diffs);
+      }
+    }
+
+    if (suffix != 0) {
+      diffs.add(TokenDiff.EQUAL, end1, end2, suffix);
+    }
+  }
+
+  /**
+   * Lines which occur exactly once in both ranges, reduced to the longest
+   * chain which is in the same order in both (patience sorting).
+   * @param text1 Old line tokens.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 New line tokens.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param index Scratch arrays.
+   * @return Two element array: positions of the anchors in text1 and in
+   *     text2, in order.  Both are empty if there are no anchors.
+   */
+  private static int[][] diff_uniqueAnchors(int[] text1, int start1, int end1,
+                                            int[] text2, int start2, int end2,
+                                            TokenIndex index) {
+    int[] counts1 = index.counts1;
+    int[] counts2 = index.counts2;
+    int[] positions2 = index.positions;
+    for (int i = start1; i < end1; i++) {
+      counts1[text1[i]]++;
+    }
+    for (int i = start2; i < end2; i++) {
+      counts2[text2[i]]++;
+      positions2[text2[i]] = i;
+    }
+    // Unique common lines in text1 order, with their text2 positions.
+    int[] anchors1 = new int[Math.min(end1 - start1, end2 - start2)];
+    int[] anchors2 = new int[anchors1.length];
+    int count = 0;
+    for (int i = start1; i < end1; i++) {
+      int token = text1[i];
+      if (counts1[token] == 1 && counts2[token] == 1) {
+        anchors1[count] = i;
+        anchors2[count] = positions2[token];
+        count++;
+      }
+    }
+    for (int i = start1; i < end1; i++) {
+      counts1[text1[i]] = 0;
+    }
+    for (int i = start2; i < end2; i++) {
+      counts2[text2[i]] = 0;
+    }
+
+    // Longest increasing subsequence of the text2 positions: tails[k] is
+    // the anchor ending the best run of length k + 1, previous[] links each
+    // anchor to the one before it.
+    int[] tails = new int[count];
+    int[] previous = new int[count];
+    int length = 0;
+    for (int i = 0; i < count; i++) {
+      int low = 0;
+      int high = length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (anchors2[tails[mid]] < anchors2[i]) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      previous[i] = low == 0 ? -1 : tails[low - 1];
+      tails[low] = i;
+      if (low == length) {
+        length++;
+      }
+    }
+    int[][] chain = new int[2][length];
+    for (int i = length - 1, anchor = length == 0 ? -1 : tails[length - 1];
+         i >= 0; i--) {
+      chain[0][i] = anchors1[anchor];
+      chain[1][i] = anchors2[anchor];
+      anchor = previous[anchor];
+    }
+    return chain;
+  }
+
+  /**
+   * Histogram diff, as in JGit: find the longest common run of lines whose
+   * rarest line occurs least often in text1, split on it and recurse.
+   * Lines which occur more than HISTOGRAM_MAX_CHAIN times in text1 never
+   * start a run; ranges without any usable run are diffed with Myers.
+   * @param text1 Old line tokens.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 New line tokens.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param index Scratch arrays.
+   * @param deadline Time when the diff should be complete by.
+   * @param diffs TokenDiff to append to.
+   */
+  private void diff_histogram(int[] text1, int start1, int end1,
+                              int[] text2, int start2, int end2,
+                              TokenIndex index, long deadline,
+                              TokenDiff diffs) {
+    // Trim off common prefix and suffix (speedup).
+    int prefix = commonPrefix(text1, start1, end1, text2, start2, end2);
+    if (prefix != 0) {
+      diffs.add(TokenDiff.EQUAL, start1, start2, prefix);
+      start1 += prefix;
+      start2 += prefix;
+    }
+    int suffix = commonSuffix(text1, start1, end1, text2, start2, end2);
+    end1 -= suffix;
+    end2 -= suffix;
+
+    if (start1 == end1 || start2 == end2) {
+      // At most one side is left.
+      if (start1 != end1) {
+        diffs.add(TokenDiff.DELETE, start1, start2, end1 - start1);
+      }
+      if (start2 != end2) {
+        diffs.add(TokenDiff.INSERT, end1, start2, end2 - start2);
+      }
+    } else {
+      // Histogram of text1: count and first occurrence of each line, with
+      // the later occurrences chained through next[].
+      int[] counts = index.counts1;
+      int[] first = index.positions;
+      int[] next = index.next;
+      for (int i = end1 - 1; i >= start1; i--) {
+        int token = text1[i];
+        next[i] = counts[token] == 0 ? -1 : first[token];
+        first[token] = i;
+        counts[token]++;
+      }
+      int best1 = 0;
+      int best2 = 0;
+      int bestLength = 0;
+      int bestCount = HISTOGRAM_MAX_CHAIN + 1;
+      for (int i2 = start2; i2 < end2; ) {
+        int next2 = i2 + 1;
+        int token = text2[i2];
+        if (counts[token] != 0 && counts[token] <= bestCount) {
+          int i1 = first[token];
+          while (i1 != -1) {
+            // Grow the match in both directions, tracking its rarest line.
+            int s1 = i1;
+            int s2 = i2;
+            int e1 = i1 + 1;
+            int e2 = i2 + 1;
+            int rarest = counts[token];
+            while (s1 > start1 && s2 > start2 && text1[s1 - 1] == text2[s2 - 1]) {
+              s1--;
+              s2--;
+              rarest = Math.min(rarest, counts[text1[s1]]);
+            }
+            while (e1 < end1 && e2 < end2 && text1[e1] == text2[e2]) {
+              rarest = Math.min(rarest, counts[text1[e1]]);
+              e1++;
+              e2++;
+            }
+            if (next2 < e2) {
+              next2 = e2;
+            }
+            if (bestLength < e1 - s1 || rarest < bestCount) {
+              best1 = s1;
+              best2 = s2;
+              bestLength = e1 - s1;
+              bestCount = rarest;
+            }
+            // Later occurrences inside this run would only find it again.
+            do {
+              i1 = next[i1];
+            } while (i1 != -1 && i1 < e1);
+          }
+        }
+        i2 = next2;
+      }
+      for (int i = start1; i < end1; i++) {
+        counts[text1[i]] = 0;
+      }
+
+      if (bestLength == 0) {
+        diff_main(text1, start1, end1, text2, start2, end2, deadline, diffs);
+      } else {
+        diff_histogram(text1, start1, best1, text2, start2, best2, index,
+                       deadline, diffs);
+        diffs.add(TokenDiff.EQUAL, best1, best2, bestLength);
+        diff_histogram(text1, best1 + bestLength, end1,
+                       text2, best2 + bestLength, end2, index, deadline,
+                       diffs);
+      }
+    }
+
+    if (suffix != 0) {
+      diffs.add(TokenDiff.EQUAL, end1, end2, suffix);
+    }
+  }
+
+  /**
+   * Find the 'middle snake' of a diff, split the problem in two
+   * and return the recursively constructed diff.
+   * See Myers 1986 paper: An O(ND) Difference Algorithm and Its Variations.
+   * @param text1 Old string to be diffed.
+   * @param text2 New string to be diffed.
+   * @param deadline Time at which to bail if not yet complete.
+   * @return LinkedList of Diff objects.
+   */
   protected LinkedList<Diff> diff_bisect(String text1, String text2,
       long deadline) {
+    char[] chars1 = text1.toCharArray();
+    char[] chars2 = text2.toCharArray();
+    CompactDiff diffs = new CompactDiff(text1, text2, chars1, chars2);
+    diff_bisect(chars1, 0, chars1.length, chars2, 0, chars2.length,
+                deadline, diffs);
+    return diffs.toDiffs();
+  }
+
+  /**
+   * Find the 'middle snake' of a diff of two ranges, split the problem in
+   * two and append the recursively constructed diff.
+   * @param text1 Old text.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 New text.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param deadline Time at which to bail if not yet complete.
+   * @param diffs CompactDiff to append to.
+   */
+  private void diff_bisect(char[] text1, int start1, int end1,
+                           char[] text2, int start2, int end2,
+                           long deadline, CompactDiff diffs) {
     // Cache the text lengths to prevent multiple calls.
-    int text1_length = text1.length();
-    int text2_length = text2.length();
+    int text1_length = end1 - start1;
+    int text2_length = end2 - start2;
     int max_d = (text1_length + text2_length + 1) / 2;
-    int v_offset = max_d;
-    int v_length = 2 * max_d;
-    int[] v1 = new int[v_length];
-    int[] v2 = new int[v_length];
-    for (int x = 0; x < v_length; x++) {
-      v1[x] = -1;
-      v2[x] = -1;
-    }
+    // The path arrays come from the per-thread workspace, which grows with
+    // the number of steps actually taken rather than with max_d.  Entries
+    // outside the written k-range are -1, as in freshly filled arrays.
+    BisectWorkspace workspace = bisectWorkspace.get();
+    workspace.ensure(1);
+    int[] v1 = workspace.v1;
+    int[] v2 = workspace.v2;
+    int v_offset = workspace.center;
+    int v_length = v1.length;
+    int touched = 1;
     v1[v_offset + 1] = 0;
     v2[v_offset + 1] = 0;
     int delta = text1_length - text2_length;
@@ -380,10 +1331,29 @@ public class diff_match_patch {
     int k2start = 0;
     int k2end = 0;
     for (int d = 0; d < max_d; d++) {
-      // Bail out if deadline is reached.
-      if (System.currentTimeMillis() > deadline) {
+      // Bail out if deadline is reached.  The clock is read once every
+      // MONITOR_POLL_INTERVAL steps, the same cadence the monitor is polled.
+      if ((d & (MONITOR_POLL_INTERVAL - 1)) == 0 && deadline != Long.MAX_VALUE
+          && System.currentTimeMillis() > deadline) {
         break;
       }
+      // Let the monitor cancel the diff, leaving the workspace clean.
+      try {
+        diffs.poll();
+      } catch (RuntimeException e) {
+        workspace.reset(touched);
+        throw e;
+      }
+      // This step reads and writes k in [-d - 1, d + 1].
+      if (d + 1 > touched) {
+        touched = d + 1;
+        if (workspace.ensure(touched)) {
+          v1 = workspace.v1;
+          v2 = workspace.v2;
+          v_offset = workspace.center;
+          v_length = v1.length;
+        }
+      }
 
       // Walk the front path one step.
       for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
@@ -396,7 +1366,7 @@ public class diff_match_patch {
         }
         int y1 = x1 - k1;
         while (x1 < text1_length && y1 < text2_length
-               && text1.charAt(x1) == text2.charAt(y1)) {
+               && text1[start1 + x1] == text2[start2 + y1]) {
           x1++;
           y1++;
         }
@@ -413,8 +1383,11 @@ public class diff_match_patch {
             // Mirror x2 onto top-left coordinate system.
             int x2 = text1_length - v2[k2_offset];
             if (x1 >= x2) {
-              // Overlap detected.
-              return diff_bisectSplit(text1, text2, x1, y1, deadline);
+              // Overlap detected.  Release the workspace before recursing.
+              workspace.reset(touched);
+              diff_bisectSplit(text1, start1, end1, text2, start2, end2,
+                               x1, y1, deadline, diffs);
+              return;
             }
           }
         }
@@ -431,8 +1404,7 @@ public class diff_match_patch {
         }
         int y2 = x2 - k2;
         while (x2 < text1_length && y2 < text2_length
-               && text1.charAt(text1_length - x2 - 1)
-               == text2.charAt(text2_length - y2 - 1)) {
+               && text1[end1 - x2 - 1] == text2[end2 - y2 - 1]) {
           x2++;
           y2++;
         }
@@ -451,8 +1423,11 @@ public class diff_match_patch {
             // Mirror x2 onto top-left coordinate system.
             x2 = text1_length - x2;
             if (x1 >= x2) {
-              // Overlap detected.
-              return diff_bisectSplit(text1, text2, x1, y1, deadline);
+              // Overlap detected.  Release the workspace before recursing.
+              workspace.reset(touched);
+              diff_bisectSplit(text1, start1, end1, text2, start2, end2,
+                               x1, y1, deadline, diffs);
+              return;
             }
           }
         }
@@ -460,35 +1435,95 @@ public class diff_match_patch {
     }
     // Diff took too long and hit the deadline or
     // number of diffs equals number of characters, no commonality at all.
-    LinkedList<Diff> diffs = new LinkedList<Diff>();
-    diffs.add(new Diff(Operation.DELETE, text1));
-    diffs.add(new Diff(Operation.INSERT, text2));
-    return diffs;
+    workspace.reset(touched);
+    diffs.add(CompactDiff.DELETE, start1, start2, text1_length);
+    diffs.add(CompactDiff.INSERT, end1, start2, text2_length);
+  }
+
+  /**
+   * Front and reverse path arrays for diff_bisect, reused by every bisect on
+   * the same thread.  All entries are -1 between uses: diff_bisect writes
+   * only k in [-touched, touched] around the center and resets just that
+   * range when it is done, before it recurses.
+   */
+  private static final class BisectWorkspace {
+    // Capacity kept between diffs; larger arrays are dropped after use.
+    private static final int RETAINED_CAPACITY = 1 << 18;
+
+    int[] v1;
+    int[] v2;
+    int center;  // Index of k = 0.
+
+    BisectWorkspace() {
+      allocate(64);
+    }
+
+    /**
+     * Make room for k in [-reach - 1, reach + 1], keeping the contents.
+     * @return true if the arrays were replaced.
+     */
+    boolean ensure(int reach) {
+      if (center - reach - 1 >= 0 && center + reach + 1 < v1.length) {
+        return false;
+      }
+      int[] old1 = v1;
+      int[] old2 = v2;
+      int oldCenter = center;
+      allocate(Math.max(old1.length * 2, 2 * reach + 4));
+      System.arraycopy(old1, 0, v1, center - oldCenter, old1.length);
+      System.arraycopy(old2, 0, v2, center - oldCenter, old2.length);
+      return true;
+    }
+
+    /**
+     * Restore -1 over k in [-reach - 1, reach + 1].
+     */
+    void reset(int reach) {
+      if (v1.length > RETAINED_CAPACITY) {
+        allocate(64);
+        return;
+      }
+      int from = Math.max(0, center - reach - 1);
+      int to = Math.min(v1.length, center + reach + 2);
+      Arrays.fill(v1, from, to, -1);
+      Arrays.fill(v2, from, to, -1);
+    }
+
+    private void allocate(int capacity) {
+      v1 = new int[capacity];
+      v2 = new int[capacity];
+      Arrays.fill(v1, -1);
+      Arrays.fill(v2, -1);
+      center = capacity / 2;
+    }
   }
 
+  private static final ThreadLocal<BisectWorkspace> bisectWorkspace =
+      ThreadLocal.withInitial(BisectWorkspace::new);
+
   /**
    * Given the location of the 'middle snake', split the diff in two parts
    * and recurse.
-   * @param text1 Old string to be diffed.
-   * @param text2 New string to be diffed.
-   * @param x Index of split point in text1.
-   * @param y Index of split point in text2.
+   * @param text1 Old text.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 New text.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @param x Index of split point in the range of text1.
+   * @param y Index of split point in the range of text2.
    * @param deadline Time at which to bail if not yet complete.
-   * @return LinkedList of Diff objects.
+   * @param diffs CompactDiff to append to.
    */
-  private LinkedList<Diff> diff_bisectSplit(String text1, String text2,
-                                            int x, int y, long deadline) {
-    String text1a = text1.substring(0, x);
-    String text2a = text2.substring(0, y);
-    String text1b = text1.substring(x);
-    String text2b = text2.substring(y);
-
+  private void diff_bisectSplit(char[] text1, int start1, int end1,
+                                char[] text2, int start2, int end2,
+                                int x, int y, long deadline,
+                                CompactDiff diffs) {
     // Compute both diffs serially.
-    LinkedList<Diff> diffs = diff_main(text1a, text2a, false, deadline);
-    LinkedList<Diff> diffsb = diff_main(text1b, text2b, false, deadline);
-
-    diffs.addAll(diffsb);
-    return diffs;
+    diff_main(text1, start1, start1 + x, text2, start2, start2 + y,
+              false, deadline, diffs);
+    diff_main(text1, start1 + x, end1, text2, start2 + y, end2,
+              false, deadline, diffs);
   }
 
   /**
@@ -577,6 +1612,150 @@ public class diff_match_patch {
     }
   }
 
+  /**
+   * Lines of two text ranges as int tokens.  Equal lines get equal tokens,
+   * numbered from 0 in order of first appearance.
+   */
+  private static final class LineTokens {
+    final int[] tokens1;
+    final int[] tokens2;
+    // Offset at which each line starts, followed by the end of the range.
+    final int[] lineStarts1;
+    final int[] lineStarts2;
+    final int tokenCount;
+
+    LineTokens(int[] tokens1, int[] tokens2, int[] lineStarts1,
+               int[] lineStarts2, int tokenCount) {
+      this.tokens1 = tokens1;
+      this.tokens2 = tokens2;
+      this.lineStarts1 = lineStarts1;
+      this.lineStarts2 = lineStarts2;
+      this.tokenCount = tokenCount;
+    }
+  }
+
+  /**
+   * Split two text ranges into lines and reduce them to int tokens.
+   * Unlike diff_linesToChars there is no limit on the number of unique
+   * lines, and no line is copied: the table keeps each unique line as an
+   * (offset, length) range of the text it first appeared in.
+   * @param text1 First text.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 Second text.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @return Tokens and line offsets of both ranges.
+   */
+  private LineTokens diff_linesToTokens(char[] text1, int start1, int end1,
+                                        char[] text2, int start2, int end2) {
+    LineTable table = new LineTable();
+    int[] lineStarts1 = new int[countLines(text1, start1, end1) + 1];
+    int[] lineStarts2 = new int[countLines(text2, start2, end2) + 1];
+    int[] tokens1 = table.tokenize(text1, start1, end1, lineStarts1);
+    int[] tokens2 = table.tokenize(text2, start2, end2, lineStarts2);
+    return new LineTokens(tokens1, tokens2, lineStarts1, lineStarts2,
+                          table.count);
+  }
+
+  private static int countLines(char[] text, int start, int end) {
+    int lines = 0;
+    for (int i = start; i < end; i++) {
+      if (text[i] == '\n') {
+        lines++;
+      }
+    }
+    return end > start && text[end - 1] != '\n' ? lines + 1 : lines;
+  }
+
+  /**
+   * Open addressing table of unique lines.  The hash of a line is rolled
+   * over its characters while scanning for the line end, so each character
+   * is read once for hashing; lines are only compared on a hash match.
+   */
+  private static final class LineTable {
+    // Token + 1 per slot, 0 for an empty slot.
+    private int[] slots = new int[1024];
+    private int[] hashes = new int[256];
+    private char[][] texts = new char[256][];
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    int count;
+
+    /**
+     * Tokenize the lines of text[start, end); a line includes its '\n'.
+     * @param lineStarts Filled with the offset of each line, followed by
+     *     end.  Its length must be the number of lines plus one.
+     * @return Token of each line.
+     */
+    int[] tokenize(char[] text, int start, int end, int[] lineStarts) {
+      int[] tokens = new int[lineStarts.length - 1];
+      int line = 0;
+      int lineStart = start;
+      int hash = 0;
+      for (int i = start; i < end; i++) {
+        char c = text[i];
+        hash = 31 * hash + c;
+        if (c == '\n' || i == end - 1) {
+          lineStarts[line] = lineStart;
+          tokens[line++] = token(hash, text, lineStart, i + 1 - lineStart);
+          lineStart = i + 1;
+          hash = 0;
+        }
+      }
+      lineStarts[line] = end;
+      return tokens;
+    }
+
+    private int token(int hash, char[] text, int start, int length) {
+      int mask = slots.length - 1;
+      int slot = (hash ^ (hash >>> 16)) & mask;
+      while (true) {
+        int entry = slots[slot];
+        if (entry == 0) {
+          break;
+        }
+        int token = entry - 1;
+        if (hashes[token] == hash && lengths[token] == length
+            && Arrays.equals(texts[token], starts[token], starts[token] + length,
+                             text, start, start + length)) {
+          return token;
+        }
+        slot = (slot + 1) & mask;
+      }
+      if (count == hashes.length) {
+        int capacity = count * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        texts = Arrays.copyOf(texts, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+      }
+      int token = count++;
+      hashes[token] = hash;
+      texts[token] = text;
+      starts[token] = start;
+      lengths[token] = length;
+      slots[slot] = token + 1;
+      if (count * 2 > slots.length) {
+        rehash(slots.length * 2);
+      }
+      return token;
+    }
+
+    private void rehash(int capacity) {
+      slots = new int[capacity];
+      int mask = capacity - 1;
+      for (int token = 0; token < count; token++) {
+        int hash = hashes[token];
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = token + 1;
+      }
+    }
+  }
+
   /**
    * Determine the common prefix of two strings
    * @param text1 First string.
@@ -585,11 +1764,26 @@ public class diff_match_patch {
    */
   public int diff_commonPrefix(String text1, String text2) {
     // Performance analysis: https://neil.fraser.name/news/2007/10/09/
+    // Strings have no mismatch method, so copy growing blocks into reusable
+    // buffers and compare those with the vectorized Arrays.mismatch.  The
+    // work stays proportional to the common prefix, not to the strings.
     int n = Math.min(text1.length(), text2.length());
-    for (int i = 0; i < n; i++) {
-      if (text1.charAt(i) != text2.charAt(i)) {
-        return i;
+    if (n == 0 || text1.charAt(0) != text2.charAt(0)) {
+      return 0;
+    }
+    char[][] buffers = mismatchBuffers.get();
+    int common = 0;
+    int block = MISMATCH_BLOCK_MIN;
+    while (common < n) {
+      int length = Math.min(block, n - common);
+      text1.getChars(common, common + length, buffers[0], 0);
+      text2.getChars(common, common + length, buffers[1], 0);
+      int i = Arrays.mismatch(buffers[0], 0, length, buffers[1], 0, length);
+      if (i >= 0) {
+        return common + i;
       }
+      common += length;
+      block = Math.min(block * 2, MISMATCH_BLOCK_MAX);
     }
     return n;
   }
@@ -605,10 +1799,29 @@ public class diff_match_patch {
     int text1_length = text1.length();
     int text2_length = text2.length();
     int n = Math.min(text1_length, text2_length);
-    for (int i = 1; i <= n; i++) {
-      if (text1.charAt(text1_length - i) != text2.charAt(text2_length - i)) {
-        return i - 1;
+    if (n == 0 || text1.charAt(text1_length - 1)
+        != text2.charAt(text2_length - 1)) {
+      return 0;
+    }
+    // Same block scheme as diff_commonPrefix, walking back from the end.
+    char[][] buffers = mismatchBuffers.get();
+    int common = 0;
+    int block = MISMATCH_BLOCK_MIN;
+    while (common < n) {
+      int length = Math.min(block, n - common);
+      text1.getChars(text1_length - common - length, text1_length - common,
+                     buffers[0], 0);
+      text2.getChars(text2_length - common - length, text2_length - common,
+                     buffers[1], 0);
+      if (!Arrays.equals(buffers[0], 0, length, buffers[1], 0, length)) {
+        int i = length - 1;
+        while (buffers[0][i] == buffers[1][i]) {
+          i--;
+        }
+        return common + length - 1 - i;
       }
+      common += length;
+      block = Math.min(block * 2, MISMATCH_BLOCK_MAX);
     }
     return n;
   }
@@ -628,36 +1841,66 @@ public class diff_match_patch {
     if (text1_length == 0 || text2_length == 0) {
       return 0;
     }
-    // Truncate the longer string.
-    if (text1_length > text2_length) {
-      text1 = text1.substring(text1_length - text2_length);
-    } else if (text1_length < text2_length) {
-      text2 = text2.substring(0, text1_length);
-    }
+    // Only the last text_length characters of text1 and the first
+    // text_length characters of text2 can overlap.
     int text_length = Math.min(text1_length, text2_length);
+    char[] suffix = new char[text_length];
+    char[] prefix = new char[text_length];
+    text1.getChars(text1_length - text_length, text1_length, suffix, 0);
+    text2.getChars(0, text_length, prefix, 0);
+    return commonOverlap(suffix, 0, text_length, prefix, 0, text_length);
+  }
+
+  /**
+   * Determine if the suffix of text1[start1, end1) is the prefix of
+   * text2[start2, end2).
+   * @param text1 First text.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 Second text.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @return The number of characters common to the end of the first
+   *     range and the start of the second range.
+   */
+  private static int commonOverlap(char[] text1, int start1, int end1,
+                                   char[] text2, int start2, int end2) {
+    // Only the last text_length characters of text1 and the first
+    // text_length characters of text2 can overlap.
+    int text_length = Math.min(end1 - start1, end2 - start2);
+    if (text_length == 0) {
+      return 0;
+    }
+    int suffix = end1 - text_length;
     // Quick check for the worst case.
-    if (text1.equals(text2)) {
+    if (Arrays.equals(text1, suffix, end1, text2, start2, start2 + text_length)) {
       return text_length;
     }
 
-    // Start by looking for a single character match
-    // and increase length until no match is found.
-    // Performance analysis: https://neil.fraser.name/news/2010/11/04/
-    int best = 0;
-    int length = 1;
-    while (true) {
-      String pattern = text1.substring(text_length - length);
-      int found = text2.indexOf(pattern);
-      if (found == -1) {
-        return best;
-      }
-      length += found;
-      if (found == 0 || text1.substring(text_length - length).equals(
-          text2.substring(0, length))) {
-        best = length;
-        length++;
+    // Knuth-Morris-Pratt: run the prefix as a pattern over the suffix.  The
+    // state after the last character is the longest prefix of text2 which
+    // ends text1, found in linear time.
+    int[] failure = new int[text_length];
+    for (int i = 1, k = 0; i < text_length; i++) {
+      while (k > 0 && text2[start2 + i] != text2[start2 + k]) {
+        k = failure[k - 1];
+      }
+      if (text2[start2 + i] == text2[start2 + k]) {
+        k++;
+      }
+      failure[i] = k;
+    }
+    int matched = 0;
+    for (int i = suffix; i < end1; i++) {
+      while (matched > 0 && (matched == text_length
+                             || text1[i] != text2[start2 + matched])) {
+        matched = failure[matched - 1];
+      }
+      if (text1[i] == text2[start2 + matched]) {
+        matched++;
       }
     }
+    return matched;
   }
 
   /**
@@ -671,23 +1914,71 @@ public class diff_match_patch {
    *     common middle.  Or null if there was no match.
    */
   protected String[] diff_halfMatch(String text1, String text2) {
-    if (Diff_Timeout <= 0) {
+    char[] chars1 = text1.toCharArray();
+    char[] chars2 = text2.toCharArray();
+    int[] hm = diff_halfMatch(chars1, 0, chars1.length,
+                              chars2, 0, chars2.length);
+    if (hm == null) {
+      return null;
+    }
+    return new String[]{text1.substring(0, hm[0]),
+                        text1.substring(hm[0] + hm[2]),
+                        text2.substring(0, hm[1]),
+                        text2.substring(hm[1] + hm[2]),
+                        text1.substring(hm[0], hm[0] + hm[2])};
+  }
+
+  /**
+   * Do two ranges share a substring which is at least half the length of
+   * the longer range?
+   * @param text1 First text.
+   * @param start1 Start of the range of text1.
+   * @param end1 End of the range of text1.
+   * @param text2 Second text.
+   * @param start2 Start of the range of text2.
+   * @param end2 End of the range of text2.
+   * @return Three element array, containing the start of the common middle
+   *     in text1, its start in text2 and its length.  Or null if there was
+   *     no match.
+   */
+  private int[] diff_halfMatch(char[] text1, int start1, int end1,
+                               char[] text2, int start2, int end2) {
+    if (Diff_Timeout <= 0 && !Diff_LinearHalfMatch) {
       // Don't risk returning a non-optimal diff if we have unlimited time.
       return null;
     }
-    String longtext = text1.length() > text2.length() ? text1 : text2;
-    String shorttext = text1.length() > text2.length() ? text2 : text1;
-    if (longtext.length() < 4 || shorttext.length() * 2 < longtext.length()) {
+    boolean longIs1 = end1 - start1 > end2 - start2;
+    char[] longtext = longIs1 ? text1 : text2;
+    int longStart = longIs1 ? start1 : start2;
+    int longEnd = longIs1 ? end1 : end2;
+    char[] shorttext = longIs1 ? text2 : text1;
+    int shortStart = longIs1 ? start2 : start1;
+    int shortEnd = longIs1 ? end2 : end1;
+    int longLength = longEnd - longStart;
+    if (longLength < 4 || (shortEnd - shortStart) * 2 < longLength) {
       return null;  // Pointless.
     }
 
+    int[] hm;
+    if (Diff_LinearHalfMatch) {
+      // Any common substring of half the longer text covers its second or
+      // third quarter, so the longest one is what the seeds would find.
+      hm = SuffixAutomaton.of(shorttext, shortStart, shortEnd)
+          .longestCommon(longtext, longStart, longEnd);
+      if (hm[2] * 2 < longLength) {
+        return null;
+      }
+      return longIs1 ? hm : new int[]{hm[1], hm[0], hm[2]};
+    }
+
     // First check if the second quarter is the seed for a half-match.
-    String[] hm1 = diff_halfMatchI(longtext, shorttext,
-                                   (longtext.length() + 3) / 4);
+    int[] hm1 = diff_halfMatchI(longtext, longStart, longEnd,
+                                shorttext, shortStart, shortEnd,
+                                (longLength + 3) / 4);
     // Check again based on the third quarter.
-    String[] hm2 = diff_halfMatchI(longtext, shorttext,
-                                   (longtext.length() + 1) / 2);
-    String[] hm;
+    int[] hm2 = diff_halfMatchI(longtext, longStart, longEnd,
+                                shorttext, shortStart, shortEnd,
+                                (longLength + 1) / 2);
     if (hm1 == null && hm2 == null) {
       return null;
     } else if (hm2 == null) {
@@ -696,404 +1987,811 @@ public class diff_match_patch {
       hm = hm2;
     } else {
       // Both matched.  Select the longest.
-      hm = hm1[4].length() > hm2[4].length() ? hm1 : hm2;
+      hm = hm1[2] > hm2[2] ? hm1 : hm2;
     }
 
     // A half-match was found, sort out the return data.
-    if (text1.length() > text2.length()) {
+    if (longIs1) {
       return hm;
-      //return new String[]{hm[0], hm[1], hm[2], hm[3], hm[4]};
     } else {
-      return new String[]{hm[2], hm[3], hm[0], hm[1], hm[4]};
+      return new int[]{hm[1], hm[0], hm[2]};
     }
   }
 
   /**
    * Does a substring of shorttext exist within longtext such that the
    * substring is at least half the length of longtext?
-   * @param longtext Longer string.
-   * @param shorttext Shorter string.
-   * @param i Start index of quarter length substring within longtext.
-   * @return Five element String array, containing the prefix of longtext, the
-   *     suffix of longtext, the prefix of shorttext, the suffix of shorttext
-   *     and the common middle.  Or null if there was no match.
-   */
-  private String[] diff_halfMatchI(String longtext, String shorttext, int i) {
+   * @param longtext Longer text.
+   * @param longStart Start of the range of longtext.
+   * @param longEnd End of the range of longtext.
+   * @param shorttext Shorter text.
+   * @param shortStart Start of the range of shorttext.
+   * @param shortEnd End of the range of shorttext.
+   * @param i Start index of quarter length substring within the range of
+   *     longtext.
+   * @return Three element array, containing the start of the common middle
+   *     in longtext, its start in shorttext and its length.  Or null if
+   *     there was no match.
+   */
+  private int[] diff_halfMatchI(char[] longtext, int longStart, int longEnd,
+                                char[] shorttext, int shortStart, int shortEnd,
+                                int i) {
     // Start with a 1/4 length substring at position i as a seed.
-    String seed = longtext.substring(i, i + longtext.length() / 4);
+    int seedStart = longStart + i;
+    int seedEnd = seedStart + (longEnd - longStart) / 4;
     int j = -1;
-    String best_common = "";
-    String best_longtext_a = "", best_longtext_b = "";
-    String best_shorttext_a = "", best_shorttext_b = "";
-    while ((j = shorttext.indexOf(seed, j + 1)) != -1) {
-      int prefixLength = diff_commonPrefix(longtext.substring(i),
-                                           shorttext.substring(j));
-      int suffixLength = diff_commonSuffix(longtext.substring(0, i),
-                                           shorttext.substring(0, j));
-      if (best_common.length() < suffixLength + prefixLength) {
-        best_common = shorttext.substring(j - suffixLength, j)
-            + shorttext.substring(j, j + prefixLength);
-        best_longtext_a = longtext.substring(0, i - suffixLength);
-        best_longtext_b = longtext.substring(i + prefixLength);
-        best_shorttext_a = shorttext.substring(0, j - suffixLength);
-        best_shorttext_b = shorttext.substring(j + prefixLength);
-      }
-    }
-    if (best_common.length() * 2 >= longtext.length()) {
-      return new String[]{best_longtext_a, best_longtext_b,
-                          best_shorttext_a, best_shorttext_b, best_common};
+    int best_length = 0;
+    int best_long = 0;
+    int best_short = 0;
+    while ((j = indexOf(shorttext, shortStart, shortEnd,
+                        longtext, seedStart, seedEnd, j + 1)) != -1) {
+      int prefixLength = commonPrefix(longtext, seedStart, longEnd,
+                                      shorttext, shortStart + j, shortEnd);
+      int suffixLength = commonSuffix(longtext, longStart, seedStart,
+                                      shorttext, shortStart, shortStart + j);
+      if (best_length < suffixLength + prefixLength) {
+        best_length = suffixLength + prefixLength;
+        best_long = seedStart - suffixLength;
+        best_short = shortStart + j - suffixLength;
+      }
+    }
+    if (best_length * 2 >= longEnd - longStart) {
+      return new int[]{best_long, best_short, best_length};
     } else {
       return null;
     }
   }
 
   /**
-   * Reduce the number of edits by eliminating semantically trivial equalities.
-   * @param diffs LinkedList of Diff objects.
+   * Suffix automaton of a char or int range, for finding the longest
+   * substring it shares with another range in linear time.  State 0 is the
+   * empty string.  Transitions live in an open-addressing table of
+   * (state, symbol) keys and target states; each state also chains its
+   * symbols, since cloning a state copies its transitions.
    */
-  public void diff_cleanupSemantic(LinkedList<Diff> diffs) {
-    if (diffs.isEmpty()) {
-      return;
+  private static final class SuffixAutomaton {
+    // Per state: length of its longest string, suffix link, end of its
+    // first occurrence in the text and first outgoing transition.
+    private final int[] len;
+    private final int[] link;
+    private final int[] firstEnd;
+    private final int[] head;
+    private int states;
+    private int last;
+    // Per transition: symbol and next transition of the same state.
+    private int[] symbol;
+    private int[] next;
+    private int transitions;
+    // Key and target state per slot, interleaved so that a lookup touches
+    // one cache line.  Keys are never 0, which marks an empty slot.
+    private long[] table;
+
+    private SuffixAutomaton(int length) {
+      // A text of n symbols needs at most 2n - 1 states and 3n - 4
+      // transitions; real text needs far fewer transitions.
+      int stateCapacity = 2 * length + 2;
+      len = new int[stateCapacity];
+      link = new int[stateCapacity];
+      firstEnd = new int[stateCapacity];
+      head = new int[stateCapacity];
+      int transitionCapacity = Math.max(16, length + (length >> 1));
+      symbol = new int[transitionCapacity];
+      next = new int[transitionCapacity];
+      table = new long[Integer.highestOneBit(transitionCapacity) * 8];
+      link[0] = -1;
+      head[0] = -1;
+      states = 1;
     }
-    boolean changes = false;
-    Deque<Diff> equalities = new ArrayDeque<Diff>();  // Double-ended queue of qualities.
-    String lastEquality = null; // Always equal to equalities.peek().text
-    ListIterator<Diff> pointer = diffs.listIterator();
-    // Number of characters that changed prior to the equality.
-    int length_insertions1 = 0;
-    int length_deletions1 = 0;
-    // Number of characters that changed after the equality.
-    int length_insertions2 = 0;
-    int length_deletions2 = 0;
-    Diff thisDiff = pointer.next();
-    while (thisDiff != null) {
-      if (thisDiff.operation == Operation.EQUAL) {
-        // Equality found.
-        equalities.push(thisDiff);
-        length_insertions1 = length_insertions2;
-        length_deletions1 = length_deletions2;
-        length_insertions2 = 0;
-        length_deletions2 = 0;
-        lastEquality = thisDiff.text;
-      } else {
-        // An insertion or deletion.
-        if (thisDiff.operation == Operation.INSERT) {
-          length_insertions2 += thisDiff.text.length();
-        } else {
-          length_deletions2 += thisDiff.text.length();
-        }
-        // Eliminate an equality that is smaller or equal to the edits on both
-        // sides of it.
-        if (lastEquality != null && (lastEquality.length()
-            <= Math.max(length_insertions1, length_deletions1))
-            && (lastEquality.length()
-                <= Math.max(length_insertions2, length_deletions2))) {
-          //System.out.println("Splitting: '" + lastEquality + "'");
-          // Walk back to offending equality.
-          while (thisDiff != equalities.peek()) {
-            thisDiff = pointer.previous();
-          }
-          pointer.next();
 
-          // Replace equality with a delete.
-          pointer.set(new Diff(Operation.DELETE, lastEquality));
-          // Insert a corresponding an insert.
-          pointer.add(new Diff(Operation.INSERT, lastEquality));
+    static SuffixAutomaton of(char[] text, int start, int end) {
+      SuffixAutomaton automaton = new SuffixAutomaton(end - start);
+      for (int i = start; i < end; i++) {
+        automaton.extend(text[i], i + 1);
+      }
+      return automaton;
+    }
 
-          equalities.pop();  // Throw away the equality we just deleted.
-          if (!equalities.isEmpty()) {
-            // Throw away the previous equality (it needs to be reevaluated).
-            equalities.pop();
-          }
-          if (equalities.isEmpty()) {
-            // There are no previous equalities, walk back to the start.
-            while (pointer.hasPrevious()) {
-              pointer.previous();
-            }
-          } else {
-            // There is a safe equality we can fall back to.
-            thisDiff = equalities.peek();
-            while (thisDiff != pointer.previous()) {
-              // Intentionally empty loop.
-            }
-          }
+    static SuffixAutomaton of(int[] text, int start, int end) {
+      SuffixAutomaton automaton = new SuffixAutomaton(end - start);
+      for (int i = start; i < end; i++) {
+        automaton.extend(text[i], i + 1);
+      }
+      return automaton;
+    }
 
-          length_insertions1 = 0;  // Reset the counters.
-          length_insertions2 = 0;
-          length_deletions1 = 0;
-          length_deletions2 = 0;
-          lastEquality = null;
-          changes = true;
+    /**
+     * Longest substring of text[start, end) which is also a substring of
+     * the automaton's text.
+     * @return Three element array, containing the start of the substring in
+     *     text, its start in the automaton's text and its length.
+     */
+    int[] longestCommon(char[] text, int start, int end) {
+      int state = 0;
+      int length = 0;
+      int best = 0;
+      int bestEnd = start;
+      int bestState = 0;
+      for (int i = start; i < end; i++) {
+        int slot;
+        while ((slot = find(state, text[i])) < 0 && state != 0) {
+          state = link[state];
+          length = len[state];
+        }
+        if (slot >= 0) {
+          state = (int) table[slot + 1];
+          length++;
+        } else {
+          length = 0;
+        }
+        if (length > best) {
+          best = length;
+          bestEnd = i + 1;
+          bestState = state;
         }
       }
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
+      return new int[]{bestEnd - best, firstEnd[bestState] - best, best};
     }
 
-    // Normalize the diff.
-    if (changes) {
-      diff_cleanupMerge(diffs);
+    /**
+     * int[] counterpart of longestCommon.
+     */
+    int[] longestCommon(int[] text, int start, int end) {
+      int state = 0;
+      int length = 0;
+      int best = 0;
+      int bestEnd = start;
+      int bestState = 0;
+      for (int i = start; i < end; i++) {
+        int slot;
+        while ((slot = find(state, text[i])) < 0 && state != 0) {
+          state = link[state];
+          length = len[state];
+        }
+        if (slot >= 0) {
+          state = (int) table[slot + 1];
+          length++;
+        } else {
+          length = 0;
+        }
+        if (length > best) {
+          best = length;
+          bestEnd = i + 1;
+          bestState = state;
+        }
+      }
+      return new int[]{bestEnd - best, firstEnd[bestState] - best, best};
     }
-    diff_cleanupSemanticLossless(diffs);
 
-    // Find any overlaps between deletions and insertions.
-    // e.g: <del>abcxxx</del><ins>xxxdef</ins>
-    //   -> <del>abc</del>xxx<ins>def</ins>
-    // e.g: <del>xxxabc</del><ins>defxxx</ins>
-    //   -> <ins>def</ins>xxx<del>abc</del>
-    // Only extract an overlap if it is as big as the edit ahead or behind it.
-    pointer = diffs.listIterator();
-    Diff prevDiff = null;
-    thisDiff = null;
-    if (pointer.hasNext()) {
-      prevDiff = pointer.next();
-      if (pointer.hasNext()) {
-        thisDiff = pointer.next();
+    /**
+     * Append one symbol to the automaton's text.
+     * @param c The symbol.
+     * @param end Index just after the symbol in the text.
+     */
+    private void extend(int c, int end) {
+      int cur = newState(len[last] + 1, end);
+      int p = last;
+      while (p != -1 && find(p, c) < 0) {
+        addTransition(p, c, cur);
+        p = link[p];
       }
-    }
-    while (thisDiff != null) {
-      if (prevDiff.operation == Operation.DELETE &&
-          thisDiff.operation == Operation.INSERT) {
-        String deletion = prevDiff.text;
-        String insertion = thisDiff.text;
-        int overlap_length1 = this.diff_commonOverlap(deletion, insertion);
-        int overlap_length2 = this.diff_commonOverlap(insertion, deletion);
-        if (overlap_length1 >= overlap_length2) {
-          if (overlap_length1 >= deletion.length() / 2.0 ||
-              overlap_length1 >= insertion.length() / 2.0) {
-            // Overlap found. Insert an equality and trim the surrounding edits.
-            pointer.previous();
-            pointer.add(new Diff(Operation.EQUAL,
-                                 insertion.substring(0, overlap_length1)));
-            prevDiff.text =
-                deletion.substring(0, deletion.length() - overlap_length1);
-            thisDiff.text = insertion.substring(overlap_length1);
-            // pointer.add inserts the element before the cursor, so there is
-            // no need to step past the new element.
-          }
+      if (p == -1) {
+        link[cur] = 0;
+      } else {
+        int slot = find(p, c);
+        int q = (int) table[slot + 1];
+        if (len[p] + 1 == len[q]) {
+          link[cur] = q;
         } else {
-          if (overlap_length2 >= deletion.length() / 2.0 ||
-              overlap_length2 >= insertion.length() / 2.0) {
-            // Reverse overlap found.
-            // Insert an equality and swap and trim the surrounding edits.
-            pointer.previous();
-            pointer.add(new Diff(Operation.EQUAL,
-                                 deletion.substring(0, overlap_length2)));
-            prevDiff.operation = Operation.INSERT;
-            prevDiff.text =
-              insertion.substring(0, insertion.length() - overlap_length2);
-            thisDiff.operation = Operation.DELETE;
-            thisDiff.text = deletion.substring(overlap_length2);
-            // pointer.add inserts the element before the cursor, so there is
-            // no need to step past the new element.
+          // q also stands for longer strings than the one reached from p;
+          // split the shorter ones off into a clone.
+          int clone = newState(len[p] + 1, firstEnd[q]);
+          for (int t = head[q]; t != -1; t = next[t]) {
+            addTransition(clone, symbol[t], (int) table[find(q, symbol[t]) + 1]);
           }
+          link[clone] = link[q];
+          while (p != -1 && (slot = find(p, c)) >= 0 && table[slot + 1] == q) {
+            table[slot + 1] = clone;
+            p = link[p];
+          }
+          link[q] = clone;
+          link[cur] = clone;
         }
-        thisDiff = pointer.hasNext() ? pointer.next() : null;
       }
-      prevDiff = thisDiff;
-      thisDiff = pointer.hasNext() ? pointer.next() : null;
+      last = cur;
     }
-  }
 
-  /**
-   * Look for single edits surrounded on both sides by equalities
-   * which can be shifted sideways to align the edit to a word boundary.
-   * e.g: The c<ins>at c</ins>ame. -> The <ins>cat </ins>came.
-   * @param diffs LinkedList of Diff objects.
-   */
-  public void diff_cleanupSemanticLossless(LinkedList<Diff> diffs) {
-    String equality1, edit, equality2;
-    String commonString;
-    int commonOffset;
-    int score, bestScore;
-    String bestEquality1, bestEdit, bestEquality2;
-    // Create a new iterator at the start.
-    ListIterator<Diff> pointer = diffs.listIterator();
-    Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
-    Diff thisDiff = pointer.hasNext() ? pointer.next() : null;
-    Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
-    // Intentionally ignore the first and last element (don't need checking).
-    while (nextDiff != null) {
-      if (prevDiff.operation == Operation.EQUAL &&
-          nextDiff.operation == Operation.EQUAL) {
-        // This is a single edit surrounded by equalities.
-        equality1 = prevDiff.text;
-        edit = thisDiff.text;
-        equality2 = nextDiff.text;
+    private int newState(int length, int end) {
+      int state = states++;
+      len[state] = length;
+      firstEnd[state] = end;
+      head[state] = -1;
+      return state;
+    }
 
-        // First, shift the edit as far left as possible.
-        commonOffset = diff_commonSuffix(equality1, edit);
-        if (commonOffset != 0) {
-          commonString = edit.substring(edit.length() - commonOffset);
-          equality1 = equality1.substring(0, equality1.length() - commonOffset);
-          edit = commonString + edit.substring(0, edit.length() - commonOffset);
-          equality2 = commonString + equality2;
+    /**
+     * Index in table of the key of the transition from state on symbol c,
+     * or -1 if there is none.
+     */
+    private int find(int state, int c) {
+      long key = key(state, c);
+      int mask = table.length - 2;
+      for (int slot = hash(key) & mask; ; slot = (slot + 2) & mask) {
+        long k = table[slot];
+        if (k == key) {
+          return slot;
         }
+        if (k == 0) {
+          return -1;
+        }
+      }
+    }
 
-        // Second, step character by character right, looking for the best fit.
-        bestEquality1 = equality1;
-        bestEdit = edit;
-        bestEquality2 = equality2;
-        bestScore = diff_cleanupSemanticScore(equality1, edit)
-            + diff_cleanupSemanticScore(edit, equality2);
-        while (edit.length() != 0 && equality2.length() != 0
-            && edit.charAt(0) == equality2.charAt(0)) {
-          equality1 += edit.charAt(0);
-          edit = edit.substring(1) + equality2.charAt(0);
-          equality2 = equality2.substring(1);
-          score = diff_cleanupSemanticScore(equality1, edit)
-              + diff_cleanupSemanticScore(edit, equality2);
-          // The >= encourages trailing rather than leading whitespace on edits.
-          if (score >= bestScore) {
-            bestScore = score;
-            bestEquality1 = equality1;
-            bestEdit = edit;
-            bestEquality2 = equality2;
+    private void addTransition(int state, int c, int to) {
+      if (transitions == symbol.length) {
+        symbol = Arrays.copyOf(symbol, transitions * 2);
+        next = Arrays.copyOf(next, transitions * 2);
+      }
+      if ((transitions + 1) * 4 > table.length) {
+        // Keep the table at most half full.
+        long[] old = table;
+        table = new long[old.length * 2];
+        for (int slot = 0; slot < old.length; slot += 2) {
+          if (old[slot] != 0) {
+            insert(old[slot], old[slot + 1]);
           }
         }
+      }
+      int t = transitions++;
+      symbol[t] = c;
+      next[t] = head[state];
+      head[state] = t;
+      insert(key(state, c), to);
+    }
 
-        if (!prevDiff.text.equals(bestEquality1)) {
-          // We have an improvement, save it back to the diff.
-          if (bestEquality1.length() != 0) {
-            prevDiff.text = bestEquality1;
-          } else {
-            pointer.previous(); // Walk past nextDiff.
-            pointer.previous(); // Walk past thisDiff.
-            pointer.previous(); // Walk past prevDiff.
-            pointer.remove(); // Delete prevDiff.
-            pointer.next(); // Walk past thisDiff.
-            pointer.next(); // Walk past nextDiff.
-          }
-          thisDiff.text = bestEdit;
-          if (bestEquality2.length() != 0) {
-            nextDiff.text = bestEquality2;
-          } else {
-            pointer.remove(); // Delete nextDiff.
-            nextDiff = thisDiff;
-            thisDiff = prevDiff;
-          }
+    private void insert(long key, long to) {
+      int mask = table.length - 2;
+      int slot = hash(key) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 2) & mask;
+      }
+      table[slot] = key;
+      table[slot + 1] = to;
+    }
+
+    private static long key(int state, int c) {
+      return (long) (state + 1) << 32 | (c & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h >>> 32);
+    }
+  }
+
+  /**
+   * Length of the common prefix of text1[start1, end1) and
+   * text2[start2, end2).
+   */
+  private static int commonPrefix(char[] text1, int start1, int end1,
+                                  char[] text2, int start2, int end2) {
+    // Arrays.mismatch is vectorized; it returns -1 for equal ranges and the
+    // shorter length when one range is a prefix of the other.
+    int i = Arrays.mismatch(text1, start1, end1, text2, start2, end2);
+    return i < 0 ? end1 - start1 : i;
+  }
+
+  /**
+   * Length of the common suffix of text1[start1, end1) and
+   * text2[start2, end2).
+   */
+  private static int commonSuffix(char[] text1, int start1, int end1,
+                                  char[] text2, int start2, int end2) {
+    // There is no reverse mismatch, so compare growing blocks from the end
+    // with the vectorized Arrays.equals and scan only the block which
+    // differs.
+    int n = Math.min(end1 - start1, end2 - start2);
+    int common = 0;
+    int block = MISMATCH_BLOCK_MIN;
+    while (common < n) {
+      int length = Math.min(block, n - common);
+      if (!Arrays.equals(text1, end1 - common - length, end1 - common,
+                         text2, end2 - common - length, end2 - common)) {
+        while (text1[end1 - common - 1] == text2[end2 - common - 1]) {
+          common++;
         }
+        return common;
       }
-      prevDiff = thisDiff;
-      thisDiff = nextDiff;
-      nextDiff = pointer.hasNext() ? pointer.next() : null;
+      common += length;
+      block = Math.min(block * 2, MISMATCH_BLOCK_MAX);
     }
+    return n;
   }
 
   /**
-   * Given two strings, compute a score representing whether the internal
-   * boundary falls on logical boundaries.
-   * Scores range from 6 (best) to 0 (worst).
-   * @param one First string.
-   * @param two Second string.
-   * @return The score.
+   * Find pattern[patternStart, patternEnd) within text[start, end), like
+   * String.indexOf(String, int).
+   * @return Index relative to start, or -1 if not found.
    */
-  private int diff_cleanupSemanticScore(String one, String two) {
-    if (one.length() == 0 || two.length() == 0) {
-      // Edges are the best.
-      return 6;
+  private static int indexOf(char[] text, int start, int end,
+                             char[] pattern, int patternStart, int patternEnd,
+                             int fromIndex) {
+    int patternLength = patternEnd - patternStart;
+    int last = end - patternLength;
+    if (patternLength == 0) {
+      return Math.min(Math.max(fromIndex, 0), end - start);
+    }
+    char first = pattern[patternStart];
+    for (int i = start + Math.max(fromIndex, 0); i <= last; i++) {
+      if (text[i] == first && Arrays.equals(text, i + 1, i + patternLength,
+          pattern, patternStart + 1, patternEnd)) {
+        return i - start;
+      }
     }
+    return -1;
+  }
 
-    // Each port of this function behaves slightly differently due to
-    // subtle differences in each language's definition of things like
-    // 'whitespace'.  Since this function's purpose is largely cosmetic,
-    // the choice has been made to use each language's native features
-    // rather than force total conformity.
-    char char1 = one.charAt(one.length() - 1);
-    char char2 = two.charAt(0);
-    boolean nonAlphaNumeric1 = !Character.isLetterOrDigit(char1);
-    boolean nonAlphaNumeric2 = !Character.isLetterOrDigit(char2);
-    boolean whitespace1 = nonAlphaNumeric1 && Character.isWhitespace(char1);
-    boolean whitespace2 = nonAlphaNumeric2 && Character.isWhitespace(char2);
-    boolean lineBreak1 = whitespace1
-        && Character.getType(char1) == Character.CONTROL;
-    boolean lineBreak2 = whitespace2
-        && Character.getType(char2) == Character.CONTROL;
-    boolean blankLine1 = lineBreak1 && BLANKLINEEND.matcher(one).find();
-    boolean blankLine2 = lineBreak2 && BLANKLINESTART.matcher(two).find();
 
-    if (blankLine1 || blankLine2) {
-      // Five points for blank lines.
-      return 5;
-    } else if (lineBreak1 || lineBreak2) {
-      // Four points for line breaks.
-      return 4;
-    } else if (nonAlphaNumeric1 && !whitespace1 && whitespace2) {
-      // Three points for end of sentences.
-      return 3;
-    } else if (whitespace1 || whitespace2) {
-      // Two points for whitespace.
-      return 2;
-    } else if (nonAlphaNumeric1 || nonAlphaNumeric2) {
-      // One point for non-alphanumeric.
-      return 1;
+  /**
+   * int[] counterpart of diff_main for token sequences: find the
+   * differences between text1[start1, end1) and text2[start2, end2),
+   * appending them to diffs.  Same steps and merges as the char version,
+   * without the line-level speedup.
+   */
+  private void diff_main(int[] text1, int start1, int end1,
+                         int[] text2, int start2, int end2,
+                         long deadline, TokenDiff diffs) {
+    // Check for equality (speedup).
+    if (Arrays.equals(text1, start1, end1, text2, start2, end2)) {
+      if (end1 != start1) {
+        diffs.add(TokenDiff.EQUAL, start1, start2, end1 - start1);
+      }
+      return;
     }
-    return 0;
-  }
+    int from = diffs.size();
 
-  // Define some regex patterns for matching boundaries.
-  private Pattern BLANKLINEEND
-      = Pattern.compile("\\n\\r?\\n\\Z", Pattern.DOTALL);
-  private Pattern BLANKLINESTART
-      = Pattern.compile("\\A\\r?\\n\\r?\\n", Pattern.DOTALL);
+    // Trim off common prefix (speedup).
+    int commonlength = commonPrefix(text1, start1, end1, text2, start2, end2);
+    if (commonlength != 0) {
+      diffs.add(TokenDiff.EQUAL, start1, start2, commonlength);
+    }
+    start1 += commonlength;
+    start2 += commonlength;
+
+    // Trim off common suffix (speedup).
+    commonlength = commonSuffix(text1, start1, end1, text2, start2, end2);
+    end1 -= commonlength;
+    end2 -= commonlength;
+
+    // Compute the diff on the middle block.
+    diff_compute(text1, start1, end1, text2, start2, end2, deadline, diffs);
+
+    // Restore the suffix.
+    if (commonlength != 0) {
+      diffs.add(TokenDiff.EQUAL, end1, end2, commonlength);
+    }
+
+    diffs.cleanupMerge(from);
+  }
 
   /**
-   * Reduce the number of edits by eliminating operationally trivial equalities.
-   * @param diffs LinkedList of Diff objects.
+   * int[] counterpart of diff_compute.
    */
-  public void diff_cleanupEfficiency(LinkedList<Diff> diffs) {
-    if (diffs.isEmpty()) {
+  private void diff_compute(int[] text1, int start1, int end1,
+                            int[] text2, int start2, int end2,
+                            long deadline, TokenDiff diffs) {
+    diffs.poll();
+    int text1_length = end1 - start1;
+    int text2_length = end2 - start2;
+
+    if (text1_length == 0) {
+      // Just add some text (speedup).
+      diffs.add(TokenDiff.INSERT, start1, start2, text2_length);
       return;
     }
-    boolean changes = false;
-    Deque<Diff> equalities = new ArrayDeque<Diff>();  // Double-ended queue of equalities.
+
+    if (text2_length == 0) {
+      // Just delete some text (speedup).
+      diffs.add(TokenDiff.DELETE, start1, start2, text1_length);
+      return;
+    }
+
+    if (text1_length > text2_length) {
+      int i = indexOf(text1, start1, end1, text2, start2, end2, 0);
+      if (i != -1) {
+        // Shorter text is inside the longer text (speedup).
+        diffs.add(TokenDiff.DELETE, start1, start2, i);
+        diffs.add(TokenDiff.EQUAL, start1 + i, start2, text2_length);
+        diffs.add(TokenDiff.DELETE, start1 + i + text2_length, end2,
+                  text1_length - i - text2_length);
+        return;
+      }
+    } else {
+      int i = indexOf(text2, start2, end2, text1, start1, end1, 0);
+      if (i != -1) {
+        // Shorter text is inside the longer text (speedup).
+        diffs.add(TokenDiff.INSERT, start1, start2, i);
+        diffs.add(TokenDiff.EQUAL, start1, start2 + i, text1_length);
+        diffs.add(TokenDiff.INSERT, end1, start2 + i + text1_length,
+                  text2_length - i - text1_length);
+        return;
+      }
+    }
+
+    if (Math.min(text1_length, text2_length) == 1) {
+      // Single character string.
+      // After the previous speedup, the character can't be an equality.
+      diffs.add(TokenDiff.DELETE, start1, start2, text1_length);
+      diffs.add(TokenDiff.INSERT, end1, start2, text2_length);
+      return;
+    }
+
+    // Check to see if the problem can be split in two.
+    int[] hm = diff_halfMatch(text1, start1, end1, text2, start2, end2);
+    if (hm != null) {
+      // A half-match was found: hm holds the start of the common middle in
+      // text1 and in text2, and its length.
+      int mid1 = hm[0];
+      int mid2 = hm[1];
+      int mid_length = hm[2];
+      // Send both pairs off for separate processing.
+      diff_main(text1, start1, mid1, text2, start2, mid2, deadline, diffs);
+      diffs.add(TokenDiff.EQUAL, mid1, mid2, mid_length);
+      diff_main(text1, mid1 + mid_length, end1, text2, mid2 + mid_length, end2,
+                deadline, diffs);
+      return;
+    }
+
+    diff_bisect(text1, start1, end1, text2, start2, end2, deadline, diffs);
+  }
+
+  /**
+   * int[] counterpart of diff_bisect.
+   */
+  private void diff_bisect(int[] text1, int start1, int end1,
+                           int[] text2, int start2, int end2,
+                           long deadline, TokenDiff diffs) {
+    // Cache the text lengths to prevent multiple calls.
+    int text1_length = end1 - start1;
+    int text2_length = end2 - start2;
+    int max_d = (text1_length + text2_length + 1) / 2;
+    // The path arrays come from the per-thread workspace, which grows with
+    // the number of steps actually taken rather than with max_d.  Entries
+    // outside the written k-range are -1, as in freshly filled arrays.
+    BisectWorkspace workspace = bisectWorkspace.get();
+    workspace.ensure(1);
+    int[] v1 = workspace.v1;
+    int[] v2 = workspace.v2;
+    int v_offset = workspace.center;
+    int v_length = v1.length;
+    int touched = 1;
+    v1[v_offset + 1] = 0;
+    v2[v_offset + 1] = 0;
+    int delta = text1_length - text2_length;
+    // If the total number of characters is odd, then the front path will
+    // collide with the reverse path.
+    boolean front = (delta % 2 != 0);
+    // Offsets for start and end of k loop.
+    // Prevents mapping of space beyond the grid.
+    int k1start = 0;
+    int k1end = 0;
+    int k2start = 0;
+    int k2end = 0;
+    for (int d = 0; d < max_d; d++) {
+      // Bail out if deadline is reached.  The clock is read once every
+      // MONITOR_POLL_INTERVAL steps, the same cadence the monitor is polled.
+      if ((d & (MONITOR_POLL_INTERVAL - 1)) == 0 && deadline != Long.MAX_VALUE
+          && System.currentTimeMillis() > deadline) {
+        break;
+      }
+      // Let the monitor cancel the diff, leaving the workspace clean.
+      try {
+        diffs.poll();
+      } catch (RuntimeException e) {
+        workspace.reset(touched);
+        throw e;
+      }
+      // This step reads and writes k in [-d - 1, d + 1].
+      if (d + 1 > touched) {
+        touched = d + 1;
+        if (workspace.ensure(touched)) {
+          v1 = workspace.v1;
+          v2 = workspace.v2;
+          v_offset = workspace.center;
+          v_length = v1.length;
+        }
+      }
+
+      // Walk the front path one step.
+      for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+        int k1_offset = v_offset + k1;
+        int x1;
+        if (k1 == -d || (k1 != d && v1[k1_offset - 1] < v1[k1_offset + 1])) {
+          x1 = v1[k1_offset + 1];
+        } else {
+          x1 = v1[k1_offset - 1] + 1;
+        }
+        int y1 = x1 - k1;
+        while (x1 < text1_length && y1 < text2_length
+               && text1[start1 + x1] == text2[start2 + y1]) {
+          x1++;
+          y1++;
+        }
+        v1[k1_offset] = x1;
+        if (x1 > text1_length) {
+          // Ran off the right of the graph.
+          k1end += 2;
+        } else if (y1 > text2_length) {
+          // Ran off the bottom of the graph.
+          k1start += 2;
+        } else if (front) {
+          int k2_offset = v_offset + delta - k1;
+          if (k2_offset >= 0 && k2_offset < v_length && v2[k2_offset] != -1) {
+            // Mirror x2 onto top-left coordinate system.
+            int x2 = text1_length - v2[k2_offset];
+            if (x1 >= x2) {
+              // Overlap detected.  Release the workspace before recursing.
+              workspace.reset(touched);
+              diff_bisectSplit(text1, start1, end1, text2, start2, end2,
+                               x1, y1, deadline, diffs);
+              return;
+            }
+          }
+        }
+      }
+
+      // Walk the reverse path one step.
+      for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+        int k2_offset = v_offset + k2;
+        int x2;
+        if (k2 == -d || (k2 != d && v2[k2_offset - 1] < v2[k2_offset + 1])) {
+          x2 = v2[k2_offset + 1];
+        } else {
+          x2 = v2[k2_offset - 1] + 1;
+        }
+        int y2 = x2 - k2;
+        while (x2 < text1_length && y2 < text2_length
+               && text1[end1 - x2 - 1] == text2[end2 - y2 - 1]) {
+          x2++;
+          y2++;
+        }
+        v2[k2_offset] = x2;
+        if (x2 > text1_length) {
+          // Ran off the left of the graph.
+          k2end += 2;
+        } else if (y2 > text2_length) {
+          // Ran off the top of the graph.
+          k2start += 2;
+        } else if (!front) {
+          int k1_offset = v_offset + delta - k2;
+          if (k1_offset >= 0 && k1_offset < v_length && v1[k1_offset] != -1) {
+            int x1 = v1[k1_offset];
+            int y1 = v_offset + x1 - k1_offset;
+            // Mirror x2 onto top-left coordinate system.
+            x2 = text1_length - x2;
+            if (x1 >= x2) {
+              // Overlap detected.  Release the workspace before recursing.
+              workspace.reset(touched);
+              diff_bisectSplit(text1, start1, end1, text2, start2, end2,
+                               x1, y1, deadline, diffs);
+              return;
+            }
+          }
+        }
+      }
+    }
+    // Diff took too long and hit the deadline or
+    // number of diffs equals number of characters, no commonality at all.
+    workspace.reset(touched);
+    diffs.add(TokenDiff.DELETE, start1, start2, text1_length);
+    diffs.add(TokenDiff.INSERT, end1, start2, text2_length);
+  }
+
+  /**
+   * int[] counterpart of diff_bisectSplit.
+   */
+  private void diff_bisectSplit(int[] text1, int start1, int end1,
+                                int[] text2, int start2, int end2,
+                                int x, int y, long deadline,
+                                TokenDiff diffs) {
+    // Compute both diffs serially.
+    diff_main(text1, start1, start1 + x, text2, start2, start2 + y,
+              deadline, diffs);
+    diff_main(text1, start1 + x, end1, text2, start2 + y, end2,
+              deadline, diffs);
+  }
+
+  /**
+   * int[] counterpart of diff_halfMatch.
+   */
+  private int[] diff_halfMatch(int[] text1, int start1, int end1,
+                               int[] text2, int start2, int end2) {
+    if (Diff_Timeout <= 0 && !Diff_LinearHalfMatch) {
+      // Don't risk returning a non-optimal diff if we have unlimited time.
+      return null;
+    }
+    boolean longIs1 = end1 - start1 > end2 - start2;
+    int[] longtext = longIs1 ? text1 : text2;
+    int longStart = longIs1 ? start1 : start2;
+    int longEnd = longIs1 ? end1 : end2;
+    int[] shorttext = longIs1 ? text2 : text1;
+    int shortStart = longIs1 ? start2 : start1;
+    int shortEnd = longIs1 ? end2 : end1;
+    int longLength = longEnd - longStart;
+    if (longLength < 4 || (shortEnd - shortStart) * 2 < longLength) {
+      return null;  // Pointless.
+    }
+
+    int[] hm;
+    if (Diff_LinearHalfMatch) {
+      // Any common substring of half the longer text covers its second or
+      // third quarter, so the longest one is what the seeds would find.
+      hm = SuffixAutomaton.of(shorttext, shortStart, shortEnd)
+          .longestCommon(longtext, longStart, longEnd);
+      if (hm[2] * 2 < longLength) {
+        return null;
+      }
+      return longIs1 ? hm : new int[]{hm[1], hm[0], hm[2]};
+    }
+
+    // First check if the second quarter is the seed for a half-match.
+    int[] hm1 = diff_halfMatchI(longtext, longStart, longEnd,
+                                shorttext, shortStart, shortEnd,
+                                (longLength + 3) / 4);
+    // Check again based on the third quarter.
+    int[] hm2 = diff_halfMatchI(longtext, longStart, longEnd,
+                                shorttext, shortStart, shortEnd,
+                                (longLength + 1) / 2);
+    if (hm1 == null && hm2 == null) {
+      return null;
+    } else if (hm2 == null) {
+      hm = hm1;
+    } else if (hm1 == null) {
+      hm = hm2;
+    } else {
+      // Both matched.  Select the longest.
+      hm = hm1[2] > hm2[2] ? hm1 : hm2;
+    }
+
+    // A half-match was found, sort out the return data.
+    if (longIs1) {
+      return hm;
+    } else {
+      return new int[]{hm[1], hm[0], hm[2]};
+    }
+  }
+
+  /**
+   * int[] counterpart of diff_halfMatchI.
+   */
+  private int[] diff_halfMatchI(int[] longtext, int longStart, int longEnd,
+                                int[] shorttext, int shortStart, int shortEnd,
+                                int i) {
+    // Start with a 1/4 length substring at position i as a seed.
+    int seedStart = longStart + i;
+    int seedEnd = seedStart + (longEnd - longStart) / 4;
+    int j = -1;
+    int best_length = 0;
+    int best_long = 0;
+    int best_short = 0;
+    while ((j = indexOf(shorttext, shortStart, shortEnd,
+                        longtext, seedStart, seedEnd, j + 1)) != -1) {
+      int prefixLength = commonPrefix(longtext, seedStart, longEnd,
+                                      shorttext, shortStart + j, shortEnd);
+      int suffixLength = commonSuffix(longtext, longStart, seedStart,
+                                      shorttext, shortStart, shortStart + j);
+      if (best_length < suffixLength + prefixLength) {
+        best_length = suffixLength + prefixLength;
+        best_long = seedStart - suffixLength;
+        best_short = shortStart + j - suffixLength;
+      }
+    }
+    if (best_length * 2 >= longEnd - longStart) {
+      return new int[]{best_long, best_short, best_length};
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Length of the common prefix of two int ranges.
+   */
+  private static int commonPrefix(int[] text1, int start1, int end1,
+                                  int[] text2, int start2, int end2) {
+    // Arrays.mismatch is vectorized; it returns -1 for equal ranges and the
+    // shorter length when one range is a prefix of the other.
+    int i = Arrays.mismatch(text1, start1, end1, text2, start2, end2);
+    return i < 0 ? end1 - start1 : i;
+  }
+
+  /**
+   * Length of the common suffix of two int ranges.
+   */
+  private static int commonSuffix(int[] text1, int start1, int end1,
+                                  int[] text2, int start2, int end2) {
+    // There is no reverse mismatch, so compare growing blocks from the end
+    // with the vectorized Arrays.equals and scan only the block which
+    // differs.
+    int n = Math.min(end1 - start1, end2 - start2);
+    int common = 0;
+    int block = MISMATCH_BLOCK_MIN;
+    while (common < n) {
+      int length = Math.min(block, n - common);
+      if (!Arrays.equals(text1, end1 - common - length, end1 - common,
+                         text2, end2 - common - length, end2 - common)) {
+        while (text1[end1 - common - 1] == text2[end2 - common - 1]) {
+          common++;
+        }
+        return common;
+      }
+      common += length;
+      block = Math.min(block * 2, MISMATCH_BLOCK_MAX);
+    }
+    return n;
+  }
+
+  /**
+   * Find one int range within another, like indexOf on the char ranges.
+   * @return Index relative to start, or -1 if not found.
+   */
+  private static int indexOf(int[] text, int start, int end,
+                             int[] pattern, int patternStart, int patternEnd,
+                             int fromIndex) {
+    int patternLength = patternEnd - patternStart;
+    int last = end - patternLength;
+    if (patternLength == 0) {
+      return Math.min(Math.max(fromIndex, 0), end - start);
+    }
+    int first = pattern[patternStart];
+    for (int i = start + Math.max(fromIndex, 0); i <= last; i++) {
+      if (text[i] == first && Arrays.equals(text, i + 1, i + patternLength,
+          pattern, patternStart + 1, patternEnd)) {
+        return i - start;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Reduce the number of edits by eliminating semantically trivial equalities.
+   * @param diffs LinkedList of Diff objects.
+   */
+  public void diff_cleanupSemantic(LinkedList<Diff> diffs) {
+    if (diffs.isEmpty()) {
+      return;
+    }
+    boolean changes = false;
+    Deque<Diff> equalities = new ArrayDeque<Diff>();  // Double-ended queue of qualities.
     String lastEquality = null; // Always equal to equalities.peek().text
     ListIterator<Diff> pointer = diffs.listIterator();
-    // Is there an insertion operation before the last equality.
-    boolean pre_ins = false;
-    // Is there a deletion operation before the last equality.
-    boolean pre_del = false;
-    // Is there an insertion operation after the last equality.
-    boolean post_ins = false;
-    // Is there a deletion operation after the last equality.
-    boolean post_del = false;
+    // Number of characters that changed prior to the equality.
+    int length_insertions1 = 0;
+    int length_deletions1 = 0;
+    // Number of characters that changed after the equality.
+    int length_insertions2 = 0;
+    int length_deletions2 = 0;
     Diff thisDiff = pointer.next();
-    Diff safeDiff = thisDiff;  // The last Diff that is known to be unsplittable.
     while (thisDiff != null) {
       if (thisDiff.operation == Operation.EQUAL) {
         // Equality found.
-        if (thisDiff.text.length() < Diff_EditCost && (post_ins || post_del)) {
-          // Candidate found.
-          equalities.push(thisDiff);
-          pre_ins = post_ins;
-          pre_del = post_del;
-          lastEquality = thisDiff.text;
-        } else {
-          // Not a candidate, and can never become one.
-          equalities.clear();
-          lastEquality = null;
-          safeDiff = thisDiff;
-        }
-        post_ins = post_del = false;
+        equalities.push(thisDiff);
+        length_insertions1 = length_insertions2;
+        length_deletions1 = length_deletions2;
+        length_insertions2 = 0;
+        length_deletions2 = 0;
+        lastEquality = thisDiff.text;
       } else {
         // An insertion or deletion.
-        if (thisDiff.operation == Operation.DELETE) {
-          post_del = true;
+        if (thisDiff.operation == Operation.INSERT) {
+          length_insertions2 += thisDiff.text.length();
         } else {
-          post_ins = true;
+          length_deletions2 += thisDiff.text.length();
         }
-        /*
-         * Five types to be split:
-         * <ins>A</ins><del>B</del>XY<ins>C</ins><del>D</del>
-         * <ins>A</ins>X<ins>C</ins><del>D</del>
-         * <ins>A</ins><del>B</del>X<ins>C</ins>
-         * <ins>A</del>X<ins>C</ins><del>D</del>
-         * <ins>A</ins><del>B</del>X<del>C</del>
-         */
-        if (lastEquality != null
-            && ((pre_ins && pre_del && post_ins && post_del)
-                || ((lastEquality.length() < Diff_EditCost / 2)
-                    && ((pre_ins ? 1 : 0) + (pre_del ? 1 : 0)
-                        + (post_ins ? 1 : 0) + (post_del ? 1 : 0)) == 3))) {
+        // Eliminate an equality that is smaller or equal to the edits on both
+        // sides of it.
+        if (lastEquality != null && (lastEquality.length()
+            <= Math.max(length_insertions1, length_deletions1))
+            && (lastEquality.length()
+                <= Math.max(length_insertions2, length_deletions2))) {
           //System.out.println("Splitting: '" + lastEquality + "'");
           // Walk back to offending equality.
           while (thisDiff != equalities.peek()) {
@@ -1104,1278 +2802,3736 @@ public class diff_match_patch {
           // Replace equality with a delete.
           pointer.set(new Diff(Operation.DELETE, lastEquality));
           // Insert a corresponding an insert.
-          pointer.add(thisDiff = new Diff(Operation.INSERT, lastEquality));
+          pointer.add(new Diff(Operation.INSERT, lastEquality));
 
           equalities.pop();  // Throw away the equality we just deleted.
-          lastEquality = null;
-          if (pre_ins && pre_del) {
-            // No changes made which could affect previous entry, keep going.
-            post_ins = post_del = true;
-            equalities.clear();
-            safeDiff = thisDiff;
-          } else {
-            if (!equalities.isEmpty()) {
-              // Throw away the previous equality (it needs to be reevaluated).
-              equalities.pop();
-            }
-            if (equalities.isEmpty()) {
-              // There are no previous questionable equalities,
-              // walk back to the last known safe diff.
-              thisDiff = safeDiff;
-            } else {
-              // There is an equality we can fall back to.
-              thisDiff = equalities.peek();
+          if (!equalities.isEmpty()) {
+            // Throw away the previous equality (it needs to be reevaluated).
+            equalities.pop();
+          }
+          if (equalities.isEmpty()) {
+            // There are no previous equalities, walk back to the start.
+            while (pointer.hasPrevious()) {
+              pointer.previous();
             }
+          } else {
+            // There is a safe equality we can fall back to.
+            thisDiff = equalities.peek();
             while (thisDiff != pointer.previous()) {
               // Intentionally empty loop.
             }
-            post_ins = post_del = false;
           }
 
+          length_insertions1 = 0;  // Reset the counters.
+          length_insertions2 = 0;
+          length_deletions1 = 0;
+          length_deletions2 = 0;
+          lastEquality = null;
           changes = true;
         }
       }
       thisDiff = pointer.hasNext() ? pointer.next() : null;
     }
 
+    // Normalize the diff.
     if (changes) {
       diff_cleanupMerge(diffs);
     }
-  }
+    diff_cleanupSemanticLossless(diffs);
 
-  /**
-   * Reorder and merge like edit sections.  Merge equalities.
-   * Any edit section can move as long as it doesn't cross an equality.
-   * @param diffs LinkedList of Diff objects.
-   */
-  public void diff_cleanupMerge(LinkedList<Diff> diffs) {
-    diffs.add(new Diff(Operation.EQUAL, ""));  // Add a dummy entry at the end.
-    ListIterator<Diff> pointer = diffs.listIterator();
-    int count_delete = 0;
-    int count_insert = 0;
-    String text_delete = "";
-    String text_insert = "";
-    Diff thisDiff = pointer.next();
-    Diff prevEqual = null;
-    int commonlength;
+    // Find any overlaps between deletions and insertions.
+    // e.g: <del>abcxxx</del><ins>xxxdef</ins>
+    //   -> <del>abc</del>xxx<ins>def</ins>
+    // e.g: <del>xxxabc</del><ins>defxxx</ins>
+    //   -> <ins>def</ins>xxx<del>abc</del>
+    // Only extract an overlap if it is as big as the edit ahead or behind it.
+    pointer = diffs.listIterator();
+    Diff prevDiff = null;
+    thisDiff = null;
+    if (pointer.hasNext()) {
+      prevDiff = pointer.next();
+      if (pointer.hasNext()) {
+        thisDiff = pointer.next();
+      }
+    }
     while (thisDiff != null) {
-      switch (thisDiff.operation) {
-      case INSERT:
-        count_insert++;
-        text_insert += thisDiff.text;
-        prevEqual = null;
-        break;
-      case DELETE:
-        count_delete++;
-        text_delete += thisDiff.text;
-        prevEqual = null;
-        break;
-      case EQUAL:
-        if (count_delete + count_insert > 1) {
-          boolean both_types = count_delete != 0 && count_insert != 0;
-          // Delete the offending records.
-          pointer.previous();  // Reverse direction.
-          while (count_delete-- > 0) {
+      if (prevDiff.operation == Operation.DELETE &&
+          thisDiff.operation == Operation.INSERT) {
+        String deletion = prevDiff.text;
+        String insertion = thisDiff.text;
+        int overlap_length1 = this.diff_commonOverlap(deletion, insertion);
+        int overlap_length2 = this.diff_commonOverlap(insertion, deletion);
+        if (overlap_length1 >= overlap_length2) {
+          if (overlap_length1 >= deletion.length() / 2.0 ||
+              overlap_length1 >= insertion.length() / 2.0) {
+            // Overlap found. Insert an equality and trim the surrounding edits.
             pointer.previous();
-            pointer.remove();
+            pointer.add(new Diff(Operation.EQUAL,
+                                 insertion.substring(0, overlap_length1)));
+            prevDiff.text =
+                deletion.substring(0, deletion.length() - overlap_length1);
+            thisDiff.text = insertion.substring(overlap_length1);
+            // pointer.add inserts the element before the cursor, so there is
+            // no need to step past the new element.
           }
-          while (count_insert-- > 0) {
+        } else {
+          if (overlap_length2 >= deletion.length() / 2.0 ||
+              overlap_length2 >= insertion.length() / 2.0) {
+            // Reverse overlap found.
+            // Insert an equality and swap and trim the surrounding edits.
             pointer.previous();
-            pointer.remove();
-          }
-          if (both_types) {
-            // Factor out any common prefixies.
-            commonlength = diff_commonPrefix(text_insert, text_delete);
-            if (commonlength != 0) {
-              if (pointer.hasPrevious()) {
-                thisDiff = pointer.previous();
-                assert thisDiff.operation == Operation.EQUAL
-                       : "Previous diff should have been an equality.";
-                thisDiff.text += text_insert.substring(0, commonlength);
-                pointer.next();
-              } else {
-                pointer.add(new Diff(Operation.EQUAL,
-                    text_insert.substring(0, commonlength)));
-              }
-              text_insert = text_insert.substring(commonlength);
-              text_delete = text_delete.substring(commonlength);
-            }
-            // Factor out any common suffixies.
-            commonlength = diff_commonSuffix(text_insert, text_delete);
-            if (commonlength != 0) {
-              thisDiff = pointer.next();
-              thisDiff.text = text_insert.substring(text_insert.length()
-                  - commonlength) + thisDiff.text;
-              text_insert = text_insert.substring(0, text_insert.length()
-                  - commonlength);
-              text_delete = text_delete.substring(0, text_delete.length()
-                  - commonlength);
-              pointer.previous();
-            }
-          }
-          // Insert the merged records.
-          if (text_delete.length() != 0) {
-            pointer.add(new Diff(Operation.DELETE, text_delete));
-          }
-          if (text_insert.length() != 0) {
-            pointer.add(new Diff(Operation.INSERT, text_insert));
+            pointer.add(new Diff(Operation.EQUAL,
+                                 deletion.substring(0, overlap_length2)));
+            prevDiff.operation = Operation.INSERT;
+            prevDiff.text =
+              insertion.substring(0, insertion.length() - overlap_length2);
+            thisDiff.operation = Operation.DELETE;
+            thisDiff.text = deletion.substring(overlap_length2);
+            // pointer.add inserts the element before the cursor, so there is
+            // no need to step past the new element.
           }
-          // Step forward to the equality.
-          thisDiff = pointer.hasNext() ? pointer.next() : null;
-        } else if (prevEqual != null) {
-          // Merge this equality with the previous one.
-          prevEqual.text += thisDiff.text;
-          pointer.remove();
-          thisDiff = pointer.previous();
-          pointer.next();  // Forward direction
         }
-        count_insert = 0;
-        count_delete = 0;
-        text_delete = "";
-        text_insert = "";
-        prevEqual = thisDiff;
-        break;
+        thisDiff = pointer.hasNext() ? pointer.next() : null;
       }
+      prevDiff = thisDiff;
       thisDiff = pointer.hasNext() ? pointer.next() : null;
     }
-    if (diffs.getLast().text.length() == 0) {
-      diffs.removeLast();  // Remove the dummy entry at the end.
-    }
+  }
 
-    /*
-     * Second pass: look for single edits surrounded on both sides by equalities
-     * which can be shifted sideways to eliminate an equality.
-     * e.g: A<ins>BA</ins>C -> <ins>AB</ins>AC
-     */
-    boolean changes = false;
+  /**
+   * Look for single edits surrounded on both sides by equalities
+   * which can be shifted sideways to align the edit to a word boundary.
+   * e.g: The c<ins>at c</ins>ame. -> The <ins>cat </ins>came.
+   * @param diffs LinkedList of Diff objects.
+   */
+  public void diff_cleanupSemanticLossless(LinkedList<Diff> diffs) {
+    String equality1, edit, equality2;
+    String commonString;
+    int commonOffset;
+    int score, bestScore;
+    String bestEquality1, bestEdit, bestEquality2;
     // Create a new iterator at the start.
-    // (As opposed to walking the current one back.)
-    pointer = diffs.listIterator();
+    ListIterator<Diff> pointer = diffs.listIterator();
     Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
-    thisDiff = pointer.hasNext() ? pointer.next() : null;
+    Diff thisDiff = pointer.hasNext() ? pointer.next() : null;
     Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
     // Intentionally ignore the first and last element (don't need checking).
     while (nextDiff != null) {
       if (prevDiff.operation == Operation.EQUAL &&
           nextDiff.operation == Operation.EQUAL) {
         // This is a single edit surrounded by equalities.
-        if (thisDiff.text.endsWith(prevDiff.text)) {
-          // Shift the edit over the previous equality.
-          thisDiff.text = prevDiff.text
-              + thisDiff.text.substring(0, thisDiff.text.length()
-                                           - prevDiff.text.length());
-          nextDiff.text = prevDiff.text + nextDiff.text;
-          pointer.previous(); // Walk past nextDiff.
-          pointer.previous(); // Walk past thisDiff.
-          pointer.previous(); // Walk past prevDiff.
-          pointer.remove(); // Delete prevDiff.
-          pointer.next(); // Walk past thisDiff.
-          thisDiff = pointer.next(); // Walk past nextDiff.
-          nextDiff = pointer.hasNext() ? pointer.next() : null;
-          changes = true;
-        } else if (thisDiff.text.startsWith(nextDiff.text)) {
-          // Shift the edit over the next equality.
-          prevDiff.text += nextDiff.text;
-          thisDiff.text = thisDiff.text.substring(nextDiff.text.length())
-              + nextDiff.text;
-          pointer.remove(); // Delete nextDiff.
-          nextDiff = pointer.hasNext() ? pointer.next() : null;
-          changes = true;
+        equality1 = prevDiff.text;
+        edit = thisDiff.text;
+        equality2 = nextDiff.text;
+
+        // First, shift the edit as far left as possible.
+        commonOffset = diff_commonSuffix(equality1, edit);
+        if (commonOffset != 0) {
+          commonString = edit.substring(edit.length() - commonOffset);
+          equality1 = equality1.substring(0, equality1.length() - commonOffset);
+          edit = commonString + edit.substring(0, edit.length() - commonOffset);
+          equality2 = commonString + equality2;
         }
-      }
-      prevDiff = thisDiff;
-      thisDiff = nextDiff;
-      nextDiff = pointer.hasNext() ? pointer.next() : null;
-    }
-    // If shifts were made, the diff needs reordering and another shift sweep.
-    if (changes) {
-      diff_cleanupMerge(diffs);
-    }
-  }
 
-  /**
-   * loc is a location in text1, compute and return the equivalent location in
-   * text2.
-   * e.g. "The cat" vs "The big cat", 1->1, 5->8
-   * @param diffs List of Diff objects.
-   * @param loc Location within text1.
-   * @return Location within text2.
-   */
-  public int diff_xIndex(List<Diff> diffs, int loc) {
-    int chars1 = 0;
-    int chars2 = 0;
-    int last_chars1 = 0;
-    int last_chars2 = 0;
-    Diff lastDiff = null;
-    for (Diff aDiff : diffs) {
-      if (aDiff.operation != Operation.INSERT) {
-        // Equality or deletion.
-        chars1 += aDiff.text.length();
-      }
-      if (aDiff.operation != Operation.DELETE) {
-        // Equality or insertion.
-        chars2 += aDiff.text.length();
-      }
-      if (chars1 > loc) {
-        // Overshot the location.
-        lastDiff = aDiff;
-        break;
+        // Second, step character by character right, looking for the best fit.
+        bestEquality1 = equality1;
+        bestEdit = edit;
+        bestEquality2 = equality2;
+        bestScore = diff_cleanupSemanticScore(equality1, edit)
+            + diff_cleanupSemanticScore(edit, equality2);
+        while (edit.length() != 0 && equality2.length() != 0
+            && edit.charAt(0) == equality2.charAt(0)) {
+          equality1 += edit.charAt(0);
+          edit = edit.substring(1) + equality2.charAt(0);
+          equality2 = equality2.substring(1);
+          score = diff_cleanupSemanticScore(equality1, edit)
+              + diff_cleanupSemanticScore(edit, equality2);
+          // The >= encourages trailing rather than leading whitespace on edits.
+          if (score >= bestScore) {
+            bestScore = score;
+            bestEquality1 = equality1;
+            bestEdit = edit;
+            bestEquality2 = equality2;
+          }
+        }
+
+        if (!prevDiff.text.equals(bestEquality1)) {
+          // We have an improvement, save it back to the diff.
+          if (bestEquality1.length() != 0) {
+            prevDiff.text = bestEquality1;
+          } else {
+            pointer.previous(); // Walk past nextDiff.
+            pointer.previous(); // Walk past thisDiff.
+            pointer.previous(); // Walk past prevDiff.
+            pointer.remove(); // Delete prevDiff.
+            pointer.next(); // Walk past thisDiff.
+            pointer.next(); // Walk past nextDiff.
+          }
+          thisDiff.text = bestEdit;
+          if (bestEquality2.length() != 0) {
+            nextDiff.text = bestEquality2;
+          } else {
+            pointer.remove(); // Delete nextDiff.
+            nextDiff = thisDiff;
+            thisDiff = prevDiff;
+          }
+        }
       }
-      last_chars1 = chars1;
-      last_chars2 = chars2;
-    }
-    if (lastDiff != null && lastDiff.operation == Operation.DELETE) {
-      // The location was deleted.
-      return last_chars2;
+      prevDiff = thisDiff;
+      thisDiff = nextDiff;
+      nextDiff = pointer.hasNext() ? pointer.next() : null;
     }
-    // Add the remaining character length.
-    return last_chars2 + (loc - last_chars1);
   }
 
   /**
-   * Convert a Diff list into a pretty HTML report.
-   * @param diffs List of Diff objects.
-   * @return HTML representation.
+   * Given two strings, compute a score representing whether the internal
+   * boundary falls on logical boundaries.
+   * Scores range from 6 (best) to 0 (worst).
+   * @param one First string.
+   * @param two Second string.
+   * @return The score.
    */
-  public String diff_prettyHtml(List<Diff> diffs) {
-    StringBuilder html = new StringBuilder();
-    for (Diff aDiff : diffs) {
-      String text = aDiff.text.replace("&", "&amp;").replace("<", "&lt;")
-          .replace(">", "&gt;").replace("\n", "&para;<br>");
-      switch (aDiff.operation) {
-      case INSERT:
-        html.append("<ins style=\"background:#e6ffe6;\">").append(text)
-            .append("</ins>");
-        break;
-      case DELETE:
-        html.append("<del style=\"background:#ffe6e6;\">").append(text)
-            .append("</del>");
-        break;
-      case EQUAL:
-        html.append("<span>").append(text).append("</span>");
-        break;
-      }
-    }
-    return html.toString();
+  private int diff_cleanupSemanticScore(String one, String two) {
+    return semanticScore(one, 0, one.length(), two, 0, two.length());
   }
 
   /**
-   * Compute and return the source text (all equalities and deletions).
-   * @param diffs List of Diff objects.
-   * @return Source text.
+   * Score of the boundary between one = text1[start1, end1) and
+   * two = text2[start2, end2), as computed by diff_cleanupSemanticScore.
+   * The blank line tests scan the characters at the boundary directly.
+   * @param text1 Text holding the first string.
+   * @param start1 Start of the first string.
+   * @param end1 End of the first string.
+   * @param text2 Text holding the second string.
+   * @param start2 Start of the second string.
+   * @param end2 End of the second string.
+   * @return The score.
    */
-  public String diff_text1(List<Diff> diffs) {
-    StringBuilder text = new StringBuilder();
-    for (Diff aDiff : diffs) {
-      if (aDiff.operation != Operation.INSERT) {
-        text.append(aDiff.text);
-      }
+  private static int semanticScore(CharSequence text1, int start1, int end1,
+                                   CharSequence text2, int start2, int end2) {
+    if (start1 == end1 || start2 == end2) {
+      // Edges are the best.
+      return 6;
     }
-    return text.toString();
+
+    // Each port of this function behaves slightly differently due to
+    // subtle differences in each language's definition of things like
+    // 'whitespace'.  Since this function's purpose is largely cosmetic,
+    // the choice has been made to use each language's native features
+    // rather than force total conformity.
+    char char1 = text1.charAt(end1 - 1);
+    char char2 = text2.charAt(start2);
+    boolean nonAlphaNumeric1 = !Character.isLetterOrDigit(char1);
+    boolean nonAlphaNumeric2 = !Character.isLetterOrDigit(char2);
+    boolean whitespace1 = nonAlphaNumeric1 && Character.isWhitespace(char1);
+    boolean whitespace2 = nonAlphaNumeric2 && Character.isWhitespace(char2);
+    boolean lineBreak1 = whitespace1
+        && Character.getType(char1) == Character.CONTROL;
+    boolean lineBreak2 = whitespace2
+        && Character.getType(char2) == Character.CONTROL;
+    boolean blankLine1 = lineBreak1 && endsWithBlankLine(text1, start1, end1);
+    boolean blankLine2 = lineBreak2 && startsWithBlankLine(text2, start2, end2);
+
+    if (blankLine1 || blankLine2) {
+      // Five points for blank lines.
+      return 5;
+    } else if (lineBreak1 || lineBreak2) {
+      // Four points for line breaks.
+      return 4;
+    } else if (nonAlphaNumeric1 && !whitespace1 && whitespace2) {
+      // Three points for end of sentences.
+      return 3;
+    } else if (whitespace1 || whitespace2) {
+      // Two points for whitespace.
+      return 2;
+    } else if (nonAlphaNumeric1 || nonAlphaNumeric2) {
+      // One point for non-alphanumeric.
+      return 1;
+    }
+    return 0;
   }
 
   /**
-   * Compute and return the destination text (all equalities and insertions).
-   * @param diffs List of Diff objects.
-   * @return Destination text.
+   * Does text[start, end) match the regular expression \n\r?\n\Z?  Like
+   * \Z, this allows one final line terminator after the blank line.
    */
-  public String diff_text2(List<Diff> diffs) {
-    StringBuilder text = new StringBuilder();
-    for (Diff aDiff : diffs) {
-      if (aDiff.operation != Operation.DELETE) {
-        text.append(aDiff.text);
-      }
+  private static boolean endsWithBlankLine(CharSequence text, int start,
+                                           int end) {
+    if (endsWithLineBreaks(text, start, end)) {
+      return true;
     }
-    return text.toString();
+    char last = text.charAt(end - 1);
+    if (last == '\n' && end - start >= 2 && text.charAt(end - 2) == '\r') {
+      // A final \r\n.
+      return endsWithLineBreaks(text, start, end - 2);
+    }
+    if (last == '\n' || last == '\r' || last == '\u0085'
+        || last == '\u2028' || last == '\u2029') {
+      return endsWithLineBreaks(text, start, end - 1);
+    }
+    return false;
   }
 
-  /**
-   * Compute the Levenshtein distance; the number of inserted, deleted or
-   * substituted characters.
-   * @param diffs List of Diff objects.
-   * @return Number of changes.
-   */
-  public int diff_levenshtein(List<Diff> diffs) {
-    int levenshtein = 0;
-    int insertions = 0;
-    int deletions = 0;
-    for (Diff aDiff : diffs) {
-      switch (aDiff.operation) {
-      case INSERT:
-        insertions += aDiff.text.length();
-        break;
-      case DELETE:
-        deletions += aDiff.text.length();
-        break;
-      case EQUAL:
-        // A deletion and an insertion is one substitution.
-        levenshtein += Math.max(insertions, deletions);
-        insertions = 0;
-        deletions = 0;
-        break;
-      }
+  // Does text[start, end) end with \n\n or \n\r\n?
+  private static boolean endsWithLineBreaks(CharSequence text, int start,
+                                            int end) {
+    if (end - start < 2 || text.charAt(end - 1) != '\n') {
+      return false;
     }
-    levenshtein += Math.max(insertions, deletions);
-    return levenshtein;
+    char before = text.charAt(end - 2);
+    return before == '\n' || (before == '\r' && end - start >= 3
+                              && text.charAt(end - 3) == '\n');
   }
 
   /**
-   * Crush the diff into an encoded string which describes the operations
-   * required to transform text1 into text2.
-   * E.g. =3\t-2\t+ing  -> Keep 3 chars, delete 2 chars, insert 'ing'.
-   * Operations are tab-separated.  Inserted text is escaped using %xx notation.
-   * @param diffs List of Diff objects.
-   * @return Delta text.
+   * Does text[start, end) match the regular expression \A\r?\n\r?\n?
    */
-  public String diff_toDelta(List<Diff> diffs) {
-    StringBuilder text = new StringBuilder();
-    for (Diff aDiff : diffs) {
-      switch (aDiff.operation) {
-      case INSERT:
-        try {
-          text.append("+").append(URLEncoder.encode(aDiff.text, "UTF-8")
-                                            .replace('+', ' ')).append("\t");
-        } catch (UnsupportedEncodingException e) {
-          // Not likely on modern system.
-          throw new Error("This system does not support UTF-8.", e);
-        }
-        break;
-      case DELETE:
-        text.append("-").append(aDiff.text.length()).append("\t");
-        break;
-      case EQUAL:
-        text.append("=").append(aDiff.text.length()).append("\t");
-        break;
+  private static boolean startsWithBlankLine(CharSequence text, int start,
+                                             int end) {
+    int i = start;
+    for (int line = 0; line < 2; line++) {
+      if (i < end && text.charAt(i) == '\r') {
+        i++;
       }
+      if (i == end || text.charAt(i) != '\n') {
+        return false;
+      }
+      i++;
     }
-    String delta = text.toString();
-    if (delta.length() != 0) {
-      // Strip off trailing tab character.
-      delta = delta.substring(0, delta.length() - 1);
-      delta = unescapeForEncodeUriCompatability(delta);
-    }
-    return delta;
+    return true;
   }
 
   /**
-   * Given the original text1, and an encoded string which describes the
-   * operations required to transform text1 into text2, compute the full diff.
-   * @param text1 Source string for the diff.
-   * @param delta Delta text.
-   * @return Array of Diff objects or null if invalid.
-   * @throws IllegalArgumentException If invalid input.
+   * Reduce the number of edits by eliminating operationally trivial equalities.
+   * @param diffs LinkedList of Diff objects.
    */
-  public LinkedList<Diff> diff_fromDelta(String text1, String delta)
-      throws IllegalArgumentException {
-    LinkedList<Diff> diffs = new LinkedList<Diff>();
-    int pointer = 0;  // Cursor in text1
-    String[] tokens = delta.split("\t");
-    for (String token : tokens) {
-      if (token.length() == 0) {
-        // Blank tokens are ok (from a trailing \t).
-        continue;
-      }
-      // Each token begins with a one character parameter which specifies the
-      // operation of this token (delete, insert, equality).
-      String param = token.substring(1);
-      switch (token.charAt(0)) {
-      case '+':
-        // decode would change all "+" to " "
-        param = param.replace("+", "%2B");
-        try {
-          param = URLDecoder.decode(param, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-          // Not likely on modern system.
-          throw new Error("This system does not support UTF-8.", e);
-        } catch (IllegalArgumentException e) {
-          // Malformed URI sequence.
-          throw new IllegalArgumentException(
-              "Illegal escape in diff_fromDelta: " + param, e);
-        }
-        diffs.add(new Diff(Operation.INSERT, param));
-        break;
-      case '-':
-        // Fall through.
-      case '=':
-        int n;
-        try {
+  public void diff_cleanupEfficiency(LinkedList<Diff> diffs) {
+    if (diffs.isEmpty()) {
+      return;
+    }
+    boolean changes = false;
+    Deque<Diff> equalities = new ArrayDeque<Diff>();  // Double-ended queue of equalities.
+    String lastEquality = null; // Always equal to equalities.peek().text
+    ListIterator<Diff> pointer = diffs.listIterator();
+    // Is there an insertion operation before the last equality.
+    boolean pre_ins = false;
+    // Is there a deletion operation before the last equality.
+    boolean pre_del = false;
+    // Is there an insertion operation after the last equality.
+    boolean post_ins = false;
+    // Is there a deletion operation after the last equality.
+    boolean post_del = false;
+    Diff thisDiff = pointer.next();
+    Diff safeDiff = thisDiff;  // The last Diff that is known to be unsplittable.
+    while (thisDiff != null) {
+      if (thisDiff.operation == Operation.EQUAL) {
+        // Equality found.
+        if (thisDiff.text.length() < Diff_EditCost && (post_ins || post_del)) {
+          // Candidate found.
+          equalities.push(thisDiff);
+          pre_ins = post_ins;
+          pre_del = post_del;
+          lastEquality = thisDiff.text;
+        } else {
+          // Not a candidate, and can never become one.
+          equalities.clear();
+          lastEquality = null;
+          safeDiff = thisDiff;
+        }
+        post_ins = post_del = false;
+      } else {
+        // An insertion or deletion.
+        if (thisDiff.operation == Operation.DELETE) {
+          post_del = true;
+        } else {
+          post_ins = true;
+        }
+        /*
+         * Five types to be split:
+         * <ins>A</ins><del>B</del>XY<ins>C</ins><del>D</del>
+         * <ins>A</ins>X<ins>C</ins><del>D</del>
+         * <ins>A</ins><del>B</del>X<ins>C</ins>
+         * <ins>A</del>X<ins>C</ins><del>D</del>
+         * <ins>A</ins><del>B</del>X<del>C</del>
+         */
+        if (lastEquality != null
+            && ((pre_ins && pre_del && post_ins && post_del)
+                || ((lastEquality.length() < Diff_EditCost / 2)
+                    && ((pre_ins ? 1 : 0) + (pre_del ? 1 : 0)
+                        + (post_ins ? 1 : 0) + (post_del ? 1 : 0)) == 3))) {
+          //System.out.println("Splitting: '" + lastEquality + "'");
+          // Walk back to offending equality.
+          while (thisDiff != equalities.peek()) {
+            thisDiff = pointer.previous();
+          }
+          pointer.next();
+
+          // Replace equality with a delete.
+          pointer.set(new Diff(Operation.DELETE, lastEquality));
+          // Insert a corresponding an insert.
+          pointer.add(thisDiff = new Diff(Operation.INSERT, lastEquality));
+
+          equalities.pop();  // Throw away the equality we just deleted.
+          lastEquality = null;
+          if (pre_ins && pre_del) {
+            // No changes made which could affect previous entry, keep going.
+            post_ins = post_del = true;
+            equalities.clear();
+            safeDiff = thisDiff;
+          } else {
+            if (!equalities.isEmpty()) {
+              // Throw away the previous equality (it needs to be reevaluated).
+              equalities.pop();
+            }
+            if (equalities.isEmpty()) {
+              // There are no previous questionable equalities,
+              // walk back to the last known safe diff.
+              thisDiff = safeDiff;
+            } else {
+              // There is an equality we can fall back to.
+              thisDiff = equalities.peek();
+            }
+            while (thisDiff != pointer.previous()) {
+              // Intentionally empty loop.
+            }
+            post_ins = post_del = false;
+          }
+
+          changes = true;
+        }
+      }
+      thisDiff = pointer.hasNext() ? pointer.next() : null;
+    }
+
+    if (changes) {
+      diff_cleanupMerge(diffs);
+    }
+  }
+
+  /**
+   * Reorder and merge like edit sections.  Merge equalities.
+   * Any edit section can move as long as it doesn't cross an equality.
+   * @param diffs LinkedList of Diff objects.
+   */
+  public void diff_cleanupMerge(LinkedList<Diff> diffs) {
+    diffs.add(new Diff(Operation.EQUAL, ""));  // Add a dummy entry at the end.
+    ListIterator<Diff> pointer = diffs.listIterator();
+    int count_delete = 0;
+    int count_insert = 0;
+    String text_delete = "";
+    String text_insert = "";
+    Diff thisDiff = pointer.next();
+    Diff prevEqual = null;
+    int commonlength;
+    while (thisDiff != null) {
+      switch (thisDiff.operation) {
+      case INSERT:
+        count_insert++;
+        text_insert += thisDiff.text;
+        prevEqual = null;
+        break;
+      case DELETE:
+        count_delete++;
+        text_delete += thisDiff.text;
+        prevEqual = null;
+        break;
+      case EQUAL:
+        if (count_delete + count_insert > 1) {
+          boolean both_types = count_delete != 0 && count_insert != 0;
+          // Delete the offending records.
+          pointer.previous();  // Reverse direction.
+          while (count_delete-- > 0) {
+            pointer.previous();
+            pointer.remove();
+          }
+          while (count_insert-- > 0) {
+            pointer.previous();
+            pointer.remove();
+          }
+          if (both_types) {
+            // Factor out any common prefixies.
+            commonlength = diff_commonPrefix(text_insert, text_delete);
+            if (commonlength != 0) {
+              if (pointer.hasPrevious()) {
+                thisDiff = pointer.previous();
+                assert thisDiff.operation == Operation.EQUAL
+                       : "Previous diff should have been an equality.";
+                thisDiff.text += text_insert.substring(0, commonlength);
+                pointer.next();
+              } else {
+                pointer.add(new Diff(Operation.EQUAL,
+                    text_insert.substring(0, commonlength)));
+              }
+              text_insert = text_insert.substring(commonlength);
+              text_delete = text_delete.substring(commonlength);
+            }
+            // Factor out any common suffixies.
+            commonlength = diff_commonSuffix(text_insert, text_delete);
+            if (commonlength != 0) {
+              thisDiff = pointer.next();
+              thisDiff.text = text_insert.substring(text_insert.length()
+                  - commonlength) + thisDiff.text;
+              text_insert = text_insert.substring(0, text_insert.length()
+                  - commonlength);
+              text_delete = text_delete.substring(0, text_delete.length()
+                  - commonlength);
+              pointer.previous();
+            }
+          }
+          // Insert the merged records.
+          if (text_delete.length() != 0) {
+            pointer.add(new Diff(Operation.DELETE, text_delete));
+          }
+          if (text_insert.length() != 0) {
+            pointer.add(new Diff(Operation.INSERT, text_insert));
+          }
+          // Step forward to the equality.
+          thisDiff = pointer.hasNext() ? pointer.next() : null;
+        } else if (prevEqual != null) {
+          // Merge this equality with the previous one.
+          prevEqual.text += thisDiff.text;
+          pointer.remove();
+          thisDiff = pointer.previous();
+          pointer.next();  // Forward direction
+        }
+        count_insert = 0;
+        count_delete = 0;
+        text_delete = "";
+        text_insert = "";
+        prevEqual = thisDiff;
+        break;
+      }
+      thisDiff = pointer.hasNext() ? pointer.next() : null;
+    }
+    if (diffs.getLast().text.length() == 0) {
+      diffs.removeLast();  // Remove the dummy entry at the end.
+    }
+
+    /*
+     * Second pass: look for single edits surrounded on both sides by equalities
+     * which can be shifted sideways to eliminate an equality.
+     * e.g: A<ins>BA</ins>C -> <ins>AB</ins>AC
+     */
+    boolean changes = false;
+    // Create a new iterator at the start.
+    // (As opposed to walking the current one back.)
+    pointer = diffs.listIterator();
+    Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
+    thisDiff = pointer.hasNext() ? pointer.next() : null;
+    Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
+    // Intentionally ignore the first and last element (don't need checking).
+    while (nextDiff != null) {
+      if (prevDiff.operation == Operation.EQUAL &&
+          nextDiff.operation == Operation.EQUAL) {
+        // This is a single edit surrounded by equalities.
+        if (thisDiff.text.endsWith(prevDiff.text)) {
+          // Shift the edit over the previous equality.
+          thisDiff.text = prevDiff.text
+              + thisDiff.text.substring(0, thisDiff.text.length()
+                                           - prevDiff.text.length());
+          nextDiff.text = prevDiff.text + nextDiff.text;
+          pointer.previous(); // Walk past nextDiff.
+          pointer.previous(); // Walk past thisDiff.
+          pointer.previous(); // Walk past prevDiff.
+          pointer.remove(); // Delete prevDiff.
+          pointer.next(); // Walk past thisDiff.
+          thisDiff = pointer.next(); // Walk past nextDiff.
+          nextDiff = pointer.hasNext() ? pointer.next() : null;
+          changes = true;
+        } else if (thisDiff.text.startsWith(nextDiff.text)) {
+          // Shift the edit over the next equality.
+          prevDiff.text += nextDiff.text;
+          thisDiff.text = thisDiff.text.substring(nextDiff.text.length())
+              + nextDiff.text;
+          pointer.remove(); // Delete nextDiff.
+          nextDiff = pointer.hasNext() ? pointer.next() : null;
+          changes = true;
+        }
+      }
+      prevDiff = thisDiff;
+      thisDiff = nextDiff;
+      nextDiff = pointer.hasNext() ? pointer.next() : null;
+    }
+    // If shifts were made, the diff needs reordering and another shift sweep.
+    if (changes) {
+      diff_cleanupMerge(diffs);
+    }
+  }
+
+  /**
+   * Reorder and merge like edit sections.  Merge equalities.
+   * Any edit section can move as long as it doesn't cross an equality.
+   * Same result as diff_cleanupMerge(LinkedList), computed over the arrays of
+   * a CompactDiff without creating any intermediate strings.
+   * @param diffs CompactDiff to clean up in place.
+   */
+  public void diff_cleanupMerge(CompactDiff diffs) {
+    diffs.cleanupMerge(0);
+  }
+
+  /**
+   * Reduce the number of edits by eliminating semantically trivial equalities.
+   * Same result as diff_cleanupSemantic(LinkedList), computed over the arrays
+   * of a CompactDiff without creating any intermediate strings.
+   * @param diffs CompactDiff to clean up in place.
+   */
+  public void diff_cleanupSemantic(CompactDiff diffs) {
+    diffs.cleanupSemantic();
+  }
+
+  /**
+   * Reduce the number of edits by eliminating semantically trivial equalities
+   * of a TokenDiff: each equality no longer, in tokens, than the edits on
+   * both sides of it becomes part of them.  The edits are not shifted or
+   * split inside tokens, so they keep to token boundaries; the boundary
+   * shifting and overlap extraction of the character version are skipped.
+   * @param diffs TokenDiff to clean up in place.
+   */
+  public void diff_cleanupSemantic(TokenDiff diffs) {
+    diffs.cleanupSemantic();
+  }
+
+  /**
+   * Look for single edits surrounded on both sides by equalities
+   * which can be shifted sideways to align the edit to a word boundary.
+   * Same result as diff_cleanupSemanticLossless(LinkedList), computed over
+   * the arrays of a CompactDiff.
+   * @param diffs CompactDiff to clean up in place.
+   */
+  public void diff_cleanupSemanticLossless(CompactDiff diffs) {
+    diffs.cleanupSemanticLossless();
+  }
+
+  /**
+   * Reduce the number of edits by eliminating operationally trivial
+   * equalities.  Same result as diff_cleanupEfficiency(LinkedList), computed
+   * over the arrays of a CompactDiff.
+   * @param diffs CompactDiff to clean up in place.
+   */
+  public void diff_cleanupEfficiency(CompactDiff diffs) {
+    diffs.cleanupEfficiency(Diff_EditCost);
+  }
+
+  /**
+   * loc is a location in text1, compute and return the equivalent location in
+   * text2.
+   * e.g. "The cat" vs "The big cat", 1->1, 5->8
+   * This walks the diffs; to translate many locations, build a LocationMap.
+   * @param diffs List of Diff objects.
+   * @param loc Location within text1.
+   * @return Location within text2.
+   */
+  public int diff_xIndex(List<Diff> diffs, int loc) {
+    int chars1 = 0;
+    int chars2 = 0;
+    int last_chars1 = 0;
+    int last_chars2 = 0;
+    Diff lastDiff = null;
+    for (Diff aDiff : diffs) {
+      if (aDiff.operation != Operation.INSERT) {
+        // Equality or deletion.
+        chars1 += aDiff.text.length();
+      }
+      if (aDiff.operation != Operation.DELETE) {
+        // Equality or insertion.
+        chars2 += aDiff.text.length();
+      }
+      if (chars1 > loc) {
+        // Overshot the location.
+        lastDiff = aDiff;
+        break;
+      }
+      last_chars1 = chars1;
+      last_chars2 = chars2;
+    }
+    if (lastDiff != null && lastDiff.operation == Operation.DELETE) {
+      // The location was deleted.
+      return last_chars2;
+    }
+    // Add the remaining character length.
+    return last_chars2 + (loc - last_chars1);
+  }
+
+  /**
+   * Convert a Diff list into a pretty HTML report.
+   * @param diffs List of Diff objects.
+   * @return HTML representation.
+   */
+  public String diff_prettyHtml(List<Diff> diffs) {
+    StringBuilder html = new StringBuilder();
+    for (Diff aDiff : diffs) {
+      String text = aDiff.text.replace("&", "&amp;").replace("<", "&lt;")
+          .replace(">", "&gt;").replace("\n", "&para;<br>");
+      switch (aDiff.operation) {
+      case INSERT:
+        html.append("<ins style=\"background:#e6ffe6;\">").append(text)
+            .append("</ins>");
+        break;
+      case DELETE:
+        html.append("<del style=\"background:#ffe6e6;\">").append(text)
+            .append("</del>");
+        break;
+      case EQUAL:
+        html.append("<span>").append(text).append("</span>");
+        break;
+      }
+    }
+    return html.toString();
+  }
+
+  /**
+   * Compute and return the source text (all equalities and deletions).
+   * @param diffs List of Diff objects.
+   * @return Source text.
+   */
+  public String diff_text1(List<Diff> diffs) {
+    StringBuilder text = new StringBuilder();
+    for (Diff aDiff : diffs) {
+      if (aDiff.operation != Operation.INSERT) {
+        text.append(aDiff.text);
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * Compute and return the destination text (all equalities and insertions).
+   * @param diffs List of Diff objects.
+   * @return Destination text.
+   */
+  public String diff_text2(List<Diff> diffs) {
+    StringBuilder text = new StringBuilder();
+    for (Diff aDiff : diffs) {
+      if (aDiff.operation != Operation.DELETE) {
+        text.append(aDiff.text);
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * Compute the Levenshtein distance; the number of inserted, deleted or
+   * substituted characters.
+   * @param diffs List of Diff objects.
+   * @return Number of changes.
+   */
+  public int diff_levenshtein(List<Diff> diffs) {
+    int levenshtein = 0;
+    int insertions = 0;
+    int deletions = 0;
+    for (Diff aDiff : diffs) {
+      switch (aDiff.operation) {
+      case INSERT:
+        insertions += aDiff.text.length();
+        break;
+      case DELETE:
+        deletions += aDiff.text.length();
+        break;
+      case EQUAL:
+        // A deletion and an insertion is one substitution.
+        levenshtein += Math.max(insertions, deletions);
+        insertions = 0;
+        deletions = 0;
+        break;
+      }
+    }
+    levenshtein += Math.max(insertions, deletions);
+    return levenshtein;
+  }
+
+  /**
+   * Crush the diff into an encoded string which describes the operations
+   * required to transform text1 into text2.
+   * E.g. =3\t-2\t+ing  -> Keep 3 chars, delete 2 chars, insert 'ing'.
+   * Operations are tab-separated.  Inserted text is escaped using %xx notation.
+   * @param diffs List of Diff objects.
+   * @return Delta text.
+   */
+  public String diff_toDelta(List<Diff> diffs) {
+    StringBuilder text = new StringBuilder();
+    for (Diff aDiff : diffs) {
+      switch (aDiff.operation) {
+      case INSERT:
+        try {
+          text.append("+").append(URLEncoder.encode(aDiff.text, "UTF-8")
+                                            .replace('+', ' ')).append("\t");
+        } catch (UnsupportedEncodingException e) {
+          // Not likely on modern system.
+          throw new Error("This system does not support UTF-8.", e);
+        }
+        break;
+      case DELETE:
+        text.append("-").append(aDiff.text.length()).append("\t");
+        break;
+      case EQUAL:
+        text.append("=").append(aDiff.text.length()).append("\t");
+        break;
+      }
+    }
+    String delta = text.toString();
+    if (delta.length() != 0) {
+      // Strip off trailing tab character.
+      delta = delta.substring(0, delta.length() - 1);
+      delta = unescapeForEncodeUriCompatability(delta);
+    }
+    return delta;
+  }
+
+  /**
+   * Given the original text1, and an encoded string which describes the
+   * operations required to transform text1 into text2, compute the full diff.
+   * @param text1 Source string for the diff.
+   * @param delta Delta text.
+   * @return Array of Diff objects or null if invalid.
+   * @throws IllegalArgumentException If invalid input.
+   */
+  public LinkedList<Diff> diff_fromDelta(String text1, String delta)
+      throws IllegalArgumentException {
+    LinkedList<Diff> diffs = new LinkedList<Diff>();
+    int pointer = 0;  // Cursor in text1
+    String[] tokens = delta.split("\t");
+    for (String token : tokens) {
+      if (token.length() == 0) {
+        // Blank tokens are ok (from a trailing \t).
+        continue;
+      }
+      // Each token begins with a one character parameter which specifies the
+      // operation of this token (delete, insert, equality).
+      String param = token.substring(1);
+      switch (token.charAt(0)) {
+      case '+':
+        // decode would change all "+" to " "
+        param = param.replace("+", "%2B");
+        try {
+          param = URLDecoder.decode(param, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+          // Not likely on modern system.
+          throw new Error("This system does not support UTF-8.", e);
+        } catch (IllegalArgumentException e) {
+          // Malformed URI sequence.
+          throw new IllegalArgumentException(
+              "Illegal escape in diff_fromDelta: " + param, e);
+        }
+        diffs.add(new Diff(Operation.INSERT, param));
+        break;
+      case '-':
+        // Fall through.
+      case '=':
+        int n;
+        try {
           n = Integer.parseInt(param);
         } catch (NumberFormatException e) {
           throw new IllegalArgumentException(
               "Invalid number in diff_fromDelta: " + param, e);
         }
-        if (n < 0) {
-          throw new IllegalArgumentException(
-              "Negative number in diff_fromDelta: " + param);
+        if (n < 0) {
+          throw new IllegalArgumentException(
+              "Negative number in diff_fromDelta: " + param);
+        }
+        String text;
+        try {
+          text = text1.substring(pointer, pointer += n);
+        } catch (StringIndexOutOfBoundsException e) {
+          throw new IllegalArgumentException("Delta length (" + pointer
+              + ") larger than source text length (" + text1.length()
+              + ").", e);
+        }
+        if (token.charAt(0) == '=') {
+          diffs.add(new Diff(Operation.EQUAL, text));
+        } else {
+          diffs.add(new Diff(Operation.DELETE, text));
+        }
+        break;
+      default:
+        // Anything else is an error.
+        throw new IllegalArgumentException(
+            "Invalid diff operation in diff_fromDelta: " + token.charAt(0));
+      }
+    }
+    if (pointer != text1.length()) {
+      throw new IllegalArgumentException("Delta length (" + pointer
+          + ") smaller than source text length (" + text1.length() + ").");
+    }
+    return diffs;
+  }
+
+  /**
+   * Write the diff in a compact binary form of the information in
+   * diff_toDelta: a version header, then each operation and its length as
+   * a varint, with inserted text as UTF-8.  The binary form is read back
+   * by diff_fromBinaryDelta; the text form remains for compatibility.
+   * @param diffs List of Diff objects.
+   * @param out Output to write to.
+   * @param deflate Whether to compress the encoded diff.
+   * @throws IOException If out fails.
+   */
+  public void diff_toBinaryDelta(List<Diff> diffs, DataOutput out,
+                                 boolean deflate) throws IOException {
+    BinaryBuffer body = new BinaryBuffer();
+    body.writeVarint(diffs.size());
+    for (Diff aDiff : diffs) {
+      if (aDiff.operation == Operation.INSERT) {
+        body.writeText(aDiff.operation, aDiff.text);
+      } else {
+        body.writeEntry(aDiff.operation, aDiff.text.length());
+      }
+    }
+    body.writeTo(out, BINARY_DELTA, deflate);
+  }
+
+  /**
+   * Given the original text1, and a diff written by diff_toBinaryDelta,
+   * compute the full diff.
+   * @param text1 Source string for the diff.
+   * @param in Input to read from.
+   * @return Array of Diff objects.
+   * @throws IOException If in fails or ends early.
+   * @throws IllegalArgumentException If invalid input.
+   */
+  public LinkedList<Diff> diff_fromBinaryDelta(String text1, DataInput in)
+      throws IOException, IllegalArgumentException {
+    BinaryBuffer body = BinaryBuffer.readFrom(in, BINARY_DELTA);
+    LinkedList<Diff> diffs = new LinkedList<Diff>();
+    int pointer = 0;  // Cursor in text1
+    for (int count = body.readCount(); count > 0; count--) {
+      long entry = body.readVarint();
+      Operation operation = BinaryBuffer.operation(entry);
+      if (operation == Operation.INSERT) {
+        diffs.add(new Diff(operation, body.readText(entry)));
+        continue;
+      }
+      long n = entry >>> 2;
+      if (n > text1.length() - pointer) {
+        throw new IllegalArgumentException("Delta length (" + (pointer + n)
+            + ") larger than source text length (" + text1.length() + ").");
+      }
+      diffs.add(new Diff(operation, text1.substring(pointer, pointer += n)));
+    }
+    if (pointer != text1.length()) {
+      throw new IllegalArgumentException("Delta length (" + pointer
+          + ") smaller than source text length (" + text1.length() + ").");
+    }
+    body.checkEnd();
+    return diffs;
+  }
+
+
+  //  MATCH FUNCTIONS
+
+
+  /**
+   * Locate the best instance of 'pattern' in 'text' near 'loc'.
+   * Returns -1 if no match found.
+   * @param text The text to search.
+   * @param pattern The pattern to search for.
+   * @param loc The location to search around.
+   * @return Best match index or -1.
+   */
+  public int match_main(String text, String pattern, int loc) {
+    return match_main(text, pattern, loc, null);
+  }
+
+  /**
+   * Locate the best instance of 'pattern' in 'text' near 'loc', looking up
+   * exact occurrences in a q-gram index of the text instead of scanning it.
+   * @param text The text to search.
+   * @param pattern The pattern to search for.
+   * @param loc The location to search around.
+   * @param index Index of text, or null to scan the text.
+   * @return Best match index or -1.
+   */
+  private int match_main(CharSequence text, String pattern, int loc,
+                         QGramIndex index) {
+    // Check for null inputs.
+    if (text == null || pattern == null) {
+      throw new IllegalArgumentException("Null inputs. (match_main)");
+    }
+
+    loc = Math.max(0, Math.min(loc, text.length()));
+    if (text.length() == pattern.length()
+        && regionMatches(text, 0, text.length(), pattern)) {
+      // Shortcut (potentially not guaranteed by the algorithm)
+      return 0;
+    } else if (text.length() == 0) {
+      // Nothing to match.
+      return -1;
+    } else if (regionMatches(text, loc, text.length(), pattern)) {
+      // Perfect match at the perfect spot!  (Includes case of null pattern)
+      return loc;
+    } else {
+      // Do a fuzzy compare.
+      return match_bitap(text, pattern, loc, index);
+    }
+  }
+
+  /**
+   * Locate the best instance of 'pattern' in 'text' near 'loc' using the
+   * Bitap algorithm.  Returns -1 if no match found.
+   * Patterns of up to 64 characters keep each bit mask in a long; longer
+   * ones in several longs, so there is no limit on the pattern length.
+   * @param text The text to search.
+   * @param pattern The pattern to search for.
+   * @param loc The location to search around.
+   * @return Best match index or -1.
+   */
+  protected int match_bitap(String text, String pattern, int loc) {
+    return match_bitap(text, pattern, loc, null);
+  }
+
+  private int match_bitap(CharSequence text, String pattern, int loc,
+                          QGramIndex index) {
+    if (pattern.length() <= Long.SIZE) {
+      return match_bitapLong(text, pattern, loc, index);
+    }
+    return match_bitapWords(text, pattern, loc, index);
+  }
+
+  /**
+   * Bitap with the bit masks in one long, for patterns of up to 64
+   * characters.
+   * @param text The text to search.
+   * @param pattern The pattern to search for.
+   * @param loc The location to search around.
+   * @param index Index of text, or null to scan the text.
+   * @return Best match index or -1.
+   */
+  private int match_bitapLong(CharSequence text, String pattern, int loc,
+                              QGramIndex index) {
+    // Initialise the alphabet.
+    BitapAlphabet s = new BitapAlphabet(pattern);
+    long[] masks = s.masks;
+
+    // Highest score beyond which we give up.
+    double score_threshold = match_bitapThreshold(text, pattern, loc, index);
+
+    // Initialise the bit arrays.
+    long matchmask = 1L << (pattern.length() - 1);
+    int best_loc = -1;
+
+    int bin_min, bin_mid;
+    int bin_max = pattern.length() + text.length();
+    // Row j of rd is rd[j - rd_base], as in match_bitapWords.
+    long[] last_rd = new long[0];
+    int last_base = 0;
+    for (int d = 0; d < pattern.length(); d++) {
+      // Scan for the best match; each iteration allows for one more error.
+      // Run a binary search to determine how far from 'loc' we can stray at
+      // this error level.
+      bin_min = 0;
+      bin_mid = bin_max;
+      while (bin_min < bin_mid) {
+        if (match_bitapScore(d, loc + bin_mid, loc, pattern)
+            <= score_threshold) {
+          bin_min = bin_mid;
+        } else {
+          bin_max = bin_mid;
+        }
+        bin_mid = (bin_max - bin_min) / 2 + bin_min;
+      }
+      // Use the result from this iteration as the maximum for the next.
+      bin_max = bin_mid;
+      int start = Math.max(1, loc - bin_mid + 1);
+      int finish = Math.min(loc + bin_mid, text.length()) + pattern.length();
+
+      int rd_base = start - 1;
+      long[] rd = new long[finish + 2 - rd_base];
+      rd[finish + 1 - rd_base] = (1L << d) - 1;
+      for (int j = finish; j >= start; j--) {
+        long charMatch;
+        int row;
+        if (text.length() <= j - 1 || (row = s.row(text.charAt(j - 1))) < 0) {
+          // Out of range.
+          charMatch = 0;
+        } else {
+          charMatch = masks[row];
+        }
+        int cur = j - rd_base;
+        int last_cur = j - last_base;
+        if (d == 0) {
+          // First pass: exact match.
+          rd[cur] = ((rd[cur + 1] << 1) | 1) & charMatch;
+        } else {
+          // Subsequent passes: fuzzy match.
+          rd[cur] = (((rd[cur + 1] << 1) | 1) & charMatch)
+              | (((last_rd[last_cur + 1] | last_rd[last_cur]) << 1) | 1)
+              | last_rd[last_cur + 1];
+        }
+        if ((rd[cur] & matchmask) != 0) {
+          double score = match_bitapScore(d, j - 1, loc, pattern);
+          // This match will almost certainly be better than any existing
+          // match.  But check anyway.
+          if (score <= score_threshold) {
+            // Told you so.
+            score_threshold = score;
+            best_loc = j - 1;
+            if (best_loc > loc) {
+              // When passing loc, don't exceed our current distance from loc.
+              start = Math.max(1, 2 * loc - best_loc);
+            } else {
+              // Already passed loc, downhill from here on in.
+              break;
+            }
+          }
+        }
+      }
+      if (match_bitapScore(d + 1, loc, loc, pattern) > score_threshold) {
+        // No hope for a (better) match at greater error levels.
+        break;
+      }
+      last_rd = rd;
+      last_base = rd_base;
+    }
+    return best_loc;
+  }
+
+  /**
+   * Bitap with each bit mask spread over several longs, for patterns longer
+   * than 64 characters.  Same steps as match_bitapLong; shifts carry the top
+   * bit of each word into the next one.  The window of each error level
+   * lies inside the window of the previous one (widened by one row, which
+   * moving start on a match can reach), so the rows are stored relative to
+   * the start of the window instead of from 0.
+   * @param text The text to search.
+   * @param pattern The pattern to search for.
+   * @param loc The location to search around.
+   * @param index Index of text, or null to scan the text.
+   * @return Best match index or -1.
+   */
+  private int match_bitapWords(CharSequence text, String pattern, int loc,
+                               QGramIndex index) {
+    // Initialise the alphabet.
+    BitapAlphabet s = new BitapAlphabet(pattern);
+    long[] masks = s.masks;
+    int words = s.words;
+
+    // Highest score beyond which we give up.
+    double score_threshold = match_bitapThreshold(text, pattern, loc, index);
+
+    // Initialise the bit arrays.
+    int matchword = (pattern.length() - 1) >>> 6;
+    long matchmask = 1L << (pattern.length() - 1);
+    int best_loc = -1;
+
+    int bin_min, bin_mid;
+    int bin_max = pattern.length() + text.length();
+    // Row j of rd is rd[(j - rd_base) * words, (j - rd_base + 1) * words).
+    long[] last_rd = new long[0];
+    int last_base = 0;
+    for (int d = 0; d < pattern.length(); d++) {
+      // Scan for the best match; each iteration allows for one more error.
+      // Run a binary search to determine how far from 'loc' we can stray at
+      // this error level.
+      bin_min = 0;
+      bin_mid = bin_max;
+      while (bin_min < bin_mid) {
+        if (match_bitapScore(d, loc + bin_mid, loc, pattern)
+            <= score_threshold) {
+          bin_min = bin_mid;
+        } else {
+          bin_max = bin_mid;
+        }
+        bin_mid = (bin_max - bin_min) / 2 + bin_min;
+      }
+      // Use the result from this iteration as the maximum for the next.
+      bin_max = bin_mid;
+      int start = Math.max(1, loc - bin_mid + 1);
+      int finish = Math.min(loc + bin_mid, text.length()) + pattern.length();
+
+      int rd_base = start - 1;
+      long[] rd = new long[(finish + 2 - rd_base) * words];
+      // Row finish + 1: the low d bits set.
+      int row = (finish + 1 - rd_base) * words;
+      for (int w = 0; w < words && d > w * Long.SIZE; w++) {
+        int bits = d - w * Long.SIZE;
+        rd[row + w] = bits >= Long.SIZE ? -1L : (1L << bits) - 1;
+      }
+      for (int j = finish; j >= start; j--) {
+        int charRow;
+        if (text.length() <= j - 1 || (charRow = s.row(text.charAt(j - 1))) < 0) {
+          // Out of range.
+          charRow = -1;
+        } else {
+          charRow *= words;
+        }
+        int cur = (j - rd_base) * words;
+        int next = cur + words;
+        int last_cur = (j - last_base) * words;
+        int last_next = last_cur + words;
+        long carry = 1;
+        long last_carry = 1;
+        for (int w = 0; w < words; w++) {
+          long charMatch = charRow < 0 ? 0 : masks[charRow + w];
+          long shifted = (rd[next + w] << 1) | carry;
+          carry = rd[next + w] >>> 63;
+          if (d == 0) {
+            // First pass: exact match.
+            rd[cur + w] = shifted & charMatch;
+          } else {
+            // Subsequent passes: fuzzy match.
+            long last = last_rd[last_next + w] | last_rd[last_cur + w];
+            rd[cur + w] = (shifted & charMatch)
+                | ((last << 1) | last_carry) | last_rd[last_next + w];
+            last_carry = last >>> 63;
+          }
+        }
+        if ((rd[cur + matchword] & matchmask) != 0) {
+          double score = match_bitapScore(d, j - 1, loc, pattern);
+          // This match will almost certainly be better than any existing
+          // match.  But check anyway.
+          if (score <= score_threshold) {
+            // Told you so.
+            score_threshold = score;
+            best_loc = j - 1;
+            if (best_loc > loc) {
+              // When passing loc, don't exceed our current distance from loc.
+              start = Math.max(1, 2 * loc - best_loc);
+            } else {
+              // Already passed loc, downhill from here on in.
+              break;
+            }
+          }
+        }
+      }
+      if (match_bitapScore(d + 1, loc, loc, pattern) > score_threshold) {
+        // No hope for a (better) match at greater error levels.
+        break;
+      }
+      last_rd = rd;
+      last_base = rd_base;
+    }
+    return best_loc;
+  }
+
+  /**
+   * Initial score threshold of the Bitap search: Match_Threshold, lowered
+   * to the score of an exact match near loc if there is one.
+   * @param text The text to search.
+   * @param pattern The pattern to search for.
+   * @param loc The location to search around.
+   * @param index Index of text, or null to scan the text.
+   * @return Highest score beyond which the search gives up.
+   */
+  private double match_bitapThreshold(CharSequence text, String pattern,
+                                      int loc, QGramIndex index) {
+    double score_threshold = Match_Threshold;
+    // Is there a nearby exact match? (speedup)
+    int best_loc = index == null ? indexOf(text, pattern, loc)
+        : index.indexOf(text, pattern, loc);
+    if (best_loc != -1) {
+      score_threshold = Math.min(match_bitapScore(0, best_loc, loc, pattern),
+          score_threshold);
+      // What about in the other direction? (speedup)
+      best_loc = index == null ? lastIndexOf(text, pattern, loc + pattern.length())
+          : index.lastIndexOf(text, pattern, loc + pattern.length());
+      if (best_loc != -1) {
+        score_threshold = Math.min(match_bitapScore(0, best_loc, loc, pattern),
+            score_threshold);
+      }
+    }
+    return score_threshold;
+  }
+
+  /**
+   * Locate the end of an approximate match of 'pattern' which starts at
+   * 'loc' in 'text': the end of the text from 'loc' with the fewest edits
+   * to the pattern, the nearest to loc + pattern.length() on a tie.
+   * @param text The text searched.
+   * @param pattern The pattern matched.
+   * @param loc Start of the match.
+   * @return End of the match.
+   */
+  private int match_end(CharSequence text, String pattern, int loc) {
+    int length = pattern.length();
+    int window = Math.min(2 * length, text.length() - loc);
+    // row[j] is the edit distance between the pattern so far and
+    // text[loc, loc + j).
+    int[] row = new int[window + 1];
+    for (int j = 0; j <= window; j++) {
+      row[j] = j;
+    }
+    for (int i = 1; i <= length; i++) {
+      char c = pattern.charAt(i - 1);
+      int diagonal = row[0];
+      row[0] = i;
+      for (int j = 1; j <= window; j++) {
+        int above = row[j];
+        row[j] = Math.min(diagonal + (text.charAt(loc + j - 1) == c ? 0 : 1),
+                          Math.min(above, row[j - 1]) + 1);
+        diagonal = above;
+      }
+    }
+    int best = 0;
+    for (int j = 1; j <= window; j++) {
+      if (row[j] < row[best] || (row[j] == row[best]
+          && Math.abs(j - length) < Math.abs(best - length))) {
+        best = j;
+      }
+    }
+    return loc + best;
+  }
+
+  /**
+   * Like String.indexOf, for a text which may be a StringBuilder.
+   */
+  private static int indexOf(CharSequence text, String pattern, int from) {
+    if (text instanceof String) {
+      return ((String) text).indexOf(pattern, from);
+    }
+    int last = text.length() - pattern.length();
+    for (int i = Math.max(from, 0); i <= last; i++) {
+      if (regionMatches(text, i, text.length(), pattern)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Like String.lastIndexOf, for a text which may be a StringBuilder.
+   */
+  private static int lastIndexOf(CharSequence text, String pattern, int from) {
+    if (text instanceof String) {
+      return ((String) text).lastIndexOf(pattern, from);
+    }
+    for (int i = Math.min(from, text.length() - pattern.length()); i >= 0;
+         i--) {
+      if (regionMatches(text, i, text.length(), pattern)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Compute and return the score for a match with e errors and x location.
+   * @param e Number of errors in match.
+   * @param x Location of match.
+   * @param loc Expected location of match.
+   * @param pattern Pattern being sought.
+   * @return Overall score for match (0.0 = good, 1.0 = bad).
+   */
+  private double match_bitapScore(int e, int x, int loc, String pattern) {
+    float accuracy = (float) e / pattern.length();
+    int proximity = Math.abs(loc - x);
+    if (Match_Distance == 0) {
+      // Dodge divide by zero error.
+      return proximity == 0 ? accuracy : 1.0;
+    }
+    return accuracy + (proximity / (float) Match_Distance);
+  }
+
+  /**
+   * Initialise the alphabet for the Bitap algorithm.
+   * @param pattern The text to encode.
+   * @return Hash of character locations.
+   */
+  protected Map<Character, Integer> match_alphabet(String pattern) {
+    Map<Character, Integer> s = new HashMap<Character, Integer>();
+    char[] char_pattern = pattern.toCharArray();
+    for (char c : char_pattern) {
+      s.put(c, 0);
+    }
+    int i = 0;
+    for (char c : char_pattern) {
+      s.put(c, s.get(c) | (1 << (pattern.length() - i - 1)));
+      i++;
+    }
+    return s;
+  }
+
+  /**
+   * Alphabet for the Bitap algorithm without boxing: for each character of
+   * the pattern, the mask of its locations as a row of 64-bit words.  Bit
+   * k of a mask (bit k % 64 of word k / 64) stands for the character at
+   * pattern.length() - k - 1, as in match_alphabet.
+   * ASCII characters own the first 128 rows; the rows of other characters
+   * are found through an open-addressing hash.
+   */
+  static final class BitapAlphabet {
+    private static final int ASCII = 128;
+
+    /**
+     * Number of longs per mask.
+     */
+    final int words;
+    /**
+     * Masks, one row of words longs per character.
+     */
+    final long[] masks;
+    // Hash of the non-ASCII characters: the character and its row plus
+    // one, 0 marking an empty slot.
+    private final char[] keys;
+    private final int[] rows;
+
+    BitapAlphabet(String pattern) {
+      int length = pattern.length();
+      words = Math.max(1, (length + Long.SIZE - 1) / Long.SIZE);
+      keys = new char[Integer.highestOneBit(Math.max(length, 2)) * 4];
+      rows = new int[keys.length];
+      int rowCount = ASCII;
+      int[] charRows = new int[length];
+      for (int i = 0; i < length; i++) {
+        char c = pattern.charAt(i);
+        if (c < ASCII) {
+          charRows[i] = c;
+          continue;
+        }
+        int slot = slot(c);
+        if (rows[slot] == 0) {
+          keys[slot] = c;
+          rows[slot] = ++rowCount;
+        }
+        charRows[i] = rows[slot] - 1;
+      }
+      masks = new long[rowCount * words];
+      for (int i = 0; i < length; i++) {
+        int bit = length - i - 1;
+        masks[charRows[i] * words + (bit >>> 6)] |= 1L << bit;
+      }
+    }
+
+    /**
+     * @param c Character of the text.
+     * @return Row of the character's mask, or -1 if it is not in the
+     *     pattern.
+     */
+    int row(char c) {
+      if (c < ASCII) {
+        return c;
+      }
+      return rows[slot(c)] - 1;
+    }
+
+    // Slot holding c, or the empty slot where it would go.
+    private int slot(char c) {
+      int mask = keys.length - 1;
+      int slot = (c * 0x9E3779B1) >>> 16 & mask;
+      while (rows[slot] != 0 && keys[slot] != c) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+  }
+
+
+  /**
+   * Index of the q-grams of a text, for finding exact occurrences of a
+   * pattern without scanning the whole text.  Built once per patch_apply,
+   * it stays valid while patches edit the text: replace records each edit,
+   * occurrences lying wholly in unedited text are looked up in the index
+   * and those touching an edit are checked directly.
+   */
+  static final class QGramIndex {
+    private static final int Q = 4;
+    // Patterns are looked up by their rarest q-gram among the first this
+    // many.
+    private static final int MAX_GRAMS = 64;
+
+    /**
+     * The text as it was indexed.
+     */
+    private final String base;
+    // Positions of each bucket's q-grams, ascending, are
+    // positions[bucketStart[b], bucketStart[b + 1]).
+    private final int[] bucketStart;
+    private final int[] positions;
+    private final int mask;
+    // Edited regions, ascending and separated by unedited text: region k
+    // is editEnd1[k] - editStart1[k] characters of the current text in
+    // place of base[editStart2[k], editEnd2[k]).
+    private int[] editStart1 = new int[8];
+    private int[] editEnd1 = new int[8];
+    private int[] editStart2 = new int[8];
+    private int[] editEnd2 = new int[8];
+    private int edits;
+
+    QGramIndex(String text) {
+      base = text;
+      int grams = Math.max(0, text.length() - Q + 1);
+      int buckets = Integer.highestOneBit(Math.max(grams, 1)) * 2;
+      mask = buckets - 1;
+      int[] hashes = new int[grams];
+      bucketStart = new int[buckets + 1];
+      for (int i = 0; i < grams; i++) {
+        hashes[i] = hash(text, i) & mask;
+        bucketStart[hashes[i] + 1]++;
+      }
+      for (int b = 0; b < buckets; b++) {
+        bucketStart[b + 1] += bucketStart[b];
+      }
+      // Counting sort by bucket; positions stay ascending in each bucket.
+      positions = new int[grams];
+      int[] fill = Arrays.copyOf(bucketStart, buckets);
+      for (int i = 0; i < grams; i++) {
+        positions[fill[hashes[i]]++] = i;
+      }
+    }
+
+    /**
+     * Record that text[start, end) of the current text was replaced by
+     * length characters.
+     */
+    void replace(int start, int end, int length) {
+      int delta = length - (end - start);
+      // Regions first to last overlap or touch the replaced range.
+      int first = 0;
+      while (first < edits && editEnd1[first] < start) {
+        first++;
+      }
+      int last = first;
+      while (last < edits && editStart1[last] <= end) {
+        last++;
+      }
+      int start1 = start;
+      int start2 = start - shift(first);
+      if (first < last && editStart1[first] < start) {
+        start1 = editStart1[first];
+        start2 = editStart2[first];
+      }
+      int end1 = end;
+      int end2 = end - shift(last);
+      if (first < last && editEnd1[last - 1] > end) {
+        end1 = editEnd1[last - 1];
+        end2 = editEnd2[last - 1];
+      }
+      // Merge regions first to last - 1 into one.
+      int removed = last - first - 1;
+      if (removed < 0 && edits == editStart1.length) {
+        int capacity = edits * 2;
+        editStart1 = Arrays.copyOf(editStart1, capacity);
+        editEnd1 = Arrays.copyOf(editEnd1, capacity);
+        editStart2 = Arrays.copyOf(editStart2, capacity);
+        editEnd2 = Arrays.copyOf(editEnd2, capacity);
+      }
+      if (removed != 0) {
+        int moved = edits - last;
+        System.arraycopy(editStart1, last, editStart1, last - removed, moved);
+        System.arraycopy(editEnd1, last, editEnd1, last - removed, moved);
+        System.arraycopy(editStart2, last, editStart2, last - removed, moved);
+        System.arraycopy(editEnd2, last, editEnd2, last - removed, moved);
+        edits -= removed;
+      }
+      editStart1[first] = start1;
+      editEnd1[first] = end1 + delta;
+      editStart2[first] = start2;
+      editEnd2[first] = end2;
+      for (int k = first + 1; k < edits; k++) {
+        editStart1[k] += delta;
+        editEnd1[k] += delta;
+      }
+    }
+
+    /**
+     * Like text.indexOf(pattern, from).
+     * @param text The current text.
+     */
+    int indexOf(CharSequence text, String pattern, int from) {
+      int length = pattern.length();
+      if (length < Q) {
+        return diff_match_patch.indexOf(text, pattern, from);
+      }
+      int gram = rarestGram(pattern);
+      int s = Math.max(from, 0);
+      // First region whose overlapping starts are not all before s.
+      int k = 0;
+      while (k < edits && editEnd1[k] <= s) {
+        k++;
+      }
+      for (; ; k++) {
+        // Starts from s to cleanEnd lie wholly in unedited text.
+        int cleanEnd = (k < edits ? editStart1[k] : text.length()) - length;
+        if (s <= cleanEnd) {
+          int shift = shift(k);
+          int found = indexOfBase(pattern, gram, s - shift, cleanEnd - shift);
+          if (found != -1) {
+            return found + shift;
+          }
+        }
+        if (k == edits) {
+          return -1;
+        }
+        // Starts whose occurrence would overlap or span region k.
+        int end = Math.min(editEnd1[k] - 1, text.length() - length);
+        for (int i = Math.max(s, editStart1[k] - length + 1); i <= end; i++) {
+          if (regionMatches(text, i, text.length(), pattern)) {
+            return i;
+          }
+        }
+        s = Math.max(s, editEnd1[k]);
+      }
+    }
+
+    /**
+     * Like text.lastIndexOf(pattern, from).
+     * @param text The current text.
+     */
+    int lastIndexOf(CharSequence text, String pattern, int from) {
+      int length = pattern.length();
+      if (length < Q) {
+        return diff_match_patch.lastIndexOf(text, pattern, from);
+      }
+      int gram = rarestGram(pattern);
+      int s = Math.min(from, text.length() - length);
+      // Regions from k on only overlap starts after s.
+      int k = edits;
+      while (k > 0 && editStart1[k - 1] - length + 1 > s) {
+        k--;
+      }
+      for (; s >= 0; k--) {
+        // Starts from cleanStart to s lie wholly in unedited text.
+        int cleanStart = k > 0 ? editEnd1[k - 1] : 0;
+        int limit = (k < edits ? editStart1[k] : text.length()) - length;
+        int cleanEnd = Math.min(s, limit);
+        if (cleanStart <= cleanEnd) {
+          int shift = shift(k);
+          int found = lastIndexOfBase(pattern, gram, cleanStart - shift,
+                                      cleanEnd - shift);
+          if (found != -1) {
+            return found + shift;
+          }
+        }
+        if (k == 0) {
+          return -1;
+        }
+        // Starts whose occurrence would overlap or span region k - 1.
+        int start = Math.max(0, editStart1[k - 1] - length + 1);
+        for (int i = Math.min(s, editEnd1[k - 1] - 1); i >= start; i--) {
+          if (regionMatches(text, i, text.length(), pattern)) {
+            return i;
+          }
+        }
+        s = Math.min(s, editStart1[k - 1] - length);
+      }
+      return -1;
+    }
+
+    /**
+     * First occurrence of pattern in base starting in [from, to].
+     */
+    private int indexOfBase(String pattern, int gram, int from, int to) {
+      int bucket = hash(pattern, gram) & mask;
+      int end = bucketStart[bucket + 1];
+      int i = lowerBound(bucketStart[bucket], end, from + gram);
+      for (; i < end && positions[i] - gram <= to; i++) {
+        if (base.startsWith(pattern, positions[i] - gram)) {
+          return positions[i] - gram;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Last occurrence of pattern in base starting in [from, to].
+     */
+    private int lastIndexOfBase(String pattern, int gram, int from, int to) {
+      int bucket = hash(pattern, gram) & mask;
+      int start = bucketStart[bucket];
+      int i = lowerBound(start, bucketStart[bucket + 1], to + gram + 1) - 1;
+      for (; i >= start && positions[i] - gram >= from; i--) {
+        if (base.startsWith(pattern, positions[i] - gram)) {
+          return positions[i] - gram;
+        }
+      }
+      return -1;
+    }
+
+    // First index in positions[start, end) holding at least value.
+    private int lowerBound(int start, int end, int value) {
+      while (start < end) {
+        int mid = (start + end) >>> 1;
+        if (positions[mid] < value) {
+          start = mid + 1;
+        } else {
+          end = mid;
+        }
+      }
+      return start;
+    }
+
+    // Offset of the pattern's q-gram with the fewest positions.
+    private int rarestGram(String pattern) {
+      int best = 0;
+      int bestCount = Integer.MAX_VALUE;
+      int grams = Math.min(pattern.length() - Q + 1, MAX_GRAMS);
+      for (int i = 0; i < grams && bestCount > 0; i++) {
+        int bucket = hash(pattern, i) & mask;
+        int count = bucketStart[bucket + 1] - bucketStart[bucket];
+        if (count < bestCount) {
+          best = i;
+          bestCount = count;
+        }
+      }
+      return best;
+    }
+
+    // Offset from base to current positions in the unedited text before
+    // region k.
+    private int shift(int k) {
+      return k == 0 ? 0 : editEnd1[k - 1] - editEnd2[k - 1];
+    }
+
+    private static int hash(String text, int i) {
+      long h = text.charAt(i) | (long) text.charAt(i + 1) << 16
+          | (long) text.charAt(i + 2) << 32 | (long) text.charAt(i + 3) << 48;
+      h *= 0x9E3779B97F4A7C15L;
+      return (int) (h >>> 32);
+    }
+  }
+
+
+  //  PATCH FUNCTIONS
+
+
+  /**
+   * Increase the context until it is unique,
+   * but don't let the pattern expand beyond Match_MaxBits.
+   * @param patch The patch to grow.
+   * @param text Source text.
+   */
+  protected void patch_addContext(Patch patch, String text) {
+    if (text.length() == 0) {
+      return;
+    }
+    String pattern = text.substring(patch.start2, patch.start2 + patch.length1);
+    int padding = 0;
+
+    // Look for the first and last matches of pattern in text.  If two different
+    // matches are found, increase the pattern length.
+    while (text.indexOf(pattern) != text.lastIndexOf(pattern)
+        && pattern.length() < Match_MaxBits - Patch_Margin - Patch_Margin) {
+      padding += Patch_Margin;
+      pattern = text.substring(Math.max(0, patch.start2 - padding),
+          Math.min(text.length(), patch.start2 + patch.length1 + padding));
+    }
+    // Add one chunk for good luck.
+    padding += Patch_Margin;
+
+    // Add the prefix.
+    String prefix = text.substring(Math.max(0, patch.start2 - padding),
+        patch.start2);
+    if (prefix.length() != 0) {
+      patch.diffs.addFirst(new Diff(Operation.EQUAL, prefix));
+    }
+    // Add the suffix.
+    String suffix = text.substring(patch.start2 + patch.length1,
+        Math.min(text.length(), patch.start2 + patch.length1 + padding));
+    if (suffix.length() != 0) {
+      patch.diffs.addLast(new Diff(Operation.EQUAL, suffix));
+    }
+
+    // Roll back the start points.
+    patch.start1 -= prefix.length();
+    patch.start2 -= prefix.length();
+    // Extend the lengths.
+    patch.length1 += prefix.length() + suffix.length();
+    patch.length2 += prefix.length() + suffix.length();
+  }
+
+  /**
+   * Compute a list of patches to turn text1 into text2.
+   * A set of diffs will be computed.
+   * @param text1 Old text.
+   * @param text2 New text.
+   * @return LinkedList of Patch objects.
+   */
+  public LinkedList<Patch> patch_make(String text1, String text2) {
+    if (text1 == null || text2 == null) {
+      throw new IllegalArgumentException("Null inputs. (patch_make)");
+    }
+    // No diffs provided, compute our own.
+    LinkedList<Diff> diffs = diff_main(text1, text2, true);
+    if (diffs.size() > 2) {
+      diff_cleanupSemantic(diffs);
+      diff_cleanupEfficiency(diffs);
+    }
+    return patch_make(text1, diffs);
+  }
+
+  /**
+   * Compute a list of patches to turn text1 into text2.
+   * text1 will be derived from the provided diffs.
+   * @param diffs Array of Diff objects for text1 to text2.
+   * @return LinkedList of Patch objects.
+   */
+  public LinkedList<Patch> patch_make(LinkedList<Diff> diffs) {
+    if (diffs == null) {
+      throw new IllegalArgumentException("Null inputs. (patch_make)");
+    }
+    // No origin string provided, compute our own.
+    String text1 = diff_text1(diffs);
+    return patch_make(text1, diffs);
+  }
+
+  /**
+   * Compute a list of patches to turn text1 into text2.
+   * text2 is ignored, diffs are the delta between text1 and text2.
+   * @param text1 Old text
+   * @param text2 Ignored.
+   * @param diffs Array of Diff objects for text1 to text2.
+   * @return LinkedList of Patch objects.
+   * @deprecated Prefer patch_make(String text1, LinkedList<Diff> diffs).
+   */
+  @Deprecated public LinkedList<Patch> patch_make(String text1, String text2,
+      LinkedList<Diff> diffs) {
+    return patch_make(text1, diffs);
+  }
+
+  /**
+   * Compute a list of patches to turn text1 into text2.
+   * text2 is not provided, diffs are the delta between text1 and text2.
+   * @param text1 Old text.
+   * @param diffs Array of Diff objects for text1 to text2.
+   * @return LinkedList of Patch objects.
+   */
+  public LinkedList<Patch> patch_make(String text1, LinkedList<Diff> diffs) {
+    if (text1 == null || diffs == null) {
+      throw new IllegalArgumentException("Null inputs. (patch_make)");
+    }
+
+    LinkedList<Patch> patches = new LinkedList<Patch>();
+    if (diffs.isEmpty()) {
+      return patches;  // Get rid of the null case.
+    }
+    Patch patch = new Patch();
+    int char_count1 = 0;  // Number of characters into the text1 string.
+    int char_count2 = 0;  // Number of characters into the text2 string.
+    // Start with text1 (prepatch_text) and apply the diffs until we arrive at
+    // text2 (postpatch_text). We recreate the patches one by one to determine
+    // context info.
+    String prepatch_text = text1;
+    String postpatch_text = text1;
+    for (Diff aDiff : diffs) {
+      if (patch.diffs.isEmpty() && aDiff.operation != Operation.EQUAL) {
+        // A new patch starts here.
+        patch.start1 = char_count1;
+        patch.start2 = char_count2;
+      }
+
+      switch (aDiff.operation) {
+      case INSERT:
+        patch.diffs.add(aDiff);
+        patch.length2 += aDiff.text.length();
+        postpatch_text = postpatch_text.substring(0, char_count2)
+            + aDiff.text + postpatch_text.substring(char_count2);
+        break;
+      case DELETE:
+        patch.length1 += aDiff.text.length();
+        patch.diffs.add(aDiff);
+        postpatch_text = postpatch_text.substring(0, char_count2)
+            + postpatch_text.substring(char_count2 + aDiff.text.length());
+        break;
+      case EQUAL:
+        if (aDiff.text.length() <= 2 * Patch_Margin
+            && !patch.diffs.isEmpty() && aDiff != diffs.getLast()) {
+          // Small equality inside a patch.
+          patch.diffs.add(aDiff);
+          patch.length1 += aDiff.text.length();
+          patch.length2 += aDiff.text.length();
+        }
+
+        if (aDiff.text.length() >= 2 * Patch_Margin && !patch.diffs.isEmpty()) {
+          // Time for a new patch.
+          if (!patch.diffs.isEmpty()) {
+            patch_addContext(patch, prepatch_text);
+            patches.add(patch);
+            patch = new Patch();
+            // Unlike Unidiff, our patch lists have a rolling context.
+            // https://github.com/google/diff-match-patch/wiki/Unidiff
+            // Update prepatch text & pos to reflect the application of the
+            // just completed patch.
+            prepatch_text = postpatch_text;
+            char_count1 = char_count2;
+          }
+        }
+        break;
+      }
+
+      // Update the current character count.
+      if (aDiff.operation != Operation.INSERT) {
+        char_count1 += aDiff.text.length();
+      }
+      if (aDiff.operation != Operation.DELETE) {
+        char_count2 += aDiff.text.length();
+      }
+    }
+    // Pick up the leftover patch if not empty.
+    if (!patch.diffs.isEmpty()) {
+      patch_addContext(patch, prepatch_text);
+      patches.add(patch);
+    }
+
+    return patches;
+  }
+
+  /**
+   * Given an array of patches, return another array that is identical.
+   * @param patches Array of Patch objects.
+   * @return Array of Patch objects.
+   */
+  public LinkedList<Patch> patch_deepCopy(LinkedList<Patch> patches) {
+    LinkedList<Patch> patchesCopy = new LinkedList<Patch>();
+    for (Patch aPatch : patches) {
+      Patch patchCopy = new Patch();
+      for (Diff aDiff : aPatch.diffs) {
+        Diff diffCopy = new Diff(aDiff.operation, aDiff.text);
+        patchCopy.diffs.add(diffCopy);
+      }
+      patchCopy.start1 = aPatch.start1;
+      patchCopy.start2 = aPatch.start2;
+      patchCopy.length1 = aPatch.length1;
+      patchCopy.length2 = aPatch.length2;
+      patchesCopy.add(patchCopy);
+    }
+    return patchesCopy;
+  }
+
+  /**
+   * Merge a set of patches onto the text.  Return a patched text, as well
+   * as an array of true/false values indicating which patches were applied.
+   * @param patches Array of Patch objects
+   * @param text Old text.
+   * @return Two element Object array, containing the new text and an array of
+   *      boolean values.
+   */
+  public Object[] patch_apply(LinkedList<Patch> patches, String text) {
+    if (patches.isEmpty()) {
+      return new Object[]{text, new boolean[0]};
+    }
+
+    // Pad and split ranges of the patch texts, so that no changes are made
+    // to originals.
+    short paddingLength = this.Patch_Margin;
+    PatchRanges ranges = new PatchRanges(patches, paddingLength)
+        .splitMax(Match_MaxBits, paddingLength);
+    char[] chars = ranges.chars;
+    StringBuilder builder = new StringBuilder(
+        text.length() + 2 * paddingLength + (text.length() >> 3));
+    for (short x = 1; x <= paddingLength; x++) {
+      builder.append((char) x);
+    }
+    builder.append(text);
+    for (short x = 1; x <= paddingLength; x++) {
+      builder.append((char) x);
+    }
+    // Patches which don't apply at their expected location search the text
+    // for exact occurrences; index it once instead of scanning it for each.
+    QGramIndex index = new QGramIndex(builder.toString());
+
+    // delta keeps track of the offset between the expected and actual location
+    // of the previous patch.  If there are patches expected at positions 10 and
+    // 20, but the first patch was found at 12, delta is 2 and the second patch
+    // has an effective expected position of 22.
+    int delta = 0;
+    boolean[] results = new boolean[ranges.patchCount];
+    for (int x = 0; x < ranges.patchCount; x++) {
+      int expected_loc = ranges.start2s[x] + delta;
+      String text1 = ranges.text(x, EditScript.INSERT);
+      int start_loc;
+      int end_loc = -1;
+      int maxLength = this.Match_MaxPatternLength;
+      boolean oversized = maxLength > 0 && text1.length() > maxLength;
+      if (oversized) {
+        // patch_splitMax will only provide an oversized pattern in the case of
+        // a monster delete.
+        start_loc = match_main(builder,
+            text1.substring(0, maxLength), expected_loc, index);
+        if (start_loc != -1) {
+          end_loc = match_main(builder,
+              text1.substring(text1.length() - maxLength),
+              expected_loc + text1.length() - maxLength, index);
+          if (end_loc == -1 || start_loc >= end_loc) {
+            // Can't find valid trailing context.  Drop this patch.
+            start_loc = -1;
+          }
+        }
+      } else {
+        start_loc = match_main(builder, text1, expected_loc, index);
+      }
+      if (start_loc == -1) {
+        // No match found.  :(
+        results[x] = false;
+        // Subtract the delta for this failed patch from subsequent patches.
+        delta -= ranges.length2s[x] - ranges.length1s[x];
+      } else {
+        // Found a match.  :)
+        results[x] = true;
+        delta = start_loc - expected_loc;
+        // A pattern longer than Match_MaxBits tolerates more errors; align
+        // the end of its match rather than assume it has the same length.
+        int text2End;
+        if (end_loc == -1) {
+          text2End = text1.length() > Match_MaxBits
+              ? match_end(builder, text1, start_loc)
+              : Math.min(start_loc + text1.length(), builder.length());
+        } else {
+          text2End = maxLength > Match_MaxBits
+              ? match_end(builder,
+                  text1.substring(text1.length() - maxLength), end_loc)
+              : Math.min(end_loc + maxLength, builder.length());
+        }
+        int lastDiff = ranges.diffEnd(x);
+        if (text2End - start_loc == text1.length()
+            && regionMatches(builder, start_loc, text2End, text1)) {
+          // Perfect match, just shove the replacement text in.
+          int end = start_loc;
+          for (int d = ranges.firstDiff[x]; d < lastDiff; d++) {
+            int length = ranges.ends[d] - ranges.starts[d];
+            if (ranges.ops[d] == EditScript.INSERT) {
+              builder.insert(end, chars, ranges.starts[d], length);
+              end += length;
+            } else if (ranges.ops[d] == EditScript.DELETE) {
+              builder.delete(end, end + length);
+            } else {
+              end += length;
+            }
+          }
+          index.replace(start_loc, start_loc + text1.length(),
+                        end - start_loc);
+        } else {
+          // Imperfect match.  Run a diff to get a framework of equivalent
+          // indices.
+          LinkedList<Diff> diffs = diff_main(text1,
+              builder.substring(start_loc, text2End), false);
+          if (oversized
+              && diff_levenshtein(diffs) / (float) text1.length()
+              > this.Patch_DeleteThreshold) {
+            // The end points match, but the content is unacceptably bad.
+            results[x] = false;
+          } else {
+            diff_cleanupSemanticLossless(diffs);
+            LocationMap locations = new LocationMap(diffs);
+            int index1 = 0;
+            for (int d = ranges.firstDiff[x]; d < lastDiff; d++) {
+              int length = ranges.ends[d] - ranges.starts[d];
+              if (ranges.ops[d] != EditScript.EQUAL) {
+                int index2 = locations.toText2(index1);
+                if (ranges.ops[d] == EditScript.INSERT) {
+                  // Insertion
+                  builder.insert(start_loc + index2, chars, ranges.starts[d],
+                                 length);
+                  index.replace(start_loc + index2, start_loc + index2,
+                                length);
+                } else {
+                  // Deletion
+                  int end = start_loc + locations.toText2(index1 + length);
+                  builder.delete(start_loc + index2, end);
+                  index.replace(start_loc + index2, end, 0);
+                }
+              }
+              if (ranges.ops[d] != EditScript.DELETE) {
+                index1 += length;
+              }
+            }
+          }
+        }
+      }
+    }
+    // Strip the padding off.
+    text = builder.substring(paddingLength, builder.length() - paddingLength);
+    return new Object[]{text, results};
+  }
+
+  /**
+   * Add some padding on text start and end so that edges can match something.
+   * patch_apply does the same on ranges of the patch texts, leaving the
+   * patches unchanged.
+   * @param patches Array of Patch objects.
+   * @return The padding string added to each side.
+   */
+  public String patch_addPadding(LinkedList<Patch> patches) {
+    short paddingLength = this.Patch_Margin;
+    String nullPadding = "";
+    for (short x = 1; x <= paddingLength; x++) {
+      nullPadding += String.valueOf((char) x);
+    }
+
+    // Bump all the patches forward.
+    for (Patch aPatch : patches) {
+      aPatch.start1 += paddingLength;
+      aPatch.start2 += paddingLength;
+    }
+
+    // Add some padding on start of first diff.
+    Patch patch = patches.getFirst();
+    LinkedList<Diff> diffs = patch.diffs;
+    if (diffs.isEmpty() || diffs.getFirst().operation != Operation.EQUAL) {
+      // Add nullPadding equality.
+      diffs.addFirst(new Diff(Operation.EQUAL, nullPadding));
+      patch.start1 -= paddingLength;  // Should be 0.
+      patch.start2 -= paddingLength;  // Should be 0.
+      patch.length1 += paddingLength;
+      patch.length2 += paddingLength;
+    } else if (paddingLength > diffs.getFirst().text.length()) {
+      // Grow first equality.
+      Diff firstDiff = diffs.getFirst();
+      int extraLength = paddingLength - firstDiff.text.length();
+      firstDiff.text = nullPadding.substring(firstDiff.text.length())
+          + firstDiff.text;
+      patch.start1 -= extraLength;
+      patch.start2 -= extraLength;
+      patch.length1 += extraLength;
+      patch.length2 += extraLength;
+    }
+
+    // Add some padding on end of last diff.
+    patch = patches.getLast();
+    diffs = patch.diffs;
+    if (diffs.isEmpty() || diffs.getLast().operation != Operation.EQUAL) {
+      // Add nullPadding equality.
+      diffs.addLast(new Diff(Operation.EQUAL, nullPadding));
+      patch.length1 += paddingLength;
+      patch.length2 += paddingLength;
+    } else if (paddingLength > diffs.getLast().text.length()) {
+      // Grow last equality.
+      Diff lastDiff = diffs.getLast();
+      int extraLength = paddingLength - lastDiff.text.length();
+      lastDiff.text += nullPadding.substring(0, extraLength);
+      patch.length1 += extraLength;
+      patch.length2 += extraLength;
+    }
+
+    return nullPadding;
+  }
+
+  /**
+   * Look through the patches and break up any which are longer than the
+   * maximum limit of the match algorithm.
+   * patch_apply does the same on ranges of the patch texts, leaving the
+   * patches unchanged.
+   * @param patches LinkedList of Patch objects.
+   */
+  public void patch_splitMax(LinkedList<Patch> patches) {
+    short patch_size = Match_MaxBits;
+    String precontext, postcontext;
+    Patch patch;
+    int start1, start2;
+    boolean empty;
+    Operation diff_type;
+    String diff_text;
+    ListIterator<Patch> pointer = patches.listIterator();
+    Patch bigpatch = pointer.hasNext() ? pointer.next() : null;
+    while (bigpatch != null) {
+      if (bigpatch.length1 <= Match_MaxBits) {
+        bigpatch = pointer.hasNext() ? pointer.next() : null;
+        continue;
+      }
+      // Remove the big old patch.
+      pointer.remove();
+      start1 = bigpatch.start1;
+      start2 = bigpatch.start2;
+      precontext = "";
+      while (!bigpatch.diffs.isEmpty()) {
+        // Create one of several smaller patches.
+        patch = new Patch();
+        empty = true;
+        patch.start1 = start1 - precontext.length();
+        patch.start2 = start2 - precontext.length();
+        if (precontext.length() != 0) {
+          patch.length1 = patch.length2 = precontext.length();
+          patch.diffs.add(new Diff(Operation.EQUAL, precontext));
+        }
+        while (!bigpatch.diffs.isEmpty()
+            && patch.length1 < patch_size - Patch_Margin) {
+          diff_type = bigpatch.diffs.getFirst().operation;
+          diff_text = bigpatch.diffs.getFirst().text;
+          if (diff_type == Operation.INSERT) {
+            // Insertions are harmless.
+            patch.length2 += diff_text.length();
+            start2 += diff_text.length();
+            patch.diffs.addLast(bigpatch.diffs.removeFirst());
+            empty = false;
+          } else if (diff_type == Operation.DELETE && patch.diffs.size() == 1
+              && patch.diffs.getFirst().operation == Operation.EQUAL
+              && diff_text.length() > 2 * patch_size) {
+            // This is a large deletion.  Let it pass in one chunk.
+            patch.length1 += diff_text.length();
+            start1 += diff_text.length();
+            empty = false;
+            patch.diffs.add(new Diff(diff_type, diff_text));
+            bigpatch.diffs.removeFirst();
+          } else {
+            // Deletion or equality.  Only take as much as we can stomach.
+            diff_text = diff_text.substring(0, Math.min(diff_text.length(),
+                patch_size - patch.length1 - Patch_Margin));
+            patch.length1 += diff_text.length();
+            start1 += diff_text.length();
+            if (diff_type == Operation.EQUAL) {
+              patch.length2 += diff_text.length();
+              start2 += diff_text.length();
+            } else {
+              empty = false;
+            }
+            patch.diffs.add(new Diff(diff_type, diff_text));
+            if (diff_text.equals(bigpatch.diffs.getFirst().text)) {
+              bigpatch.diffs.removeFirst();
+            } else {
+              bigpatch.diffs.getFirst().text = bigpatch.diffs.getFirst().text
+                  .substring(diff_text.length());
+            }
+          }
+        }
+        // Compute the head context for the next patch.
+        precontext = diff_text2(patch.diffs);
+        precontext = precontext.substring(Math.max(0, precontext.length()
+            - Patch_Margin));
+        // Append the end context for this patch.
+        if (diff_text1(bigpatch.diffs).length() > Patch_Margin) {
+          postcontext = diff_text1(bigpatch.diffs).substring(0, Patch_Margin);
+        } else {
+          postcontext = diff_text1(bigpatch.diffs);
         }
-        String text;
-        try {
-          text = text1.substring(pointer, pointer += n);
-        } catch (StringIndexOutOfBoundsException e) {
-          throw new IllegalArgumentException("Delta length (" + pointer
-              + ") larger than source text length (" + text1.length()
-              + ").", e);
+        if (postcontext.length() != 0) {
+          patch.length1 += postcontext.length();
+          patch.length2 += postcontext.length();
+          if (!patch.diffs.isEmpty()
+              && patch.diffs.getLast().operation == Operation.EQUAL) {
+            patch.diffs.getLast().text += postcontext;
+          } else {
+            patch.diffs.add(new Diff(Operation.EQUAL, postcontext));
+          }
         }
-        if (token.charAt(0) == '=') {
-          diffs.add(new Diff(Operation.EQUAL, text));
-        } else {
-          diffs.add(new Diff(Operation.DELETE, text));
+        if (!empty) {
+          pointer.add(patch);
         }
-        break;
-      default:
-        // Anything else is an error.
-        throw new IllegalArgumentException(
-            "Invalid diff operation in diff_fromDelta: " + token.charAt(0));
       }
+      bigpatch = pointer.hasNext() ? pointer.next() : null;
     }
-    if (pointer != text1.length()) {
-      throw new IllegalArgumentException("Delta length (" + pointer
-          + ") smaller than source text length (" + text1.length() + ").");
-    }
-    return diffs;
   }
 
-
-  //  MATCH FUNCTIONS
-
-
   /**
-   * Locate the best instance of 'pattern' in 'text' near 'loc'.
-   * Returns -1 if no match found.
-   * @param text The text to search.
-   * @param pattern The pattern to search for.
-   * @param loc The location to search around.
-   * @return Best match index or -1.
+   * Take a list of patches and return a textual representation.
+   * @param patches List of Patch objects.
+   * @return Text representation of patches.
    */
-  public int match_main(String text, String pattern, int loc) {
-    // Check for null inputs.
-    if (text == null || pattern == null) {
-      throw new IllegalArgumentException("Null inputs. (match_main)");
-    }
-
-    loc = Math.max(0, Math.min(loc, text.length()));
-    if (text.equals(pattern)) {
-      // Shortcut (potentially not guaranteed by the algorithm)
-      return 0;
-    } else if (text.length() == 0) {
-      // Nothing to match.
-      return -1;
-    } else if (loc + pattern.length() <= text.length()
-        && text.substring(loc, loc + pattern.length()).equals(pattern)) {
-      // Perfect match at the perfect spot!  (Includes case of null pattern)
-      return loc;
-    } else {
-      // Do a fuzzy compare.
-      return match_bitap(text, pattern, loc);
+  public String patch_toText(List<Patch> patches) {
+    StringBuilder text = new StringBuilder();
+    for (Patch aPatch : patches) {
+      text.append(aPatch);
     }
+    return text.toString();
   }
 
   /**
-   * Locate the best instance of 'pattern' in 'text' near 'loc' using the
-   * Bitap algorithm.  Returns -1 if no match found.
-   * @param text The text to search.
-   * @param pattern The pattern to search for.
-   * @param loc The location to search around.
-   * @return Best match index or -1.
+   * Parse a textual representation of patches and return a List of Patch
+   * objects.
+   * @param textline Text representation of patches.
+   * @return List of Patch objects.
+   * @throws IllegalArgumentException If invalid input.
    */
-  protected int match_bitap(String text, String pattern, int loc) {
-    assert (Match_MaxBits == 0 || pattern.length() <= Match_MaxBits)
-        : "Pattern too long for this application.";
+  public List<Patch> patch_fromText(String textline)
+      throws IllegalArgumentException {
+    return patch_fromText((CharSequence) textline);
+  }
 
-    // Initialise the alphabet.
-    Map<Character, Integer> s = match_alphabet(pattern);
+  /**
+   * Parse a textual representation of patches and return a List of Patch
+   * objects.  The text is read in one pass, line by line, decoding %xx
+   * escapes as it goes; lines without escapes become substrings of text.
+   * @param text Text representation of patches.
+   * @return List of Patch objects.
+   * @throws IllegalArgumentException If invalid input.
+   */
+  public List<Patch> patch_fromText(CharSequence text)
+      throws IllegalArgumentException {
+    return patch_fromText(new PatchLines(text));
+  }
 
-    // Highest score beyond which we give up.
-    double score_threshold = Match_Threshold;
-    // Is there a nearby exact match? (speedup)
-    int best_loc = text.indexOf(pattern, loc);
-    if (best_loc != -1) {
-      score_threshold = Math.min(match_bitapScore(0, best_loc, loc, pattern),
-          score_threshold);
-      // What about in the other direction? (speedup)
-      best_loc = text.lastIndexOf(pattern, loc + pattern.length());
-      if (best_loc != -1) {
-        score_threshold = Math.min(match_bitapScore(0, best_loc, loc, pattern),
-            score_threshold);
-      }
+  /**
+   * Parse a textual representation of patches read from a Reader, in one
+   * pass and holding only the current line besides the patches.
+   * @param reader Source of the text representation of patches.
+   * @return List of Patch objects.
+   * @throws IOException If reader fails.
+   * @throws IllegalArgumentException If invalid input.
+   */
+  public List<Patch> patch_fromText(Reader reader)
+      throws IOException, IllegalArgumentException {
+    try {
+      return patch_fromText(new PatchLines(reader));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
+  }
 
-    // Initialise the bit arrays.
-    int matchmask = 1 << (pattern.length() - 1);
-    best_loc = -1;
-
-    int bin_min, bin_mid;
-    int bin_max = pattern.length() + text.length();
-    // Empty initialization added to appease Java compiler.
-    int[] last_rd = new int[0];
-    for (int d = 0; d < pattern.length(); d++) {
-      // Scan for the best match; each iteration allows for one more error.
-      // Run a binary search to determine how far from 'loc' we can stray at
-      // this error level.
-      bin_min = 0;
-      bin_mid = bin_max;
-      while (bin_min < bin_mid) {
-        if (match_bitapScore(d, loc + bin_mid, loc, pattern)
-            <= score_threshold) {
-          bin_min = bin_mid;
-        } else {
-          bin_max = bin_mid;
+  private List<Patch> patch_fromText(PatchLines lines) {
+    List<Patch> patches = new LinkedList<Patch>();
+    boolean more = lines.next();
+    while (more) {
+      if (lines.start == lines.end) {
+        // Blank lines are only allowed at the end of the text.
+        while ((more = lines.next()) && lines.start == lines.end) {
         }
-        bin_mid = (bin_max - bin_min) / 2 + bin_min;
+        if (more) {
+          throw new IllegalArgumentException("Invalid patch string: ");
+        }
+        break;
       }
-      // Use the result from this iteration as the maximum for the next.
-      bin_max = bin_mid;
-      int start = Math.max(1, loc - bin_mid + 1);
-      int finish = Math.min(loc + bin_mid, text.length()) + pattern.length();
-
-      int[] rd = new int[finish + 2];
-      rd[finish + 1] = (1 << d) - 1;
-      for (int j = finish; j >= start; j--) {
-        int charMatch;
-        if (text.length() <= j - 1 || !s.containsKey(text.charAt(j - 1))) {
-          // Out of range.
-          charMatch = 0;
-        } else {
-          charMatch = s.get(text.charAt(j - 1));
+      Patch patch = patch_parseHeader(lines.chars, lines.start, lines.end);
+      patches.add(patch);
+      while ((more = lines.next())) {
+        if (lines.start == lines.end) {
+          // Blank line?  Whatever.
+          continue;
         }
-        if (d == 0) {
-          // First pass: exact match.
-          rd[j] = ((rd[j + 1] << 1) | 1) & charMatch;
+        char sign = lines.chars.charAt(lines.start);
+        Operation operation;
+        if (sign == '-') {
+          // Deletion.
+          operation = Operation.DELETE;
+        } else if (sign == '+') {
+          // Insertion.
+          operation = Operation.INSERT;
+        } else if (sign == ' ') {
+          // Minor equality.
+          operation = Operation.EQUAL;
+        } else if (sign == '@') {
+          // Start of next patch.
+          break;
         } else {
-          // Subsequent passes: fuzzy match.
-          rd[j] = (((rd[j + 1] << 1) | 1) & charMatch)
-              | (((last_rd[j + 1] | last_rd[j]) << 1) | 1) | last_rd[j + 1];
-        }
-        if ((rd[j] & matchmask) != 0) {
-          double score = match_bitapScore(d, j - 1, loc, pattern);
-          // This match will almost certainly be better than any existing
-          // match.  But check anyway.
-          if (score <= score_threshold) {
-            // Told you so.
-            score_threshold = score;
-            best_loc = j - 1;
-            if (best_loc > loc) {
-              // When passing loc, don't exceed our current distance from loc.
-              start = Math.max(1, 2 * loc - best_loc);
-            } else {
-              // Already passed loc, downhill from here on in.
-              break;
-            }
-          }
+          // WTF?
+          throw new IllegalArgumentException("Invalid patch mode '" + sign
+              + "' in: " + lines.chars.subSequence(lines.start + 1, lines.end));
         }
+        patch.diffs.add(new Diff(operation, lines.decode(lines.start + 1)));
       }
-      if (match_bitapScore(d + 1, loc, loc, pattern) > score_threshold) {
-        // No hope for a (better) match at greater error levels.
-        break;
-      }
-      last_rd = rd;
     }
-    return best_loc;
+    return patches;
   }
 
   /**
-   * Compute and return the score for a match with e errors and x location.
-   * @param e Number of errors in match.
-   * @param x Location of match.
-   * @param loc Expected location of match.
-   * @param pattern Pattern being sought.
-   * @return Overall score for match (0.0 = good, 1.0 = bad).
+   * Parse a patch header, "@@ -start1,length1 +start2,length2 @@", where a
+   * length of 1 and its comma may be left out.
+   * @param line Text containing the header.
+   * @param start Start of the header line.
+   * @param end End of the header line.
+   * @return Patch with the coordinates of the header and no diffs.
+   * @throws IllegalArgumentException If the line is not a patch header.
    */
-  private double match_bitapScore(int e, int x, int loc, String pattern) {
-    float accuracy = (float) e / pattern.length();
-    int proximity = Math.abs(loc - x);
-    if (Match_Distance == 0) {
-      // Dodge divide by zero error.
-      return proximity == 0 ? accuracy : 1.0;
+  private static Patch patch_parseHeader(CharSequence line, int start,
+                                         int end) {
+    // Coordinates in the order start1, length1, start2, length2: the value,
+    // then -1 for a missing length, or -2 for a length written as "0".
+    long[] coords = new long[4];
+    int i = start;
+    String[] separators = {"@@ -", " +", " @@"};
+    for (int k = 0; k < 4; k += 2) {
+      String separator = separators[k / 2];
+      if (!regionMatches(line, i, end, separator)) {
+        throw new IllegalArgumentException(
+            "Invalid patch string: " + line.subSequence(start, end));
+      }
+      i += separator.length();
+      int digits = i;
+      while (i < end && isDigit(line.charAt(i))) {
+        coords[k] = coords[k] * 10 + (line.charAt(i++) - '0');
+        if (coords[k] > Integer.MAX_VALUE) {
+          throw new IllegalArgumentException(
+              "Invalid patch string: " + line.subSequence(start, end));
+        }
+      }
+      if (i == digits) {
+        throw new IllegalArgumentException(
+            "Invalid patch string: " + line.subSequence(start, end));
+      }
+      if (i < end && line.charAt(i) == ',') {
+        i++;
+      }
+      digits = i;
+      while (i < end && isDigit(line.charAt(i))) {
+        coords[k + 1] = coords[k + 1] * 10 + (line.charAt(i++) - '0');
+        if (coords[k + 1] > Integer.MAX_VALUE) {
+          throw new IllegalArgumentException(
+              "Invalid patch string: " + line.subSequence(start, end));
+        }
+      }
+      if (i == digits) {
+        coords[k + 1] = -1;
+      } else if (i == digits + 1 && coords[k + 1] == 0) {
+        coords[k + 1] = -2;
+      }
+    }
+    if (!regionMatches(line, i, end, separators[2]) || i + 3 != end) {
+      throw new IllegalArgumentException(
+          "Invalid patch string: " + line.subSequence(start, end));
+    }
+
+    Patch patch = new Patch();
+    patch.start1 = (int) coords[0];
+    if (coords[1] == -1) {
+      patch.start1--;
+      patch.length1 = 1;
+    } else if (coords[1] == -2) {
+      patch.length1 = 0;
+    } else {
+      patch.start1--;
+      patch.length1 = (int) coords[1];
+    }
+
+    patch.start2 = (int) coords[2];
+    if (coords[3] == -1) {
+      patch.start2--;
+      patch.length2 = 1;
+    } else if (coords[3] == -2) {
+      patch.length2 = 0;
+    } else {
+      patch.start2--;
+      patch.length2 = (int) coords[3];
+    }
+    return patch;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean regionMatches(CharSequence text, int start, int end,
+                                       String prefix) {
+    if (end - start < prefix.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (text.charAt(start + i) != prefix.charAt(i)) {
+        return false;
+      }
     }
-    return accuracy + (proximity / (float) Match_Distance);
+    return true;
   }
 
   /**
-   * Initialise the alphabet for the Bitap algorithm.
-   * @param pattern The text to encode.
-   * @return Hash of character locations.
+   * Write a list of patches in a compact binary form: a version header,
+   * then the coordinates and operations of each patch as varints, with the
+   * text of each operation as UTF-8.  Read back by patch_fromBinary; the
+   * text form of patch_toText remains for compatibility.
+   * @param patches List of Patch objects.
+   * @param out Output to write to.
+   * @param deflate Whether to compress the encoded patches.
+   * @throws IOException If out fails.
    */
-  protected Map<Character, Integer> match_alphabet(String pattern) {
-    Map<Character, Integer> s = new HashMap<Character, Integer>();
-    char[] char_pattern = pattern.toCharArray();
-    for (char c : char_pattern) {
-      s.put(c, 0);
-    }
-    int i = 0;
-    for (char c : char_pattern) {
-      s.put(c, s.get(c) | (1 << (pattern.length() - i - 1)));
-      i++;
+  public void patch_toBinary(List<Patch> patches, DataOutput out,
+                             boolean deflate) throws IOException {
+    BinaryBuffer body = new BinaryBuffer();
+    body.writeVarint(patches.size());
+    for (Patch aPatch : patches) {
+      body.writeVarint(aPatch.start1);
+      body.writeVarint(aPatch.start2);
+      body.writeVarint(aPatch.length1);
+      body.writeVarint(aPatch.length2);
+      body.writeVarint(aPatch.diffs.size());
+      for (Diff aDiff : aPatch.diffs) {
+        body.writeText(aDiff.operation, aDiff.text);
+      }
     }
-    return s;
+    body.writeTo(out, BINARY_PATCHES, deflate);
   }
 
-
-  //  PATCH FUNCTIONS
+  /**
+   * Read a list of patches written by patch_toBinary.
+   * @param in Input to read from.
+   * @return List of Patch objects.
+   * @throws IOException If in fails or ends early.
+   * @throws IllegalArgumentException If invalid input.
+   */
+  public LinkedList<Patch> patch_fromBinary(DataInput in)
+      throws IOException, IllegalArgumentException {
+    BinaryBuffer body = BinaryBuffer.readFrom(in, BINARY_PATCHES);
+    LinkedList<Patch> patches = new LinkedList<Patch>();
+    for (int count = body.readCount(); count > 0; count--) {
+      Patch patch = new Patch();
+      patch.start1 = body.readCount();
+      patch.start2 = body.readCount();
+      patch.length1 = body.readCount();
+      patch.length2 = body.readCount();
+      for (int diffs = body.readCount(); diffs > 0; diffs--) {
+        long entry = body.readVarint();
+        patch.diffs.add(new Diff(BinaryBuffer.operation(entry),
+                                 body.readText(entry)));
+      }
+      patches.add(patch);
+    }
+    body.checkEnd();
+    return patches;
+  }
 
 
   /**
-   * Increase the context until it is unique,
-   * but don't let the pattern expand beyond Match_MaxBits.
-   * @param patch The patch to grow.
-   * @param text Source text.
+   * Class representing one diff operation.
    */
-  protected void patch_addContext(Patch patch, String text) {
-    if (text.length() == 0) {
-      return;
-    }
-    String pattern = text.substring(patch.start2, patch.start2 + patch.length1);
-    int padding = 0;
+  public static class Diff {
+    /**
+     * One of: INSERT, DELETE or EQUAL.
+     */
+    public Operation operation;
+    /**
+     * The text associated with this diff operation.
+     */
+    public String text;
 
-    // Look for the first and last matches of pattern in text.  If two different
-    // matches are found, increase the pattern length.
-    while (text.indexOf(pattern) != text.lastIndexOf(pattern)
-        && pattern.length() < Match_MaxBits - Patch_Margin - Patch_Margin) {
-      padding += Patch_Margin;
-      pattern = text.substring(Math.max(0, patch.start2 - padding),
-          Math.min(text.length(), patch.start2 + patch.length1 + padding));
+    /**
+     * Constructor.  Initializes the diff with the provided values.
+     * @param operation One of INSERT, DELETE or EQUAL.
+     * @param text The text being applied.
+     */
+    public Diff(Operation operation, String text) {
+      // Construct a diff with the specified operation and text.
+      this.operation = operation;
+      this.text = text;
     }
-    // Add one chunk for good luck.
-    padding += Patch_Margin;
 
-    // Add the prefix.
-    String prefix = text.substring(Math.max(0, patch.start2 - padding),
-        patch.start2);
-    if (prefix.length() != 0) {
-      patch.diffs.addFirst(new Diff(Operation.EQUAL, prefix));
+    /**
+     * Display a human-readable version of this Diff.
+     * @return text version.
+     */
+    public String toString() {
+      String prettyText = this.text.replace('\n', '\u00b6');
+      return "Diff(" + this.operation + ",\"" + prettyText + "\")";
     }
-    // Add the suffix.
-    String suffix = text.substring(patch.start2 + patch.length1,
-        Math.min(text.length(), patch.start2 + patch.length1 + padding));
-    if (suffix.length() != 0) {
-      patch.diffs.addLast(new Diff(Operation.EQUAL, suffix));
+
+    /**
+     * Create a numeric hash value for a Diff.
+     * This function is not used by DMP.
+     * @return Hash value.
+     */
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = (operation == null) ? 0 : operation.hashCode();
+      result += prime * ((text == null) ? 0 : text.hashCode());
+      return result;
     }
 
-    // Roll back the start points.
-    patch.start1 -= prefix.length();
-    patch.start2 -= prefix.length();
-    // Extend the lengths.
-    patch.length1 += prefix.length() + suffix.length();
-    patch.length2 += prefix.length() + suffix.length();
+    /**
+     * Is this Diff equivalent to another Diff?
+     * @param obj Another Diff to compare against.
+     * @return true or false.
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null) {
+        return false;
+      }
+      if (getClass() != obj.getClass()) {
+        return false;
+      }
+      Diff other = (Diff) obj;
+      if (operation != other.operation) {
+        return false;
+      }
+      if (text == null) {
+        if (other.text != null) {
+          return false;
+        }
+      } else if (!text.equals(other.text)) {
+        return false;
+      }
+      return true;
+    }
   }
 
+
   /**
-   * Compute a list of patches to turn text1 into text2.
-   * A set of diffs will be computed.
-   * @param text1 Old text.
-   * @param text2 New text.
-   * @return LinkedList of Patch objects.
+   * Compact representation of a diff between two sequences.  Instead of one
+   * object per operation, parallel primitive arrays hold the operation, the
+   * offsets in sequence 1 and sequence 2 and the length of each entry.
+   * Read in order, the entries tile both sequences: DELETE and EQUAL entries
+   * are ranges of sequence 1, INSERT entries are ranges of sequence 2.
+   * Subclasses supply the element comparisons used by the merge passes.
    */
-  public LinkedList<Patch> patch_make(String text1, String text2) {
-    if (text1 == null || text2 == null) {
-      throw new IllegalArgumentException("Null inputs. (patch_make)");
+  public abstract static class EditScript {
+    static final byte DELETE = 0;
+    static final byte INSERT = 1;
+    static final byte EQUAL = 2;
+    static final Operation[] OPERATIONS = Operation.values();
+
+    byte[] ops = new byte[16];
+    int[] starts1 = new int[16];
+    int[] starts2 = new int[16];
+    int[] lengths = new int[16];
+    int size;
+
+    // Monitor polled while the diff is built, and the combined length of
+    // both sequences for its progress (0 for no progress reports).
+    DiffMonitor monitor;
+    private int progressTotal;
+    private int polls;
+
+    // Second set of arrays, swapped with the first by passes which rebuild
+    // the diff.
+    byte[] scratchOps;
+    int[] scratchStarts1;
+    int[] scratchStarts2;
+    int[] scratchLengths;
+
+    EditScript() {
     }
-    // No diffs provided, compute our own.
-    LinkedList<Diff> diffs = diff_main(text1, text2, true);
-    if (diffs.size() > 2) {
-      diff_cleanupSemantic(diffs);
-      diff_cleanupEfficiency(diffs);
+
+    /**
+     * Number of entries.
+     * @return Number of entries.
+     */
+    public int size() {
+      return size;
     }
-    return patch_make(text1, diffs);
-  }
 
-  /**
-   * Compute a list of patches to turn text1 into text2.
-   * text1 will be derived from the provided diffs.
-   * @param diffs Array of Diff objects for text1 to text2.
-   * @return LinkedList of Patch objects.
-   */
-  public LinkedList<Patch> patch_make(LinkedList<Diff> diffs) {
-    if (diffs == null) {
-      throw new IllegalArgumentException("Null inputs. (patch_make)");
+    /**
+     * @param index Index of the entry.
+     * @return One of INSERT, DELETE or EQUAL.
+     */
+    public Operation operation(int index) {
+      return OPERATIONS[ops[checkIndex(index)]];
     }
-    // No origin string provided, compute our own.
-    String text1 = diff_text1(diffs);
-    return patch_make(text1, diffs);
-  }
 
-  /**
-   * Compute a list of patches to turn text1 into text2.
-   * text2 is ignored, diffs are the delta between text1 and text2.
-   * @param text1 Old text
-   * @param text2 Ignored.
-   * @param diffs Array of Diff objects for text1 to text2.
-   * @return LinkedList of Patch objects.
-   * @deprecated Prefer patch_make(String text1, LinkedList<Diff> diffs).
-   */
-  @Deprecated public LinkedList<Patch> patch_make(String text1, String text2,
-      LinkedList<Diff> diffs) {
-    return patch_make(text1, diffs);
-  }
+    /**
+     * @param index Index of the entry.
+     * @return Offset in sequence 1 at which the entry starts.
+     */
+    public int start1(int index) {
+      return starts1[checkIndex(index)];
+    }
 
-  /**
-   * Compute a list of patches to turn text1 into text2.
-   * text2 is not provided, diffs are the delta between text1 and text2.
-   * @param text1 Old text.
-   * @param diffs Array of Diff objects for text1 to text2.
-   * @return LinkedList of Patch objects.
-   */
-  public LinkedList<Patch> patch_make(String text1, LinkedList<Diff> diffs) {
-    if (text1 == null || diffs == null) {
-      throw new IllegalArgumentException("Null inputs. (patch_make)");
+    /**
+     * @param index Index of the entry.
+     * @return Offset in sequence 2 at which the entry starts.
+     */
+    public int start2(int index) {
+      return starts2[checkIndex(index)];
     }
 
-    LinkedList<Patch> patches = new LinkedList<Patch>();
-    if (diffs.isEmpty()) {
-      return patches;  // Get rid of the null case.
+    /**
+     * @param index Index of the entry.
+     * @return Length of the entry.
+     */
+    public int length(int index) {
+      return lengths[checkIndex(index)];
     }
-    Patch patch = new Patch();
-    int char_count1 = 0;  // Number of characters into the text1 string.
-    int char_count2 = 0;  // Number of characters into the text2 string.
-    // Start with text1 (prepatch_text) and apply the diffs until we arrive at
-    // text2 (postpatch_text). We recreate the patches one by one to determine
-    // context info.
-    String prepatch_text = text1;
-    String postpatch_text = text1;
-    for (Diff aDiff : diffs) {
-      if (patch.diffs.isEmpty() && aDiff.operation != Operation.EQUAL) {
-        // A new patch starts here.
-        patch.start1 = char_count1;
-        patch.start2 = char_count2;
+
+    int checkIndex(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
       }
+      return index;
+    }
 
-      switch (aDiff.operation) {
-      case INSERT:
-        patch.diffs.add(aDiff);
-        patch.length2 += aDiff.text.length();
-        postpatch_text = postpatch_text.substring(0, char_count2)
-            + aDiff.text + postpatch_text.substring(char_count2);
-        break;
-      case DELETE:
-        patch.length1 += aDiff.text.length();
-        patch.diffs.add(aDiff);
-        postpatch_text = postpatch_text.substring(0, char_count2)
-            + postpatch_text.substring(char_count2 + aDiff.text.length());
-        break;
-      case EQUAL:
-        if (aDiff.text.length() <= 2 * Patch_Margin
-            && !patch.diffs.isEmpty() && aDiff != diffs.getLast()) {
-          // Small equality inside a patch.
-          patch.diffs.add(aDiff);
-          patch.length1 += aDiff.text.length();
-          patch.length2 += aDiff.text.length();
-        }
+    void monitor(DiffMonitor monitor, int progressTotal) {
+      this.monitor = monitor;
+      this.progressTotal = progressTotal;
+    }
 
-        if (aDiff.text.length() >= 2 * Patch_Margin && !patch.diffs.isEmpty()) {
-          // Time for a new patch.
-          if (!patch.diffs.isEmpty()) {
-            patch_addContext(patch, prepatch_text);
-            patches.add(patch);
-            patch = new Patch();
-            // Unlike Unidiff, our patch lists have a rolling context.
-            // https://github.com/google/diff-match-patch/wiki/Unidiff
-            // Update prepatch text & pos to reflect the application of the
-            // just completed patch.
-            prepatch_text = postpatch_text;
-            char_count1 = char_count2;
-          }
-        }
-        break;
+    /**
+     * Poll the monitor, if any, once every MONITOR_POLL_INTERVAL calls:
+     * report how far the entries so far reach into both sequences and let
+     * it cancel the diff.
+     */
+    void poll() {
+      if (monitor == null || (polls++ & (MONITOR_POLL_INTERVAL - 1)) != 0) {
+        return;
+      }
+      monitor.checkCanceled();
+      if (progressTotal > 0 && size > 0) {
+        monitor.progress((end1(size - 1) + end2(size - 1)) / (double) progressTotal);
+      }
+    }
+
+    /**
+     * Report a finished diff to the monitor and detach it.
+     */
+    void finish() {
+      if (monitor != null) {
+        monitor.progress(1);
+        monitor = null;
       }
+    }
 
-      // Update the current character count.
-      if (aDiff.operation != Operation.INSERT) {
-        char_count1 += aDiff.text.length();
+    /**
+     * Append an entry which starts where the previous one ends (or at the
+     * start of both texts for the first entry).
+     */
+    void append(byte op, int length) {
+      if (size == 0) {
+        add(op, 0, 0, length);
+      } else {
+        int last = size - 1;
+        add(op, end1(last), end2(last), length);
       }
-      if (aDiff.operation != Operation.DELETE) {
-        char_count2 += aDiff.text.length();
+    }
+
+    /**
+     * Append an entry at the given offsets.
+     */
+    void add(byte op, int start1, int start2, int length) {
+      if (size == ops.length) {
+        grow(size + 1);
       }
+      ops[size] = op;
+      starts1[size] = start1;
+      starts2[size] = start2;
+      lengths[size] = length;
+      size++;
     }
-    // Pick up the leftover patch if not empty.
-    if (!patch.diffs.isEmpty()) {
-      patch_addContext(patch, prepatch_text);
-      patches.add(patch);
+
+    /**
+     * Append all entries of another diff over the same sequences.
+     */
+    void addAll(EditScript other) {
+      for (int i = 0; i < other.size; i++) {
+        add(other.ops[i], other.starts1[i], other.starts2[i], other.lengths[i]);
+      }
     }
 
-    return patches;
-  }
+    /**
+     * Drop the entries from index on.
+     */
+    void truncate(int index) {
+      size = index;
+    }
 
-  /**
-   * Given an array of patches, return another array that is identical.
-   * @param patches Array of Patch objects.
-   * @return Array of Patch objects.
-   */
-  public LinkedList<Patch> patch_deepCopy(LinkedList<Patch> patches) {
-    LinkedList<Patch> patchesCopy = new LinkedList<Patch>();
-    for (Patch aPatch : patches) {
-      Patch patchCopy = new Patch();
-      for (Diff aDiff : aPatch.diffs) {
-        Diff diffCopy = new Diff(aDiff.operation, aDiff.text);
-        patchCopy.diffs.add(diffCopy);
-      }
-      patchCopy.start1 = aPatch.start1;
-      patchCopy.start2 = aPatch.start2;
-      patchCopy.length1 = aPatch.length1;
-      patchCopy.length2 = aPatch.length2;
-      patchesCopy.add(patchCopy);
+    /**
+     * @param index Index of the entry.
+     * @return Offset in sequence 1 at which the entry ends (its start for
+     *     an INSERT).
+     */
+    public int end1(int index) {
+      checkIndex(index);
+      return ops[index] == INSERT ? starts1[index] : starts1[index] + lengths[index];
     }
-    return patchesCopy;
-  }
 
-  /**
-   * Merge a set of patches onto the text.  Return a patched text, as well
-   * as an array of true/false values indicating which patches were applied.
-   * @param patches Array of Patch objects
-   * @param text Old text.
-   * @return Two element Object array, containing the new text and an array of
-   *      boolean values.
-   */
-  public Object[] patch_apply(LinkedList<Patch> patches, String text) {
-    if (patches.isEmpty()) {
-      return new Object[]{text, new boolean[0]};
+    /**
+     * @param index Index of the entry.
+     * @return Offset in sequence 2 at which the entry ends (its start for
+     *     a DELETE).
+     */
+    public int end2(int index) {
+      checkIndex(index);
+      return ops[index] == DELETE ? starts2[index] : starts2[index] + lengths[index];
     }
 
-    // Deep copy the patches so that no changes are made to originals.
-    patches = patch_deepCopy(patches);
+    void grow(int minCapacity) {
+      int capacity = Math.max(minCapacity, ops.length + (ops.length >> 1) + 1);
+      ops = Arrays.copyOf(ops, capacity);
+      starts1 = Arrays.copyOf(starts1, capacity);
+      starts2 = Arrays.copyOf(starts2, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+    }
 
-    String nullPadding = patch_addPadding(patches);
-    text = nullPadding + text + nullPadding;
-    patch_splitMax(patches);
+    void ensureScratch(int capacity) {
+      if (scratchOps == null || scratchOps.length < capacity) {
+        scratchOps = new byte[capacity];
+        scratchStarts1 = new int[capacity];
+        scratchStarts2 = new int[capacity];
+        scratchLengths = new int[capacity];
+      }
+    }
 
-    int x = 0;
-    // delta keeps track of the offset between the expected and actual location
-    // of the previous patch.  If there are patches expected at positions 10 and
-    // 20, but the first patch was found at 12, delta is 2 and the second patch
-    // has an effective expected position of 22.
-    int delta = 0;
-    boolean[] results = new boolean[patches.size()];
-    for (Patch aPatch : patches) {
-      int expected_loc = aPatch.start2 + delta;
-      String text1 = diff_text1(aPatch.diffs);
-      int start_loc;
-      int end_loc = -1;
-      if (text1.length() > this.Match_MaxBits) {
-        // patch_splitMax will only provide an oversized pattern in the case of
-        // a monster delete.
-        start_loc = match_main(text,
-            text1.substring(0, this.Match_MaxBits), expected_loc);
-        if (start_loc != -1) {
-          end_loc = match_main(text,
-              text1.substring(text1.length() - this.Match_MaxBits),
-              expected_loc + text1.length() - this.Match_MaxBits);
-          if (end_loc == -1 || start_loc >= end_loc) {
-            // Can't find valid trailing context.  Drop this patch.
-            start_loc = -1;
+    void swapScratch(int newSize) {
+      byte[] o = ops;
+      ops = scratchOps;
+      scratchOps = o;
+      int[] t = starts1;
+      starts1 = scratchStarts1;
+      scratchStarts1 = t;
+      t = starts2;
+      starts2 = scratchStarts2;
+      scratchStarts2 = t;
+      t = lengths;
+      lengths = scratchLengths;
+      scratchLengths = t;
+      size = newSize;
+    }
+
+    /**
+     * First pass of diff_cleanupMerge: merge runs of edits between
+     * equalities into at most one deletion and one insertion, factoring out
+     * common prefixes and suffixes, and merge adjacent equalities.
+     * Mirrors the list version step for step, including its handling of the
+     * dummy equality at the end.
+     * @param from Index of the first entry; earlier entries are left alone.
+     */
+    void mergeRuns(int from) {
+      if (size == from) {
+        return;
+      }
+      ensureScratch(size - from + 2);
+      byte[] outOps = scratchOps;
+      int[] outStarts1 = scratchStarts1;
+      int[] outStarts2 = scratchStarts2;
+      int[] outLengths = scratchLengths;
+      int out = 0;
+      // End of the output so far; a run of edits starts here in both texts.
+      int pos1 = starts1[from];
+      int pos2 = starts2[from];
+      int count_delete = 0;
+      int count_insert = 0;
+      int length_delete = 0;
+      int length_insert = 0;
+      int runStart = -1;
+      int prevEqual = -1;
+      for (int i = from; i <= size; i++) {
+        // i == size is the dummy equality at the end.
+        byte op = i < size ? ops[i] : EQUAL;
+        int length = i < size ? lengths[i] : 0;
+        if (op == INSERT) {
+          count_insert++;
+          length_insert += length;
+          if (runStart < 0) {
+            runStart = i;
+          }
+          prevEqual = -1;
+          continue;
+        }
+        if (op == DELETE) {
+          count_delete++;
+          length_delete += length;
+          if (runStart < 0) {
+            runStart = i;
           }
+          prevEqual = -1;
+          continue;
         }
-      } else {
-        start_loc = match_main(text, text1, expected_loc);
+        if (count_delete + count_insert > 1) {
+          if (count_delete != 0 && count_insert != 0) {
+            // Factor out any common prefixies.
+            int commonlength = commonPrefix(pos2, pos2 + length_insert,
+                pos1, pos1 + length_delete);
+            if (commonlength != 0) {
+              if (out != 0) {
+                // The previous entry is an equality.
+                outLengths[out - 1] += commonlength;
+              } else {
+                outOps[0] = EQUAL;
+                outStarts1[0] = pos1;
+                outStarts2[0] = pos2;
+                outLengths[0] = commonlength;
+                out = 1;
+              }
+              pos1 += commonlength;
+              pos2 += commonlength;
+              length_insert -= commonlength;
+              length_delete -= commonlength;
+            }
+            // Factor out any common suffixies.
+            commonlength = commonSuffix(pos2, pos2 + length_insert,
+                pos1, pos1 + length_delete);
+            if (commonlength != 0) {
+              length += commonlength;
+              length_insert -= commonlength;
+              length_delete -= commonlength;
+            }
+          }
+          // Insert the merged records.
+          if (length_delete != 0) {
+            outOps[out] = DELETE;
+            outStarts1[out] = pos1;
+            outStarts2[out] = pos2;
+            outLengths[out++] = length_delete;
+            pos1 += length_delete;
+          }
+          if (length_insert != 0) {
+            outOps[out] = INSERT;
+            outStarts1[out] = pos1;
+            outStarts2[out] = pos2;
+            outLengths[out++] = length_insert;
+            pos2 += length_insert;
+          }
+          prevEqual = out;
+          outOps[out] = EQUAL;
+          outStarts1[out] = pos1;
+          outStarts2[out] = pos2;
+          outLengths[out++] = length;
+        } else if (prevEqual >= 0) {
+          // Merge this equality with the previous one.
+          outLengths[prevEqual] += length;
+        } else {
+          if (runStart >= 0) {
+            // A single edit, copied as is.
+            outOps[out] = ops[runStart];
+            outStarts1[out] = pos1;
+            outStarts2[out] = pos2;
+            outLengths[out++] = length_delete + length_insert;
+            pos1 += length_delete;
+            pos2 += length_insert;
+          }
+          prevEqual = out;
+          outOps[out] = EQUAL;
+          outStarts1[out] = pos1;
+          outStarts2[out] = pos2;
+          outLengths[out++] = length;
+        }
+        pos1 += length;
+        pos2 += length;
+        count_insert = 0;
+        count_delete = 0;
+        length_delete = 0;
+        length_insert = 0;
+        runStart = -1;
       }
-      if (start_loc == -1) {
-        // No match found.  :(
-        results[x] = false;
-        // Subtract the delta for this failed patch from subsequent patches.
-        delta -= aPatch.length2 - aPatch.length1;
+      if (outLengths[out - 1] == 0) {
+        out--;  // Remove the dummy entry at the end.
+      }
+      if (from == 0) {
+        swapScratch(out);
       } else {
-        // Found a match.  :)
-        results[x] = true;
-        delta = start_loc - expected_loc;
-        String text2;
-        if (end_loc == -1) {
-          text2 = text.substring(start_loc,
-              Math.min(start_loc + text1.length(), text.length()));
-        } else {
-          text2 = text.substring(start_loc,
-              Math.min(end_loc + this.Match_MaxBits, text.length()));
+        if (from + out > ops.length) {
+          grow(from + out);
         }
-        if (text1.equals(text2)) {
-          // Perfect match, just shove the replacement text in.
-          text = text.substring(0, start_loc) + diff_text2(aPatch.diffs)
-              + text.substring(start_loc + text1.length());
+        System.arraycopy(outOps, 0, ops, from, out);
+        System.arraycopy(outStarts1, 0, starts1, from, out);
+        System.arraycopy(outStarts2, 0, starts2, from, out);
+        System.arraycopy(outLengths, 0, lengths, from, out);
+        size = from + out;
+      }
+    }
+
+    /**
+     * Second pass of diff_cleanupMerge: look for single edits surrounded on
+     * both sides by equalities which can be shifted sideways to eliminate an
+     * equality.
+     * e.g: A<ins>BA</ins>C -> <ins>AB</ins>AC
+     * @param from Index of the first entry; earlier entries are left alone.
+     * @return true if any shift was made.
+     */
+    boolean shiftSingleEdits(int from) {
+      if (size - from < 3) {
+        return false;
+      }
+      boolean changes = false;
+      // Entries [from, settled) are final for this pass; settled - 1 is
+      // prevDiff.
+      int settled = from + 1;
+      int thisDiff = from + 1;
+      while (thisDiff + 1 < size) {
+        int prevDiff = settled - 1;
+        int nextDiff = thisDiff + 1;
+        if (ops[prevDiff] == EQUAL && ops[nextDiff] == EQUAL) {
+          // This is a single edit surrounded by equalities.
+          if (editEndsWith(thisDiff, prevDiff)) {
+            // Shift the edit over the previous equality.
+            int length = lengths[thisDiff];
+            byte op = ops[thisDiff];
+            lengths[nextDiff] += lengths[prevDiff];
+            // prevDiff is deleted, the edit takes its place.
+            ops[prevDiff] = op;
+            lengths[prevDiff] = length;
+            starts1[nextDiff] = end1(prevDiff);
+            starts2[nextDiff] = end2(prevDiff);
+            copy(nextDiff, settled);
+            settled++;
+            thisDiff = nextDiff + 1;
+            changes = true;
+            continue;
+          } else if (editStartsWith(thisDiff, nextDiff)) {
+            // Shift the edit over the next equality.
+            int length = lengths[nextDiff];
+            lengths[prevDiff] += length;
+            starts1[thisDiff] += length;
+            starts2[thisDiff] += length;
+            // nextDiff is deleted.
+            copy(thisDiff, settled);
+            settled++;
+            thisDiff = nextDiff + 1;
+            changes = true;
+            continue;
+          }
+        }
+        copy(thisDiff, settled);
+        settled++;
+        thisDiff++;
+      }
+      while (thisDiff < size) {
+        copy(thisDiff++, settled++);
+      }
+      size = settled;
+      return changes;
+    }
+
+    void copy(int from, int to) {
+      if (from != to) {
+        ops[to] = ops[from];
+        starts1[to] = starts1[from];
+        starts2[to] = starts2[from];
+        lengths[to] = lengths[from];
+      }
+    }
+
+    int startOf(int index) {
+      return ops[index] == INSERT ? starts2[index] : starts1[index];
+    }
+
+    // Does the text of entry edit end with the text of equality eq?
+    private boolean editEndsWith(int edit, int eq) {
+      int length = lengths[eq];
+      return length <= lengths[edit] && regionEquals(ops[edit],
+          startOf(edit) + lengths[edit] - length, starts1[eq], length);
+    }
+
+    // Does the text of entry edit start with the text of equality eq?
+    private boolean editStartsWith(int edit, int eq) {
+      int length = lengths[eq];
+      return length <= lengths[edit] && regionEquals(ops[edit],
+          startOf(edit), starts1[eq], length);
+    }
+
+    /**
+     * First pass of diff_cleanupSemantic: replace each equality which is no
+     * longer than the edits on both sides of it with a DELETE and an
+     * INSERT.  Walks the entries as a linked list, falling back to earlier
+     * equalities exactly like the list version.
+     * @return true if any equality was split.
+     */
+    boolean splitTrivialEqualities() {
+      int[] next = linkEntries();
+      int count = size;
+      boolean changes = false;
+      // Stack of equalities; lastEquality is the length of the top one, or
+      // -1 if it is not a candidate.
+      int[] equalities = new int[16];
+      int top = 0;
+      int lastEquality = -1;
+      // Number of characters that changed prior to the equality.
+      int length_insertions1 = 0;
+      int length_deletions1 = 0;
+      // Number of characters that changed after the equality.
+      int length_insertions2 = 0;
+      int length_deletions2 = 0;
+      int thisDiff = 0;
+      while (thisDiff != -1) {
+        if (ops[thisDiff] == EQUAL) {
+          // Equality found.
+          if (top == equalities.length) {
+            equalities = Arrays.copyOf(equalities, top * 2);
+          }
+          equalities[top++] = thisDiff;
+          length_insertions1 = length_insertions2;
+          length_deletions1 = length_deletions2;
+          length_insertions2 = 0;
+          length_deletions2 = 0;
+          lastEquality = lengths[thisDiff];
         } else {
-          // Imperfect match.  Run a diff to get a framework of equivalent
-          // indices.
-          LinkedList<Diff> diffs = diff_main(text1, text2, false);
-          if (text1.length() > this.Match_MaxBits
-              && diff_levenshtein(diffs) / (float) text1.length()
-              > this.Patch_DeleteThreshold) {
-            // The end points match, but the content is unacceptably bad.
-            results[x] = false;
+          // An insertion or deletion.
+          if (ops[thisDiff] == INSERT) {
+            length_insertions2 += lengths[thisDiff];
           } else {
-            diff_cleanupSemanticLossless(diffs);
-            int index1 = 0;
-            for (Diff aDiff : aPatch.diffs) {
-              if (aDiff.operation != Operation.EQUAL) {
-                int index2 = diff_xIndex(diffs, index1);
-                if (aDiff.operation == Operation.INSERT) {
-                  // Insertion
-                  text = text.substring(0, start_loc + index2) + aDiff.text
-                      + text.substring(start_loc + index2);
-                } else if (aDiff.operation == Operation.DELETE) {
-                  // Deletion
-                  text = text.substring(0, start_loc + index2)
-                      + text.substring(start_loc + diff_xIndex(diffs,
-                      index1 + aDiff.text.length()));
-                }
-              }
-              if (aDiff.operation != Operation.DELETE) {
-                index1 += aDiff.text.length();
-              }
+            length_deletions2 += lengths[thisDiff];
+          }
+          // Eliminate an equality that is smaller or equal to the edits on
+          // both sides of it.
+          if (lastEquality != -1
+              && lastEquality <= Math.max(length_insertions1, length_deletions1)
+              && lastEquality <= Math.max(length_insertions2, length_deletions2)) {
+            count = splitEquality(equalities[--top], count, next);
+            if (top != 0) {
+              // Throw away the previous equality (it needs to be reevaluated).
+              top--;
             }
+            length_insertions1 = 0;  // Reset the counters.
+            length_insertions2 = 0;
+            length_deletions1 = 0;
+            length_deletions2 = 0;
+            lastEquality = -1;
+            changes = true;
+            // Continue at the last safe equality, or at the start.
+            thisDiff = top != 0 ? equalities[top - 1] : 0;
+            continue;
           }
         }
+        thisDiff = next[thisDiff];
+      }
+      if (changes) {
+        unlinkEntries(next, count);
       }
-      x++;
+      return changes;
     }
-    // Strip the padding off.
-    text = text.substring(nullPadding.length(), text.length()
-        - nullPadding.length());
-    return new Object[]{text, results};
+
+    /**
+     * Link the entries as a list for the passes which split equalities.
+     * Every equality can be split once, so the arrays get room for as many
+     * more entries.
+     * @return The successor of each entry, -1 for the last.
+     */
+    int[] linkEntries() {
+      if (ops.length < 2 * size) {
+        grow(2 * size);
+      }
+      int[] next = new int[2 * size];
+      for (int i = 0; i < size; i++) {
+        next[i] = i + 1;
+      }
+      next[size - 1] = -1;
+      return next;
+    }
+
+    /**
+     * Replace an equality with a DELETE followed by an INSERT of the same
+     * text.  The INSERT is stored at index count and linked in.
+     * @return The new number of stored entries.
+     */
+    int splitEquality(int equality, int count, int[] next) {
+      ops[count] = INSERT;
+      starts1[count] = starts1[equality] + lengths[equality];
+      starts2[count] = starts2[equality];
+      lengths[count] = lengths[equality];
+      ops[equality] = DELETE;
+      next[count] = next[equality];
+      next[equality] = count;
+      return count + 1;
+    }
+
+    /**
+     * Store the linked entries in order again.
+     */
+    void unlinkEntries(int[] next, int count) {
+      ensureScratch(count);
+      int out = 0;
+      for (int i = 0; i != -1; i = next[i]) {
+        out = put(out, ops[i], starts1[i], starts2[i], lengths[i]);
+      }
+      swapScratch(out);
+    }
+
+    // Store an entry in the scratch arrays.
+    int put(int out, byte op, int start1, int start2, int length) {
+      scratchOps[out] = op;
+      scratchStarts1[out] = start1;
+      scratchStarts2[out] = start2;
+      scratchLengths[out] = length;
+      return out + 1;
+    }
+
+    /**
+     * Merge the entries from index from on as if they were a diff of their
+     * own (diff_cleanupMerge).
+     * @param from Index of the first entry; earlier entries are left alone.
+     */
+    void cleanupMerge(int from) {
+      boolean changes = true;
+      while (changes) {
+        mergeRuns(from);
+        changes = shiftSingleEdits(from);
+      }
+    }
+
+    /**
+     * Length of the common prefix of sequence 2 [start2, end2) and
+     * sequence 1 [start1, end1).
+     */
+    abstract int commonPrefix(int start2, int end2, int start1, int end1);
+
+    /**
+     * Length of the common suffix of sequence 2 [start2, end2) and
+     * sequence 1 [start1, end1).
+     */
+    abstract int commonSuffix(int start2, int end2, int start1, int end1);
+
+    /**
+     * Compare a range of the sequence holding entries of type op with a
+     * range of sequence 1.
+     */
+    abstract boolean regionEquals(byte op, int start, int start1, int length);
   }
 
+
   /**
-   * Add some padding on text start and end so that edges can match something.
-   * Intended to be called only from within patch_apply.
-   * @param patches Array of Patch objects.
-   * @return The padding string added to each side.
+   * Compact representation of a diff of two texts.  The text of an entry is
+   * a range of text1 (DELETE, EQUAL) or of text2 (INSERT); nothing is copied
+   * until text() or toDiffs() is called.
+   * Any diff can be stored this way: read in order, the entries of a diff
+   * tile both texts, so every entry is a contiguous range of them.
    */
-  public String patch_addPadding(LinkedList<Patch> patches) {
-    short paddingLength = this.Patch_Margin;
-    String nullPadding = "";
-    for (short x = 1; x <= paddingLength; x++) {
-      nullPadding += String.valueOf((char) x);
+  public static class CompactDiff extends EditScript {
+    /**
+     * Old text; DELETE and EQUAL entries are ranges of it.
+     */
+    public final String text1;
+    /**
+     * New text; INSERT entries are ranges of it.
+     */
+    public final String text2;
+    // Characters of text1 and text2, compared by the cleanup passes.
+    final char[] chars1;
+    final char[] chars2;
+
+    /**
+     * Constructor.  Creates an empty diff of text1 into text2.
+     * @param text1 Old text.
+     * @param text2 New text.
+     */
+    public CompactDiff(String text1, String text2) {
+      this(text1, text2, text1.toCharArray(), text2.toCharArray());
     }
 
-    // Bump all the patches forward.
-    for (Patch aPatch : patches) {
-      aPatch.start1 += paddingLength;
-      aPatch.start2 += paddingLength;
+    CompactDiff(String text1, String text2, char[] chars1, char[] chars2) {
+      this.text1 = text1;
+      this.text2 = text2;
+      this.chars1 = chars1;
+      this.chars2 = chars2;
     }
 
-    // Add some padding on start of first diff.
-    Patch patch = patches.getFirst();
-    LinkedList<Diff> diffs = patch.diffs;
-    if (diffs.isEmpty() || diffs.getFirst().operation != Operation.EQUAL) {
-      // Add nullPadding equality.
-      diffs.addFirst(new Diff(Operation.EQUAL, nullPadding));
-      patch.start1 -= paddingLength;  // Should be 0.
-      patch.start2 -= paddingLength;  // Should be 0.
-      patch.length1 += paddingLength;
-      patch.length2 += paddingLength;
-    } else if (paddingLength > diffs.getFirst().text.length()) {
-      // Grow first equality.
-      Diff firstDiff = diffs.getFirst();
-      int extraLength = paddingLength - firstDiff.text.length();
-      firstDiff.text = nullPadding.substring(firstDiff.text.length())
-          + firstDiff.text;
-      patch.start1 -= extraLength;
-      patch.start2 -= extraLength;
-      patch.length1 += extraLength;
-      patch.length2 += extraLength;
+    /**
+     * Convert a list of Diff objects into the compact representation.
+     * @param diffs List of Diff objects.
+     * @return CompactDiff holding the same operations.
+     */
+    public static CompactDiff fromDiffs(List<Diff> diffs) {
+      StringBuilder text1 = new StringBuilder();
+      StringBuilder text2 = new StringBuilder();
+      for (Diff aDiff : diffs) {
+        if (aDiff.operation != Operation.INSERT) {
+          text1.append(aDiff.text);
+        }
+        if (aDiff.operation != Operation.DELETE) {
+          text2.append(aDiff.text);
+        }
+      }
+      return fromDiffs(text1.toString(), text2.toString(), diffs);
+    }
+
+    /**
+     * Convert a diff of text1 into text2 into the compact representation.
+     * @param text1 Old text.
+     * @param text2 New text.
+     * @param diffs List of Diff objects transforming text1 into text2.
+     * @return CompactDiff holding the same operations.
+     */
+    public static CompactDiff fromDiffs(String text1, String text2,
+                                        List<Diff> diffs) {
+      CompactDiff compact = new CompactDiff(text1, text2);
+      for (Diff aDiff : diffs) {
+        compact.append((byte) aDiff.operation.ordinal(), aDiff.text.length());
+      }
+      return compact;
+    }
+
+    /**
+     * Copy out the text of one entry.
+     * @param index Index of the entry.
+     * @return The text being applied.
+     */
+    public String text(int index) {
+      checkIndex(index);
+      if (ops[index] == INSERT) {
+        return text2.substring(starts2[index], starts2[index] + lengths[index]);
+      }
+      return text1.substring(starts1[index], starts1[index] + lengths[index]);
     }
 
-    // Add some padding on end of last diff.
-    patch = patches.getLast();
-    diffs = patch.diffs;
-    if (diffs.isEmpty() || diffs.getLast().operation != Operation.EQUAL) {
-      // Add nullPadding equality.
-      diffs.addLast(new Diff(Operation.EQUAL, nullPadding));
-      patch.length1 += paddingLength;
-      patch.length2 += paddingLength;
-    } else if (paddingLength > diffs.getLast().text.length()) {
-      // Grow last equality.
-      Diff lastDiff = diffs.getLast();
-      int extraLength = paddingLength - lastDiff.text.length();
-      lastDiff.text += nullPadding.substring(0, extraLength);
-      patch.length1 += extraLength;
-      patch.length2 += extraLength;
+    /**
+     * Convert back into a list of Diff objects.
+     * @return Linked List of Diff objects.
+     */
+    public LinkedList<Diff> toDiffs() {
+      LinkedList<Diff> diffs = new LinkedList<Diff>();
+      for (int i = 0; i < size; i++) {
+        diffs.add(new Diff(OPERATIONS[ops[i]], text(i)));
+      }
+      return diffs;
     }
 
-    return nullPadding;
-  }
+    @Override
+    public String toString() {
+      return toDiffs().toString();
+    }
 
-  /**
-   * Look through the patches and break up any which are longer than the
-   * maximum limit of the match algorithm.
-   * Intended to be called only from within patch_apply.
-   * @param patches LinkedList of Patch objects.
-   */
-  public void patch_splitMax(LinkedList<Patch> patches) {
-    short patch_size = Match_MaxBits;
-    String precontext, postcontext;
-    Patch patch;
-    int start1, start2;
-    boolean empty;
-    Operation diff_type;
-    String diff_text;
-    ListIterator<Patch> pointer = patches.listIterator();
-    Patch bigpatch = pointer.hasNext() ? pointer.next() : null;
-    while (bigpatch != null) {
-      if (bigpatch.length1 <= Match_MaxBits) {
-        bigpatch = pointer.hasNext() ? pointer.next() : null;
-        continue;
+    /**
+     * diff_cleanupSemantic over the arrays: split semantically trivial
+     * equalities, shift edits to word boundaries and extract overlaps.
+     */
+    void cleanupSemantic() {
+      if (size == 0) {
+        return;
       }
-      // Remove the big old patch.
-      pointer.remove();
-      start1 = bigpatch.start1;
-      start2 = bigpatch.start2;
-      precontext = "";
-      while (!bigpatch.diffs.isEmpty()) {
-        // Create one of several smaller patches.
-        patch = new Patch();
-        empty = true;
-        patch.start1 = start1 - precontext.length();
-        patch.start2 = start2 - precontext.length();
-        if (precontext.length() != 0) {
-          patch.length1 = patch.length2 = precontext.length();
-          patch.diffs.add(new Diff(Operation.EQUAL, precontext));
-        }
-        while (!bigpatch.diffs.isEmpty()
-            && patch.length1 < patch_size - Patch_Margin) {
-          diff_type = bigpatch.diffs.getFirst().operation;
-          diff_text = bigpatch.diffs.getFirst().text;
-          if (diff_type == Operation.INSERT) {
-            // Insertions are harmless.
-            patch.length2 += diff_text.length();
-            start2 += diff_text.length();
-            patch.diffs.addLast(bigpatch.diffs.removeFirst());
-            empty = false;
-          } else if (diff_type == Operation.DELETE && patch.diffs.size() == 1
-              && patch.diffs.getFirst().operation == Operation.EQUAL
-              && diff_text.length() > 2 * patch_size) {
-            // This is a large deletion.  Let it pass in one chunk.
-            patch.length1 += diff_text.length();
-            start1 += diff_text.length();
-            empty = false;
-            patch.diffs.add(new Diff(diff_type, diff_text));
-            bigpatch.diffs.removeFirst();
+      if (splitTrivialEqualities()) {
+        cleanupMerge(0);
+      }
+      cleanupSemanticLossless();
+      extractOverlaps();
+    }
+
+    /**
+     * diff_cleanupEfficiency over the arrays: split operationally trivial
+     * equalities.  Walks the entries as a linked list, falling back to
+     * earlier equalities exactly like the list version.
+     * @param editCost Cost of an empty edit operation in terms of edit
+     *     characters (Diff_EditCost).
+     */
+    void cleanupEfficiency(int editCost) {
+      if (size == 0) {
+        return;
+      }
+      int[] next = linkEntries();
+      int count = size;
+      boolean changes = false;
+      // Stack of candidate equalities; lastEquality is the length of the top
+      // one, or -1 if there is none.
+      int[] equalities = new int[16];
+      int top = 0;
+      int lastEquality = -1;
+      // Is there an insertion operation before the last equality.
+      boolean pre_ins = false;
+      // Is there a deletion operation before the last equality.
+      boolean pre_del = false;
+      // Is there an insertion operation after the last equality.
+      boolean post_ins = false;
+      // Is there a deletion operation after the last equality.
+      boolean post_del = false;
+      int thisDiff = 0;
+      int safeDiff = 0;  // The last entry that is known to be unsplittable.
+      while (thisDiff != -1) {
+        if (ops[thisDiff] == EQUAL) {
+          // Equality found.
+          if (lengths[thisDiff] < editCost && (post_ins || post_del)) {
+            // Candidate found.
+            if (top == equalities.length) {
+              equalities = Arrays.copyOf(equalities, top * 2);
+            }
+            equalities[top++] = thisDiff;
+            pre_ins = post_ins;
+            pre_del = post_del;
+            lastEquality = lengths[thisDiff];
           } else {
-            // Deletion or equality.  Only take as much as we can stomach.
-            diff_text = diff_text.substring(0, Math.min(diff_text.length(),
-                patch_size - patch.length1 - Patch_Margin));
-            patch.length1 += diff_text.length();
-            start1 += diff_text.length();
-            if (diff_type == Operation.EQUAL) {
-              patch.length2 += diff_text.length();
-              start2 += diff_text.length();
+            // Not a candidate, and can never become one.
+            top = 0;
+            lastEquality = -1;
+            safeDiff = thisDiff;
+          }
+          post_ins = post_del = false;
+        } else {
+          // An insertion or deletion.
+          if (ops[thisDiff] == DELETE) {
+            post_del = true;
+          } else {
+            post_ins = true;
+          }
+          // The same five types of split as the list version.
+          if (lastEquality != -1
+              && ((pre_ins && pre_del && post_ins && post_del)
+                  || ((lastEquality < editCost / 2)
+                      && ((pre_ins ? 1 : 0) + (pre_del ? 1 : 0)
+                          + (post_ins ? 1 : 0) + (post_del ? 1 : 0)) == 3))) {
+            int insertion = count;
+            count = splitEquality(equalities[--top], count, next);
+            lastEquality = -1;
+            changes = true;
+            if (pre_ins && pre_del) {
+              // No changes made which could affect previous entry, keep going.
+              post_ins = post_del = true;
+              top = 0;
+              safeDiff = insertion;
+              thisDiff = insertion;
             } else {
-              empty = false;
+              if (top != 0) {
+                // Throw away the previous equality (it needs to be reevaluated).
+                top--;
+              }
+              // Continue at the last candidate equality, or at the last
+              // known safe entry.
+              thisDiff = top != 0 ? equalities[top - 1] : safeDiff;
+              post_ins = post_del = false;
+              continue;
             }
-            patch.diffs.add(new Diff(diff_type, diff_text));
-            if (diff_text.equals(bigpatch.diffs.getFirst().text)) {
-              bigpatch.diffs.removeFirst();
-            } else {
-              bigpatch.diffs.getFirst().text = bigpatch.diffs.getFirst().text
-                  .substring(diff_text.length());
+          }
+        }
+        thisDiff = next[thisDiff];
+      }
+      if (changes) {
+        unlinkEntries(next, count);
+        cleanupMerge(0);
+      }
+    }
+
+    /**
+     * diff_cleanupSemanticLossless over the arrays: shift single edits
+     * between equalities to the best scoring boundary.  Shifting an edit
+     * only moves its range within its own text, so every candidate boundary
+     * is scored in place.
+     */
+    void cleanupSemanticLossless() {
+      if (size < 3) {
+        return;
+      }
+      CharSequence sequence1 = CharBuffer.wrap(chars1);
+      CharSequence sequence2 = CharBuffer.wrap(chars2);
+      // Entries [0, settled) are final; settled - 1 is prevDiff.
+      int settled = 1;
+      int thisDiff = 1;
+      while (thisDiff + 1 < size) {
+        int prevDiff = settled - 1;
+        int nextDiff = thisDiff + 1;
+        if (ops[prevDiff] == EQUAL && ops[nextDiff] == EQUAL) {
+          // This is a single edit surrounded by equalities.  In the edit's
+          // own text the three are contiguous: [low, edit, high).
+          char[] text = ops[thisDiff] == INSERT ? chars2 : chars1;
+          CharSequence sequence = ops[thisDiff] == INSERT ? sequence2 : sequence1;
+          int edit = startOf(thisDiff);
+          int length = lengths[thisDiff];
+          int low = edit - lengths[prevDiff];
+          int high = edit + length + lengths[nextDiff];
+
+          // First, shift the edit as far left as possible.
+          int start = edit - diff_match_patch.commonSuffix(text, low, edit,
+                                                           text, edit, edit + length);
+
+          // Second, step character by character right, looking for the best fit.
+          int best = start;
+          int bestScore = semanticScore(sequence, low, start, sequence, start, start + length)
+              + semanticScore(sequence, start, start + length, sequence, start + length, high);
+          while (length != 0 && start + length != high
+              && text[start] == text[start + length]) {
+            start++;
+            int score = semanticScore(sequence, low, start, sequence, start, start + length)
+                + semanticScore(sequence, start, start + length, sequence, start + length, high);
+            // The >= encourages trailing rather than leading whitespace on edits.
+            if (score >= bestScore) {
+              bestScore = score;
+              best = start;
+            }
+          }
+
+          int shift = best - edit;
+          if (shift != 0) {
+            // We have an improvement, save it back to the diff.
+            lengths[prevDiff] += shift;
+            starts1[thisDiff] += shift;
+            starts2[thisDiff] += shift;
+            starts1[nextDiff] += shift;
+            starts2[nextDiff] += shift;
+            lengths[nextDiff] -= shift;
+            if (lengths[prevDiff] == 0) {
+              settled--;  // Delete prevDiff.
+            }
+            if (lengths[nextDiff] == 0) {
+              // Delete nextDiff; the edit is checked again against the entry
+              // after it.
+              copy(thisDiff, nextDiff);
+              thisDiff = nextDiff;
+              continue;
             }
           }
         }
-        // Compute the head context for the next patch.
-        precontext = diff_text2(patch.diffs);
-        precontext = precontext.substring(Math.max(0, precontext.length()
-            - Patch_Margin));
-        // Append the end context for this patch.
-        if (diff_text1(bigpatch.diffs).length() > Patch_Margin) {
-          postcontext = diff_text1(bigpatch.diffs).substring(0, Patch_Margin);
-        } else {
-          postcontext = diff_text1(bigpatch.diffs);
+        copy(thisDiff++, settled++);
+      }
+      while (thisDiff < size) {
+        copy(thisDiff++, settled++);
+      }
+      size = settled;
+    }
+
+    /**
+     * Last pass of diff_cleanupSemantic: find overlaps between a deletion
+     * and the insertion after it, and extract them as an equality if they
+     * are as big as the edit ahead or behind them.
+     * e.g: <del>abcxxx</del><ins>xxxdef</ins>
+     *   -> <del>abc</del>xxx<ins>def</ins>
+     * e.g: <del>xxxabc</del><ins>defxxx</ins>
+     *   -> <ins>def</ins>xxx<del>abc</del>
+     */
+    private void extractOverlaps() {
+      if (size < 2) {
+        return;
+      }
+      // Every pair gains at most one equality.
+      ensureScratch(size + size / 2 + 1);
+      // prevDiff is always the last entry stored; thisDiff is read from the
+      // input.
+      int out = put(0, ops[0], starts1[0], starts2[0], lengths[0]);
+      int thisDiff = 1;
+      while (thisDiff < size) {
+        int prevDiff = out - 1;
+        if (scratchOps[prevDiff] != DELETE || ops[thisDiff] != INSERT) {
+          out = put(out, ops[thisDiff], starts1[thisDiff], starts2[thisDiff],
+                    lengths[thisDiff]);
+          thisDiff++;
+          continue;
         }
-        if (postcontext.length() != 0) {
-          patch.length1 += postcontext.length();
-          patch.length2 += postcontext.length();
-          if (!patch.diffs.isEmpty()
-              && patch.diffs.getLast().operation == Operation.EQUAL) {
-            patch.diffs.getLast().text += postcontext;
-          } else {
-            patch.diffs.add(new Diff(Operation.EQUAL, postcontext));
+        int deletion = scratchStarts1[prevDiff];
+        int deletion_length = scratchLengths[prevDiff];
+        int insertion = starts2[thisDiff];
+        int insertion_length = lengths[thisDiff];
+        int overlap_length1 = commonOverlap(chars1, deletion, deletion + deletion_length,
+                                            chars2, insertion, insertion + insertion_length);
+        int overlap_length2 = commonOverlap(chars2, insertion, insertion + insertion_length,
+                                            chars1, deletion, deletion + deletion_length);
+        if (overlap_length1 >= overlap_length2
+            && (overlap_length1 >= deletion_length / 2.0
+                || overlap_length1 >= insertion_length / 2.0)) {
+          // Overlap found.  Insert an equality and trim the surrounding edits.
+          scratchLengths[prevDiff] = deletion_length - overlap_length1;
+          out = put(out, EQUAL, deletion + deletion_length - overlap_length1,
+                    insertion, overlap_length1);
+          out = put(out, INSERT, deletion + deletion_length,
+                    insertion + overlap_length1, insertion_length - overlap_length1);
+          // The trimmed insertion is the prevDiff of the next pair.
+          thisDiff++;
+        } else if (overlap_length1 < overlap_length2
+            && (overlap_length2 >= deletion_length / 2.0
+                || overlap_length2 >= insertion_length / 2.0)) {
+          // Reverse overlap found.
+          // Insert an equality and swap and trim the surrounding edits.
+          scratchOps[prevDiff] = INSERT;
+          scratchStarts2[prevDiff] = insertion;
+          scratchLengths[prevDiff] = insertion_length - overlap_length2;
+          out = put(out, EQUAL, deletion,
+                    insertion + insertion_length - overlap_length2, overlap_length2);
+          out = put(out, DELETE, deletion + overlap_length2,
+                    insertion + insertion_length, deletion_length - overlap_length2);
+          // The trimmed deletion is the prevDiff of the next pair.
+          thisDiff++;
+        } else {
+          // No overlap: the entry after the insertion is the next prevDiff.
+          out = put(out, INSERT, starts1[thisDiff], insertion, insertion_length);
+          thisDiff++;
+          if (thisDiff < size) {
+            out = put(out, ops[thisDiff], starts1[thisDiff], starts2[thisDiff],
+                      lengths[thisDiff]);
+            thisDiff++;
           }
         }
-        if (!empty) {
-          pointer.add(patch);
-        }
       }
-      bigpatch = pointer.hasNext() ? pointer.next() : null;
+      swapScratch(out);
     }
-  }
 
-  /**
-   * Take a list of patches and return a textual representation.
-   * @param patches List of Patch objects.
-   * @return Text representation of patches.
-   */
-  public String patch_toText(List<Patch> patches) {
-    StringBuilder text = new StringBuilder();
-    for (Patch aPatch : patches) {
-      text.append(aPatch);
+    @Override
+    int commonPrefix(int start2, int end2, int start1, int end1) {
+      return diff_match_patch.commonPrefix(chars2, start2, end2,
+                                           chars1, start1, end1);
+    }
+
+    @Override
+    int commonSuffix(int start2, int end2, int start1, int end1) {
+      return diff_match_patch.commonSuffix(chars2, start2, end2,
+                                           chars1, start1, end1);
+    }
+
+    @Override
+    boolean regionEquals(byte op, int start, int start1, int length) {
+      return Arrays.equals(op == INSERT ? chars2 : chars1, start, start + length,
+                           chars1, start1, start1 + length);
     }
-    return text.toString();
   }
 
+
   /**
-   * Parse a textual representation of patches and return a List of Patch
-   * objects.
-   * @param textline Text representation of patches.
-   * @return List of Patch objects.
-   * @throws IllegalArgumentException If invalid input.
+   * Compact representation of a diff of two int sequences, such as line
+   * tokens.  Same layout and merge rules as CompactDiff, with offsets and
+   * lengths counted in tokens.
    */
-  public List<Patch> patch_fromText(String textline)
-      throws IllegalArgumentException {
-    List<Patch> patches = new LinkedList<Patch>();
-    if (textline.length() == 0) {
-      return patches;
+  public static final class TokenDiff extends EditScript {
+    /**
+     * Old sequence; DELETE and EQUAL entries are ranges of it.
+     */
+    public final int[] tokens1;
+    /**
+     * New sequence; INSERT entries are ranges of it.
+     */
+    public final int[] tokens2;
+
+    TokenDiff(int[] tokens1, int[] tokens2) {
+      this.tokens1 = tokens1;
+      this.tokens2 = tokens2;
     }
-    List<String> textList = Arrays.asList(textline.split("\n"));
-    LinkedList<String> text = new LinkedList<String>(textList);
-    Patch patch;
-    Pattern patchHeader
-        = Pattern.compile("^@@ -(\\d+),?(\\d*) \\+(\\d+),?(\\d*) @@$");
-    Matcher m;
-    char sign;
-    String line;
-    while (!text.isEmpty()) {
-      m = patchHeader.matcher(text.getFirst());
-      if (!m.matches()) {
-        throw new IllegalArgumentException(
-            "Invalid patch string: " + text.getFirst());
-      }
-      patch = new Patch();
-      patches.add(patch);
-      patch.start1 = Integer.parseInt(m.group(1));
-      if (m.group(2).length() == 0) {
-        patch.start1--;
-        patch.length1 = 1;
-      } else if (m.group(2).equals("0")) {
-        patch.length1 = 0;
-      } else {
-        patch.start1--;
-        patch.length1 = Integer.parseInt(m.group(2));
+
+    /**
+     * First pass of diff_cleanupSemantic over token counts, then merge.
+     */
+    void cleanupSemantic() {
+      if (size != 0 && splitTrivialEqualities()) {
+        cleanupMerge(0);
       }
+    }
 
-      patch.start2 = Integer.parseInt(m.group(3));
-      if (m.group(4).length() == 0) {
-        patch.start2--;
-        patch.length2 = 1;
-      } else if (m.group(4).equals("0")) {
-        patch.length2 = 0;
-      } else {
-        patch.start2--;
-        patch.length2 = Integer.parseInt(m.group(4));
+    /**
+     * Copy out the tokens of one entry.
+     * @param index Index of the entry.
+     * @return The tokens being applied.
+     */
+    public int[] tokens(int index) {
+      checkIndex(index);
+      int start = starts1[index];
+      int[] tokens = tokens1;
+      if (ops[index] == INSERT) {
+        start = starts2[index];
+        tokens = tokens2;
       }
-      text.removeFirst();
+      return Arrays.copyOfRange(tokens, start, start + lengths[index]);
+    }
 
-      while (!text.isEmpty()) {
-        try {
-          sign = text.getFirst().charAt(0);
-        } catch (IndexOutOfBoundsException e) {
-          // Blank line?  Whatever.
-          text.removeFirst();
-          continue;
-        }
-        line = text.getFirst().substring(1);
-        line = line.replace("+", "%2B");  // decode would change all "+" to " "
-        try {
-          line = URLDecoder.decode(line, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-          // Not likely on modern system.
-          throw new Error("This system does not support UTF-8.", e);
-        } catch (IllegalArgumentException e) {
-          // Malformed URI sequence.
-          throw new IllegalArgumentException(
-              "Illegal escape in patch_fromText: " + line, e);
-        }
-        if (sign == '-') {
-          // Deletion.
-          patch.diffs.add(new Diff(Operation.DELETE, line));
-        } else if (sign == '+') {
-          // Insertion.
-          patch.diffs.add(new Diff(Operation.INSERT, line));
-        } else if (sign == ' ') {
-          // Minor equality.
-          patch.diffs.add(new Diff(Operation.EQUAL, line));
-        } else if (sign == '@') {
-          // Start of next patch.
-          break;
-        } else {
-          // WTF?
-          throw new IllegalArgumentException(
-              "Invalid patch mode '" + sign + "' in: " + line);
+    @Override
+    public String toString() {
+      StringBuilder text = new StringBuilder("[");
+      for (int i = 0; i < size; i++) {
+        if (i != 0) {
+          text.append(", ");
         }
-        text.removeFirst();
+        text.append(OPERATIONS[ops[i]]).append(Arrays.toString(tokens(i)));
       }
+      return text.append(']').toString();
+    }
+
+    @Override
+    int commonPrefix(int start2, int end2, int start1, int end1) {
+      return diff_match_patch.commonPrefix(tokens2, start2, end2,
+                                           tokens1, start1, end1);
+    }
+
+    @Override
+    int commonSuffix(int start2, int end2, int start1, int end1) {
+      return diff_match_patch.commonSuffix(tokens2, start2, end2,
+                                           tokens1, start1, end1);
+    }
+
+    @Override
+    boolean regionEquals(byte op, int start, int start1, int length) {
+      return Arrays.equals(op == INSERT ? tokens2 : tokens1, start, start + length,
+                           tokens1, start1, start1 + length);
     }
-    return patches;
   }
 
 
   /**
-   * Class representing one diff operation.
+   * Translates locations between the two texts of a diff, with the same
+   * results as diff_xIndex.  One pass over the diff records where each
+   * entry starts in text1 and in text2; a location is then found by binary
+   * search over these prefix sums, in O(log n), and a sorted array of
+   * locations by merging it with them, in O(n + locations).
    */
-  public static class Diff {
+  public static final class LocationMap {
+    private final byte[] ops;
+    // Entry i covers [starts1[i], starts1[i + 1]) of text1 and
+    // [starts2[i], starts2[i + 1]) of text2; the last element of each holds
+    // the end of the text.
+    private final int[] starts1;
+    private final int[] starts2;
+    private final int size;
+
     /**
-     * One of: INSERT, DELETE or EQUAL.
+     * Map the locations of a diff of two whole texts.
+     * @param diffs List of Diff objects.
      */
-    public Operation operation;
+    public LocationMap(List<Diff> diffs) {
+      size = diffs.size();
+      ops = new byte[size];
+      starts1 = new int[size + 1];
+      starts2 = new int[size + 1];
+      int i = 0;
+      for (Diff aDiff : diffs) {
+        int length = aDiff.text.length();
+        ops[i] = (byte) aDiff.operation.ordinal();
+        starts1[i + 1] = starts1[i]
+            + (aDiff.operation == Operation.INSERT ? 0 : length);
+        starts2[i + 1] = starts2[i]
+            + (aDiff.operation == Operation.DELETE ? 0 : length);
+        i++;
+      }
+    }
+
     /**
-     * The text associated with this diff operation.
+     * Map the locations of a CompactDiff or TokenDiff of two whole
+     * sequences.
+     * @param diffs The diff.
      */
-    public String text;
+    public LocationMap(EditScript diffs) {
+      size = diffs.size;
+      ops = Arrays.copyOf(diffs.ops, size);
+      starts1 = Arrays.copyOf(diffs.starts1, size + 1);
+      starts2 = Arrays.copyOf(diffs.starts2, size + 1);
+      if (size > 0) {
+        starts1[size] = diffs.end1(size - 1);
+        starts2[size] = diffs.end2(size - 1);
+      }
+    }
 
     /**
-     * Constructor.  Initializes the diff with the provided values.
-     * @param operation One of INSERT, DELETE or EQUAL.
-     * @param text The text being applied.
+     * Location in text2 equivalent to a location in text1, as
+     * diff_xIndex.
+     * @param loc Location within text1.
+     * @return Location within text2.
      */
-    public Diff(Operation operation, String text) {
-      // Construct a diff with the specified operation and text.
-      this.operation = operation;
-      this.text = text;
+    public int toText2(int loc) {
+      return translate(starts1, starts2, EditScript.DELETE, loc,
+                       entryAt(starts1, loc));
     }
 
     /**
-     * Display a human-readable version of this Diff.
-     * @return text version.
+     * Location in text1 equivalent to a location in text2: the reverse of
+     * toText2.  A location inside an insertion maps to where it was
+     * inserted.
+     * @param loc Location within text2.
+     * @return Location within text1.
      */
-    public String toString() {
-      String prettyText = this.text.replace('\n', '\u00b6');
-      return "Diff(" + this.operation + ",\"" + prettyText + "\")";
+    public int toText1(int loc) {
+      return translate(starts2, starts1, EditScript.INSERT, loc,
+                       entryAt(starts2, loc));
     }
 
     /**
-     * Create a numeric hash value for a Diff.
-     * This function is not used by DMP.
-     * @return Hash value.
+     * Replace each location in text1 by the equivalent location in text2.
+     * @param locs Locations within text1, in ascending order.
+     * @throws IllegalArgumentException If the locations are not in
+     *     ascending order.
      */
-    @Override
-    public int hashCode() {
-      final int prime = 31;
-      int result = (operation == null) ? 0 : operation.hashCode();
-      result += prime * ((text == null) ? 0 : text.hashCode());
-      return result;
+    public void toText2(int[] locs) {
+      translate(starts1, starts2, EditScript.DELETE, locs);
     }
 
     /**
-     * Is this Diff equivalent to another Diff?
-     * @param obj Another Diff to compare against.
-     * @return true or false.
+     * Replace each location in text2 by the equivalent location in text1.
+     * @param locs Locations within text2, in ascending order.
+     * @throws IllegalArgumentException If the locations are not in
+     *     ascending order.
      */
-    @Override
-    public boolean equals(Object obj) {
-      if (this == obj) {
-        return true;
-      }
-      if (obj == null) {
-        return false;
-      }
-      if (getClass() != obj.getClass()) {
-        return false;
+    public void toText1(int[] locs) {
+      translate(starts2, starts1, EditScript.INSERT, locs);
+    }
+
+    private void translate(int[] from, int[] to, byte collapsed, int[] locs) {
+      int entry = 0;
+      int previous = Integer.MIN_VALUE;
+      for (int k = 0; k < locs.length; k++) {
+        int loc = locs[k];
+        if (loc < previous) {
+          throw new IllegalArgumentException(
+              "Locations are not in ascending order: " + previous + ", " + loc);
+        }
+        previous = loc;
+        while (entry < size && from[entry + 1] <= loc) {
+          entry++;
+        }
+        locs[k] = translate(from, to, collapsed, loc, entry);
       }
-      Diff other = (Diff) obj;
-      if (operation != other.operation) {
-        return false;
+    }
+
+    /**
+     * @param from Entry starts in the source text.
+     * @param to Entry starts in the target text.
+     * @param collapsed Operation whose entries are empty in the target text.
+     * @param loc Location within the source text.
+     * @param entry Entry containing loc, or size if loc is past the end.
+     * @return Location within the target text.
+     */
+    private int translate(int[] from, int[] to, byte collapsed, int loc,
+                          int entry) {
+      if (entry < size && ops[entry] == collapsed) {
+        // The location was deleted (or inserted, going back).
+        return to[entry];
       }
-      if (text == null) {
-        if (other.text != null) {
-          return false;
+      // Add the remaining length.
+      return to[entry] + (loc - from[entry]);
+    }
+
+    // First entry ending after loc in the source text, or size if none.
+    // Only entries which are not empty there can, so it contains loc.
+    private int entryAt(int[] from, int loc) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (from[mid + 1] <= loc) {
+          low = mid + 1;
+        } else {
+          high = mid;
         }
-      } else if (!text.equals(other.text)) {
-        return false;
       }
-      return true;
+      return low;
     }
   }
 
@@ -2447,6 +6603,785 @@ public class diff_match_patch {
     }
   }
 
+  /**
+   * Patches for patch_apply as ranges of one char array, holding the texts
+   * of all their diffs between a padding at either end.  Padding and
+   * splitting only move range ends, so the caller's patches need no deep
+   * copy and no diff text is cut into substrings; the few characters of
+   * context which a split joins from several diffs are appended to the
+   * array.  Diff d has operation ops[d] and text chars[starts[d], ends[d]);
+   * patch p has diffs firstDiff[p] to firstDiff[p + 1], or to diffCount.
+   */
+  private static final class PatchRanges {
+    char[] chars;
+    int charCount;
+    byte[] ops = new byte[16];
+    int[] starts = new int[16];
+    int[] ends = new int[16];
+    int diffCount;
+    int[] start1s = new int[4];
+    int[] start2s = new int[4];
+    int[] length1s = new int[4];
+    int[] length2s = new int[4];
+    int[] firstDiff = new int[4];
+    int patchCount;
+
+    private PatchRanges() {
+    }
+
+    /**
+     * Copy the patches with the padding of patch_addPadding: characters 1
+     * to margin before and after their texts.  The first diff's text
+     * follows the leading padding and the last diff's text precedes the
+     * trailing one, so growing either equality only moves one end.
+     * @param patches Non-empty list of Patch objects.
+     * @param margin Length of the padding.
+     */
+    PatchRanges(List<Patch> patches, short margin) {
+      int length = 2 * margin;
+      for (Patch aPatch : patches) {
+        for (Diff aDiff : aPatch.diffs) {
+          length += aDiff.text.length();
+        }
+      }
+      chars = new char[length + (length >> 3)];
+      for (int i = 0; i < margin; i++) {
+        chars[i] = (char) (i + 1);
+      }
+      charCount = margin;
+      for (Patch aPatch : patches) {
+        int p = addPatch(aPatch.start1 + margin, aPatch.start2 + margin,
+                         aPatch.length1, aPatch.length2);
+        if (p == 0 && (aPatch.diffs.isEmpty()
+            || aPatch.diffs.getFirst().operation != Operation.EQUAL)) {
+          // Add padding equality.
+          addDiff(EditScript.EQUAL, 0, margin);
+          grow(p, -margin, margin);
+        }
+        for (Diff aDiff : aPatch.diffs) {
+          int start = charCount;
+          aDiff.text.getChars(0, aDiff.text.length(), chars, start);
+          charCount += aDiff.text.length();
+          addDiff((byte) aDiff.operation.ordinal(), start, charCount);
+          if (p == 0 && diffCount == 1 && margin > charCount - start) {
+            // Grow first equality.
+            int extraLength = margin - (charCount - start);
+            starts[0] -= extraLength;
+            grow(p, -extraLength, extraLength);
+          }
+        }
+      }
+      int p = patchCount - 1;
+      int last = diffCount - 1;
+      int trailing = charCount;
+      for (int i = 0; i < margin; i++) {
+        chars[charCount++] = (char) (i + 1);
+      }
+      if (last < firstDiff[p] || ops[last] != EditScript.EQUAL) {
+        // Add padding equality.
+        addDiff(EditScript.EQUAL, trailing, charCount);
+        grow(p, 0, margin);
+      } else if (margin > ends[last] - starts[last]) {
+        // Grow last equality.
+        int extraLength = margin - (ends[last] - starts[last]);
+        ends[last] += extraLength;
+        grow(p, 0, extraLength);
+      }
+    }
+
+    private void grow(int p, int shift, int length) {
+      start1s[p] += shift;
+      start2s[p] += shift;
+      length1s[p] += length;
+      length2s[p] += length;
+    }
+
+    int diffEnd(int p) {
+      return p + 1 < patchCount ? firstDiff[p + 1] : diffCount;
+    }
+
+    int addPatch(int start1, int start2, int length1, int length2) {
+      if (patchCount == firstDiff.length) {
+        int capacity = patchCount * 2;
+        start1s = Arrays.copyOf(start1s, capacity);
+        start2s = Arrays.copyOf(start2s, capacity);
+        length1s = Arrays.copyOf(length1s, capacity);
+        length2s = Arrays.copyOf(length2s, capacity);
+        firstDiff = Arrays.copyOf(firstDiff, capacity);
+      }
+      start1s[patchCount] = start1;
+      start2s[patchCount] = start2;
+      length1s[patchCount] = length1;
+      length2s[patchCount] = length2;
+      firstDiff[patchCount] = diffCount;
+      return patchCount++;
+    }
+
+    void addDiff(byte op, int start, int end) {
+      if (diffCount == ops.length) {
+        int capacity = diffCount * 2;
+        ops = Arrays.copyOf(ops, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+      }
+      ops[diffCount] = op;
+      starts[diffCount] = start;
+      ends[diffCount] = end;
+      diffCount++;
+    }
+
+    /**
+     * Copy chars[start, end) to the end of the array.
+     */
+    private void appendChars(int start, int end) {
+      if (charCount + end - start > chars.length) {
+        chars = Arrays.copyOf(chars,
+            Math.max(chars.length * 2, charCount + end - start));
+      }
+      System.arraycopy(chars, start, chars, charCount, end - start);
+      charCount += end - start;
+    }
+
+    /**
+     * Break up the patches longer than patchSize, as patch_splitMax does.
+     * @param patchSize Longest text1 of a patch which is kept whole.
+     * @param margin Length of the contexts.
+     * @return The split patches, sharing (and extending) the char array.
+     */
+    PatchRanges splitMax(short patchSize, short margin) {
+      PatchRanges out = new PatchRanges();
+      out.chars = chars;
+      out.charCount = charCount;
+      for (int p = 0; p < patchCount; p++) {
+        int d = firstDiff[p];
+        int last = diffEnd(p);
+        if (length1s[p] <= patchSize) {
+          out.addPatch(start1s[p], start2s[p], length1s[p], length2s[p]);
+          for (; d < last; d++) {
+            out.addDiff(ops[d], starts[d], ends[d]);
+          }
+          continue;
+        }
+        int start1 = start1s[p];
+        int start2 = start2s[p];
+        // Length of text1 of the rest of the big patch, which starts at
+        // chars[from] of diff d.
+        int rest1 = 0;
+        for (int i = d; i < last; i++) {
+          if (ops[i] != EditScript.INSERT) {
+            rest1 += ends[i] - starts[i];
+          }
+        }
+        int from = d < last ? starts[d] : 0;
+        int preStart = 0, preEnd = 0;
+        while (d < last) {
+          // Create one of several smaller patches.
+          int preLength = preEnd - preStart;
+          int q = out.addPatch(start1 - preLength, start2 - preLength, 0, 0);
+          boolean empty = true;
+          if (preLength != 0) {
+            out.length1s[q] = out.length2s[q] = preLength;
+            out.addDiff(EditScript.EQUAL, preStart, preEnd);
+          }
+          while (d < last && out.length1s[q] < patchSize - margin) {
+            byte op = ops[d];
+            int length = ends[d] - from;
+            if (op == EditScript.INSERT) {
+              // Insertions are harmless.
+              out.length2s[q] += length;
+              start2 += length;
+              out.addDiff(op, from, ends[d]);
+              empty = false;
+              if (++d < last) {
+                from = starts[d];
+              }
+            } else if (op == EditScript.DELETE
+                && out.diffCount - out.firstDiff[q] == 1
+                && out.ops[out.firstDiff[q]] == EditScript.EQUAL
+                && length > 2 * patchSize) {
+              // This is a large deletion.  Let it pass in one chunk.
+              out.length1s[q] += length;
+              start1 += length;
+              rest1 -= length;
+              empty = false;
+              out.addDiff(op, from, ends[d]);
+              if (++d < last) {
+                from = starts[d];
+              }
+            } else {
+              // Deletion or equality.  Only take as much as we can stomach.
+              int taken = Math.min(length,
+                  patchSize - out.length1s[q] - margin);
+              out.length1s[q] += taken;
+              start1 += taken;
+              rest1 -= taken;
+              if (op == EditScript.EQUAL) {
+                out.length2s[q] += taken;
+                start2 += taken;
+              } else {
+                empty = false;
+              }
+              out.addDiff(op, from, from + taken);
+              if (taken == length) {
+                if (++d < last) {
+                  from = starts[d];
+                }
+              } else {
+                from += taken;
+              }
+            }
+          }
+          // Compute the head context for the next patch: the end of text2
+          // of this one.
+          int k = out.diffCount;
+          int need = margin;
+          int tailStart = 0;
+          while (k > out.firstDiff[q] && need > 0) {
+            k--;
+            if (out.ops[k] != EditScript.DELETE) {
+              int length = Math.min(need, out.ends[k] - out.starts[k]);
+              need -= length;
+              tailStart = out.ends[k] - length;
+            }
+          }
+          preStart = preEnd = out.charCount;
+          for (int i = k; i < out.diffCount; i++) {
+            if (out.ops[i] != EditScript.DELETE) {
+              int start = i == k ? tailStart : out.starts[i];
+              if (preStart == preEnd) {
+                preStart = start;
+                preEnd = out.ends[i];
+              } else if (preEnd == start) {
+                preEnd = out.ends[i];
+              } else {
+                // Context from several diffs; join them.
+                if (preEnd != out.charCount) {
+                  int joined = out.charCount;
+                  out.appendChars(preStart, preEnd);
+                  preStart = joined;
+                }
+                out.appendChars(start, out.ends[i]);
+                preEnd = out.charCount;
+              }
+            }
+          }
+          // Append the end context for this patch: the start of text1 of
+          // the rest of the big patch.
+          int postLength = Math.min(margin, rest1);
+          if (postLength != 0) {
+            out.length1s[q] += postLength;
+            out.length2s[q] += postLength;
+            int lastDiff = out.diffCount - 1;
+            boolean merge = lastDiff >= out.firstDiff[q]
+                && out.ops[lastDiff] == EditScript.EQUAL;
+            int postStart, postEnd;
+            if (merge) {
+              postStart = out.starts[lastDiff];
+              postEnd = out.ends[lastDiff];
+            } else {
+              postStart = postEnd = out.charCount;
+            }
+            need = postLength;
+            for (int i = d, start = from; need > 0; i++) {
+              if (i > d) {
+                start = starts[i];
+              }
+              if (ops[i] == EditScript.INSERT) {
+                continue;
+              }
+              int end = start + Math.min(need, ends[i] - start);
+              need -= end - start;
+              if (postStart == postEnd) {
+                postStart = start;
+                postEnd = end;
+              } else if (postEnd == start) {
+                postEnd = end;
+              } else {
+                // Context from several diffs; join them.
+                if (postEnd != out.charCount) {
+                  int joined = out.charCount;
+                  out.appendChars(postStart, postEnd);
+                  postStart = joined;
+                }
+                out.appendChars(start, end);
+                postEnd = out.charCount;
+              }
+            }
+            if (merge) {
+              out.starts[lastDiff] = postStart;
+              out.ends[lastDiff] = postEnd;
+            } else {
+              out.addDiff(EditScript.EQUAL, postStart, postEnd);
+            }
+          }
+          if (empty) {
+            out.diffCount = out.firstDiff[q];
+            out.patchCount--;
+          }
+        }
+      }
+      return out;
+    }
+
+    /**
+     * Text1 or text2 of patch p.
+     * @param p Index of the patch.
+     * @param skip DELETE for text2 or INSERT for text1.
+     */
+    String text(int p, byte skip) {
+      StringBuilder text = new StringBuilder();
+      for (int d = firstDiff[p], last = diffEnd(p); d < last; d++) {
+        if (ops[d] != skip) {
+          text.append(chars, starts[d], ends[d] - starts[d]);
+        }
+      }
+      return text.toString();
+    }
+  }
+
+  /**
+   * Lines of a patch text for patch_fromText, from a CharSequence or read
+   * through a Reader.  The current line is chars[start, end): a range of
+   * the CharSequence itself, or of a reused buffer holding the line read.
+   */
+  private static final class PatchLines {
+    private final CharSequence text;
+    private final Reader reader;
+    private char[] buffer;
+    private int bufferPosition;
+    private int bufferLimit;
+    private StringBuilder line;
+    // Position in text of the next line.
+    private int position;
+    // Bytes of the run of %xx escapes being decoded.
+    private byte[] escapes = new byte[16];
+
+    CharSequence chars;
+    int start;
+    int end;
+
+    PatchLines(CharSequence text) {
+      this.text = text;
+      this.reader = null;
+    }
+
+    PatchLines(Reader reader) {
+      this.text = null;
+      this.reader = reader;
+      buffer = new char[8192];
+      line = new StringBuilder();
+    }
+
+    /**
+     * Move to the next line, as String.split("\n") would give them except
+     * that a final empty line is not dropped.
+     * @return False at the end of the text.
+     * @throws UncheckedIOException If the reader fails.
+     */
+    boolean next() {
+      if (reader != null) {
+        return nextRead();
+      }
+      if (position >= text.length()) {
+        return false;
+      }
+      int newline = text instanceof String
+          ? ((String) text).indexOf('\n', position) : indexOf(text, position);
+      chars = text;
+      start = position;
+      end = newline == -1 ? text.length() : newline;
+      position = end + 1;
+      return true;
+    }
+
+    private static int indexOf(CharSequence text, int from) {
+      for (int i = from; i < text.length(); i++) {
+        if (text.charAt(i) == '\n') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private boolean nextRead() {
+      line.setLength(0);
+      boolean any = false;
+      while (true) {
+        if (bufferPosition == bufferLimit) {
+          try {
+            bufferLimit = reader.read(buffer);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          bufferPosition = 0;
+          if (bufferLimit == -1) {
+            bufferLimit = 0;
+            break;
+          }
+        }
+        any = true;
+        int i = bufferPosition;
+        while (i < bufferLimit && buffer[i] != '\n') {
+          i++;
+        }
+        line.append(buffer, bufferPosition, i - bufferPosition);
+        if (i < bufferLimit) {
+          bufferPosition = i + 1;
+          break;
+        }
+        bufferPosition = bufferLimit;
+      }
+      chars = line;
+      start = 0;
+      end = line.length();
+      return any;
+    }
+
+    /**
+     * Decode the rest of the line from index from, as URLDecoder.decode
+     * after replacing "+" with "%2B": %xx escapes are bytes, and each run
+     * of them is decoded as UTF-8.
+     * @throws IllegalArgumentException If an escape is malformed.
+     */
+    String decode(int from) {
+      int percent = from;
+      while (percent < end && chars.charAt(percent) != '%') {
+        percent++;
+      }
+      if (percent == end) {
+        // No escapes.
+        return chars.subSequence(from, end).toString();
+      }
+      StringBuilder decoded = new StringBuilder(end - from);
+      decoded.append(chars, from, percent);
+      int i = percent;
+      while (i < end) {
+        char c = chars.charAt(i);
+        if (c != '%') {
+          decoded.append(c);
+          i++;
+          continue;
+        }
+        int count = 0;
+        while (i < end && chars.charAt(i) == '%') {
+          int high = -1;
+          int low = -1;
+          if (i + 2 < end) {
+            high = Character.digit(chars.charAt(i + 1), 16);
+            low = Character.digit(chars.charAt(i + 2), 16);
+            if (chars.charAt(i + 1) == '-' && low == 0) {
+              // URLDecoder parses the escape with Integer.parseInt, which
+              // takes "-0" for 0.
+              high = 0;
+            }
+          }
+          if (high < 0 || low < 0) {
+            throw new IllegalArgumentException("Illegal escape in patch_fromText: "
+                + chars.subSequence(from, end));
+          }
+          if (count == escapes.length) {
+            escapes = Arrays.copyOf(escapes, count * 2);
+          }
+          escapes[count++] = (byte) (high << 4 | low);
+          i += 3;
+        }
+        if (count == 1 && escapes[0] >= 0) {
+          decoded.append((char) escapes[0]);
+        } else {
+          decoded.append(new String(escapes, 0, count, StandardCharsets.UTF_8));
+        }
+      }
+      return decoded.toString();
+    }
+  }
+
+  /**
+   * Growable byte buffer for the binary patch and delta encodings, written
+   * and then read from the start.  Counts and lengths are unsigned LEB128
+   * varints.  Text is UTF-8, except that an unpaired surrogate is encoded
+   * on its own in three bytes (as in WTF-8), so that any Java string,
+   * including a diff which splits a surrogate pair, survives the round
+   * trip.  Each operation is a varint of its length shifted left by two
+   * and its ordinal.
+   */
+  private static final class BinaryBuffer {
+    private static final int CHUNK = 1 << 16;
+
+    private byte[] bytes;
+    private int length;
+    private int position;
+
+    BinaryBuffer() {
+      bytes = new byte[256];
+    }
+
+    void writeVarint(long value) {
+      ensure(10);
+      while ((value & ~0x7FL) != 0) {
+        bytes[length++] = (byte) (value | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+
+    void writeEntry(Operation operation, int entryLength) {
+      writeVarint((long) entryLength << 2 | operation.ordinal());
+    }
+
+    void writeText(Operation operation, String text) {
+      int encoded = utf8Length(text);
+      writeEntry(operation, encoded);
+      ensure(encoded);
+      int n = text.length();
+      for (int i = 0; i < n; i++) {
+        char c = text.charAt(i);
+        if (c < 0x80) {
+          bytes[length++] = (byte) c;
+        } else if (c < 0x800) {
+          bytes[length++] = (byte) (0xC0 | c >>> 6);
+          bytes[length++] = (byte) (0x80 | c & 0x3F);
+        } else if (Character.isHighSurrogate(c) && i + 1 < n
+            && Character.isLowSurrogate(text.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, text.charAt(++i));
+          bytes[length++] = (byte) (0xF0 | codePoint >>> 18);
+          bytes[length++] = (byte) (0x80 | codePoint >>> 12 & 0x3F);
+          bytes[length++] = (byte) (0x80 | codePoint >>> 6 & 0x3F);
+          bytes[length++] = (byte) (0x80 | codePoint & 0x3F);
+        } else {
+          bytes[length++] = (byte) (0xE0 | c >>> 12);
+          bytes[length++] = (byte) (0x80 | c >>> 6 & 0x3F);
+          bytes[length++] = (byte) (0x80 | c & 0x3F);
+        }
+      }
+    }
+
+    // Encoded length of text; a surrogate pair takes four bytes.
+    private static int utf8Length(String text) {
+      int n = text.length();
+      int bytes = n;
+      for (int i = 0; i < n; i++) {
+        char c = text.charAt(i);
+        if (c >= 0x800) {
+          bytes += 2;
+          if (Character.isHighSurrogate(c) && i + 1 < n
+              && Character.isLowSurrogate(text.charAt(i + 1))) {
+            // Four bytes for the two chars.
+            i++;
+          }
+        } else if (c >= 0x80) {
+          bytes++;
+        }
+      }
+      return bytes;
+    }
+
+    private void ensure(int extra) {
+      if (bytes.length - length < extra) {
+        bytes = Arrays.copyOf(bytes,
+            Math.max(length + extra, bytes.length + (bytes.length >> 1)));
+      }
+    }
+
+    /**
+     * Write the header and the buffer, deflated if asked for.
+     */
+    void writeTo(DataOutput out, byte kind, boolean deflate)
+        throws IOException {
+      out.writeByte(kind);
+      out.writeByte(BINARY_VERSION);
+      out.writeByte(deflate ? BINARY_DEFLATED : 0);
+      BinaryBuffer header = new BinaryBuffer();
+      header.writeVarint(length);
+      if (!deflate) {
+        out.write(header.bytes, 0, header.length);
+        out.write(bytes, 0, length);
+        return;
+      }
+      Deflater deflater = new Deflater();
+      BinaryBuffer deflated = new BinaryBuffer();
+      try {
+        deflater.setInput(bytes, 0, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+          deflated.ensure(Math.max(256, length >> 2));
+          deflated.length += deflater.deflate(deflated.bytes, deflated.length,
+              deflated.bytes.length - deflated.length);
+        }
+      } finally {
+        deflater.end();
+      }
+      header.writeVarint(deflated.length);
+      out.write(header.bytes, 0, header.length);
+      out.write(deflated.bytes, 0, deflated.length);
+    }
+
+    /**
+     * Read a header written by writeTo and the buffer following it.
+     */
+    static BinaryBuffer readFrom(DataInput in, byte kind) throws IOException {
+      byte actualKind = in.readByte();
+      if (actualKind != kind) {
+        throw new IllegalArgumentException("Not a binary "
+            + (kind == BINARY_PATCHES ? "patch" : "delta") + ": " + actualKind);
+      }
+      int version = in.readUnsignedByte();
+      if (version != BINARY_VERSION) {
+        throw new IllegalArgumentException(
+            "Unsupported binary version: " + version);
+      }
+      int flags = in.readUnsignedByte();
+      if ((flags & ~BINARY_DEFLATED) != 0) {
+        throw new IllegalArgumentException("Unknown binary flags: " + flags);
+      }
+      int length = readLength(in);
+      if ((flags & BINARY_DEFLATED) == 0) {
+        return readBytes(in, length);
+      }
+      BinaryBuffer deflated = readBytes(in, readLength(in));
+      // Grow the output as it is inflated rather than trusting the length
+      // in the header.
+      BinaryBuffer inflated = new BinaryBuffer();
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(deflated.bytes, 0, deflated.length);
+        while (inflated.length < length && !inflater.finished()
+            && !inflater.needsInput() && !inflater.needsDictionary()) {
+          inflated.ensure(Math.min(length - inflated.length, CHUNK));
+          inflated.length += inflater.inflate(inflated.bytes, inflated.length,
+              Math.min(length, inflated.bytes.length) - inflated.length);
+        }
+        if (inflated.length != length || !inflater.finished()) {
+          throw new IllegalArgumentException("Deflated length does not match: "
+              + inflated.length + " of " + length);
+        }
+      } catch (DataFormatException e) {
+        throw new IllegalArgumentException("Corrupt deflated data.", e);
+      } finally {
+        inflater.end();
+      }
+      return inflated;
+    }
+
+    // Read length bytes in chunks, so that a corrupt length fails at the
+    // end of the input instead of allocating it all up front.
+    private static BinaryBuffer readBytes(DataInput in, int length)
+        throws IOException {
+      BinaryBuffer buffer = new BinaryBuffer();
+      while (buffer.length < length) {
+        int chunk = Math.min(length - buffer.length, CHUNK);
+        buffer.ensure(chunk);
+        in.readFully(buffer.bytes, buffer.length, chunk);
+        buffer.length += chunk;
+      }
+      return buffer;
+    }
+
+    // Varint of a length or count read directly from in.
+    private static int readLength(DataInput in) throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        byte b = in.readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          if (value > Integer.MAX_VALUE) {
+            break;
+          }
+          return (int) value;
+        }
+      }
+      throw new IllegalArgumentException("Invalid length in binary header.");
+    }
+
+    long readVarint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (position == length) {
+          throw new IllegalArgumentException("Truncated binary data.");
+        }
+        byte b = bytes[position++];
+        value |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Invalid varint in binary data.");
+    }
+
+    // A varint which must fit in an int, for counts and coordinates.
+    int readCount() {
+      long value = readVarint();
+      if (value < 0 || value > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException(
+            "Number out of range in binary data: " + value);
+      }
+      return (int) value;
+    }
+
+    static Operation operation(long entry) {
+      int ordinal = (int) (entry & 3);
+      if (ordinal >= EditScript.OPERATIONS.length) {
+        throw new IllegalArgumentException(
+            "Invalid diff operation in binary data: " + ordinal);
+      }
+      return EditScript.OPERATIONS[ordinal];
+    }
+
+    /**
+     * Decode the text of an entry, whose varint has been read.
+     */
+    String readText(long entry) {
+      long n = entry >>> 2;
+      if (n > length - position) {
+        throw new IllegalArgumentException("Truncated binary data.");
+      }
+      int end = position + (int) n;
+      char[] chars = new char[(int) n];
+      int count = 0;
+      while (position < end) {
+        int b = bytes[position++];
+        if (b >= 0) {
+          chars[count++] = (char) b;
+          continue;
+        }
+        int extra = (b & 0xE0) == 0xC0 ? 1 : (b & 0xF0) == 0xE0 ? 2
+            : (b & 0xF8) == 0xF0 ? 3 : -1;
+        if (extra < 0 || end - position < extra) {
+          throw new IllegalArgumentException("Invalid UTF-8 in binary data.");
+        }
+        int codePoint = b & (0x3F >> extra);
+        for (int k = 0; k < extra; k++) {
+          int next = bytes[position++];
+          if ((next & 0xC0) != 0x80) {
+            throw new IllegalArgumentException(
+                "Invalid UTF-8 in binary data.");
+          }
+          codePoint = codePoint << 6 | next & 0x3F;
+        }
+        if (extra == 3) {
+          if (codePoint < 0x10000 || codePoint > Character.MAX_CODE_POINT) {
+            throw new IllegalArgumentException(
+                "Invalid UTF-8 in binary data.");
+          }
+          chars[count++] = Character.highSurrogate(codePoint);
+          chars[count++] = Character.lowSurrogate(codePoint);
+        } else {
+          chars[count++] = (char) codePoint;
+        }
+      }
+      return new String(chars, 0, count);
+    }
+
+    /**
+     * Check that all of the buffer was read.
+     */
+    void checkEnd() {
+      if (position != length) {
+        throw new IllegalArgumentException("Trailing binary data: "
+            + (length - position) + " bytes.");
+      }
+    }
+  }
+
   /**
    * Unescape selected chars for compatability with JavaScript's encodeURI.
    * In speed critical applications this could be dropped since the
@@ -0,0 +1,140 @@
+package com.rj.diff.old;
+
+import com.github.javaparser.GeneratedJavaParserConstants;
+import com.github.javaparser.GeneratedJavaParserTokenManager;
+import com.github.javaparser.SimpleCharStream;
+import com.github.javaparser.StringProvider;
+import com.github.javaparser.Token;
+import com.github.javaparser.TokenMgrException;
+import com.rj.diff.current.utils.LineOffsetTable;
+import com.rj.diff.diff_match_patch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Java 词法级对比：两侧文本用 JavaParser 的词法分析器切分为词法单元（空白、注释也各为一个单元），
+ * 相同文本的词法单元映射为同一个整数 id，对比 id 序列后再换算回字符区间
+ * 词法单元序列比字符序列短得多，对比更快，高亮也不会从标识符、字面量中间切开
+ */
+public final class JavaTokenDiffer {
+
+    private JavaTokenDiffer() {
+    }
+
+    /**
+     * 词法级对比两段 Java 源码
+     *
+     * @param dmp       对比引擎，使用其超时设置
+     * @param leftText  左侧文本
+     * @param rightText 右侧文本
+     * @param monitor   对比过程中轮询的取消标记，可为 null
+     * @return 与字符级 diff_main 格式相同、已做过语义清理的差异列表；任一侧无法完成词法分析（如字符串未闭合）时返回 null，由调用方退回字符级对比
+     */
+    public static LinkedList<diff_match_patch.Diff> diff(diff_match_patch dmp, String leftText, String rightText,
+                                                         diff_match_patch.DiffMonitor monitor) {
+        Map<String, Integer> ids = new HashMap<>();
+        TokenizedText left = tokenize(leftText, ids);
+        if (left == null) {
+            return null;
+        }
+        TokenizedText right = tokenize(rightText, ids);
+        if (right == null) {
+            return null;
+        }
+
+        diff_match_patch.TokenDiff tokenDiff = dmp.diff_main(left.ids, right.ids, monitor);
+        // 语义清理在词法单元层面完成，换算回字符区间后不再做字符级清理，以免高亮从单元中间切开
+        dmp.diff_cleanupSemantic(tokenDiff);
+        LinkedList<diff_match_patch.Diff> diffs = new LinkedList<>();
+        for (int i = 0; i < tokenDiff.size(); i++) {
+            diff_match_patch.Operation operation = tokenDiff.operation(i);
+            // 新增取右侧文本，删除和相同取左侧文本
+            TokenizedText side = operation == diff_match_patch.Operation.INSERT ? right : left;
+            int start = operation == diff_match_patch.Operation.INSERT ? tokenDiff.start2(i) : tokenDiff.start1(i);
+            int end = start + tokenDiff.length(i);
+            diffs.add(new diff_match_patch.Diff(operation,
+                    side.text.substring(side.offsets[start], side.offsets[end])));
+        }
+        return diffs;
+    }
+
+    /**
+     * 切分词法单元并映射为 id
+     * 词法单元的图像文本不一定等于源码（如泛型中的 >> 会被拆分），因此按起始行列换算偏移量，
+     * 每个单元的文本取到下一个单元起点为止，保证所有单元首尾相接覆盖整段文本
+     */
+    private static TokenizedText tokenize(String text, Map<String, Integer> ids) {
+        LineOffsetTable lines = LineOffsetTable.of(text);
+        int[] offsets = new int[Math.max(16, text.length() / 4)];
+        int count = 0;
+        List<Token> specials = new ArrayList<>();
+        try {
+            GeneratedJavaParserTokenManager tokenManager =
+                    new GeneratedJavaParserTokenManager(new SimpleCharStream(new StringProvider(text)));
+            while (true) {
+                Token token = tokenManager.getNextToken();
+                // 空白和注释以倒序链表挂在下一个词法单元上
+                specials.clear();
+                for (Token special = token.specialToken; special != null; special = special.specialToken) {
+                    specials.add(special);
+                }
+                for (int i = specials.size() - 1; i >= -1; i--) {
+                    Token current = i >= 0 ? specials.get(i) : token;
+                    if (current.kind == GeneratedJavaParserConstants.EOF) {
+                        break;
+                    }
+                    int offset = lines.getOffset(current.beginLine - 1, current.beginColumn - 1);
+                    if (count > 0 && offset <= offsets[count - 1]) {
+                        // 行列与偏移量对不上（如 \r 换行），无法换算
+                        return null;
+                    }
+                    if (count + 1 == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count + (count >> 1));
+                    }
+                    offsets[count++] = offset;
+                }
+                if (token.kind == GeneratedJavaParserConstants.EOF) {
+                    break;
+                }
+            }
+        } catch (TokenMgrException e) {
+            return null;
+        }
+        if (count > 0 && offsets[0] != 0) {
+            return null;
+        }
+        offsets[count] = text.length();
+
+        int[] tokenIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            String tokenText = text.substring(offsets[i], offsets[i + 1]);
+            Integer id = ids.get(tokenText);
+            if (id == null) {
+                id = ids.size();
+                ids.put(tokenText, id);
+            }
+            tokenIds[i] = id;
+        }
+        return new TokenizedText(text, tokenIds, offsets);
+    }
+
+    /**
+     * 一侧文本的词法单元：ids[i] 为第 i 个单元的 id，其文本为 [offsets[i], offsets[i + 1])
+     */
+    private static final class TokenizedText {
+        final String text;
+        final int[] ids;
+        final int[] offsets;
+
+        TokenizedText(String text, int[] ids, int[] offsets) {
+            this.text = text;
+            this.ids = ids;
+            this.offsets = offsets;
+        }
+    }
+}
@@ -32,8 +32,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.prefs.Preferences;
 
 public class MyCodeCompareDialogCurrent extends DialogWrapper {
@@ -50,10 +51,15 @@ public class MyCodeCompareDialogCurrent extends DialogWrapper {
     private final VirtualFile currentFile;
     private final JTextField urlTextField;
     private final JComboBox<String> languageComboBox;
+    private final JCheckBox tokenDiffCheckBox;
     private final Path sourceFilePath;
     private final Highlighter.HighlightPainter addedPainter;
     private final Highlighter.HighlightPainter removedPainter;
     private boolean isAdjusting = false;
+    // 正在后台执行的对比，文本再次变化时取消，只保留最新一次的结果
+    private diff_match_patch.CancellationToken runningDiff;
+    // 最近一次完整对比结果的位置映射，用于把右侧偏移量换算到左侧；文本变化后置空，直到新的对比完成
+    private diff_match_patch.LocationMap locationMap;
 
 
     public MyCodeCompareDialogCurrent(@Nullable Project project, String sourceCode, Path sourceFilePath, VirtualFile currentFile) {
@@ -81,6 +87,8 @@ public class MyCodeCompareDialogCurrent extends DialogWrapper {
         //languageComboBox = new ComboBox<>(new String[]{"Java", "Kotlin", "Python", "JavaScript", "HTML", "XML", "SQL", "JSON"});
         languageComboBox = new ComboBox<>(new String[]{"Java"});
         languageComboBox.setVisible(Boolean.FALSE);
+        tokenDiffCheckBox = new JCheckBox("词法级对比");
+        tokenDiffCheckBox.setToolTipText("按 Java 词法单元对比，高亮不会从标识符中间切开");
 
         // 设置高亮颜色
         addedPainter = new DefaultHighlighter.DefaultHighlightPainter(new Color(218, 53, 53, 119));
@@ -179,6 +187,7 @@ public class MyCodeCompareDialogCurrent extends DialogWrapper {
         //controlPanel.add(new JLabel("语言:"));
         controlPanel.add(languageComboBox);
         controlPanel.add(compareButton);
+        controlPanel.add(tokenDiffCheckBox);
 
         // 代码对比面板
         JPanel codePanel = new JPanel(new GridLayout());
@@ -269,6 +278,10 @@ public class MyCodeCompareDialogCurrent extends DialogWrapper {
             rightTextArea.setSyntaxEditingStyle(syntaxStyle);
             savePreferences();
         });
+        tokenDiffCheckBox.addActionListener(e -> {
+            savePreferences();
+            compareCode(null);
+        });
 
         // 自动格式化代码监听
         leftTextArea.getDocument().addDocumentListener(new DocumentListener() {
@@ -341,6 +354,8 @@ public class MyCodeCompareDialogCurrent extends DialogWrapper {
 
     //算法对比
     private void compareCode(ActionEvent e) {
+        // 旧的位置映射已与文本不符
+        locationMap = null;
         String leftText = leftTextArea.getText();
         String rightText = rightTextArea.getText();
 
@@ -349,49 +364,122 @@ public class MyCodeCompareDialogCurrent extends DialogWrapper {
             //        "两侧代码都不能为空", "错误", JOptionPane.ERROR_MESSAGE);
             return;
         }
+        boolean tokenDiff = tokenDiffCheckBox.isSelected();
+        if (runningDiff != null) {
+            runningDiff.cancel();
+        }
+        diff_match_patch.CancellationToken token = new diff_match_patch.CancellationToken();
+        runningDiff = token;
 
         CompletableFuture.runAsync(() -> {
             // 使用diff-match-patch计算差异
             diff_match_patch dmp = new diff_match_patch();
-            LinkedList<diff_match_patch.Diff> diffs = dmp.diff_main(leftText, rightText);
+            diff_match_patch.CompactDiff diffs;
+            LinkedList<diff_match_patch.Diff> tokenDiffs;
+            try {
+                // 词法级对比；词法分析失败（如编辑中字符串未闭合）时退回字符级对比
+                tokenDiffs = tokenDiff ? JavaTokenDiffer.diff(dmp, leftText, rightText, token) : null;
+                diffs = tokenDiffs != null ? diff_match_patch.CompactDiff.fromDiffs(leftText, rightText, tokenDiffs)
+                        : charDiffs(dmp, leftText, rightText, token);
+            } catch (CancellationException ex) {
+                // 已有更新的对比，丢弃本次结果
+                return;
+            }
             dmp.Diff_Timeout = 1.0f;
-            dmp.diff_cleanupSemantic(diffs);
+            if (tokenDiffs == null) {
+                // 词法级结果已在词法单元层面清理，字符级清理会把单元重新拆开
+                dmp.diff_cleanupSemantic(diffs);
+            }
+            diff_match_patch.LocationMap locations = new diff_match_patch.LocationMap(diffs);
 
             SwingUtilities.invokeLater(() -> {
+                if (token.isCanceled()) {
+                    return;
+                }
                 // 清除之前的高亮
                 leftTextArea.getHighlighter().removeAllHighlights();
                 rightTextArea.getHighlighter().removeAllHighlights();
 
                 // 应用高亮显示差异
                 highlightDifferences(diffs);
+                locationMap = locations;
             });
         });
     }
 
-    private void highlightDifferences(List<diff_match_patch.Diff> diffs) {
+    // 字符级对比：先显示行级结果，各修改块在后台逐字符细化，完成一块就更新一块的高亮
+    private diff_match_patch.CompactDiff charDiffs(diff_match_patch dmp, String leftText, String rightText,
+                                                   diff_match_patch.CancellationToken token) {
+        // 生成代码中大量重复行（}、空行、@Parameter( 等），行级对比用 Histogram 算法对齐更准确
+        dmp.Diff_LineAlgorithm = diff_match_patch.LineAlgorithm.HISTOGRAM;
+        diff_match_patch.ProgressiveDiffListener listener = new diff_match_patch.ProgressiveDiffListener() {
+            @Override
+            public void coarse(diff_match_patch.CompactDiff diffs, int hunks) {
+                SwingUtilities.invokeLater(() -> {
+                    if (token.isCanceled()) {
+                        return;
+                    }
+                    leftTextArea.getHighlighter().removeAllHighlights();
+                    rightTextArea.getHighlighter().removeAllHighlights();
+                    highlightDifferences(diffs);
+                });
+            }
+
+            @Override
+            public void refined(int hunk, diff_match_patch.CompactDiff diffs) {
+                SwingUtilities.invokeLater(() -> {
+                    if (!token.isCanceled()) {
+                        refineHighlights(diffs);
+                    }
+                });
+            }
+        };
         try {
-            int leftPos = 0;
-            int rightPos = 0;
+            return dmp.diff_mainProgressive(leftText, rightText, listener, token).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof CancellationException) {
+                throw (CancellationException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
 
-            for (diff_match_patch.Diff diff : diffs) {
-                String text = diff.text;
-                int length = text.length();
+    // 某个修改块细化完成：去掉该块范围内的行级高亮，换成字符级高亮
+    private void refineHighlights(diff_match_patch.CompactDiff hunk) {
+        if (hunk.size() == 0) {
+            return;
+        }
+        int last = hunk.size() - 1;
+        removeDiffHighlights(leftTextArea, hunk.start1(0), hunk.end1(last));
+        removeDiffHighlights(rightTextArea, hunk.start2(0), hunk.end2(last));
+        highlightDifferences(hunk);
+    }
 
-                switch (diff.operation) {
+    // 只移除差异高亮，不影响选区等其他高亮
+    private void removeDiffHighlights(JTextArea textArea, int start, int end) {
+        Highlighter highlighter = textArea.getHighlighter();
+        for (Highlighter.Highlight highlight : highlighter.getHighlights()) {
+            if ((highlight.getPainter() == addedPainter || highlight.getPainter() == removedPainter)
+                    && highlight.getStartOffset() >= start && highlight.getEndOffset() <= end) {
+                highlighter.removeHighlight(highlight);
+            }
+        }
+    }
+
+    // 按差异记录的位置高亮，不生成子串
+    private void highlightDifferences(diff_match_patch.CompactDiff diffs) {
+        try {
+            for (int i = 0; i < diffs.size(); i++) {
+                switch (diffs.operation(i)) {
                     case INSERT:
                         // 在右侧显示新增内容
-                        rightTextArea.getHighlighter().addHighlight(rightPos, rightPos + length, addedPainter);
-                        rightPos += length;
+                        rightTextArea.getHighlighter().addHighlight(diffs.start2(i), diffs.end2(i), addedPainter);
                         break;
                     case DELETE:
                         // 在左侧显示删除内容
-                        leftTextArea.getHighlighter().addHighlight(
-                                leftPos, leftPos + length, removedPainter);
-                        leftPos += length;
+                        leftTextArea.getHighlighter().addHighlight(diffs.start1(i), diffs.end1(i), removedPainter);
                         break;
-                    case EQUAL:
-                        leftPos += length;
-                        rightPos += length;
+                    default:
                         break;
                 }
             }
@@ -429,7 +517,12 @@ public class MyCodeCompareDialogCurrent extends DialogWrapper {
             // 计算 leftTextArea 的总行数
             int leftTotalLines = leftTextArea.getLineCount();
 
-            if (rightLineNumber < leftTotalLines) {
+            if (locationMap != null) {
+                // 对比结果可用：按差异把选中行的行首换算到左侧对应位置，插入到该位置所在行的行首
+                int leftOffset = locationMap.toText1(rightTextArea.getLineStartOffset(rightLineNumber));
+                int leftLineStartOffset = leftTextArea.getLineStartOffset(leftTextArea.getLineOfOffset(leftOffset));
+                leftTextArea.insert(selectedText + "\n", leftLineStartOffset);
+            } else if (rightLineNumber < leftTotalLines) {
                 // leftTextArea 行数足够，获取该行的起始偏移量
                 int leftLineStartOffset = leftTextArea.getLineStartOffset(rightLineNumber);
                 // 在该行插入 selectedText
@@ -486,6 +579,7 @@ public class MyCodeCompareDialogCurrent extends DialogWrapper {
         Preferences prefs = Preferences.userNodeForPackage(MyCodeCompareDialogCurrent.class);
         prefs.put("lastUrl", urlTextField.getText());
         prefs.put("lastLanguage", (String) languageComboBox.getSelectedItem());
+        prefs.putBoolean("tokenDiff", tokenDiffCheckBox.isSelected());
     }
 
     private void loadPreferences() {
@@ -493,6 +587,7 @@ public class MyCodeCompareDialogCurrent extends DialogWrapper {
         urlTextField.setText(prefs.get("lastUrl", ""));
         String lastLanguage = prefs.get("lastLanguage", "Java");
         languageComboBox.setSelectedItem(lastLanguage);
+        tokenDiffCheckBox.setSelected(prefs.getBoolean("tokenDiff", false));
 
         // 设置初始语法高亮
         String syntaxStyle = getSyntaxStyleForLanguage(lastLanguage);